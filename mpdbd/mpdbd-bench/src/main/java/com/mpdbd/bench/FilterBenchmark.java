@@ -0,0 +1,67 @@
+package com.mpdbd.bench;
+
+import com.server.query.Filter;
+import com.server.query.FilterCompiler;
+import com.server.storage.Document;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checking documents against compiled QUERY filters, without the request around it:
+ * the cost per scanned document of each kind of condition.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dmpdb.log.level=off")
+public class FilterBenchmark {
+
+    private static final Map<String, String> FILTERS = Map.of(
+            "nested", "{\"address.country\":\"ZA\",\"address.geo.lat\":{\"$gte\":0}}",
+            "or", "{\"$or\":[{\"status\":\"banned\"},{\"age\":{\"$lt\":21}},{\"address.city\":\"city7\"}]}",
+            "regex", "{\"email\":{\"$regex\":\"^user1.*@example3\\\\.com$\"}}",
+            "in", "{\"status\":{\"$in\":[\"active\",\"new\"]},\"tags\":{\"$in\":[\"t3\",\"t5\"]}}",
+            "combined", "{\"age\":{\"$gte\":30,\"$lt\":40},\"status\":{\"$in\":[\"active\",\"new\"]},"
+                    + "\"$or\":[{\"address.city\":\"city7\"},{\"email\":{\"$regex\":\"example1\"}}]}");
+
+    @Param({"10000", "100000", "1000000"})
+    int documents;
+
+    @Param({"nested", "or", "regex", "in", "combined"})
+    String filter;
+
+    private Document[] users;
+    private Filter compiled;
+
+    @Setup
+    public void setup() {
+        users = new Document[documents];
+        for (int i = 0; i < documents; i++) {
+            users[i] = Fixtures.user(i);
+        }
+        compiled = FilterCompiler.compile(new JSONObject(FILTERS.get(filter)));
+    }
+
+    @Benchmark
+    public int scan() {
+        int matches = 0;
+        for (Document user : users) {
+            if (compiled.matches(user)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    /** Compiling the filter, which the plan cache saves for repeated queries. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Filter compile() {
+        return FilterCompiler.compile(new JSONObject(FILTERS.get(filter)));
+    }
+}
@@ -0,0 +1,108 @@
+package com.mpdbd.bench;
+
+import com.server.RequestHandler;
+import com.server.storage.Document;
+import com.server.storage.DocumentCollection;
+import com.server.storage.StorageEngine;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Data shared by the benchmarks: a storage engine in a temporary directory and user
+ * documents shaped like the ones the UI stores, with nested fields and arrays.
+ */
+final class Fixtures {
+
+    static final String DB = "bench";
+    static final String COLLECTION = "users";
+
+    private static final String[] STATUSES = {"active", "idle", "new", "banned"};
+    private static final String[] COUNTRIES = {"ZA", "US", "DE", "BR", "IN", "JP"};
+
+    private Fixtures() {
+    }
+
+    /** A user document; the same {@code i} always gives the same document. */
+    static Document user(int i) {
+        return Document.fromJson(userJson(i));
+    }
+
+    static JSONObject userJson(int i) {
+        return new JSONObject()
+                .put("name", "user" + i)
+                .put("email", "user" + i + "@example" + i % 20 + ".com")
+                .put("age", 18 + i % 70)
+                .put("status", STATUSES[i % STATUSES.length])
+                .put("score", (i * 7919L) % 10_000 / 100.0)
+                .put("createdAt", 1_600_000_000_000L + i * 60_000L)
+                .put("address", new JSONObject()
+                        .put("city", "city" + i % 500)
+                        .put("country", COUNTRIES[i % COUNTRIES.length])
+                        .put("geo", new JSONObject().put("lat", i % 180 - 90).put("lng", i % 360 - 180)))
+                .put("tags", new JSONArray().put("t" + i % 10).put("t" + i % 7));
+    }
+
+    /** Opens a storage engine on {@code dir}, a directory from {@link #tempDir}. */
+    static StorageEngine openStorage(Path dir) {
+        try {
+            return StorageEngine.open(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** A new empty directory, removed again with {@link #delete}. */
+    static Path tempDir() {
+        try {
+            return Files.createTempDirectory("mpdb-bench");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Creates the benchmark collection through the handler and fills it with {@code documents} users. */
+    static DocumentCollection fill(StorageEngine storage, RequestHandler handler, int documents) {
+        handler.handle("{\"action\":\"CREATE_DB\",\"dbName\":\"" + DB + "\"}");
+        handler.handle("{\"action\":\"CREATE_COLLECTION\",\"dbName\":\"" + DB + "\",\"collectionName\":\"" + COLLECTION + "\"}");
+        DocumentCollection users = storage.getDatabases().get(DB).get(COLLECTION);
+        // Straight into the collection: loading millions of documents through the log is not what is measured
+        for (int i = 0; i < documents; i++) {
+            users.put("user" + i, user(i));
+        }
+        return users;
+    }
+
+    /**
+     * Fills {@code to} with hard links to the files under {@code from}. The storage engine
+     * replaces its files rather than writing over them, so the originals stay as they were.
+     */
+    static void link(Path from, Path to) {
+        try (Stream<Path> paths = Files.walk(from)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                Path target = to.resolve(from.relativize(path));
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(target);
+                } else {
+                    Files.createLink(target, path);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void delete(Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
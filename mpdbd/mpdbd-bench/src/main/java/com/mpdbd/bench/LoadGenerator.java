@@ -0,0 +1,335 @@
+package com.mpdbd.bench;
+
+import com.server.RequestExecutors;
+import com.server.RequestHandler;
+import com.server.Server;
+import com.server.ServerConfig;
+import com.server.metrics.Histogram;
+import com.server.storage.StorageEngine;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a daemon over TCP with many connections and a mix of CREATE_DOCUMENT,
+ * READ_DOCUMENT, UPDATE_DOCUMENT and QUERY requests at a fixed rate, and reports the
+ * throughput and latency percentiles of each action.
+ *
+ * The load is open-loop: every connection has a schedule of send times fixed in
+ * advance, and latency is measured from the time a request was due, not from when it
+ * was actually sent. A stall therefore shows up in the latency of every request that
+ * should have been sent during it, instead of quietly lowering the load (coordinated
+ * omission). The latency from the actual send is reported as service time.
+ *
+ * Without {@code --port}, a daemon is started in this JVM on an ephemeral port with a
+ * temporary data directory, so the tool runs with nothing else set up:
+ *
+ * <pre>
+ * java -cp mpdbd-bench/target/benchmarks.jar com.mpdbd.bench.LoadGenerator --connections=64 --rate=5000 --duration=30
+ * </pre>
+ */
+public final class LoadGenerator {
+
+    private static final String[] ACTIONS = {"CREATE_DOCUMENT", "READ_DOCUMENT", "UPDATE_DOCUMENT", "QUERY"};
+    private static final int PRELOAD_BATCH = 1000;
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final double rate;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final int documents;
+    // Cumulative weights of ACTIONS, ending at their total
+    private final int[] mix = new int[ACTIONS.length];
+    private final ActionStats[] stats = new ActionStats[ACTIONS.length];
+    private final LongAdder connectionErrors = new LongAdder();
+
+    private LoadGenerator(String host, int port, Map<String, String> options) {
+        this.host = host;
+        this.port = port;
+        this.connections = Integer.parseInt(options.getOrDefault("connections", "16"));
+        this.rate = Double.parseDouble(options.getOrDefault("rate", "1000"));
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "5")));
+        this.durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "30")));
+        this.documents = Integer.parseInt(options.getOrDefault("documents", "10000"));
+
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String entry : options.getOrDefault("mix", "CREATE_DOCUMENT=20,READ_DOCUMENT=50,UPDATE_DOCUMENT=20,QUERY=10").split(",")) {
+            String[] parts = entry.split("=");
+            weights.put(parts[0].trim().toUpperCase(Locale.ROOT), Integer.parseInt(parts[1].trim()));
+        }
+        int total = 0;
+        for (int i = 0; i < ACTIONS.length; i++) {
+            total += weights.getOrDefault(ACTIONS[i], 0);
+            mix[i] = total;
+            stats[i] = new ActionStats();
+        }
+        weights.keySet().removeAll(List.of(ACTIONS));
+        if (!weights.isEmpty() || total <= 0 || connections <= 0 || rate <= 0) {
+            throw new IllegalArgumentException("Invalid options: the mix must give positive weights to "
+                    + String.join(", ", ACTIONS) + " only, and connections and rate must be positive");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                System.err.println("Usage: LoadGenerator [--host=127.0.0.1] [--port=N] [--connections=16] [--rate=1000]"
+                        + " [--duration=30] [--warmup=5] [--documents=10000]"
+                        + " [--mix=CREATE_DOCUMENT=20,READ_DOCUMENT=50,UPDATE_DOCUMENT=20,QUERY=10] [--json=results.json]");
+                System.exit(2);
+            }
+            int split = arg.indexOf('=');
+            options.put(arg.substring(2, split), arg.substring(split + 1));
+        }
+
+        String host = options.getOrDefault("host", "127.0.0.1");
+        Path dataDir = null;
+        StorageEngine storage = null;
+        Server server = null;
+        int port;
+        if (options.containsKey("port")) {
+            port = Integer.parseInt(options.get("port"));
+        } else {
+            // The daemon's request log would cost more than the requests
+            if (System.getProperty("mpdb.log.level") == null) {
+                System.setProperty("mpdb.log.level", "warn");
+            }
+            dataDir = Files.createTempDirectory("mpdb-load");
+            storage = StorageEngine.open(dataDir);
+            server = RequestExecutors.startServer(new RequestHandler(storage), 0);
+            port = server.getPort();
+            host = "127.0.0.1";
+            System.out.println("🚀 Started a daemon on port " + port + " (" + ServerConfig.executorMode() + " executor, "
+                    + ServerConfig.workerThreads() + " workers) with data in " + dataDir);
+        }
+
+        try {
+            LoadGenerator load = new LoadGenerator(host, port, options);
+            load.preload();
+            JSONObject results = load.run();
+            if (options.containsKey("json")) {
+                Files.write(Paths.get(options.get("json")), results.toString(2).getBytes(StandardCharsets.UTF_8));
+            }
+        } finally {
+            if (server != null) {
+                server.close();
+                storage.close();
+                Fixtures.delete(dataDir);
+            }
+        }
+    }
+
+    // Creates the collection and the documents that reads and updates pick from
+    private void preload() throws IOException {
+        long start = System.nanoTime();
+        try (Client client = new Client()) {
+            client.call("{\"action\":\"CREATE_DB\",\"dbName\":\"" + Fixtures.DB + "\"}");
+            client.call("{\"action\":\"CREATE_COLLECTION\",\"dbName\":\"" + Fixtures.DB + "\",\"collectionName\":\"" + Fixtures.COLLECTION + "\"}");
+            for (int first = 0; first < documents; first += PRELOAD_BATCH) {
+                JSONArray operations = new JSONArray();
+                for (int i = first; i < Math.min(documents, first + PRELOAD_BATCH); i++) {
+                    operations.put(new JSONObject().put("op", "insert").put("documentId", "user" + i).put("document", Fixtures.userJson(i)));
+                }
+                JSONObject response = new JSONObject(client.call(new JSONObject().put("action", "BULK_WRITE").put("dbName", Fixtures.DB)
+                        .put("collectionName", Fixtures.COLLECTION).put("ordered", false).put("operations", operations).toString()));
+                if (!"success".equals(response.optString("status"))) {
+                    // Documents left over from an earlier run are fine
+                    System.out.println("⚠️ Preload batch at user" + first + ": " + response.optString("message"));
+                }
+            }
+        }
+        System.out.println("📝 Preloaded " + documents + " documents in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    private JSONObject run() throws InterruptedException {
+        // Each connection sends every `interval`; their schedules are staggered evenly
+        long interval = (long) (connections * 1e9 / rate);
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = start + warmupNanos;
+        long end = measureFrom + durationNanos;
+
+        System.out.println("⏳ " + connections + " connections at " + rate + " requests/s: " + TimeUnit.NANOSECONDS.toSeconds(warmupNanos)
+                + " s warm-up, then " + TimeUnit.NANOSECONDS.toSeconds(durationNanos) + " s measured");
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < connections; c++) {
+            int connection = c;
+            Thread thread = new Thread(() -> drive(connection, start + connection * interval / connections, interval, measureFrom, end),
+                    "mpdb-load-" + c);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return report();
+    }
+
+    private void drive(int connection, long first, long interval, long measureFrom, long end) {
+        SplittableRandom random = new SplittableRandom(connection);
+        long created = 0;
+        try (Client client = new Client()) {
+            for (long due = first; due < end; due += interval) {
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+
+                int action = pick(random.nextInt(mix[mix.length - 1]));
+                String request = request(action, connection, created++, random);
+                long sent = System.nanoTime();
+                String response = client.call(request);
+                long done = System.nanoTime();
+
+                if (due >= measureFrom) {
+                    stats[action].record(done - due, done - sent, !response.contains("\"status\":\"success\""));
+                }
+            }
+        } catch (IOException e) {
+            connectionErrors.increment();
+            System.err.println("❌ Connection " + connection + " failed: " + e.getMessage());
+        }
+    }
+
+    private int pick(int weight) {
+        int action = 0;
+        while (weight >= mix[action]) {
+            action++;
+        }
+        return action;
+    }
+
+    private String request(int action, int connection, long n, SplittableRandom random) {
+        String target = "{\"dbName\":\"" + Fixtures.DB + "\",\"collectionName\":\"" + Fixtures.COLLECTION + "\",";
+        int id = random.nextInt(documents);
+        switch (ACTIONS[action]) {
+            case "CREATE_DOCUMENT":
+                return target + "\"action\":\"CREATE_DOCUMENT\",\"documentId\":\"load-" + connection + "-" + n
+                        + "\",\"document\":" + Fixtures.userJson(id) + "}";
+            case "READ_DOCUMENT":
+                return target + "\"action\":\"READ_DOCUMENT\",\"documentId\":\"user" + id + "\"}";
+            case "UPDATE_DOCUMENT":
+                return target + "\"action\":\"UPDATE_DOCUMENT\",\"documentId\":\"user" + id
+                        + "\",\"updates\":{\"score\":" + random.nextInt(10_000) + "}}";
+            default:
+                return target + "\"action\":\"QUERY\",\"query\":{\"status\":\"active\",\"age\":{\"$gte\":" + (18 + random.nextInt(70))
+                        + "}},\"sortBy\":\"createdAt\",\"ascending\":false,\"limit\":20}";
+        }
+    }
+
+    private JSONObject report() {
+        double seconds = durationNanos / 1e9;
+        JSONObject results = new JSONObject()
+                .put("connections", connections)
+                .put("targetRate", rate)
+                .put("durationSeconds", seconds)
+                .put("documents", documents)
+                .put("connectionErrors", connectionErrors.sum());
+        JSONObject actions = new JSONObject();
+
+        System.out.println("📊 Latency from the time each request was due (service time from the actual send), in ms");
+        System.out.println(String.format("   %-16s %9s %7s %9s %8s %8s %8s %8s   %s",
+                "action", "requests", "errors", "req/s", "p50", "p99", "p99.9", "max", "service p50 / p99"));
+        long total = 0;
+        for (int i = 0; i < ACTIONS.length; i++) {
+            Histogram.Summary response = stats[i].response.summary();
+            Histogram.Summary service = stats[i].service.summary();
+            if (response.count() == 0) {
+                continue;
+            }
+            total += response.count();
+            System.out.println(String.format("   %-16s %9d %7d %9.0f %8.2f %8.2f %8.2f %8.2f   %.2f / %.2f",
+                    ACTIONS[i], response.count(), stats[i].errors.sum(), response.count() / seconds,
+                    ms(response.valueAt(0.5)), ms(response.valueAt(0.99)), ms(response.valueAt(0.999)), ms(response.max()),
+                    ms(service.valueAt(0.5)), ms(service.valueAt(0.99))));
+            actions.put(ACTIONS[i], new JSONObject()
+                    .put("requests", response.count())
+                    .put("errors", stats[i].errors.sum())
+                    .put("throughput", response.count() / seconds)
+                    .put("latencyMs", percentiles(response))
+                    .put("serviceTimeMs", percentiles(service)));
+        }
+        System.out.println(String.format("   %-16s %9d %7s %9.0f   (target %.0f)", "total", total, "", total / seconds, rate));
+        return results.put("throughput", total / seconds).put("actions", actions);
+    }
+
+    private static JSONObject percentiles(Histogram.Summary summary) {
+        return new JSONObject()
+                .put("p50", ms(summary.valueAt(0.5)))
+                .put("p90", ms(summary.valueAt(0.9)))
+                .put("p99", ms(summary.valueAt(0.99)))
+                .put("p999", ms(summary.valueAt(0.999)))
+                .put("max", ms(summary.max()))
+                .put("mean", summary.mean() / 1e6);
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static final class ActionStats {
+        final Histogram response = new Histogram();
+        final Histogram service = new Histogram();
+        final LongAdder errors = new LongAdder();
+
+        void record(long responseNanos, long serviceNanos, boolean error) {
+            response.record(responseNanos);
+            service.record(serviceNanos);
+            if (error) {
+                errors.increment();
+            }
+        }
+    }
+
+    // One connection sending a request and waiting for its response
+    private final class Client implements AutoCloseable {
+        private final Socket socket;
+        private final Writer out;
+        private final BufferedReader in;
+
+        Client() throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        String call(String request) throws IOException {
+            out.write(request);
+            out.write('\n');
+            out.flush();
+            String response = in.readLine();
+            if (response == null) {
+                throw new IOException("Connection closed by the daemon");
+            }
+            return response;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
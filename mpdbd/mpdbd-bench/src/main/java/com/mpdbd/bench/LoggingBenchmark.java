@@ -0,0 +1,66 @@
+package com.mpdbd.bench;
+
+import com.server.RequestHandler;
+import com.server.log.Log;
+import com.server.storage.StorageEngine;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UPDATE_DOCUMENT requests with a large value, logged whole, cut to 64 characters or not
+ * at all. The console is a null stream, so what is measured is building and queueing the
+ * log lines.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoggingBenchmark {
+
+    @Param({"whole", "cut", "off"})
+    String logging;
+
+    // Documents the requests update in turn
+    private static final int DOCUMENTS = 1000;
+
+    private static final String FILLER = "x".repeat(512);
+
+    private PrintStream console;
+    private Path dir;
+    private StorageEngine storage;
+    private RequestHandler handler;
+    private int next;
+
+    @Setup
+    public void setup() {
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setProperty("mpdb.log.maxLineChars", logging.equals("cut") ? "64" : "0");
+        Log.setLevel(logging.equals("off") ? Log.Level.OFF : Log.Level.INFO);
+        dir = Fixtures.tempDir();
+        storage = Fixtures.openStorage(dir);
+        handler = new RequestHandler(storage);
+        Fixtures.fill(storage, handler, DOCUMENTS);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Log.flush();
+        storage.close();
+        Fixtures.delete(dir);
+        System.setOut(console);
+    }
+
+    @Benchmark
+    public String update() {
+        next = (next + 1) % DOCUMENTS;
+        return handler.handle("{\"action\":\"UPDATE_DOCUMENT\",\"dbName\":\"" + Fixtures.DB + "\",\"collectionName\":\"" + Fixtures.COLLECTION
+                + "\",\"documentId\":\"user" + next + "\",\"updates\":{\"filler\":\"" + FILLER + "\"}}");
+    }
+}
@@ -0,0 +1,32 @@
+package com.mpdbd.bench;
+
+import com.server.metrics.Histogram;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording a request latency into a histogram shared by every thread, as each request
+ * does. Run with {@code -t} set to the number of cores to measure recorders contending.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsBenchmark {
+
+    private final Histogram histogram = new Histogram();
+
+    /** The latencies one thread records, spread over several buckets. */
+    @State(Scope.Thread)
+    public static class Latencies {
+        int next;
+    }
+
+    @Benchmark
+    public void record(Latencies latencies) {
+        histogram.record(1000 + (latencies.next++ & 0xFFFF));
+    }
+}
@@ -0,0 +1,175 @@
+package com.mpdbd.bench;
+
+import com.server.RequestHandler;
+import com.server.storage.Document;
+import com.server.storage.StorageEngine;
+import com.server.storage.WriteAheadLog;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of persistence against the size of the data set: a checkpoint, which rewrites the
+ * segment file of the one collection written to, and opening the storage and reading a
+ * document, which loads that collection again as on the first request after a restart.
+ * {@code restart} recovers from the segments and a short log tail, as after a crash, or
+ * from the log of every write the data set took; its 5M documents make a segment of
+ * about 1.6 GB.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Dmpdb.log.level=off", "-Dmpdb.checkpoint.intervalMs=3600000", "-Xmx4g"})
+public class PersistenceBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Storage {
+        @Param({"10000", "100000", "1000000"})
+        int documents;
+
+        Path dir;
+        StorageEngine storage;
+        RequestHandler handler;
+        int writes;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            dir = Fixtures.tempDir();
+            storage = Fixtures.openStorage(dir);
+            handler = new RequestHandler(storage);
+            Fixtures.fill(storage, handler, documents);
+        }
+
+        // A checkpoint with an empty log has nothing to do, so each one follows a write
+        @Setup(Level.Invocation)
+        public void write() {
+            handler.handle("{\"action\":\"UPDATE_DOCUMENT\",\"dbName\":\"" + Fixtures.DB + "\",\"collectionName\":\"" + Fixtures.COLLECTION
+                    + "\",\"documentId\":\"user0\",\"updates\":{\"score\":" + ++writes + "}}");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            storage.close();
+            Fixtures.delete(dir);
+        }
+    }
+
+    @Benchmark
+    public void checkpoint(Storage state) {
+        state.storage.checkpoint();
+    }
+
+    @State(Scope.Benchmark)
+    public static class Saved {
+        @Param({"10000", "100000", "1000000"})
+        int documents;
+
+        Path dir;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            dir = Fixtures.tempDir();
+            StorageEngine storage = Fixtures.openStorage(dir);
+            Fixtures.fill(storage, new RequestHandler(storage), documents);
+            // Closing writes the segment file the benchmark loads
+            storage.close();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            Fixtures.delete(dir);
+        }
+    }
+
+    @Benchmark
+    public Document load(Saved state) {
+        StorageEngine storage = Fixtures.openStorage(state.dir);
+        Document document = storage.getDatabases().get(Fixtures.DB).get(Fixtures.COLLECTION).get("user0");
+        storage.close();
+        return document;
+    }
+
+    /** The files a daemon leaves when it stops without a last checkpoint. */
+    @State(Scope.Benchmark)
+    public static class Crashed {
+        // Writes logged since the last checkpoint
+        private static final int TAIL_RECORDS = 10_000;
+
+        @Param({"1000000", "5000000"})
+        int documents;
+
+        /** {@code tail}: segments plus the last writes; {@code history}: no segments, the log of every write. */
+        @Param({"tail", "history"})
+        String log;
+
+        Path saved;
+        Path dir;
+        StorageEngine storage;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            saved = Fixtures.tempDir();
+            Path walFile = saved.resolve("mpdb_wal.log");
+            if (log.equals("tail")) {
+                StorageEngine saving = Fixtures.openStorage(saved);
+                Fixtures.fill(saving, new RequestHandler(saving), documents);
+                saving.close();
+                try (WriteAheadLog wal = new WriteAheadLog(walFile, WriteAheadLog.FsyncPolicy.OS, 0)) {
+                    for (int i = 0; i < TAIL_RECORDS; i++) {
+                        wal.append(update((int) ((long) i * documents / TAIL_RECORDS)));
+                    }
+                }
+            } else {
+                // Each document created and then updated once, so the log is about twice the data set
+                try (WriteAheadLog wal = new WriteAheadLog(walFile, WriteAheadLog.FsyncPolicy.OS, 0)) {
+                    wal.append(StorageEngine.logRecord("CREATE_DB", Fixtures.DB));
+                    wal.append(StorageEngine.logRecord("CREATE_COLLECTION", Fixtures.DB, Fixtures.COLLECTION));
+                    for (int i = 0; i < documents; i++) {
+                        wal.append(StorageEngine.logRecord("CREATE_DOCUMENT", Fixtures.DB, Fixtures.COLLECTION)
+                                .put("id", "user" + i).put("doc", Fixtures.userJson(i)).put("version", 1));
+                    }
+                    for (int i = 0; i < documents; i++) {
+                        wal.append(update(i));
+                    }
+                }
+            }
+        }
+
+        private static JSONObject update(int i) {
+            return StorageEngine.logRecord("UPDATE_DOCUMENT", Fixtures.DB, Fixtures.COLLECTION)
+                    .put("id", "user" + i).put("doc", Fixtures.userJson(i).put("score", 0)).put("version", 2);
+        }
+
+        // Closing the storage checkpoints, so every restart starts from a fresh copy
+        @Setup(Level.Invocation)
+        public void copy() {
+            dir = Fixtures.tempDir();
+            Fixtures.link(saved, dir);
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() {
+            storage.close();
+            Fixtures.delete(dir);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            Fixtures.delete(saved);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    @Fork(value = 1, jvmArgsAppend = {"-Dmpdb.log.level=off", "-Dmpdb.checkpoint.intervalMs=3600000", "-Xmx16g"})
+    public Document restart(Crashed state) {
+        state.storage = Fixtures.openStorage(state.dir);
+        return state.storage.getDatabases().get(Fixtures.DB).get(Fixtures.COLLECTION).get("user0");
+    }
+}
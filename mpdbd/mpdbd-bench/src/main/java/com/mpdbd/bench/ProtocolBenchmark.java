@@ -0,0 +1,91 @@
+package com.mpdbd.bench;
+
+import com.server.RequestHandler;
+import com.server.storage.Document;
+import com.server.storage.StorageEngine;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning request lines into requests and documents into response text, and a whole
+ * READ_DOCUMENT round through the request handler for comparison.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dmpdb.log.level=off")
+public class ProtocolBenchmark {
+
+    /** A user document of a dozen fields, or one with 50 more flat fields. */
+    @Param({"user", "wide"})
+    String shape;
+
+    private Path dir;
+    private StorageEngine storage;
+    private RequestHandler handler;
+    private String createLine;
+    private JSONObject json;
+    private Document document;
+    private String readLine;
+
+    @Setup
+    public void setup() {
+        json = Fixtures.userJson(42);
+        if (shape.equals("wide")) {
+            for (int i = 0; i < 50; i++) {
+                json.put("field" + i, i % 2 == 0 ? "value" + i : i * 1.5);
+            }
+        }
+        document = Document.fromJson(json);
+        createLine = new JSONObject().put("action", "CREATE_DOCUMENT").put("dbName", Fixtures.DB)
+                .put("collectionName", Fixtures.COLLECTION).put("documentId", "user42").put("document", json).toString();
+
+        dir = Fixtures.tempDir();
+        storage = Fixtures.openStorage(dir);
+        handler = new RequestHandler(storage);
+        Fixtures.fill(storage, handler, 0);
+        handler.handle(createLine);
+        readLine = new JSONObject().put("action", "READ_DOCUMENT").put("dbName", Fixtures.DB)
+                .put("collectionName", Fixtures.COLLECTION).put("documentId", "user42").toString();
+    }
+
+    @TearDown
+    public void tearDown() {
+        storage.close();
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public JSONObject parseRequest() {
+        return new JSONObject(createLine);
+    }
+
+    /** Converting a parsed document into the typed tree the daemon stores. */
+    @Benchmark
+    public Document buildDocument() {
+        return Document.fromJson(json);
+    }
+
+    @Benchmark
+    public String serializeViaJsonObject() {
+        return document.toJSONObject().toString();
+    }
+
+    @Benchmark
+    public String serializeDirectly() throws IOException {
+        StringBuilder out = new StringBuilder(256);
+        document.writeJson(out);
+        return out.toString();
+    }
+
+    @Benchmark
+    public String readDocument() {
+        return handler.handle(readLine);
+    }
+}
@@ -0,0 +1,82 @@
+package com.mpdbd.bench;
+
+import com.server.RequestHandler;
+import com.server.storage.StorageEngine;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole QUERY requests with a filter, a sort and a page, through the request handler.
+ * The result cache is off, so every invocation runs the query. 10M documents can be
+ * added with {@code -p documents=10000000} and a larger heap.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dmpdb.log.level=off", "-Dmpdb.query.resultCacheSize=0", "-Xmx4g"})
+public class QueryBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    int documents;
+
+    /** Without an index the matches are sorted; with an ordered one they are read in order. */
+    @Param({"none", "ordered"})
+    String index;
+
+    private Path dir;
+    private StorageEngine storage;
+    private RequestHandler handler;
+    private String firstPage;
+    private String deepPage;
+    private String unfilteredPage;
+
+    @Setup
+    public void setup() {
+        dir = Fixtures.tempDir();
+        storage = Fixtures.openStorage(dir);
+        handler = new RequestHandler(storage);
+        Fixtures.fill(storage, handler, documents);
+        if (index.equals("ordered")) {
+            handler.handle(query("CREATE_INDEX").put("field", "createdAt").put("type", "ordered").toString());
+        }
+
+        JSONObject filter = new JSONObject().put("status", "active").put("age", new JSONObject().put("$gte", 30));
+        firstPage = query("QUERY").put("query", filter).put("sortBy", "createdAt").put("ascending", false)
+                .put("limit", 25).toString();
+        deepPage = query("QUERY").put("query", filter).put("sortBy", "createdAt").put("ascending", false)
+                .put("skip", 1000).put("limit", 25).toString();
+        unfilteredPage = query("QUERY").put("query", new JSONObject()).put("sortBy", "createdAt").put("ascending", false)
+                .put("limit", 20).toString();
+    }
+
+    private static JSONObject query(String action) {
+        return new JSONObject().put("action", action).put("dbName", Fixtures.DB).put("collectionName", Fixtures.COLLECTION);
+    }
+
+    @TearDown
+    public void tearDown() {
+        storage.close();
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public String sortedFirstPage() {
+        return handler.handle(firstPage);
+    }
+
+    @Benchmark
+    public String sortedDeepPage() {
+        return handler.handle(deepPage);
+    }
+
+    /** The "latest 20" query of the UI's collection view. */
+    @Benchmark
+    public String latestTwenty() {
+        return handler.handle(unfilteredPage);
+    }
+}
@@ -0,0 +1,148 @@
+package com.mpdbd.bench;
+
+import com.server.RequestHandler;
+import com.server.storage.StorageEngine;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole read requests other than sorted pages, through the request handler: a QUERY for
+ * one document through a hash index and through a scan, a QUERY for a few percent of
+ * the documents with and without a projection, totals per status with AGGREGATE
+ * against reading the whole collection, and COUNT with and without a filter. The result
+ * cache is off, so every invocation runs the request, except for the repeated page that
+ * a second handler answers from its cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dmpdb.log.level=off", "-Dmpdb.query.resultCacheSize=0", "-Xmx4g"})
+public class ReadBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    int documents;
+
+    private Path dir;
+    private StorageEngine storage;
+    private RequestHandler handler;
+    private RequestHandler cachingHandler;
+    private String indexedLookup;
+    private String scannedLookup;
+    private String wholeDocuments;
+    private String projectedDocuments;
+    private String aggregate;
+    private String readAll;
+    private String count;
+    private String countFiltered;
+    private String repeatedPage;
+
+    @Setup
+    public void setup() {
+        dir = Fixtures.tempDir();
+        storage = Fixtures.openStorage(dir);
+        handler = new RequestHandler(storage);
+        System.setProperty("mpdb.query.resultCacheSize", "256");
+        cachingHandler = new RequestHandler(storage);
+        System.setProperty("mpdb.query.resultCacheSize", "0");
+        Fixtures.fill(storage, handler, documents);
+        handler.handle(request("CREATE_INDEX").put("field", "email").put("type", "hash").toString());
+
+        JSONObject user = Fixtures.userJson(documents / 2);
+        indexedLookup = request("QUERY").put("query", new JSONObject().put("email", user.getString("email"))).toString();
+        scannedLookup = request("QUERY").put("query", new JSONObject().put("name", user.getString("name"))).toString();
+
+        // Ages 18 and 19, about 3% of the documents
+        JSONObject young = new JSONObject().put("age", new JSONObject().put("$lt", 20));
+        wholeDocuments = request("QUERY").put("query", young).toString();
+        projectedDocuments = request("QUERY").put("query", young)
+                .put("projection", new JSONArray().put("name").put("email")).toString();
+
+        aggregate = request("AGGREGATE").put("pipeline", new JSONArray(
+                "[{\"$group\":{\"_id\":\"$status\",\"n\":{\"$count\":{}},\"total\":{\"$sum\":\"$score\"}}}]")).toString();
+        readAll = request("READ_DOCUMENTS").toString();
+
+        count = request("COUNT").toString();
+        countFiltered = request("COUNT").put("query", new JSONObject().put("status", "active")
+                .put("score", new JSONObject().put("$gte", 50))).toString();
+
+        repeatedPage = request("QUERY").put("query", new JSONObject().put("status", "active"))
+                .put("sortBy", "score").put("ascending", false).put("limit", 20).toString();
+        cachingHandler.handle(repeatedPage);
+    }
+
+    private static JSONObject request(String action) {
+        return new JSONObject().put("action", action).put("dbName", Fixtures.DB).put("collectionName", Fixtures.COLLECTION);
+    }
+
+    @TearDown
+    public void tearDown() {
+        storage.close();
+        Fixtures.delete(dir);
+    }
+
+    /** Equality on a field with a hash index, which reads the one candidate. */
+    @Benchmark
+    public String indexedLookup() {
+        return handler.handle(indexedLookup);
+    }
+
+    /** Equality on a field without an index, which checks every document. */
+    @Benchmark
+    public String scannedLookup() {
+        return handler.handle(scannedLookup);
+    }
+
+    /** Every field of each match converted to JSON and sent. */
+    @Benchmark
+    public String wholeDocuments() {
+        return handler.handle(wholeDocuments);
+    }
+
+    /** Only the name and email of each match. */
+    @Benchmark
+    public String projectedDocuments() {
+        return handler.handle(projectedDocuments);
+    }
+
+    /** Count and total score per status in one pass, without sending the documents. */
+    @Benchmark
+    public String aggregate() {
+        return handler.handle(aggregate);
+    }
+
+    /** The whole collection, for a client to add up itself. */
+    @Benchmark
+    public String readAll() {
+        return handler.handle(readAll);
+    }
+
+    /** An unfiltered count, which is the collection's size. */
+    @Benchmark
+    public String count() {
+        return handler.handle(count);
+    }
+
+    /** A count checked in a scan that keeps no matches. */
+    @Benchmark
+    public String countFiltered() {
+        return handler.handle(countFiltered);
+    }
+
+    /** A dashboard's sorted page, run again each time. */
+    @Benchmark
+    public String uncachedQuery() {
+        return handler.handle(repeatedPage);
+    }
+
+    /** The same page from the result cache, as the collection does not change. */
+    @Benchmark
+    public String cachedQuery() {
+        return cachingHandler.handle(repeatedPage);
+    }
+}
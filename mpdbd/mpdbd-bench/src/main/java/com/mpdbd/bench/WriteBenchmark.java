@@ -0,0 +1,108 @@
+package com.mpdbd.bench;
+
+import com.server.RequestHandler;
+import com.server.storage.Snapshot;
+import com.server.storage.StorageEngine;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CREATE_DOCUMENT, UPDATE_DOCUMENT and BULK_WRITE throughput through the request handler,
+ * including the write-ahead log append, and updates while a snapshot is open. Run with
+ * {@code -t 4} to measure writers in parallel.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dmpdb.log.level=off")
+public class WriteBenchmark {
+
+    /** Documents already in the collection. */
+    @Param({"10000", "1000000"})
+    int documents;
+
+    /** When the log is fsynced: {@code always} makes every write wait for the disk. */
+    @Param({"interval", "always"})
+    String fsync;
+
+    // Documents inserted by each BULK_WRITE
+    private static final int BATCH = 1000;
+
+    private Path dir;
+    private StorageEngine storage;
+    private RequestHandler handler;
+    private final AtomicLong nextId = new AtomicLong();
+
+    @Setup
+    public void setup() {
+        System.setProperty("mpdb.wal.fsync", fsync);
+        dir = Fixtures.tempDir();
+        storage = Fixtures.openStorage(dir);
+        handler = new RequestHandler(storage);
+        Fixtures.fill(storage, handler, documents);
+    }
+
+    @TearDown
+    public void tearDown() {
+        storage.close();
+        Fixtures.delete(dir);
+        System.clearProperty("mpdb.wal.fsync");
+    }
+
+    @Benchmark
+    public String create() {
+        long id = nextId.incrementAndGet();
+        return handler.handle("{\"action\":\"CREATE_DOCUMENT\",\"dbName\":\"" + Fixtures.DB + "\",\"collectionName\":\"" + Fixtures.COLLECTION
+                + "\",\"documentId\":\"new" + id + "\",\"document\":" + Fixtures.userJson((int) id) + "}");
+    }
+
+    @Benchmark
+    public String update() {
+        int id = ThreadLocalRandom.current().nextInt(documents);
+        return handler.handle("{\"action\":\"UPDATE_DOCUMENT\",\"dbName\":\"" + Fixtures.DB + "\",\"collectionName\":\"" + Fixtures.COLLECTION
+                + "\",\"documentId\":\"user" + id + "\",\"updates\":{\"score\":" + id % 100 + ",\"status\":\"active\"}}");
+    }
+
+    /** A snapshot held open for a whole iteration, as by a long scan or an open cursor. */
+    @State(Scope.Benchmark)
+    public static class OpenSnapshot {
+
+        private Snapshot snapshot;
+
+        @Setup(Level.Iteration)
+        public void open() {
+            snapshot = Snapshot.open();
+        }
+
+        @TearDown(Level.Iteration)
+        public void close() {
+            snapshot.close();
+        }
+    }
+
+    /** An update that keeps the version it replaces for the open snapshot; compare with {@link #update}. */
+    @Benchmark
+    public String updateDuringSnapshot(OpenSnapshot snapshot) {
+        return update();
+    }
+
+    /** Inserts in batches, whose log records are appended with one write; scored per document. */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public String bulkInsert() {
+        long first = nextId.getAndAdd(BATCH) + 1;
+        StringBuilder request = new StringBuilder("{\"action\":\"BULK_WRITE\",\"dbName\":\"" + Fixtures.DB
+                + "\",\"collectionName\":\"" + Fixtures.COLLECTION + "\",\"operations\":[");
+        for (long id = first; id < first + BATCH; id++) {
+            request.append(id == first ? "" : ",").append("{\"op\":\"insert\",\"documentId\":\"new").append(id)
+                    .append("\",\"document\":").append(Fixtures.userJson((int) id)).append('}');
+        }
+        return handler.handle(request.append("]}").toString());
+    }
+}
@@ -1,6 +1,15 @@
 package com.mpdbd;
 
-import com.server.TCPServer;
+import com.server.RequestExecutors;
+import com.server.RequestHandler;
+import com.server.Server;
+import com.server.ServerConfig;
+import com.server.log.Log;
+import com.server.metrics.MetricsServer;
+import com.server.storage.StorageEngine;
+
+import java.io.IOException;
+import java.nio.file.Paths;
 
 /**
  * Hello world!
@@ -9,10 +18,68 @@ import com.server.TCPServer;
 public class App 
 {
       public static void main(String[] args) {
+        // Refuse an unknown executor mode, or one this JVM cannot run, before spending time on the data
+        try {
+            ServerConfig.executorMode();
+        } catch (IllegalStateException e) {
+            Log.error("❌ " + e.getMessage());
+            Log.flush();
+            System.exit(1);
+            return;
+        }
+
+        // Load the data set once, before any connection is accepted
+        StorageEngine storage;
+        try {
+            storage = StorageEngine.initialize(Paths.get(StorageEngine.DEFAULT_DATA_DIR));
+        } catch (IOException e) {
+            Log.error("❌ Error loading data: " + e.getMessage(), e);
+            Log.flush();
+            System.exit(1);
+            return;
+        }
+
         // Start TCP Server
-        Thread tcpThread = new Thread(() -> TCPServer.startServer(3000));
-        tcpThread.start();
+        RequestHandler requestHandler = new RequestHandler(storage);
+        Server server;
+        try {
+            server = RequestExecutors.startServer(requestHandler, ServerConfig.port());
+        } catch (IOException e) {
+            Log.error("❌ Error starting TCP server: " + e.getMessage(), e);
+            storage.close();
+            Log.flush();
+            System.exit(1);
+            return;
+        }
+
+        MetricsServer metricsServer = startMetricsServer(requestHandler);
+
+        // Stop taking requests, then fold the write-ahead log into a fresh snapshot so the next start replays less
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            if (metricsServer != null) {
+                metricsServer.close();
+            }
+            storage.close();
+            Log.flush();
+        }));
+
+        Log.info("MPDB Daemon Started!");
+    }
 
-        System.out.println("MPDB Daemon Started!");
+    // Serves Prometheus metrics if a port is configured; the daemon runs on without them if it cannot
+    private static MetricsServer startMetricsServer(RequestHandler requestHandler) {
+        int port = ServerConfig.metricsPort();
+        if (port <= 0) {
+            return null;
+        }
+        try {
+            MetricsServer metricsServer = new MetricsServer(port, requestHandler::prometheusMetrics);
+            metricsServer.start();
+            return metricsServer;
+        } catch (IOException e) {
+            Log.error("❌ Error starting metrics server: " + e.getMessage(), e);
+            return null;
+        }
     }
 }
@@ -0,0 +1,73 @@
+package com.server;
+
+import java.util.Iterator;
+import java.util.function.BiConsumer;
+
+import org.json.JSONObject;
+
+import com.server.storage.Snapshot;
+
+/**
+ * The rest of a result that is sent in batches. Items are turned into JSON only when
+ * their batch is written, so a response never holds more than one batch. Cursors are
+ * owned by the {@link Session} that opened them, which closes them when they are read
+ * to the end, killed or expired.
+ */
+final class Cursor<T> {
+    private final String field;
+    private final boolean counted;
+    private final Iterator<T> items;
+    private final BiConsumer<JSONObject, T> writer;
+    private final int batchSize;
+    private final Snapshot snapshot;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    /**
+     * @param field   response field the batch is written to
+     * @param counted whether responses carry the number of items in the batch as {@code count}
+     * @param writer  adds one item to a batch
+     */
+    Cursor(String field, boolean counted, Iterator<T> items, BiConsumer<JSONObject, T> writer, int batchSize) {
+        this(field, counted, items, writer, batchSize, null);
+    }
+
+    /**
+     * @param snapshot the snapshot {@code items} reads the documents from, closed with the cursor
+     */
+    Cursor(String field, boolean counted, Iterator<T> items, BiConsumer<JSONObject, T> writer, int batchSize,
+           Snapshot snapshot) {
+        this.field = field;
+        this.counted = counted;
+        this.items = items;
+        this.writer = writer;
+        this.batchSize = batchSize;
+        this.snapshot = snapshot;
+    }
+
+    /** Writes the next batch into {@code response}; returns whether items are left. */
+    synchronized boolean nextBatch(JSONObject response) {
+        lastUsed = System.currentTimeMillis();
+        JSONObject batch = new JSONObject();
+        int count = 0;
+        while (count < batchSize && items.hasNext()) {
+            writer.accept(batch, items.next());
+            count++;
+        }
+        response.put(field, batch);
+        if (counted) {
+            response.put("count", count);
+        }
+        return items.hasNext();
+    }
+
+    long lastUsed() {
+        return lastUsed;
+    }
+
+    /** Releases the snapshot the cursor reads from, if any. */
+    void close() {
+        if (snapshot != null) {
+            snapshot.close();
+        }
+    }
+}
@@ -0,0 +1,462 @@
+package com.server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.server.log.Log;
+
+/**
+ * Non-blocking front end for the newline-delimited JSON protocol. One acceptor thread
+ * hands new connections round-robin to a few I/O threads, each running a selector that
+ * reads and frames request lines and writes responses. Requests run on a worker pool,
+ * one at a time per connection so responses keep the order of the requests, unless the
+ * connection switched to pipelining. When the pool refuses a request its connection is
+ * answered with a busy error instead.
+ */
+public class NioServer implements Server {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // Reading from a connection pauses while this many of its requests are queued
+    private static final int MAX_PENDING_REQUESTS = 64;
+    // No more requests of a connection run while this many bytes of its responses wait to
+    // be written, so a client that sends without reading cannot fill the heap; its pending
+    // requests then pause reading as above
+    private static final long MAX_QUEUED_RESPONSE_BYTES = 4 * 1024 * 1024;
+
+    private final RequestHandler requestHandler;
+    private final ServerSocketChannel serverChannel;
+    private final IoLoop[] loops;
+    private final ExecutorService workers;
+    private final int maxRequestBytes;
+    private final int maxInFlight = Math.max(1, ServerConfig.maxInFlight());
+    private final Thread acceptor;
+    private volatile boolean running = true;
+
+    public NioServer(RequestHandler requestHandler, InetSocketAddress address, int backlog, int ioThreads,
+                     int workerThreads, int maxRequestBytes) throws IOException {
+        this(requestHandler, address, backlog, ioThreads,
+                RequestExecutors.boundedPool(workerThreads, ServerConfig.queueLimit()), maxRequestBytes);
+    }
+
+    /** Runs requests on {@code workers}, which is shut down when the server closes. */
+    public NioServer(RequestHandler requestHandler, InetSocketAddress address, int backlog, int ioThreads,
+                     ExecutorService workers, int maxRequestBytes) throws IOException {
+        this.requestHandler = requestHandler;
+        this.workers = workers;
+        this.maxRequestBytes = maxRequestBytes;
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(address, backlog);
+
+        loops = new IoLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop("mpdb-io-" + i);
+        }
+
+        acceptor = new Thread(this::acceptLoop, "mpdb-acceptor");
+    }
+
+    @Override
+    public void start() {
+        for (IoLoop loop : loops) {
+            loop.thread.start();
+        }
+        acceptor.start();
+    }
+
+    @Override
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    private void acceptLoop() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                IoLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                loop.execute(() -> loop.register(channel));
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (running) {
+                    Log.error("❌ Error accepting connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /** Stops accepting, closes every connection and stops the threads. */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            Log.error("❌ Error closing server socket: " + e.getMessage());
+        }
+        for (IoLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        workers.shutdown();
+        try {
+            acceptor.join(1000);
+            for (IoLoop loop : loops) {
+                loop.thread.join(1000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // A selector thread. Other threads never touch its keys directly; they queue a task.
+    private final class IoLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        IoLoop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            try {
+                Connection connection = new Connection(channel, this);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                Log.error("❌ Error registering connection: " + e.getMessage());
+                closeQuietly(channel);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    Log.error("❌ Selector error: " + e.getMessage());
+                    break;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        connection.close();
+                    }
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key.channel());
+            }
+            closeQuietly(selector);
+        }
+    }
+
+    private final class Connection {
+        final SocketChannel channel;
+        final IoLoop loop;
+        SelectionKey key;
+
+        // Bytes of a request line whose newline has not arrived yet; I/O thread only
+        private ByteArrayOutputStream partialLine;
+        private volatile boolean inputClosed;
+        private boolean readPaused;
+
+        // Request lines waiting for a worker and the number being executed; both guarded by this
+        private final ArrayDeque<String> pending = new ArrayDeque<>();
+        private int inFlight;
+        final Session session = new Session(true);
+
+        private final ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        // Set once the last response was queued, the error for a request that was too large;
+        // guarded by this
+        private boolean rejected;
+
+        Connection(SocketChannel channel, IoLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        void read() throws IOException {
+            ByteBuffer buffer = loop.readBuffer;
+            buffer.clear();
+            int n = channel.read(buffer);
+            if (n < 0) {
+                // Like the blocking handler, answer everything already received before closing
+                inputClosed = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                closeIfDone();
+                return;
+            }
+
+            byte[] bytes = buffer.array();
+            int lineStart = 0;
+            for (int i = 0; i < n; i++) {
+                if (bytes[i] != '\n') {
+                    continue;
+                }
+                int length = (partialLine == null ? 0 : partialLine.size()) + i - lineStart;
+                if (length > maxRequestBytes) {
+                    rejectTooLarge();
+                    return;
+                }
+                String line;
+                if (partialLine == null) {
+                    line = decode(bytes, lineStart, i - lineStart);
+                } else {
+                    partialLine.write(bytes, lineStart, i - lineStart);
+                    line = decode(partialLine.toByteArray(), 0, partialLine.size());
+                    partialLine = null;
+                }
+                enqueue(line);
+                lineStart = i + 1;
+            }
+
+            if (lineStart < n) {
+                if (partialLine == null) {
+                    partialLine = new ByteArrayOutputStream();
+                }
+                partialLine.write(bytes, lineStart, n - lineStart);
+                if (partialLine.size() > maxRequestBytes) {
+                    rejectTooLarge();
+                }
+            }
+        }
+
+        // A request line over the limit, whether or not its newline has arrived: answers it
+        // and closes the connection once the answer is written, dropping queued requests
+        private void rejectTooLarge() {
+            Log.error("❌ Request larger than " + maxRequestBytes + " bytes, closing connection");
+            partialLine = null;
+            inputClosed = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            synchronized (this) {
+                pending.clear();
+            }
+            send(RequestHandler.errorResponse("Request too large"), true);
+        }
+
+        private String decode(byte[] bytes, int offset, int length) {
+            if (length > 0 && bytes[offset + length - 1] == '\r') {
+                length--;
+            }
+            return new String(bytes, offset, length, StandardCharsets.UTF_8);
+        }
+
+        private void enqueue(String line) {
+            synchronized (this) {
+                pending.add(line);
+                if (pending.size() >= MAX_PENDING_REQUESTS && !readPaused) {
+                    readPaused = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+            }
+            dispatch();
+        }
+
+        // Hands queued requests to the pool: one at a time, so responses keep the order
+        // of the requests, or up to maxInFlight at once on a pipelining connection. Each
+        // request is a separate task, so one busy connection cannot hold a worker.
+        private void dispatch() {
+            while (true) {
+                String line;
+                synchronized (this) {
+                    int limit = session.isPipelining() ? maxInFlight : 1;
+                    if (inFlight >= limit || pending.isEmpty() || queuedBytes.get() >= MAX_QUEUED_RESPONSE_BYTES) {
+                        return;
+                    }
+                    line = pending.poll();
+                    inFlight++;
+                }
+
+                try {
+                    workers.execute(() -> process(line));
+                } catch (RejectedExecutionException e) {
+                    synchronized (this) {
+                        inFlight--;
+                    }
+                    rejectPending(line);
+                    return;
+                }
+            }
+        }
+
+        // The pool is saturated (or shutting down): answer everything queued on this
+        // connection as busy rather than letting it wait behind the backlog
+        private void rejectPending(String first) {
+            List<String> rejected = new ArrayList<>();
+            rejected.add(first);
+            boolean resumeRead;
+            synchronized (this) {
+                rejected.addAll(pending);
+                pending.clear();
+                resumeRead = readPaused;
+                readPaused = false;
+            }
+
+            for (String line : rejected) {
+                send(RequestHandler.busyResponse(line));
+            }
+            if (resumeRead) {
+                loop.execute(this::resumeRead);
+            }
+        }
+
+        // Runs on a worker
+        private void process(String line) {
+            // Queue the response before giving up the slot, so on an ordered connection
+            // the next request cannot overtake it
+            send(requestHandler.handle(line, session));
+
+            boolean idle;
+            boolean resumeRead;
+            synchronized (this) {
+                inFlight--;
+                idle = inFlight == 0 && pending.isEmpty();
+                resumeRead = readPaused && pending.size() < MAX_PENDING_REQUESTS / 2;
+                if (resumeRead) {
+                    readPaused = false;
+                }
+            }
+
+            if (resumeRead) {
+                loop.execute(this::resumeRead);
+            }
+            if (idle && inputClosed) {
+                loop.execute(this::closeIfDone);
+            }
+            dispatch();
+        }
+
+        private void resumeRead() {
+            if (key.isValid() && !inputClosed) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        private void send(String response) {
+            send(response, false);
+        }
+
+        private void send(String response, boolean last) {
+            ByteBuffer bytes = ByteBuffer.wrap((response + "\n").getBytes(StandardCharsets.UTF_8));
+            synchronized (this) {
+                if (rejected) {
+                    return;
+                }
+                rejected = last;
+                queuedBytes.addAndGet(bytes.remaining());
+                writeQueue.add(bytes);
+            }
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    try {
+                        flush();
+                    } catch (IOException | CancelledKeyException e) {
+                        close();
+                    }
+                });
+            }
+        }
+
+        // I/O thread only: writes queued responses until the socket buffer is full
+        void flush() throws IOException {
+            flushScheduled.set(false);
+            if (!key.isValid()) {
+                writeQueue.clear();
+                queuedBytes.set(0);
+                return;
+            }
+
+            ByteBuffer head;
+            while ((head = writeQueue.peek()) != null) {
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeQueue.poll();
+                written(head.limit());
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            closeIfDone();
+        }
+
+        // Runs the requests held back while the responses were over the limit, once they are not
+        private void written(int bytes) {
+            long before = queuedBytes.getAndAdd(-bytes);
+            if (before >= MAX_QUEUED_RESPONSE_BYTES && before - bytes < MAX_QUEUED_RESPONSE_BYTES) {
+                dispatch();
+            }
+        }
+
+        private void closeIfDone() {
+            if (!inputClosed || !writeQueue.isEmpty()) {
+                return;
+            }
+            synchronized (this) {
+                if (inFlight > 0 || !pending.isEmpty()) {
+                    return;
+                }
+            }
+            close();
+        }
+
+        void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+            session.close();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.server.log.Log;
+
+/**
+ * The ways the daemon can execute requests, selected with {@code mpdb.server.executor}.
+ */
+public final class RequestExecutors {
+
+    public enum Mode {
+        /** NIO front end; requests run on a fixed pool and are rejected as busy once its queue is full */
+        POOL,
+        /** blocking front end with a virtual thread per connection, needs Java 21 */
+        VIRTUAL,
+        /** blocking front end with a platform thread per connection and no limits */
+        LEGACY;
+
+        /** @throws IllegalArgumentException if {@code value} names no mode */
+        public static Mode parse(String value) {
+            try {
+                return Mode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown executor mode '" + value + "'. Use pool, virtual or legacy.", e);
+            }
+        }
+    }
+
+    private RequestExecutors() {
+    }
+
+    /** Starts the front end for the mode configured in {@link ServerConfig}. */
+    public static Server startServer(RequestHandler requestHandler, int port) throws IOException {
+        Mode mode = Mode.parse(ServerConfig.executorMode());
+        Server server = startServer(mode, requestHandler, new InetSocketAddress("0.0.0.0", port),
+                ServerConfig.serverBacklog(), ServerConfig.ioThreads(), ServerConfig.workerThreads(),
+                ServerConfig.queueLimit(), ServerConfig.maxRequestBytes());
+        Log.info("TCP Server started on port " + server.getPort() + " (" + mode.name().toLowerCase(Locale.ROOT)
+                + " mode, " + ServerConfig.workerThreads() + " workers, queue limit " + ServerConfig.queueLimit()
+                + ", backlog " + ServerConfig.serverBacklog() + ")");
+        return server;
+    }
+
+    /**
+     * Starts the front end for {@code mode}. {@code workers} and {@code queueLimit} bound
+     * the requests running and waiting at once; the legacy mode ignores both.
+     */
+    public static Server startServer(Mode mode, RequestHandler requestHandler, InetSocketAddress address, int backlog,
+                                        int ioThreads, int workers, int queueLimit, int maxRequestBytes) throws IOException {
+        Server server;
+        switch (mode) {
+            case VIRTUAL:
+                server = new TCPServer(requestHandler, address, backlog, virtualThreads("mpdb-conn-"),
+                        new RequestLimiter(workers, queueLimit));
+                break;
+            case LEGACY:
+                server = new TCPServer(requestHandler, address, backlog, platformThreads("mpdb-conn-", false), null);
+                break;
+            default:
+                server = new NioServer(requestHandler, address, backlog, ioThreads,
+                        boundedPool(workers, queueLimit), maxRequestBytes);
+        }
+        server.start();
+        return server;
+    }
+
+    /**
+     * A pool of {@code threads} platform threads that queues at most {@code queueLimit}
+     * requests; {@code execute} throws {@link RejectedExecutionException} beyond that.
+     */
+    public static ExecutorService boundedPool(int threads, int queueLimit) {
+        int size = Math.max(1, threads);
+        BlockingQueue<Runnable> queue = queueLimit > 0 ? new ArrayBlockingQueue<>(queueLimit) : new SynchronousQueue<>();
+        return new ThreadPoolExecutor(size, size, 0L, TimeUnit.MILLISECONDS, queue,
+                platformThreads("mpdb-worker-", true), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public static ThreadFactory platformThreads(String prefix, boolean daemon) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + count.getAndIncrement());
+            t.setDaemon(daemon);
+            return t;
+        };
+    }
+
+    /** Whether the running JVM has virtual threads. */
+    public static boolean virtualThreadsSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Virtual thread factory, looked up reflectively so the daemon still compiles for
+     * Java 11 and only needs Java 21 at run time when this mode is chosen.
+     */
+    public static ThreadFactory virtualThreads(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later, running on "
+                    + System.getProperty("java.version"), e);
+        }
+    }
+}
@@ -0,0 +1,1676 @@
+package com.server;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.nio.file.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import org.json.JSONObject;
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import com.server.log.Log;
+import com.server.metrics.Histogram;
+import com.server.metrics.PrometheusText;
+import com.server.metrics.RequestMetrics;
+import com.server.query.Filter;
+import com.server.query.ParallelScan;
+import com.server.query.Pipeline;
+import com.server.query.PlanCache;
+import com.server.query.Projection;
+import com.server.query.ResultCache;
+import com.server.query.TopK;
+import com.server.storage.Document;
+import com.server.storage.DocumentCollection;
+import com.server.storage.FieldIndex;
+import com.server.storage.HashIndex;
+import com.server.storage.OrderedIndex;
+import com.server.storage.Snapshot;
+import com.server.storage.StorageEngine;
+
+
+/**
+ * Executes protocol requests against the shared storage. Per-connection state lives in
+ * the {@link Session} passed in by the front end, so one instance serves every
+ * connection and may be called from any thread.
+ */
+public class RequestHandler {
+    public static final String BUSY_MESSAGE = "Server busy, try again later";
+
+    private final StorageEngine storage;
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, DocumentCollection>> databaseMap;
+    private final PlanCache plans = new PlanCache(ServerConfig.planCacheSize());
+    private final ResultCache resultCache = new ResultCache(ServerConfig.resultCacheSize(), ServerConfig.resultCacheMaxDocuments());
+    private final ParallelScan scans = new ParallelScan(ServerConfig.queryParallelism(), ServerConfig.parallelScanThreshold());
+    private final int maxCursors = ServerConfig.maxCursorsPerConnection();
+    private final long cursorIdleTimeoutMs = ServerConfig.cursorIdleTimeoutMs();
+    private final RequestLog requestLog = new RequestLog(ServerConfig.logSampleRate(), ServerConfig.logMaxLineChars());
+    private final RequestMetrics metrics = new RequestMetrics();
+    // Sessions that may have open cursors, swept for idle ones whenever cursors are used
+    private final Set<Session> cursorSessions = ConcurrentHashMap.newKeySet();
+
+    public RequestHandler(StorageEngine storage) {
+        this.storage = storage;
+        this.databaseMap = storage.getDatabases();
+    }
+
+    /** Compiled QUERY filters, shared by every connection. */
+    public PlanCache getPlanCache() {
+        return plans;
+    }
+
+    /** QUERY results kept while their collection is unchanged, shared by every connection. */
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /** Counts, sizes and latencies of the requests handled, by action. */
+    public RequestMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * The request, storage and cache metrics in the Prometheus text format, as served by
+     * {@link com.server.metrics.MetricsServer}. Latencies are in seconds.
+     */
+    public String prometheusMetrics() {
+        Map<String, RequestMetrics.ActionMetrics> actions = metrics.actions();
+        PrometheusText text = new PrometheusText();
+
+        text.metric("mpdb_requests_total", "counter", "Requests handled, by action.");
+        actions.forEach((action, m) -> text.sample("mpdb_requests_total", "action", action, m.requests()));
+        text.metric("mpdb_request_errors_total", "counter", "Requests answered with an error, by action.");
+        actions.forEach((action, m) -> text.sample("mpdb_request_errors_total", "action", action, m.errors()));
+        text.metric("mpdb_request_bytes_total", "counter", "Length of the request lines received, by action.");
+        actions.forEach((action, m) -> text.sample("mpdb_request_bytes_total", "action", action, m.bytesIn()));
+        text.metric("mpdb_response_bytes_total", "counter", "Length of the response lines sent, by action.");
+        actions.forEach((action, m) -> text.sample("mpdb_response_bytes_total", "action", action, m.bytesOut()));
+        text.metric("mpdb_request_duration_seconds", "summary", "Time from receiving a request line to building its response, by action.");
+        actions.forEach((action, m) -> text.latency("mpdb_request_duration_seconds", "action", action, m.latency().summary()));
+
+        text.metric("mpdb_wal_append_duration_seconds", "summary", "Time to append to the write-ahead log, including the fsync when every write is synced.");
+        text.latency("mpdb_wal_append_duration_seconds", null, null, storage.getWalAppendLatency().summary());
+        text.metric("mpdb_checkpoints_total", "counter", "Checkpoints completed.");
+        text.sample("mpdb_checkpoints_total", storage.getCheckpointer().getCheckpointCount());
+        text.metric("mpdb_checkpoint_last_duration_seconds", "gauge", "Duration of the last checkpoint.");
+        text.sample("mpdb_checkpoint_last_duration_seconds", storage.getCheckpointer().getLastDurationMs() / 1000.0);
+        text.metric("mpdb_snapshots_open", "gauge", "Snapshots held open by scans, cursors and checkpoints.");
+        text.sample("mpdb_snapshots_open", Snapshot.openCount());
+        text.metric("mpdb_versions_collected_total", "counter", "Document versions and tombstones dropped once no snapshot could read them.");
+        text.sample("mpdb_versions_collected_total", storage.getVersionCollector().getCollected());
+        text.metric("mpdb_collections_unloaded_total", "counter", "Idle collections whose documents were dropped from memory.");
+        text.sample("mpdb_collections_unloaded_total", storage.getCollectionUnloader().getUnloaded());
+
+        text.metric("mpdb_plan_cache_hits_total", "counter", "QUERY filters found compiled in the plan cache.");
+        text.sample("mpdb_plan_cache_hits_total", plans.hits());
+        text.metric("mpdb_plan_cache_misses_total", "counter", "QUERY filters compiled because the plan cache did not have them.");
+        text.sample("mpdb_plan_cache_misses_total", plans.misses());
+        text.metric("mpdb_result_cache_hits_total", "counter", "QUERY results served from the result cache.");
+        text.sample("mpdb_result_cache_hits_total", resultCache.hits());
+        text.metric("mpdb_result_cache_misses_total", "counter", "QUERY results computed because the result cache did not have a current one.");
+        text.sample("mpdb_result_cache_misses_total", resultCache.misses());
+        text.metric("mpdb_log_lines_dropped_total", "counter", "Log lines dropped because the log buffer was full.");
+        text.sample("mpdb_log_lines_dropped_total", Log.dropped());
+        text.metric("mpdb_uptime_seconds", "gauge", "Time since the request handler was created.");
+        text.sample("mpdb_uptime_seconds", metrics.uptimeMs() / 1000.0);
+        return text.toString();
+    }
+
+    /** Handles a request line for a connection that cannot pipeline. */
+    public String handle(String inputLine) {
+        return handle(inputLine, new Session(false));
+    }
+
+    /**
+     * Handles one newline-delimited request line and returns the response line,
+     * without the trailing newline. The request's {@code requestId}, if any, is
+     * echoed in the response.
+     *
+     * Both lines are logged only for the sampled share of requests with the
+     * request's action, so a request that is not sampled pays nothing for logging.
+     */
+    public String handle(String inputLine, Session session) {
+        long start = System.nanoTime();
+        JSONObject request;
+        try {
+            request = new JSONObject(inputLine);
+        } catch (JSONException e) {
+            if (Log.isEnabled(Log.Level.WARN)) {
+                Log.warn("❌ Invalid JSON received: " + e.getMessage() + ": " + requestLog.truncate(inputLine));
+            }
+            String responseLine = errorResponse("Invalid JSON format");
+            metrics.record(null, System.nanoTime() - start, inputLine.length(), responseLine.length(), true);
+            return responseLine;
+        }
+
+        String action = request.optString("action", "UNKNOWN");
+        boolean logged = requestLog.sampled(action);
+        if (logged) {
+            requestLog.received(inputLine);
+        }
+
+        JSONObject response;
+        try {
+            response = handleRequest(request, session);
+        } catch (JSONException e) {
+            Log.warn("❌ Invalid JSON received: " + e.getMessage());
+            response = new JSONObject();
+            response.put("status", "error");
+            response.put("message", "Invalid JSON format");
+        } catch (UncheckedIOException e) {
+            // Applied in memory but not logged, so it would be lost on a restart
+            Log.error("❌ " + e.getMessage(), e.getCause());
+            response = new JSONObject();
+            response.put("status", "error");
+            response.put("message", "Write could not be saved: " + e.getCause().getMessage());
+        } catch (RuntimeException e) {
+            Log.error("❌ Error handling request: " + e.getMessage(), e);
+            response = new JSONObject();
+            response.put("status", "error");
+            response.put("message", "Internal server error: " + e.getMessage());
+        }
+
+        Object requestId = request.opt("requestId");
+        if (requestId != null) {
+            response.put("requestId", requestId);
+        }
+
+        String responseLine = response.toString();
+        metrics.record(action, System.nanoTime() - start, inputLine.length(), responseLine.length(),
+                "error".equals(response.optString("status")));
+        if (logged) {
+            requestLog.sent(responseLine);
+        }
+        return responseLine;
+    }
+
+    /** Response line for a request that was not executed. */
+    public static String errorResponse(String message) {
+        JSONObject errorResponse = new JSONObject();
+        errorResponse.put("status", "error");
+        errorResponse.put("message", message);
+        return errorResponse.toString();
+    }
+
+    /**
+     * Busy response for a request line that was turned away, carrying its
+     * {@code requestId} so a pipelining client can match it.
+     */
+    public static String busyResponse(String inputLine) {
+        JSONObject errorResponse = new JSONObject();
+        errorResponse.put("status", "error");
+        errorResponse.put("message", BUSY_MESSAGE);
+        try {
+            Object requestId = new JSONObject(inputLine).opt("requestId");
+            if (requestId != null) {
+                errorResponse.put("requestId", requestId);
+            }
+        } catch (JSONException e) {
+            // Not a valid request; the busy error is as good an answer as any
+        }
+        return errorResponse.toString();
+    }
+
+ private JSONObject handleRequest(JSONObject request, Session session) {
+            JSONObject response = new JSONObject();
+            String action = request.optString("action", "UNKNOWN");
+            
+            switch (action) {
+                case "CREATE_DB":
+                    return createDatabase(request);
+                    
+                case "LIST_DB":
+                    return listDatabases();
+                    
+                case "READ_DB":
+                    return readDatabase(request, session);
+                    
+                case "DELETE_DB":
+                    return deleteDatabase(request);
+                    
+                case "CREATE_COLLECTION":
+                    return createCollection(request);
+                    
+                case "READ_COLLECTIONS":
+                case "LIST_COLLECTIONS":
+                    return listCollections(request);
+                    
+                case "DELETE_COLLECTION":
+                    return deleteCollection(request);
+                    
+                case "CREATE_DOCUMENT":
+                    return createDocument(request);
+                    
+                case "READ_DOCUMENT":
+                    return readDocument(request);
+                    
+                case "READ_DOCUMENTS":
+                    return readDocuments(request, session);
+                    
+                case "UPDATE_DOCUMENT":
+                    return updateDocument(request);
+                    
+                case "DELETE_DOCUMENT":
+                    return deleteDocument(request);
+                    
+                case "QUERY":
+                    return queryDocuments(request, session);
+                    
+                case "AGGREGATE":
+                    return aggregate(request);
+                    
+                case "COUNT":
+                    return countDocuments(request);
+                    
+                case "EXISTS":
+                    return documentExists(request);
+                    
+                case "BULK_WRITE":
+                    return bulkWrite(request);
+                    
+                case "CREATE_INDEX":
+                    return createIndex(request);
+                    
+                case "DROP_INDEX":
+                    return dropIndex(request);
+                    
+                case "LIST_INDEXES":
+                    return listIndexes(request);
+                    
+                case "GET_MORE":
+                    return getMore(request, session);
+                    
+                case "KILL_CURSOR":
+                    return killCursor(request, session);
+                    
+                case "SET_CONNECTION_OPTIONS":
+                    return setConnectionOptions(request, session);
+                    
+                case "METRICS":
+                    return metricsResponse();
+                    
+                default:
+                    response.put("status", "error");
+                    response.put("message", "Unknown action: " + action);
+                    return response;
+            }
+        }
+
+        private JSONObject setConnectionOptions(JSONObject request, Session session) {
+            JSONObject response = new JSONObject();
+            
+            if (request.has("pipelining")) {
+                boolean pipelining = request.optBoolean("pipelining", false);
+                if (pipelining && !session.isPipeliningSupported()) {
+                    response.put("status", "error");
+                    response.put("message", "Pipelining is not supported on this connection.");
+                    return response;
+                }
+                session.setPipelining(pipelining);
+            }
+            
+            response.put("status", "success");
+            response.put("pipelining", session.isPipelining());
+            return response;
+        }
+        
+        private JSONObject metricsResponse() {
+            JSONObject response = new JSONObject();
+            JSONObject actions = new JSONObject();
+            for (Map.Entry<String, RequestMetrics.ActionMetrics> entry : metrics.actions().entrySet()) {
+                RequestMetrics.ActionMetrics action = entry.getValue();
+                JSONObject stats = new JSONObject();
+                stats.put("requests", action.requests());
+                stats.put("errors", action.errors());
+                stats.put("bytesIn", action.bytesIn());
+                stats.put("bytesOut", action.bytesOut());
+                stats.put("latencyNs", latency(action.latency().summary()));
+                actions.put(entry.getKey(), stats);
+            }
+            
+            JSONObject persistence = new JSONObject();
+            persistence.put("walAppendLatencyNs", latency(storage.getWalAppendLatency().summary()));
+            persistence.put("checkpoints", storage.getCheckpointer().getCheckpointCount());
+            persistence.put("lastCheckpointMs", storage.getCheckpointer().getLastDurationMs());
+            persistence.put("openSnapshots", Snapshot.openCount());
+            persistence.put("versionsCollected", storage.getVersionCollector().getCollected());
+            persistence.put("collectionsUnloaded", storage.getCollectionUnloader().getUnloaded());
+            
+            JSONObject caches = new JSONObject();
+            caches.put("planHits", plans.hits());
+            caches.put("planMisses", plans.misses());
+            caches.put("resultHits", resultCache.hits());
+            caches.put("resultMisses", resultCache.misses());
+            caches.put("resultEvictions", resultCache.evictions());
+            
+            response.put("status", "success");
+            response.put("uptimeMs", metrics.uptimeMs());
+            response.put("actions", actions);
+            response.put("storage", persistence);
+            response.put("caches", caches);
+            response.put("logLinesDropped", Log.dropped());
+            return response;
+        }
+        
+        // Count, mean and percentiles of a latency histogram, in nanoseconds
+        private static JSONObject latency(Histogram.Summary summary) {
+            JSONObject latency = new JSONObject();
+            latency.put("count", summary.count());
+            latency.put("mean", Math.round(summary.mean()));
+            latency.put("p50", summary.valueAt(0.5));
+            latency.put("p99", summary.valueAt(0.99));
+            latency.put("p999", summary.valueAt(0.999));
+            latency.put("max", summary.max());
+            return latency;
+        }
+        
+        private JSONObject createDatabase(JSONObject request) {
+            JSONObject response = new JSONObject();
+            String dbName = request.optString("dbName", "").trim();
+            
+            if (dbName.isEmpty()) {
+                response.put("status", "error");
+                response.put("message", "Database name is required.");
+            } else if (databaseMap.containsKey(dbName)) {
+                response.put("status", "error");
+                response.put("message", "Database '" + dbName + "' already exists.");
+            } else {
+                databaseMap.put(dbName, new ConcurrentHashMap<>());
+                storage.log(StorageEngine.logRecord("CREATE_DB", dbName));
+                response.put("status", "success");
+                response.put("message", "Database '" + dbName + "' created.");
+            }
+            
+            return response;
+        }
+        
+        private JSONObject listDatabases() {
+            JSONObject response = new JSONObject();
+            Set<String> dbNames = databaseMap.keySet();
+            
+            response.put("status", "success");
+            response.put("data", dbNames);
+            
+            return response;
+        }
+
+
+
+        private JSONObject readDatabase(JSONObject request, Session session) {
+            JSONObject response = new JSONObject();
+            String dbName = request.optString("dbName", "").trim();
+            int batchSize = batchSize(request);
+            
+            if (dbName.isEmpty()) {
+                response.put("status", "error");
+                response.put("message", "Database name is required.");
+            } else if (batchSize < 0) {
+                response.put("status", "error");
+                response.put("message", BATCH_SIZE_MESSAGE);
+            } else if (!databaseMap.containsKey(dbName)) {
+                response.put("status", "error");
+                response.put("message", "Database '" + dbName + "' not found.");
+            } else if (batchSize > 0) {
+                // Every batch reads the documents as they were when the first one was read
+                Snapshot snapshot = Snapshot.open();
+                response.put("status", "success");
+                response = firstBatch(response, session, new Cursor<>("data", false,
+                        databaseItems(databaseMap.get(dbName), snapshot), RequestHandler::writeDatabaseItem, batchSize, snapshot));
+            } else {
+                ConcurrentHashMap<String, DocumentCollection> collections = databaseMap.get(dbName);
+                JSONObject dbData = new JSONObject();
+                
+                try (Snapshot snapshot = Snapshot.open()) {
+                    for (Map.Entry<String, DocumentCollection> entry : collections.entrySet()) {
+                        String collName = entry.getKey();
+                        JSONObject collData = new JSONObject();
+                        
+                        DocumentCollection documents = entry.getValue();
+                        for (Map.Entry<String, Document> docEntry : documents.entrySet(snapshot)) {
+                            collData.put(docEntry.getKey(), docEntry.getValue().toJSONObject());
+                        }
+                        
+                        dbData.put(collName, collData);
+                    }
+                }
+                
+                response.put("status", "success");
+                response.put("data", dbData);
+            }
+            
+            return response;
+        }
+        
+        private JSONObject deleteDatabase(JSONObject request) {
+            JSONObject response = new JSONObject();
+            String dbName = request.optString("dbName", "").trim();
+            
+            if (dbName.isEmpty()) {
+                response.put("status", "error");
+                response.put("message", "Database name is required.");
+            } else if (!databaseMap.containsKey(dbName)) {
+                response.put("status", "error");
+                response.put("message", "Database '" + dbName + "' not found.");
+            } else {
+                databaseMap.remove(dbName);
+                storage.log(StorageEngine.logRecord("DELETE_DB", dbName));
+                response.put("status", "success");
+                response.put("message", "Database '" + dbName + "' deleted.");
+            }
+            
+            return response;
+        }
+        
+        // Collection Operations
+        private JSONObject createCollection(JSONObject request) {
+            JSONObject response = new JSONObject();
+            String dbName = request.optString("dbName", "").trim();
+            String collectionName = request.optString("collectionName", "").trim();
+            
+            if (dbName.isEmpty() || collectionName.isEmpty()) {
+                response.put("status", "error");
+                response.put("message", "dbName and collectionName are required.");
+            } else if (!databaseMap.containsKey(dbName)) {
+                response.put("status", "error");
+                response.put("message", "Database '" + dbName + "' not found.");
+            } else {
+                ConcurrentHashMap<String, DocumentCollection> collections = databaseMap.get(dbName);
+                
+                if (collections.containsKey(collectionName)) {
+                    response.put("status", "error");
+                    response.put("message", "Collection '" + collectionName + "' already exists in database '" + dbName + "'.");
+                } else {
+                    collections.put(collectionName, new DocumentCollection());
+                    storage.log(StorageEngine.logRecord("CREATE_COLLECTION", dbName, collectionName));
+                    response.put("status", "success");
+                    response.put("message", "Collection '" + collectionName + "' created in database '" + dbName + "'.");
+                }
+            }
+            
+            return response;
+        }
+        
+        private JSONObject listCollections(JSONObject request) {
+            JSONObject response = new JSONObject();
+            String dbName = request.optString("dbName", "").trim();
+            
+            if (dbName.isEmpty()) {
+                response.put("status", "error");
+                response.put("message", "Database name is required.");
+            } else if (!databaseMap.containsKey(dbName)) {
+                response.put("status", "error");
+                response.put("message", "Database '" + dbName + "' not found.");
+            } else {
+                Set<String> collections = databaseMap.get(dbName).keySet();
+                response.put("status", "success");
+                response.put("collections", collections);
+            }
+            
+            return response;
+        }
+        
+        private JSONObject deleteCollection(JSONObject request) {
+            JSONObject response = new JSONObject();
+            String dbName = request.optString("dbName", "").trim();
+            String collectionName = request.optString("collectionName", "").trim();
+            
+            if (dbName.isEmpty() || collectionName.isEmpty()) {
+                response.put("status", "error");
+                response.put("message", "dbName and collectionName are required.");
+            } else if (!databaseMap.containsKey(dbName)) {
+                response.put("status", "error");
+                response.put("message", "Database '" + dbName + "' not found.");
+            } else {
+                ConcurrentHashMap<String, DocumentCollection> collections = databaseMap.get(dbName);
+                
+                if (!collections.containsKey(collectionName)) {
+                    response.put("status", "error");
+                    response.put("message", "Collection '" + collectionName + "' not found in database '" + dbName + "'.");
+                } else {
+                    collections.remove(collectionName);
+                    storage.log(StorageEngine.logRecord("DELETE_COLLECTION", dbName, collectionName));
+                    response.put("status", "success");
+                    response.put("message", "Collection '" + collectionName + "' deleted from database '" + dbName + "'.");
+                }
+            }
+            
+            return response;
+        }
+        
+        // Document Operations
+        private JSONObject createDocument(JSONObject request) {
+            JSONObject response = new JSONObject();
+            String dbName = request.optString("dbName", "").trim();
+            String collectionName = request.optString("collectionName", "").trim();
+            JSONObject document = request.optJSONObject("document");
+            
+            if (dbName.isEmpty() || collectionName.isEmpty() || document == null) {
+                response.put("status", "error");
+                response.put("message", "dbName, collectionName, and document are required.");
+            } else if (!databaseMap.containsKey(dbName)) {
+                response.put("status", "error");
+                response.put("message", "Database '" + dbName + "' not found.");
+            } else {
+                ConcurrentHashMap<String, DocumentCollection> db = databaseMap.get(dbName);
+                
+                if (!db.containsKey(collectionName)) {
+                    response.put("status", "error");
+                    response.put("message", "Collection '" + collectionName + "' not found in database '" + dbName + "'.");
+                } else {
+                    DocumentCollection collection = db.get(collectionName);
+                    String docId = request.optString("documentId", "");
+                    
+                    if (docId.isEmpty()) {
+                        docId = newDocumentId();
+                    }
+                    
+                    Document created = Document.fromJson(document);
+                    long sequence = insert(collection, docId, created);
+                    if (sequence == 0) {
+                        response.put("status", "error");
+                        response.put("message", "Document with ID '" + docId + "' already exists.");
+                    } else {
+                        storage.log(StorageEngine.logRecord("CREATE_DOCUMENT", dbName, collectionName).put("id", docId).put("doc", document)
+                                .put("version", created.version()).put("seq", sequence));
+                        
+                        response.put("status", "success");
+                        response.put("message", "Document inserted into collection '" + collectionName + "'.");
+                        response.put("documentId", docId);
+                        response.put("version", created.version());
+                    }
+                }
+            }
+            
+            return response;
+        }
+        
+        private JSONObject readDocument(JSONObject request) {
+            JSONObject response = new JSONObject();
+            String dbName = request.optString("dbName", "").trim();
+            String collectionName = request.optString("collectionName", "").trim();
+            String documentId = request.optString("documentId", "").trim();
+            
+            if (dbName.isEmpty() || collectionName.isEmpty() || documentId.isEmpty()) {
+                response.put("status", "error");
+                response.put("message", "dbName, collectionName, and documentId are required.");
+            } else if (!Projection.isValid(request.opt("projection"))) {
+                response.put("status", "error");
+                response.put("message", PROJECTION_MESSAGE);
+            } else if (!databaseMap.containsKey(dbName)) {
+                response.put("status", "error");
+                response.put("message", "Database '" + dbName + "' not found.");
+            } else {
+                ConcurrentHashMap<String, DocumentCollection> db = databaseMap.get(dbName);
+                
+                if (!db.containsKey(collectionName)) {
+                    response.put("status", "error");
+                    response.put("message", "Collection '" + collectionName + "' not found in database '" + dbName + "'.");
+                } else {
+                    Document document = db.get(collectionName).get(documentId);
+                    
+                    if (document == null) {
+                        response.put("status", "error");
+                        response.put("message", "Document with ID '" + documentId + "' not found.");
+                    } else {
+                        response.put("status", "success");
+                        response.put("document", toJson(document, Projection.of(request.opt("projection"))));
+                        response.put("documentId", documentId);
+                        response.put("version", document.version());
+                    }
+                }
+            }
+            
+            return response;
+        }
+        
+        private JSONObject readDocuments(JSONObject request, Session session) {
+            JSONObject response = new JSONObject();
+            String dbName = request.optString("dbName", "").trim();
+            String collectionName = request.optString("collectionName", "").trim();
+            int batchSize = batchSize(request);
+            
+            if (dbName.isEmpty() || collectionName.isEmpty()) {
+                response.put("status", "error");
+                response.put("message", "dbName and collectionName are required.");
+            } else if (batchSize < 0) {
+                response.put("status", "error");
+                response.put("message", BATCH_SIZE_MESSAGE);
+            } else if (!Projection.isValid(request.opt("projection"))) {
+                response.put("status", "error");
+                response.put("message", PROJECTION_MESSAGE);
+            } else if (!databaseMap.containsKey(dbName)) {
+                response.put("status", "error");
+                response.put("message", "Database '" + dbName + "' not found.");
+            } else {
+                ConcurrentHashMap<String, DocumentCollection> db = databaseMap.get(dbName);
+                
+                if (!db.containsKey(collectionName)) {
+                    response.put("status", "error");
+                    response.put("message", "Collection '" + collectionName + "' not found in database '" + dbName + "'.");
+                } else {
+                    DocumentCollection collection = db.get(collectionName);
+                    Projection projection = Projection.of(request.opt("projection"));
+                    
+                    if (batchSize > 0) {
+                        Snapshot snapshot = Snapshot.open();
+                        response.put("status", "success");
+                        response = firstBatch(response, session,
+                                documentCursor(collection.entrySet(snapshot).iterator(), projection, batchSize, snapshot));
+                    } else {
+                        JSONObject documents = new JSONObject();
+                        
+                        try (Snapshot snapshot = Snapshot.open()) {
+                            for (Map.Entry<String, Document> entry : collection.entrySet(snapshot)) {
+                                documents.put(entry.getKey(), toJson(entry.getValue(), projection));
+                            }
+                        }
+                        
+                        response.put("status", "success");
+                        response.put("documents", documents);
+                        response.put("count", documents.length());
+                    }
+                }
+            }
+            
+            return response;
+        }
+        
+        private JSONObject updateDocument(JSONObject request) {
+            JSONObject response = new JSONObject();
+            String dbName = request.optString("dbName", "").trim();
+            String collectionName = request.optString("collectionName", "").trim();
+            String documentId = request.optString("documentId", "").trim();
+            JSONObject updates = request.optJSONObject("updates");
+            long expectedVersion = expectedVersion(request);
+            
+            if (dbName.isEmpty() || collectionName.isEmpty() || documentId.isEmpty() || updates == null) {
+                response.put("status", "error");
+                response.put("message", "dbName, collectionName, documentId, and updates are required.");
+            } else if (expectedVersion < 0) {
+                response.put("status", "error");
+                response.put("message", EXPECTED_VERSION_MESSAGE);
+            } else if (!databaseMap.containsKey(dbName)) {
+                response.put("status", "error");
+                response.put("message", "Database '" + dbName + "' not found.");
+            } else {
+                ConcurrentHashMap<String, DocumentCollection> db = databaseMap.get(dbName);
+                
+                if (!db.containsKey(collectionName)) {
+                    response.put("status", "error");
+                    response.put("message", "Collection '" + collectionName + "' not found in database '" + dbName + "'.");
+                } else {
+                    DocumentCollection collection = db.get(collectionName);
+                    VersionedWrite write = writeIfVersion(collection, documentId, expectedVersion, current -> current.with(updates));
+                    
+                    if (write.before == null) {
+                        response.put("status", "error");
+                        response.put("message", "Document with ID '" + documentId + "' not found.");
+                    } else if (write.conflict) {
+                        response.put("status", "error");
+                        response.put("message", versionConflict(documentId, expectedVersion, write.before.version()));
+                        response.put("version", write.before.version());
+                    } else {
+                        JSONObject updatedJson = write.after.toJSONObject();
+                        storage.log(StorageEngine.logRecord("UPDATE_DOCUMENT", dbName, collectionName).put("id", documentId).put("doc", updatedJson)
+                                .put("version", write.after.version()).put("seq", write.sequence));
+
+                        response.put("status", "success");
+                        response.put("message", "Document updated successfully.");
+                        response.put("documentId", documentId);
+                        response.put("document", updatedJson);
+                        response.put("version", write.after.version());
+                    }
+                }
+            }
+            
+            return response;
+        }
+        
+        private JSONObject deleteDocument(JSONObject request) {
+            JSONObject response = new JSONObject();
+            String dbName = request.optString("dbName", "").trim();
+            String collectionName = request.optString("collectionName", "").trim();
+            String documentId = request.optString("documentId", "").trim();
+            long expectedVersion = expectedVersion(request);
+            
+            if (dbName.isEmpty() || collectionName.isEmpty() || documentId.isEmpty()) {
+                response.put("status", "error");
+                response.put("message", "dbName, collectionName, and documentId are required.");
+            } else if (expectedVersion < 0) {
+                response.put("status", "error");
+                response.put("message", EXPECTED_VERSION_MESSAGE);
+            } else if (!databaseMap.containsKey(dbName)) {
+                response.put("status", "error");
+                response.put("message", "Database '" + dbName + "' not found.");
+            } else {
+                ConcurrentHashMap<String, DocumentCollection> db = databaseMap.get(dbName);
+                
+                if (!db.containsKey(collectionName)) {
+                    response.put("status", "error");
+                    response.put("message", "Collection '" + collectionName + "' not found in database '" + dbName + "'.");
+                } else {
+                    DocumentCollection collection = db.get(collectionName);
+                    VersionedWrite write = writeIfVersion(collection, documentId, expectedVersion, current -> null);
+                    
+                    if (write.before == null) {
+                        response.put("status", "error");
+                        response.put("message", "Document with ID '" + documentId + "' not found.");
+                    } else if (write.conflict) {
+                        response.put("status", "error");
+                        response.put("message", versionConflict(documentId, expectedVersion, write.before.version()));
+                        response.put("version", write.before.version());
+                    } else {
+                        storage.log(StorageEngine.logRecord("DELETE_DOCUMENT", dbName, collectionName).put("id", documentId)
+                                .put("seq", write.sequence));
+                        response.put("status", "success");
+                        response.put("message", "Document with ID '" + documentId + "' deleted successfully.");
+                    }
+                }
+            }
+            
+            return response;
+        }
+        
+        private static final String EXPECTED_VERSION_MESSAGE = "expectedVersion must be a positive integer.";
+        
+        // expectedVersion of a write: 0 if absent, -1 if it is not a positive integer
+        private static long expectedVersion(JSONObject request) {
+            if (!request.has("expectedVersion")) {
+                return 0;
+            }
+            Object expectedVersion = request.get("expectedVersion");
+            if (!(expectedVersion instanceof Integer || expectedVersion instanceof Long)) {
+                return -1;
+            }
+            return ((Number) expectedVersion).longValue() > 0 ? ((Number) expectedVersion).longValue() : -1;
+        }
+        
+        private static String versionConflict(String documentId, long expectedVersion, long version) {
+            return "Version conflict: document '" + documentId + "' is at version " + version + ", not " + expectedVersion + ".";
+        }
+        
+        // Outcome of a write to one existing document
+        private static final class VersionedWrite {
+            Document before;   // null if there was no such document
+            Document after;    // null if it was deleted or left alone
+            boolean conflict;  // left alone because it was not at the expected version
+            long sequence;     // commit sequence number of the write, for its log record
+        }
+        
+        // Replaces a document with change(document), or deletes it if that is null, in one
+        // atomic step under the document's lock, but only if it is at expectedVersion
+        // (any version if 0). Concurrent writes to the same document never lose each other.
+        private static VersionedWrite writeIfVersion(DocumentCollection collection, String documentId,
+                                                     long expectedVersion, UnaryOperator<Document> change) {
+            VersionedWrite write = new VersionedWrite();
+            write.sequence = collection.write(documentId, (id, current) -> {
+                if (current == null) {
+                    return null;
+                }
+                write.before = current;
+                if (expectedVersion > 0 && current.version() != expectedVersion) {
+                    write.conflict = true;
+                    return current;
+                }
+                write.after = change.apply(current);
+                return write.after;
+            });
+            return write;
+        }
+        
+        // Stores a new document unless one exists under documentId; returns the commit
+        // sequence number of the write for its log record, or 0 if the id is taken
+        private static long insert(DocumentCollection collection, String documentId, Document document) {
+            return collection.write(documentId, (id, current) -> current != null ? current : document);
+        }
+        
+        private static String newDocumentId() {
+            return "doc_" + System.currentTimeMillis() + "_" + UUID.randomUUID().toString().substring(0, 8);
+        }
+        
+        // Applies a batch of insert/update/delete operations to one collection. Ordered
+        // batches stop at the first failure, unordered ones attempt every operation. All
+        // successful mutations reach the write-ahead log in a single write.
+        private JSONObject bulkWrite(JSONObject request) {
+            JSONObject response = new JSONObject();
+            String dbName = request.optString("dbName", "").trim();
+            String collectionName = request.optString("collectionName", "").trim();
+            JSONArray operations = request.optJSONArray("operations");
+            boolean ordered = request.optBoolean("ordered", true);
+            
+            if (dbName.isEmpty() || collectionName.isEmpty() || operations == null) {
+                response.put("status", "error");
+                response.put("message", "dbName, collectionName, and operations are required.");
+            } else if (!databaseMap.containsKey(dbName)) {
+                response.put("status", "error");
+                response.put("message", "Database '" + dbName + "' not found.");
+            } else {
+                ConcurrentHashMap<String, DocumentCollection> db = databaseMap.get(dbName);
+                
+                if (!db.containsKey(collectionName)) {
+                    response.put("status", "error");
+                    response.put("message", "Collection '" + collectionName + "' not found in database '" + dbName + "'.");
+                } else {
+                    DocumentCollection collection = db.get(collectionName);
+                    List<JSONObject> records = new ArrayList<>(operations.length());
+                    JSONArray results = new JSONArray();
+                    int inserted = 0;
+                    int updated = 0;
+                    int deleted = 0;
+                    int failed = 0;
+                    
+                    for (int i = 0; i < operations.length(); i++) {
+                        JSONObject operation = operations.optJSONObject(i);
+                        String op = operation == null ? "" : operation.optString("op", "");
+                        String documentId = operation == null ? "" : operation.optString("documentId", "").trim();
+                        String error = null;
+                        
+                        switch (op) {
+                            case "insert": {
+                                JSONObject document = operation.optJSONObject("document");
+                                if (document == null) {
+                                    error = "document is required.";
+                                    break;
+                                }
+                                if (documentId.isEmpty()) {
+                                    documentId = newDocumentId();
+                                }
+                                Document created = Document.fromJson(document);
+                                long sequence = insert(collection, documentId, created);
+                                if (sequence == 0) {
+                                    error = "Document with ID '" + documentId + "' already exists.";
+                                    break;
+                                }
+                                records.add(StorageEngine.logRecord("CREATE_DOCUMENT", dbName, collectionName).put("id", documentId).put("doc", document)
+                                        .put("version", created.version()).put("seq", sequence));
+                                inserted++;
+                                break;
+                            }
+                            case "update": {
+                                JSONObject updates = operation.optJSONObject("updates");
+                                if (documentId.isEmpty() || updates == null) {
+                                    error = "documentId and updates are required.";
+                                    break;
+                                }
+                                long expectedVersion = expectedVersion(operation);
+                                if (expectedVersion < 0) {
+                                    error = EXPECTED_VERSION_MESSAGE;
+                                    break;
+                                }
+                                VersionedWrite write = writeIfVersion(collection, documentId, expectedVersion, current -> current.with(updates));
+                                if (write.before == null) {
+                                    error = "Document with ID '" + documentId + "' not found.";
+                                    break;
+                                } else if (write.conflict) {
+                                    error = versionConflict(documentId, expectedVersion, write.before.version());
+                                    break;
+                                }
+                                records.add(StorageEngine.logRecord("UPDATE_DOCUMENT", dbName, collectionName).put("id", documentId)
+                                        .put("doc", write.after.toJSONObject()).put("version", write.after.version()).put("seq", write.sequence));
+                                updated++;
+                                break;
+                            }
+                            case "delete": {
+                                if (documentId.isEmpty()) {
+                                    error = "documentId is required.";
+                                    break;
+                                }
+                                long expectedVersion = expectedVersion(operation);
+                                if (expectedVersion < 0) {
+                                    error = EXPECTED_VERSION_MESSAGE;
+                                    break;
+                                }
+                                VersionedWrite write = writeIfVersion(collection, documentId, expectedVersion, current -> null);
+                                if (write.before == null) {
+                                    error = "Document with ID '" + documentId + "' not found.";
+                                    break;
+                                } else if (write.conflict) {
+                                    error = versionConflict(documentId, expectedVersion, write.before.version());
+                                    break;
+                                }
+                                records.add(StorageEngine.logRecord("DELETE_DOCUMENT", dbName, collectionName).put("id", documentId)
+                                        .put("seq", write.sequence));
+                                deleted++;
+                                break;
+                            }
+                            default:
+                                error = operation == null ? "Operation must be an object." : "Unknown operation: " + op;
+                        }
+                        
+                        JSONObject result = new JSONObject();
+                        result.put("index", i);
+                        if (error == null) {
+                            result.put("status", "success");
+                            result.put("documentId", documentId);
+                        } else {
+                            result.put("status", "error");
+                            result.put("message", error);
+                            failed++;
+                        }
+                        results.put(result);
+                        
+                        if (error != null && ordered) {
+                            break;
+                        }
+                    }
+                    
+                    storage.log(records);
+                    
+                    if (failed == 0) {
+                        response.put("status", "success");
+                        response.put("message", "Bulk write applied " + results.length() + " operations.");
+                    } else {
+                        response.put("status", "error");
+                        response.put("message", ordered
+                                ? "Bulk write stopped at operation " + (results.length() - 1) + "; " + (results.length() - 1) + " operations applied."
+                                : failed + " of " + operations.length() + " operations failed.");
+                    }
+                    response.put("insertedCount", inserted);
+                    response.put("updatedCount", updated);
+                    response.put("deletedCount", deleted);
+                    response.put("errorCount", failed);
+                    response.put("results", results);
+                }
+            }
+            
+            return response;
+        }
+        
+        // Index Operations
+        private JSONObject createIndex(JSONObject request) {
+            JSONObject response = new JSONObject();
+            String dbName = request.optString("dbName", "").trim();
+            String collectionName = request.optString("collectionName", "").trim();
+            String field = request.optString("field", "").trim();
+            String type = request.optString("type", HashIndex.TYPE).trim();
+            
+            if (dbName.isEmpty() || collectionName.isEmpty() || field.isEmpty()) {
+                response.put("status", "error");
+                response.put("message", "dbName, collectionName, and field are required.");
+            } else if (!FieldIndex.isValidField(field)) {
+                response.put("status", "error");
+                response.put("message", "Invalid field path '" + field + "'.");
+            } else if (!FieldIndex.isValidType(type)) {
+                response.put("status", "error");
+                response.put("message", "Unknown index type '" + type + "'. Use '" + HashIndex.TYPE + "' or '" + OrderedIndex.TYPE + "'.");
+            } else if (!databaseMap.containsKey(dbName)) {
+                response.put("status", "error");
+                response.put("message", "Database '" + dbName + "' not found.");
+            } else {
+                ConcurrentHashMap<String, DocumentCollection> db = databaseMap.get(dbName);
+                
+                if (!db.containsKey(collectionName)) {
+                    response.put("status", "error");
+                    response.put("message", "Collection '" + collectionName + "' not found in database '" + dbName + "'.");
+                } else if (!db.get(collectionName).createIndex(field, type)) {
+                    response.put("status", "error");
+                    response.put("message", "Index on '" + field + "' already exists in collection '" + collectionName + "'.");
+                } else {
+                    storage.log(StorageEngine.logRecord("CREATE_INDEX", dbName, collectionName).put("field", field).put("type", type));
+                    response.put("status", "success");
+                    response.put("message", "Index on '" + field + "' created in collection '" + collectionName + "'.");
+                }
+            }
+            
+            return response;
+        }
+        
+        private JSONObject dropIndex(JSONObject request) {
+            JSONObject response = new JSONObject();
+            String dbName = request.optString("dbName", "").trim();
+            String collectionName = request.optString("collectionName", "").trim();
+            String field = request.optString("field", "").trim();
+            
+            if (dbName.isEmpty() || collectionName.isEmpty() || field.isEmpty()) {
+                response.put("status", "error");
+                response.put("message", "dbName, collectionName, and field are required.");
+            } else if (!databaseMap.containsKey(dbName)) {
+                response.put("status", "error");
+                response.put("message", "Database '" + dbName + "' not found.");
+            } else {
+                ConcurrentHashMap<String, DocumentCollection> db = databaseMap.get(dbName);
+                
+                if (!db.containsKey(collectionName)) {
+                    response.put("status", "error");
+                    response.put("message", "Collection '" + collectionName + "' not found in database '" + dbName + "'.");
+                } else if (!db.get(collectionName).dropIndex(field)) {
+                    response.put("status", "error");
+                    response.put("message", "Index on '" + field + "' not found in collection '" + collectionName + "'.");
+                } else {
+                    storage.log(StorageEngine.logRecord("DROP_INDEX", dbName, collectionName).put("field", field));
+                    response.put("status", "success");
+                    response.put("message", "Index on '" + field + "' dropped from collection '" + collectionName + "'.");
+                }
+            }
+            
+            return response;
+        }
+        
+        private JSONObject listIndexes(JSONObject request) {
+            JSONObject response = new JSONObject();
+            String dbName = request.optString("dbName", "").trim();
+            String collectionName = request.optString("collectionName", "").trim();
+            
+            if (dbName.isEmpty() || collectionName.isEmpty()) {
+                response.put("status", "error");
+                response.put("message", "dbName and collectionName are required.");
+            } else if (!databaseMap.containsKey(dbName)) {
+                response.put("status", "error");
+                response.put("message", "Database '" + dbName + "' not found.");
+            } else {
+                ConcurrentHashMap<String, DocumentCollection> db = databaseMap.get(dbName);
+                
+                if (!db.containsKey(collectionName)) {
+                    response.put("status", "error");
+                    response.put("message", "Collection '" + collectionName + "' not found in database '" + dbName + "'.");
+                } else {
+                    JSONArray indexes = new JSONArray();
+                    for (FieldIndex index : db.get(collectionName).getIndexes()) {
+                        JSONObject info = new JSONObject();
+                        info.put("field", index.getField());
+                        info.put("type", index.getType());
+                        info.put("distinctValues", index.distinctValues());
+                        indexes.put(info);
+                    }
+                    
+                    response.put("status", "success");
+                    response.put("indexes", indexes);
+                }
+            }
+            
+            return response;
+        }
+        
+        private JSONObject queryDocuments(JSONObject request, Session session) {
+            JSONObject response = new JSONObject();
+            String dbName = request.optString("dbName", "").trim();
+            String collectionName = request.optString("collectionName", "").trim();
+            JSONObject query = request.optJSONObject("query");
+            int batchSize = batchSize(request);
+            
+            if (dbName.isEmpty() || collectionName.isEmpty() || query == null) {
+                response.put("status", "error");
+                response.put("message", "dbName, collectionName, and query are required.");
+            } else if (batchSize < 0) {
+                response.put("status", "error");
+                response.put("message", BATCH_SIZE_MESSAGE);
+            } else if (!Projection.isValid(request.opt("projection"))) {
+                response.put("status", "error");
+                response.put("message", PROJECTION_MESSAGE);
+            } else if (!databaseMap.containsKey(dbName)) {
+                response.put("status", "error");
+                response.put("message", "Database '" + dbName + "' not found.");
+            } else {
+                ConcurrentHashMap<String, DocumentCollection> db = databaseMap.get(dbName);
+                
+                if (!db.containsKey(collectionName)) {
+                    response.put("status", "error");
+                    response.put("message", "Collection '" + collectionName + "' not found in database '" + dbName + "'.");
+                } else {
+                    DocumentCollection collection = db.get(collectionName);
+                    JSONObject results = new JSONObject();
+                    int matchCount = 0;
+                    
+                    // Process sorting parameters
+                    String sortField = request.optString("sortBy", "");
+                    boolean ascending = request.optBoolean("ascending", true);
+                    
+                    // Process pagination parameters
+                    int limit = request.optInt("limit", Integer.MAX_VALUE);
+                    int skip = request.optInt("skip", 0);
+                    
+                    Projection projection = Projection.of(request.opt("projection"));
+                    if (batchSize > 0 && sortField.isEmpty()) {
+                        // Unsorted, the cursor finds the matches as it reads them, so the
+                        // result is never held whole and the matches are not counted
+                        Snapshot snapshot = Snapshot.open();
+                        Cursor<?> cursor;
+                        try {
+                            cursor = documentCursor(matching(collection, query, skip, limit, snapshot), projection, batchSize, snapshot);
+                        } catch (RuntimeException e) {
+                            snapshot.close();
+                            throw e;
+                        }
+                        response.put("status", "success");
+                        response = firstBatch(response, session, cursor);
+                    } else if (batchSize > 0) {
+                        // A cursor reads its result once, so caching it would only hold it twice
+                        ResultCache.Result result = runQuery(collection, query, sortField, ascending, skip, limit);
+                        response.put("status", "success");
+                        response.put("totalMatches", result.totalMatches());
+                        response = firstBatch(response, session, documentCursor(result.page().iterator(), projection, batchSize, null));
+                    } else {
+                        String cacheKey = ResultCache.key(dbName, collectionName, query, sortField, ascending, skip, limit);
+                        ResultCache.Result result = resultCache.get(collection, cacheKey);
+                        if (result == null) {
+                            long version = collection.version();
+                            result = runQuery(collection, query, sortField, ascending, skip, limit);
+                            resultCache.put(collection, version, cacheKey, result);
+                        }
+                        List<Map.Entry<String, Document>> page = result.page();
+                        int totalMatches = result.totalMatches();
+                        
+                        for (Map.Entry<String, Document> entry : page) {
+                            results.put(entry.getKey(), toJson(entry.getValue(), projection));
+                            matchCount++;
+                        }
+                        
+                        response.put("status", "success");
+                        response.put("documents", results);
+                        response.put("count", matchCount);
+                        response.put("totalMatches", totalMatches);
+                    }
+                }
+            }
+            
+            return response;
+        }
+        
+        // The page of a QUERY and its number of matches, computed from the documents
+        private ResultCache.Result runQuery(DocumentCollection collection, JSONObject query,
+                                            String sortField, boolean ascending, int skip, int limit) {
+            Filter filter = plans.get(query);
+            Candidates candidates = indexCandidates(collection, query);
+            OrderedIndex sortIndex = sortIndex(collection, sortField);
+            List<Map.Entry<String, Document>> page;
+            int totalMatches;
+            
+            if (sortIndex != null && (candidates == null || candidates.field.equals(sortField))) {
+                // Walk the sort field's index in order instead of sorting the matches,
+                // over the range of the query's condition on that field if it has one
+                page = new ArrayList<>();
+                totalMatches = 0;
+                Iterator<String> ids = sortIndex.walk(candidates == null ? null : candidates.condition, ascending);
+                while (ids.hasNext()) {
+                    String id = ids.next();
+                    Document document = collection.get(id);
+                    if (document == null || !filter.matches(document)) {
+                        continue;
+                    }
+                    if (totalMatches >= skip && page.size() < limit) {
+                        page.add(new AbstractMap.SimpleEntry<>(id, document));
+                    }
+                    totalMatches++;
+                    
+                    // Every document matches an empty query, so there is nothing left to count
+                    if (page.size() == limit && query.isEmpty()) {
+                        totalMatches = collection.size();
+                        break;
+                    }
+                }
+            } else {
+                // Keep only the documents up to the end of the page, and count the rest;
+                // large scans are split across the scan threads
+                int end = (int) Math.min((long) Math.max(skip, 0) + Math.max(limit, 0), Integer.MAX_VALUE);
+                Supplier<TopK> newTopK = () -> new TopK(sortField, ascending, end);
+                TopK top;
+                
+                if (candidates != null) {
+                    top = scans.scan(candidates.ids, newTopK, (id, collector) -> {
+                        Document document = collection.get(id);
+                        if (document != null && filter.matches(document)) {
+                            collector.offer(id, document);
+                        }
+                    });
+                } else {
+                    // However long the scan takes, it sees the collection as it was when it began
+                    try (Snapshot snapshot = Snapshot.open()) {
+                        top = scans.scan(collection.entrySet(snapshot), newTopK, (entry, collector) -> {
+                            if (filter.matches(entry.getValue())) {
+                                collector.offer(entry.getKey(), entry.getValue());
+                            }
+                        });
+                    }
+                }
+                
+                totalMatches = top.offered();
+                page = top.page(skip);
+            }
+            
+            return new ResultCache.Result(page, totalMatches);
+        }
+        
+        // The documents matching the query as of the snapshot, after the first skip of them
+        // and up to limit of them, each found only when the iterator reaches it
+        private Iterator<Map.Entry<String, Document>> matching(DocumentCollection collection, JSONObject query,
+                                                               int skip, int limit, Snapshot snapshot) {
+            Filter filter = plans.get(query);
+            Candidates candidates = indexCandidates(collection, query);
+            Iterator<String> ids = candidates == null ? null : candidates.ids.iterator();
+            Iterator<Map.Entry<String, Document>> documents = candidates == null ? collection.entrySet(snapshot).iterator() : null;
+            return new Iterator<>() {
+                private Map.Entry<String, Document> next;
+                private int skipped;
+                private int returned;
+                
+                @Override
+                public boolean hasNext() {
+                    while (next == null && returned < limit && (ids != null ? ids.hasNext() : documents.hasNext())) {
+                        Map.Entry<String, Document> entry;
+                        if (ids != null) {
+                            String id = ids.next();
+                            entry = new AbstractMap.SimpleImmutableEntry<>(id, collection.get(id, snapshot));
+                        } else {
+                            entry = documents.next();
+                        }
+                        if (entry.getValue() == null || !filter.matches(entry.getValue())) {
+                            continue;
+                        }
+                        if (skipped < skip) {
+                            skipped++;
+                        } else {
+                            next = entry;
+                        }
+                    }
+                    return next != null;
+                }
+                
+                @Override
+                public Map.Entry<String, Document> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Map.Entry<String, Document> entry = next;
+                    next = null;
+                    returned++;
+                    return entry;
+                }
+            };
+        }
+        
+        private JSONObject aggregate(JSONObject request) {
+            JSONObject response = new JSONObject();
+            String dbName = request.optString("dbName", "").trim();
+            String collectionName = request.optString("collectionName", "").trim();
+            JSONArray stages = request.optJSONArray("pipeline");
+            Pipeline pipeline = null;
+            String pipelineError = null;
+            if (stages != null) {
+                try {
+                    pipeline = Pipeline.compile(stages, plans);
+                } catch (IllegalArgumentException e) {
+                    pipelineError = "Invalid pipeline: " + e.getMessage();
+                }
+            }
+            
+            if (dbName.isEmpty() || collectionName.isEmpty() || stages == null) {
+                response.put("status", "error");
+                response.put("message", "dbName, collectionName, and pipeline are required.");
+            } else if (pipelineError != null) {
+                response.put("status", "error");
+                response.put("message", pipelineError);
+            } else if (!databaseMap.containsKey(dbName)) {
+                response.put("status", "error");
+                response.put("message", "Database '" + dbName + "' not found.");
+            } else {
+                ConcurrentHashMap<String, DocumentCollection> db = databaseMap.get(dbName);
+                
+                if (!db.containsKey(collectionName)) {
+                    response.put("status", "error");
+                    response.put("message", "Collection '" + collectionName + "' not found in database '" + dbName + "'.");
+                } else {
+                    DocumentCollection collection = db.get(collectionName);
+                    
+                    // A leading $match is fed only the documents its indexed condition allows
+                    Candidates candidates = pipeline.leadingMatch() == null ? null
+                            : indexCandidates(collection, pipeline.leadingMatch());
+                    if (candidates != null) {
+                        for (String id : candidates.ids) {
+                            Document document = collection.get(id);
+                            if (document != null && !pipeline.accept(document)) {
+                                break;
+                            }
+                        }
+                    } else {
+                        try (Snapshot snapshot = Snapshot.open()) {
+                            for (Map.Entry<String, Document> entry : collection.entrySet(snapshot)) {
+                                if (!pipeline.accept(entry.getValue())) {
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                    
+                    JSONArray results = new JSONArray();
+                    for (Document document : pipeline.finish()) {
+                        results.put(document.toJSONObject());
+                    }
+                    response.put("status", "success");
+                    response.put("results", results);
+                    response.put("count", results.length());
+                }
+            }
+            
+            return response;
+        }
+        
+        private JSONObject countDocuments(JSONObject request) {
+            JSONObject response = new JSONObject();
+            String dbName = request.optString("dbName", "").trim();
+            String collectionName = request.optString("collectionName", "").trim();
+            JSONObject query = request.has("query") ? request.optJSONObject("query") : new JSONObject();
+            
+            if (dbName.isEmpty() || collectionName.isEmpty()) {
+                response.put("status", "error");
+                response.put("message", "dbName and collectionName are required.");
+            } else if (query == null) {
+                response.put("status", "error");
+                response.put("message", "query must be an object.");
+            } else if (!databaseMap.containsKey(dbName)) {
+                response.put("status", "error");
+                response.put("message", "Database '" + dbName + "' not found.");
+            } else {
+                ConcurrentHashMap<String, DocumentCollection> db = databaseMap.get(dbName);
+                
+                if (!db.containsKey(collectionName)) {
+                    response.put("status", "error");
+                    response.put("message", "Collection '" + collectionName + "' not found in database '" + dbName + "'.");
+                } else {
+                    response.put("status", "success");
+                    response.put("count", countMatches(db.get(collectionName), query, false));
+                }
+            }
+            
+            return response;
+        }
+        
+        private JSONObject documentExists(JSONObject request) {
+            JSONObject response = new JSONObject();
+            String dbName = request.optString("dbName", "").trim();
+            String collectionName = request.optString("collectionName", "").trim();
+            String documentId = request.optString("documentId", "").trim();
+            JSONObject query = request.has("query") ? request.optJSONObject("query") : new JSONObject();
+            
+            if (dbName.isEmpty() || collectionName.isEmpty()) {
+                response.put("status", "error");
+                response.put("message", "dbName and collectionName are required.");
+            } else if (query == null) {
+                response.put("status", "error");
+                response.put("message", "query must be an object.");
+            } else if (!databaseMap.containsKey(dbName)) {
+                response.put("status", "error");
+                response.put("message", "Database '" + dbName + "' not found.");
+            } else {
+                ConcurrentHashMap<String, DocumentCollection> db = databaseMap.get(dbName);
+                
+                if (!db.containsKey(collectionName)) {
+                    response.put("status", "error");
+                    response.put("message", "Collection '" + collectionName + "' not found in database '" + dbName + "'.");
+                } else if (!documentId.isEmpty()) {
+                    Document document = db.get(collectionName).get(documentId);
+                    response.put("status", "success");
+                    response.put("exists", document != null && plans.get(query).matches(document));
+                } else {
+                    response.put("status", "success");
+                    response.put("exists", countMatches(db.get(collectionName), query, true) > 0);
+                }
+            }
+            
+            return response;
+        }
+        
+        // Number of documents matching the query, or up to 1 if only whether there is one
+        // matters. Nothing is collected: an empty query is answered by the collection's size,
+        // an indexed one by checking the index's candidates, anything else by a scan.
+        private int countMatches(DocumentCollection collection, JSONObject query, boolean firstOnly) {
+            if (query.isEmpty()) {
+                return firstOnly ? Math.min(collection.size(), 1) : collection.size();
+            }
+            
+            Filter filter = plans.get(query);
+            Candidates candidates = indexCandidates(collection, query);
+            int count = 0;
+            if (candidates != null) {
+                for (String id : candidates.ids) {
+                    Document document = collection.get(id);
+                    if (document != null && filter.matches(document)) {
+                        count++;
+                        if (firstOnly) {
+                            break;
+                        }
+                    }
+                }
+            } else if (firstOnly) {
+                for (Document document : collection.values()) {
+                    if (filter.matches(document)) {
+                        return 1;
+                    }
+                }
+            } else {
+                // A collector that keeps no documents only counts them
+                try (Snapshot snapshot = Snapshot.open()) {
+                    count = scans.scan(collection.entrySet(snapshot), () -> new TopK("", true, 0), (entry, collector) -> {
+                        if (filter.matches(entry.getValue())) {
+                            collector.offer(null, entry.getValue());
+                        }
+                    }).offered();
+                }
+            }
+            return count;
+        }
+        
+        private JSONObject getMore(JSONObject request, Session session) {
+            JSONObject response = new JSONObject();
+            long cursorId = request.optLong("cursorId", 0);
+            expireIdleCursors();
+            Cursor<?> cursor = session.getCursor(cursorId);
+            
+            if (!request.has("cursorId")) {
+                response.put("status", "error");
+                response.put("message", "cursorId is required.");
+            } else if (cursor == null) {
+                response.put("status", "error");
+                response.put("message", cursorNotFound(cursorId));
+            } else {
+                response.put("status", "success");
+                if (cursor.nextBatch(response)) {
+                    response.put("hasMore", true);
+                    response.put("cursorId", cursorId);
+                } else {
+                    session.closeCursor(cursorId);
+                    response.put("hasMore", false);
+                }
+            }
+            
+            return response;
+        }
+        
+        private JSONObject killCursor(JSONObject request, Session session) {
+            JSONObject response = new JSONObject();
+            long cursorId = request.optLong("cursorId", 0);
+            
+            if (!request.has("cursorId")) {
+                response.put("status", "error");
+                response.put("message", "cursorId is required.");
+            } else if (!session.closeCursor(cursorId)) {
+                response.put("status", "error");
+                response.put("message", cursorNotFound(cursorId));
+            } else {
+                response.put("status", "success");
+                response.put("message", "Cursor " + cursorId + " closed.");
+            }
+            
+            return response;
+        }
+        
+        private static final String BATCH_SIZE_MESSAGE = "batchSize must be a positive integer.";
+        
+        // batchSize of a read request: 0 if absent, -1 if it is not a positive integer
+        private static int batchSize(JSONObject request) {
+            if (!request.has("batchSize")) {
+                return 0;
+            }
+            int batchSize = request.optInt("batchSize", -1);
+            return batchSize > 0 ? batchSize : -1;
+        }
+        
+        private static String cursorNotFound(long cursorId) {
+            return "Cursor " + cursorId + " not found. It was read to the end, killed, or closed after being idle.";
+        }
+        
+        // Writes the first batch into the response and, if items are left, opens a cursor
+        // for the rest on the session
+        private JSONObject firstBatch(JSONObject response, Session session, Cursor<?> cursor) {
+            expireIdleCursors();
+            boolean hasMore;
+            try {
+                hasMore = cursor.nextBatch(response);
+            } catch (RuntimeException e) {
+                cursor.close();
+                throw e;
+            }
+            if (!hasMore) {
+                cursor.close();
+                response.put("hasMore", false);
+                return response;
+            }
+            
+            long cursorId = session.openCursor(cursor, maxCursors);
+            if (cursorId < 0) {
+                cursor.close();
+                JSONObject error = new JSONObject();
+                error.put("status", "error");
+                error.put("message", session.isClosed() ? "Connection closed"
+                        : "Too many open cursors on this connection (limit " + maxCursors
+                        + "). Read a cursor to the end or close it with KILL_CURSOR.");
+                return error;
+            }
+            cursorSessions.add(session);
+            response.put("hasMore", true);
+            response.put("cursorId", cursorId);
+            return response;
+        }
+        
+        // Closes the cursors of every connection that have been idle for too long
+        private void expireIdleCursors() {
+            long idleSince = System.currentTimeMillis() - cursorIdleTimeoutMs;
+            cursorSessions.removeIf(session -> !session.expireCursors(idleSince));
+        }
+        
+        private static Cursor<Map.Entry<String, Document>> documentCursor(Iterator<Map.Entry<String, Document>> documents,
+                                                                          Projection projection, int batchSize, Snapshot snapshot) {
+            return new Cursor<>("documents", true, documents,
+                    (batch, entry) -> batch.put(entry.getKey(), toJson(entry.getValue(), projection)), batchSize, snapshot);
+        }
+        
+        private static final String PROJECTION_MESSAGE =
+                "projection must be an array of fields to include, or an object setting fields to 1 to include them or 0 to exclude them.";
+        
+        // A document as JSON, with only the projected fields if the request has a projection
+        private static JSONObject toJson(Document document, Projection projection) {
+            return projection == null ? document.toJSONObject() : projection.apply(document);
+        }
+        
+        // The documents of every collection of a database as of the snapshot, each paired with
+        // the name of its collection; an empty collection appears once, paired with no document
+        private static Iterator<Map.Entry<String, Map.Entry<String, Document>>> databaseItems(Map<String, DocumentCollection> collections,
+                                                                                            Snapshot snapshot) {
+            Iterator<Map.Entry<String, DocumentCollection>> remaining = collections.entrySet().iterator();
+            return new Iterator<>() {
+                private String collectionName;
+                private Iterator<Map.Entry<String, Document>> documents = Collections.emptyIterator();
+                private boolean emptyCollection;
+                
+                @Override
+                public boolean hasNext() {
+                    while (!emptyCollection && !documents.hasNext() && remaining.hasNext()) {
+                        Map.Entry<String, DocumentCollection> next = remaining.next();
+                        collectionName = next.getKey();
+                        documents = next.getValue().entrySet(snapshot).iterator();
+                        emptyCollection = !documents.hasNext();
+                    }
+                    return emptyCollection || documents.hasNext();
+                }
+                
+                @Override
+                public Map.Entry<String, Map.Entry<String, Document>> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    } else if (emptyCollection) {
+                        emptyCollection = false;
+                        return new AbstractMap.SimpleImmutableEntry<>(collectionName, null);
+                    }
+                    return new AbstractMap.SimpleImmutableEntry<>(collectionName, documents.next());
+                }
+            };
+        }
+        
+        private static void writeDatabaseItem(JSONObject batch, Map.Entry<String, Map.Entry<String, Document>> item) {
+            JSONObject collData = batch.optJSONObject(item.getKey());
+            if (collData == null) {
+                collData = new JSONObject();
+                batch.put(item.getKey(), collData);
+            }
+            Map.Entry<String, Document> document = item.getValue();
+            if (document != null) {
+                collData.put(document.getKey(), document.getValue().toJSONObject());
+            }
+        }
+        
+        // Ids an index narrowed a query down to, and the field condition they came from
+        private static final class Candidates {
+            final String field;
+            final Object condition;
+            final Set<String> ids;
+            
+            Candidates(String field, Object condition, Set<String> ids) {
+                this.field = field;
+                this.condition = condition;
+                this.ids = ids;
+            }
+        }
+        
+        // The documents that can match the query, taken from the index that narrows the
+        // most selective of its top-level field conditions (including those under $and),
+        // or null if no index applies and the collection must be scanned. Candidates are
+        // still checked against the whole query.
+        private Candidates indexCandidates(DocumentCollection collection, JSONObject query) {
+            if (!collection.hasIndexes()) {
+                return null;
+            }
+            
+            Candidates best = null;
+            for (String key : query.keySet()) {
+                if (key.equals("$and")) {
+                    JSONArray conditions = query.optJSONArray(key);
+                    if (conditions != null) {
+                        for (int i = 0; i < conditions.length(); i++) {
+                            JSONObject condition = conditions.optJSONObject(i);
+                            if (condition != null) {
+                                best = smaller(best, indexCandidates(collection, condition));
+                            }
+                        }
+                    }
+                } else if (!key.equals("$or") && !key.equals("$not")) {
+                    FieldIndex index = collection.getIndex(key);
+                    Set<String> ids = index == null ? null : index.candidates(query.get(key));
+                    if (ids != null) {
+                        best = smaller(best, new Candidates(key, query.get(key), ids));
+                    }
+                }
+            }
+            return best;
+        }
+        
+        private static Candidates smaller(Candidates a, Candidates b) {
+            if (a == null) return b;
+            if (b == null) return a;
+            return b.ids.size() < a.ids.size() ? b : a;
+        }
+        
+        // The ordered index that yields sortBy's order directly, if any. Sorting reads
+        // top-level fields only, so dotted paths are not served.
+        private static OrderedIndex sortIndex(DocumentCollection collection, String sortField) {
+            if (sortField.isEmpty() || sortField.contains(".")) {
+                return null;
+            }
+            FieldIndex index = collection.getIndex(sortField);
+            if (index instanceof OrderedIndex && ((OrderedIndex) index).isSortable()) {
+                return (OrderedIndex) index;
+            }
+            return null;
+        }
+    }
@@ -0,0 +1,45 @@
+package com.server;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control for the front end with a thread per connection: at most
+ * {@code maxRunning} requests execute at once and at most {@code queueLimit} wait for
+ * their turn. Anything beyond that is turned away instead of adding another runnable
+ * thread, so a burst of heavy QUERY scans cannot pile up.
+ */
+public class RequestLimiter {
+    private final Semaphore running;
+    private final int queueLimit;
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    public RequestLimiter(int maxRunning, int queueLimit) {
+        this.running = new Semaphore(Math.max(1, maxRunning), true);
+        this.queueLimit = queueLimit;
+    }
+
+    /** Waits for a slot; returns false at once if the wait queue is already full. */
+    public boolean acquire() {
+        if (running.tryAcquire()) {
+            return true;
+        }
+        if (waiting.incrementAndGet() > queueLimit) {
+            waiting.decrementAndGet();
+            return false;
+        }
+        try {
+            running.acquire();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    public void release() {
+        running.release();
+    }
+}
@@ -0,0 +1,61 @@
+package com.server;
+
+import com.server.log.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which requests have their request and response lines logged, and cuts long
+ * lines short. Each action can be sampled at its own rate ({@code mpdb.log.sample.<ACTION>}),
+ * so that chatty reads can be thinned out while writes and admin actions are kept.
+ */
+final class RequestLog {
+
+    // Rates looked up per action; bounded so clients sending made-up actions cannot grow it
+    private static final int MAX_CACHED_ACTIONS = 256;
+
+    private final double defaultRate;
+    private final int maxLineChars;
+    private final ConcurrentHashMap<String, Double> rates = new ConcurrentHashMap<>();
+
+    RequestLog(double defaultRate, int maxLineChars) {
+        this.defaultRate = defaultRate;
+        this.maxLineChars = maxLineChars;
+    }
+
+    /** Whether to log the lines of a request with this action (which may be null). */
+    boolean sampled(String action) {
+        if (!Log.isEnabled(Log.Level.INFO)) {
+            return false;
+        }
+        double rate = action == null ? defaultRate : rate(action);
+        return rate >= 1.0 || (rate > 0.0 && ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    private double rate(String action) {
+        Double rate = rates.get(action);
+        if (rate == null) {
+            rate = ServerConfig.logSampleRate(action);
+            if (rates.size() < MAX_CACHED_ACTIONS) {
+                rates.put(action, rate);
+            }
+        }
+        return rate;
+    }
+
+    void received(String requestLine) {
+        Log.info("📩 Received from client: " + truncate(requestLine));
+    }
+
+    void sent(String responseLine) {
+        Log.info("📤 Sent response: " + truncate(responseLine));
+    }
+
+    String truncate(String line) {
+        if (maxLineChars <= 0 || line.length() <= maxLineChars) {
+            return line;
+        }
+        return line.substring(0, maxLineChars) + "... (" + line.length() + " chars)";
+    }
+}
@@ -0,0 +1,16 @@
+package com.server;
+
+import java.io.Closeable;
+
+/** A front end accepting protocol connections: {@link NioServer} or {@link TCPServer}. */
+public interface Server extends Closeable {
+
+    void start();
+
+    /** The port actually bound, useful when the server was bound to port 0. */
+    int getPort();
+
+    /** Stops accepting connections and releases the server's threads. */
+    @Override
+    void close();
+}
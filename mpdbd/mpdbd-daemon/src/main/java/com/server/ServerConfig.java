@@ -0,0 +1,195 @@
+package com.server;
+
+/**
+ * Daemon settings, read from JVM system properties so they can be passed on the
+ * command line, e.g. {@code java -Dmpdb.wal.fsync=always -jar ...}.
+ */
+public final class ServerConfig {
+
+    private ServerConfig() {
+    }
+
+    /** Fsync policy for the write-ahead log: always, interval or os. */
+    public static String walFsyncPolicy() {
+        return System.getProperty("mpdb.wal.fsync", "interval");
+    }
+
+    /** How often the write-ahead log is fsynced when the policy is interval. */
+    public static long walFsyncIntervalMs() {
+        return getLong("mpdb.wal.fsyncIntervalMs", 1000);
+    }
+
+    /** Start a checkpoint once the write-ahead log grows past this many bytes. */
+    public static long checkpointWalBytes() {
+        return getLong("mpdb.checkpoint.walBytes", 64L * 1024 * 1024);
+    }
+
+    /** Start a checkpoint at least this often while the write-ahead log is not empty. */
+    public static long checkpointIntervalMs() {
+        return getLong("mpdb.checkpoint.intervalMs", 60_000);
+    }
+
+    /** How often document versions kept for snapshots that have closed are dropped. */
+    public static long versionCollectorIntervalMs() {
+        return getLong("mpdb.mvcc.collectIntervalMs", 1000);
+    }
+
+    /** Threads used to parse a large collection's segment file, or the old single snapshot file. */
+    public static int loadThreads() {
+        return getInt("mpdb.load.threads", Runtime.getRuntime().availableProcessors());
+    }
+
+    /** How long a saved, unchanged collection may go unused before it is unloaded; 0 keeps everything loaded. */
+    public static long unloadIdleMs() {
+        return getLong("mpdb.storage.unloadIdleMs", 300_000);
+    }
+
+    /** TCP port the daemon listens on. */
+    public static int port() {
+        return getInt("mpdb.server.port", 3000);
+    }
+
+    /** Local port serving metrics in the Prometheus text format; 0 serves none. */
+    public static int metricsPort() {
+        return getInt("mpdb.metrics.port", 0);
+    }
+
+    /** Length of the queue of connections waiting to be accepted. */
+    public static int serverBacklog() {
+        return getInt("mpdb.server.backlog", 1024);
+    }
+
+    /** Selector threads that read requests from and write responses to connections. */
+    public static int ioThreads() {
+        return getInt("mpdb.server.ioThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /** Threads that execute requests. */
+    public static int workerThreads() {
+        return getInt("mpdb.server.workers", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * How requests are executed: pool, virtual or legacy.
+     *
+     * @throws IllegalStateException if it is unknown, or virtual and the JVM has no virtual threads
+     */
+    public static String executorMode() {
+        String mode = System.getProperty("mpdb.server.executor", "pool");
+        try {
+            RequestExecutors.Mode.parse(mode);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("mpdb.server.executor=" + mode + " is not an executor mode. Use pool, virtual or legacy.");
+        }
+        if (mode.trim().equalsIgnoreCase("virtual") && !RequestExecutors.virtualThreadsSupported()) {
+            throw new IllegalStateException("mpdb.server.executor=virtual needs Java 21 or later, running on "
+                    + System.getProperty("java.version") + ". Use pool or legacy, or run on Java 21.");
+        }
+        return mode;
+    }
+
+    /** Requests that may wait for a worker before new ones are rejected as busy. */
+    public static int queueLimit() {
+        return getInt("mpdb.server.queueLimit", 1024);
+    }
+
+    /** Requests of one pipelining connection that may execute at once. */
+    public static int maxInFlight() {
+        return getInt("mpdb.server.maxInFlight", 32);
+    }
+
+    /** Longest request line accepted; a connection sending a longer one is closed. */
+    public static int maxRequestBytes() {
+        return getInt("mpdb.server.maxRequestBytes", 64 * 1024 * 1024);
+    }
+
+    /** Compiled QUERY filters kept for reuse; 0 compiles every query afresh. */
+    public static int planCacheSize() {
+        return getInt("mpdb.query.planCacheSize", 1024);
+    }
+
+    /** QUERY results kept until their collection changes; 0 runs every query afresh. */
+    public static int resultCacheSize() {
+        return getInt("mpdb.query.resultCacheSize", 256);
+    }
+
+    /** Largest QUERY page, in documents, that is kept in the result cache. */
+    public static int resultCacheMaxDocuments() {
+        return getInt("mpdb.query.resultCacheMaxDocuments", 1000);
+    }
+
+    /** Threads that scan large collections for QUERY; 1 scans on the request's own thread. */
+    public static int queryParallelism() {
+        return getInt("mpdb.query.parallelism", Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Documents a QUERY must scan before the scan is split across threads. */
+    public static int parallelScanThreshold() {
+        return getInt("mpdb.query.parallelThreshold", 100_000);
+    }
+
+    /** Cursors one connection may have open at once. */
+    public static int maxCursorsPerConnection() {
+        return getInt("mpdb.cursor.maxPerConnection", 16);
+    }
+
+    /** A cursor not used for this long is closed. */
+    public static long cursorIdleTimeoutMs() {
+        return getLong("mpdb.cursor.idleTimeoutMs", 600_000);
+    }
+
+    /** Least severe log level written: off, error, warn, info or debug. */
+    public static String logLevel() {
+        return System.getProperty("mpdb.log.level", "info");
+    }
+
+    /** Log lines that may wait to be written before new ones are dropped. */
+    public static int logBufferSize() {
+        return getInt("mpdb.log.bufferSize", 8192);
+    }
+
+    /** Request and response lines are cut to this many characters in the log; 0 keeps them whole. */
+    public static int logMaxLineChars() {
+        return getInt("mpdb.log.maxLineChars", 1024);
+    }
+
+    /** Fraction of requests, from 0 to 1, whose request and response lines are logged. */
+    public static double logSampleRate() {
+        return getDouble("mpdb.log.sampleRate", 1.0);
+    }
+
+    /** Fraction of requests with the given action that are logged; the general rate by default. */
+    public static double logSampleRate(String action) {
+        return getDouble("mpdb.log.sample." + action, logSampleRate());
+    }
+
+    static double getDouble(String key, double defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("❌ Invalid value for " + key + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    static long getLong(String key, long defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("❌ Invalid value for " + key + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    static int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+}
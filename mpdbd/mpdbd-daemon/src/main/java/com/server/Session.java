@@ -0,0 +1,92 @@
+package com.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Protocol state of one connection. The front end serving the connection creates it
+ * and passes it to {@link RequestHandler} with every request.
+ */
+public class Session {
+    private final boolean pipeliningSupported;
+    private volatile boolean pipelining;
+    private final ConcurrentHashMap<Long, Cursor<?>> cursors = new ConcurrentHashMap<>();
+    private final AtomicLong nextCursorId = new AtomicLong(1);
+    private boolean closed;
+
+    public Session(boolean pipeliningSupported) {
+        this.pipeliningSupported = pipeliningSupported;
+    }
+
+    public boolean isPipeliningSupported() {
+        return pipeliningSupported;
+    }
+
+    /**
+     * Whether requests on this connection may run concurrently, with each response
+     * written as soon as it is ready; clients match responses by {@code requestId}.
+     */
+    public boolean isPipelining() {
+        return pipelining;
+    }
+
+    void setPipelining(boolean pipelining) {
+        this.pipelining = pipelining && pipeliningSupported;
+    }
+
+    int openCursors() {
+        return cursors.size();
+    }
+
+    /**
+     * Registers a cursor and returns its id, or -1 if {@code limit} cursors are already
+     * open or the connection has closed.
+     */
+    synchronized long openCursor(Cursor<?> cursor, int limit) {
+        if (closed || cursors.size() >= limit) {
+            return -1;
+        }
+        long id = nextCursorId.getAndIncrement();
+        cursors.put(id, cursor);
+        return id;
+    }
+
+    Cursor<?> getCursor(long id) {
+        return cursors.get(id);
+    }
+
+    boolean closeCursor(long id) {
+        Cursor<?> cursor = cursors.remove(id);
+        if (cursor == null) {
+            return false;
+        }
+        cursor.close();
+        return true;
+    }
+
+    /** Closes the cursors not used since {@code idleSince}; returns whether any are left open. */
+    boolean expireCursors(long idleSince) {
+        for (Long id : cursors.keySet()) {
+            Cursor<?> cursor = cursors.get(id);
+            if (cursor != null && cursor.lastUsed() < idleSince) {
+                closeCursor(id);
+            }
+        }
+        return !cursors.isEmpty();
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Releases the connection's cursors; the front end calls it when the connection
+     * closes. Requests still running on the connection cannot open cursors after it.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (Long id : cursors.keySet()) {
+            closeCursor(id);
+        }
+    }
+}
@@ -3,19 +3,91 @@ package com.server;
 
 import java.io.*;
 import java.net.*;
+import java.util.concurrent.ThreadFactory;
 
+import com.server.storage.StorageEngine;
+import com.server.log.Log;
+
+
+/**
+ * Blocking front end that runs every connection on its own thread: a platform thread
+ * in the legacy mode or a virtual thread in the virtual mode. {@link NioServer} replaced
+ * it as the default.
+ */
+public class TCPServer implements Server {
+    private final ServerSocket serverSocket;
+    private final RequestHandler requestHandler;
+    private final ThreadFactory connectionThreads;
+    private final RequestLimiter limiter;
+    private final Thread acceptor;
+    private volatile boolean running = true;
+
+    /**
+     * @param connectionThreads creates the thread that serves each connection
+     * @param limiter admission control for requests, or null to run every request at once
+     */
+    public TCPServer(RequestHandler requestHandler, InetSocketAddress address, int backlog,
+                     ThreadFactory connectionThreads, RequestLimiter limiter) throws IOException {
+        this.requestHandler = requestHandler;
+        this.connectionThreads = connectionThreads;
+        this.limiter = limiter;
+        this.serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(address, backlog);
+        this.acceptor = new Thread(this::acceptLoop, "mpdb-acceptor");
+    }
 
-public class TCPServer {
     public static void startServer(int port) {
-        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getByName("0.0.0.0"))) {
-            System.out.println("TCP Server started on port " + port);
+        startServer(port, new RequestHandler(StorageEngine.getInstance()));
+    }
+
+    public static void startServer(int port, RequestHandler requestHandler) {
+        try (ServerSocket serverSocket = new ServerSocket(port, ServerConfig.serverBacklog(), InetAddress.getByName("0.0.0.0"))) {
+            Log.info("TCP Server started on port " + port);
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                new ClientHandler(clientSocket).start();
+                new Thread(new ClientHandler(clientSocket, requestHandler)).start();
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("❌ Error starting TCP server: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void start() {
+        acceptor.start();
+    }
+
+    @Override
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket clientSocket = serverSocket.accept();
+                connectionThreads.newThread(new ClientHandler(clientSocket, requestHandler, limiter, connectionThreads)).start();
+            } catch (IOException e) {
+                if (running) {
+                    Log.error("❌ Error accepting connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /** Stops accepting connections; connections already open are served until they close. */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            serverSocket.close();
+            acceptor.join(1000);
+        } catch (IOException e) {
+            Log.error("❌ Error closing server socket: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
-}
\ No newline at end of file
+}
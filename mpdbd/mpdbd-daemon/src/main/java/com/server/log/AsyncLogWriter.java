@@ -0,0 +1,152 @@
+package com.server.log;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded ring buffer of log lines that any number of threads add to without locking,
+ * and the single thread that writes them out. A thread that logs only claims a slot
+ * with one compare-and-set and stores its line; the formatting of stack traces and the
+ * stream's lock are left to the writer thread. When the buffer is full, lines are
+ * dropped and counted rather than making the logging thread wait.
+ *
+ * Each slot carries a sequence number telling whose turn it is, so producers and the
+ * writer never touch the same slot at once (a bounded queue after Dmitry Vyukov's).
+ */
+final class AsyncLogWriter {
+
+    // How long the writer sleeps when idle before it checks again on its own
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Line[] lines;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // Only the writer thread moves it; read by flush()
+    private volatile long head;
+    private volatile boolean sleeping;
+    private final Thread writer;
+
+    /** @param capacity lines that may wait to be written, rounded up to a power of two */
+    AsyncLogWriter(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        lines = new Line[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+
+        writer = new Thread(this::run, "mpdb-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Queues a line for {@code stream}; returns false if the buffer was full and it was dropped. */
+    boolean offer(PrintStream stream, String message, Throwable error) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    lines[index] = new Line(stream, message, error);
+                    // Hands the slot to the writer
+                    sequences.set(index, position + 1);
+                    break;
+                }
+                position = tail.get();
+            } else if (sequence < position) {
+                // The writer has not freed the slot a full lap ago
+                dropped.incrementAndGet();
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    /** Lines dropped so far because the buffer was full. */
+    long dropped() {
+        return dropped.get();
+    }
+
+    /** Waits up to {@code timeoutMs} for the lines queued so far to be written. */
+    void flush(long timeoutMs) {
+        long target = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (head < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+    }
+
+    private Line poll() {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        Line line = lines[index];
+        lines[index] = null;
+        // Frees the slot for the producer one lap ahead
+        sequences.set(index, position + lines.length);
+        head = position + 1;
+        return line;
+    }
+
+    private boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+
+    private void run() {
+        long reportedDrops = 0;
+        while (true) {
+            Line line = poll();
+            if (line != null) {
+                line.write();
+                continue;
+            }
+
+            long drops = dropped.get();
+            if (drops != reportedDrops) {
+                System.err.println("⚠️ Dropped " + (drops - reportedDrops) + " log lines, the log buffer was full");
+                reportedDrops = drops;
+            }
+            // A producer that queues a line after the check below sees the flag and wakes us
+            sleeping = true;
+            if (isEmpty()) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            sleeping = false;
+        }
+    }
+
+    private static final class Line {
+        final PrintStream stream;
+        final String message;
+        final Throwable error;
+
+        Line(PrintStream stream, String message, Throwable error) {
+            this.stream = stream;
+            this.message = message;
+            this.error = error;
+        }
+
+        void write() {
+            stream.println(message);
+            if (error != null) {
+                error.printStackTrace(stream);
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.server.log;
+
+import com.server.ServerConfig;
+
+import java.util.Locale;
+
+/**
+ * The daemon's log. Lines below the configured level ({@code mpdb.log.level}) cost one
+ * volatile read; the rest are queued on an {@link AsyncLogWriter} and written by its own
+ * thread, so the thread that logs never waits on the console. Errors and warnings go to
+ * standard error, the rest to standard output, as they did when everything was printed
+ * directly.
+ */
+public final class Log {
+
+    public enum Level { OFF, ERROR, WARN, INFO, DEBUG }
+
+    // How long flush() waits for queued lines to be written
+    private static final long FLUSH_TIMEOUT_MS = 2000;
+
+    private static final AsyncLogWriter WRITER = new AsyncLogWriter(ServerConfig.logBufferSize());
+    private static volatile Level level = parseLevel(ServerConfig.logLevel());
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "mpdb-log-flush"));
+    }
+
+    private Log() {
+    }
+
+    /** Whether lines at {@code lineLevel} are written; check it before building an expensive message. */
+    public static boolean isEnabled(Level lineLevel) {
+        return lineLevel.compareTo(level) <= 0 && lineLevel != Level.OFF;
+    }
+
+    public static Level level() {
+        return level;
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static void error(String message) {
+        error(message, null);
+    }
+
+    public static void error(String message, Throwable error) {
+        if (isEnabled(Level.ERROR)) {
+            WRITER.offer(System.err, message, error);
+        }
+    }
+
+    public static void warn(String message) {
+        if (isEnabled(Level.WARN)) {
+            WRITER.offer(System.err, message, null);
+        }
+    }
+
+    public static void info(String message) {
+        if (isEnabled(Level.INFO)) {
+            WRITER.offer(System.out, message, null);
+        }
+    }
+
+    public static void debug(String message) {
+        if (isEnabled(Level.DEBUG)) {
+            WRITER.offer(System.out, message, null);
+        }
+    }
+
+    /** Waits, for a couple of seconds at most, until the lines logged so far are written. */
+    public static void flush() {
+        WRITER.flush(FLUSH_TIMEOUT_MS);
+    }
+
+    /** Lines dropped so far because they were logged faster than they could be written. */
+    public static long dropped() {
+        return WRITER.dropped();
+    }
+
+    static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("❌ Invalid value for mpdb.log.level: " + name + ", using INFO");
+            return Level.INFO;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of non-negative values, such as latencies in nanoseconds.
+ * Each power of two is split into 16 buckets of equal width, so a value read back from
+ * it is at most 1/16 (about 6%) above the value recorded, from nanoseconds to years.
+ *
+ * Recording allocates nothing and takes no lock: a thread adds to one of several
+ * stripes of counters, picked by its id, so threads recording at once rarely update
+ * the same counters. The stripes are only added up when the histogram is read.
+ */
+public final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values up to Long.MAX_VALUE, whose highest set bit is bit 62
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) << SUB_BUCKET_BITS;
+    // Slots after the buckets in each stripe
+    private static final int SUM = BUCKETS;
+    private static final int MAX = BUCKETS + 1;
+    // A stripe takes about 8 KB, so even large machines share a few
+    private static final int MAX_DEFAULT_STRIPES = 16;
+
+    private final AtomicLongArray[] stripes;
+    private final int stripeMask;
+
+    public Histogram() {
+        this(Math.min(MAX_DEFAULT_STRIPES, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /** @param stripes how many threads may record without sharing counters, rounded up to a power of two */
+    public Histogram(int stripes) {
+        int count = Integer.highestOneBit(Math.max(1, stripes) * 2 - 1);
+        this.stripes = new AtomicLongArray[count];
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new AtomicLongArray(BUCKETS + 2);
+        }
+        this.stripeMask = count - 1;
+    }
+
+    /** Records one value; negative values are recorded as 0. */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        AtomicLongArray stripe = stripes[(int) Thread.currentThread().getId() & stripeMask];
+        stripe.incrementAndGet(bucket(value));
+        stripe.addAndGet(SUM, value);
+        long max;
+        while (value > (max = stripe.get(MAX)) && !stripe.compareAndSet(MAX, max, value)) {
+            // Another thread raised the maximum; check against the new one
+        }
+    }
+
+    /** Adds up the stripes; values recorded while it runs may or may not be included. */
+    public Summary summary() {
+        long[] counts = new long[BUCKETS];
+        long sum = 0;
+        long max = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += stripe.get(i);
+            }
+            sum += stripe.get(SUM);
+            max = Math.max(max, stripe.get(MAX));
+        }
+        return new Summary(counts, sum, max);
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    // The largest value that falls into the bucket
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        long lowest = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /** The values recorded up to one point, added up across the stripes. */
+    public static final class Summary {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Summary(long[] counts, long sum, long max) {
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long sum() {
+            return sum;
+        }
+
+        public long max() {
+            return max;
+        }
+
+        public double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * The value at {@code quantile} (0.99 for the 99th percentile): at least that
+         * share of the values recorded is at or below it. 0 if nothing was recorded.
+         */
+        public long valueAt(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.server.metrics;
+
+import com.server.log.Log;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+/**
+ * Serves the daemon's metrics as Prometheus text on {@code GET /metrics}. It listens on
+ * the loopback address only, for a scraper or an operator on the same machine; the
+ * metrics are built from the live counters on each request.
+ */
+public class MetricsServer implements Closeable {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+    private final Supplier<String> metrics;
+
+    /**
+     * @param port the port to listen on, or 0 for any free one
+     * @param metrics builds the metrics text for one scrape
+     */
+    public MetricsServer(int port, Supplier<String> metrics) throws IOException {
+        this.metrics = metrics;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::serve);
+    }
+
+    public void start() {
+        server.start();
+        Log.info("📊 Metrics served on http://localhost:" + getPort() + "/metrics");
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (RuntimeException e) {
+            Log.error("❌ Error serving metrics: " + e.getMessage(), e);
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
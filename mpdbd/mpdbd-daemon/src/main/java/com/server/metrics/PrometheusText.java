@@ -0,0 +1,61 @@
+package com.server.metrics;
+
+/**
+ * Builds metrics in the Prometheus text exposition format: a {@code # HELP} and
+ * {@code # TYPE} line for each metric, followed by its samples.
+ */
+public final class PrometheusText {
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final StringBuilder out = new StringBuilder();
+
+    /** Starts a metric; {@code type} is counter, gauge or summary. */
+    public PrometheusText metric(String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    public PrometheusText sample(String name, double value) {
+        return sample(name, null, null, value);
+    }
+
+    /** A sample with one label, or none if {@code label} is null. */
+    public PrometheusText sample(String name, String label, String labelValue, double value) {
+        out.append(name);
+        if (label != null) {
+            out.append('{').append(label).append("=\"").append(escaped(labelValue)).append("\"}");
+        }
+        out.append(' ').append(format(value)).append('\n');
+        return this;
+    }
+
+    /**
+     * The samples of a summary of nanosecond latencies, in seconds: its quantiles and its
+     * sum and count. The metric must have been started as a summary.
+     */
+    public PrometheusText latency(String name, String label, String labelValue, Histogram.Summary summary) {
+        String labels = label == null ? "" : label + "=\"" + escaped(labelValue) + "\",";
+        for (double quantile : QUANTILES) {
+            out.append(name).append('{').append(labels).append("quantile=\"").append(quantile).append("\"} ")
+                    .append(format(summary.valueAt(quantile) / NANOS_PER_SECOND)).append('\n');
+        }
+        sample(name + "_sum", label, labelValue, summary.sum() / NANOS_PER_SECOND);
+        return sample(name + "_count", label, labelValue, summary.count());
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    private static String escaped(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package com.server.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts, errors, request and response sizes and a latency {@link Histogram} for each
+ * action. Recording a request allocates nothing once its action has been seen.
+ */
+public final class RequestMetrics {
+
+    // Actions kept apart; beyond that, made-up actions share the OTHER entry with lines that are not JSON
+    private static final int MAX_ACTIONS = 64;
+    public static final String OTHER = "OTHER";
+
+    private final ConcurrentHashMap<String, ActionMetrics> actions = new ConcurrentHashMap<>();
+    private final ActionMetrics other = new ActionMetrics();
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * @param action the request's action, or null if the line could not be parsed
+     * @param nanos time from receiving the request line to building the response line
+     * @param error whether the response was an error
+     */
+    public void record(String action, long nanos, long bytesIn, long bytesOut, boolean error) {
+        ActionMetrics metrics = forAction(action);
+        metrics.requests.increment();
+        if (error) {
+            metrics.errors.increment();
+        }
+        metrics.bytesIn.add(bytesIn);
+        metrics.bytesOut.add(bytesOut);
+        metrics.latency.record(nanos);
+    }
+
+    private ActionMetrics forAction(String action) {
+        ActionMetrics metrics = action == null ? other : actions.get(action);
+        if (metrics != null) {
+            return metrics;
+        } else if (actions.size() >= MAX_ACTIONS) {
+            return other;
+        }
+        return actions.computeIfAbsent(action, a -> new ActionMetrics());
+    }
+
+    /** The actions seen so far, by name, with {@link #OTHER} if any request fell into it. */
+    public Map<String, ActionMetrics> actions() {
+        Map<String, ActionMetrics> sorted = new TreeMap<>(actions);
+        if (other.requests() > 0) {
+            sorted.put(OTHER, other);
+        }
+        return sorted;
+    }
+
+    /** Milliseconds since recording started, to turn the counts into rates. */
+    public long uptimeMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    public static final class ActionMetrics {
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final Histogram latency = new Histogram();
+
+        public long requests() {
+            return requests.sum();
+        }
+
+        public long errors() {
+            return errors.sum();
+        }
+
+        public long bytesIn() {
+            return bytesIn.sum();
+        }
+
+        public long bytesOut() {
+            return bytesOut.sum();
+        }
+
+        /** Latency in nanoseconds. */
+        public Histogram latency() {
+            return latency;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.server.query;
+
+import com.server.storage.Document;
+
+/**
+ * A QUERY filter compiled by {@link FilterCompiler}. Filters are immutable and
+ * may be shared by any number of threads.
+ */
+public interface Filter {
+
+    /** Filter of the empty query, which every document matches. */
+    Filter ALL = document -> true;
+
+    boolean matches(Document document);
+}
@@ -0,0 +1,439 @@
+package com.server.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.server.storage.Document;
+
+/**
+ * Compiles the JSON filter of a QUERY into a tree of {@link Filter} nodes, once per
+ * query instead of once per document: dotted field paths are split, comparison
+ * constants are converted to the forms they are compared in and regular expressions
+ * are compiled up front. Matching a document then allocates nothing, except when a
+ * number is compared by text against a non-number, or an object or array field is
+ * compared by its JSON text.
+ *
+ * Matching follows these rules:
+ * <ul>
+ * <li>All top-level conditions must hold; {@code $and}, {@code $or} and {@code $not}
+ *     combine nested queries.</li>
+ * <li>A dotted key such as {@code address.city} descends into nested documents and
+ *     fails if any step is not a document.</li>
+ * <li>A field condition fails if the document does not have the field, even for
+ *     {@code {"$exists": false}}.</li>
+ * <li>Two numbers are equal when they differ by less than 0.00001; other values are
+ *     equal when their JSON texts are.</li>
+ * <li>Two numbers are ordered by value; other values by their text.</li>
+ * <li>{@code $regex} must match the whole string. An invalid pattern matches nothing,
+ *     and so do {@code $in} and {@code $nin} without an array. Unknown operators are
+ *     ignored.</li>
+ * </ul>
+ */
+public final class FilterCompiler {
+
+    private static final double EPSILON = 0.00001;
+
+    private FilterCompiler() {
+    }
+
+    public static Filter compile(JSONObject query) {
+        List<Filter> conditions = new ArrayList<>();
+        for (String key : query.keySet()) {
+            Filter condition = compileCondition(key, query.get(key));
+            if (condition != null) {
+                conditions.add(condition);
+            }
+        }
+        return all(conditions);
+    }
+
+    // One entry of a query object; null if it places no restriction
+    private static Filter compileCondition(String key, Object value) {
+        switch (key) {
+            case "$and": {
+                if (!(value instanceof JSONArray)) {
+                    return null;
+                }
+                List<Filter> conditions = new ArrayList<>();
+                for (Object element : (JSONArray) value) {
+                    if (element instanceof JSONObject) {
+                        conditions.add(compile((JSONObject) element));
+                    }
+                }
+                return all(conditions);
+            }
+            case "$or": {
+                if (!(value instanceof JSONArray)) {
+                    return null;
+                }
+                List<Filter> alternatives = new ArrayList<>();
+                for (Object element : (JSONArray) value) {
+                    if (element instanceof JSONObject) {
+                        alternatives.add(compile((JSONObject) element));
+                    }
+                }
+                return new AnyOf(alternatives.toArray(new Filter[0]));
+            }
+            case "$not":
+                return value instanceof JSONObject ? new Not(compile((JSONObject) value)) : null;
+            default:
+                break;
+        }
+
+        int dot = key.indexOf('.');
+        if (dot >= 0) {
+            Filter nested = compileCondition(key.substring(dot + 1), value);
+            return new Nested(key.substring(0, dot), nested == null ? Filter.ALL : nested);
+        } else if (value instanceof JSONObject) {
+            return compileOperators(key, (JSONObject) value);
+        }
+        return new FieldTest(key, new Equal(new Operand(value)));
+    }
+
+    private static Filter compileOperators(String field, JSONObject opQuery) {
+        List<ValueTest> tests = new ArrayList<>();
+        for (String op : opQuery.keySet()) {
+            Object compareValue = opQuery.get(op);
+            switch (op) {
+                case "$eq":
+                    tests.add(new Equal(new Operand(compareValue)));
+                    break;
+                case "$ne":
+                    tests.add(new NotEqual(new Operand(compareValue)));
+                    break;
+                case "$gt":
+                    tests.add(new Greater(new Operand(compareValue), false));
+                    break;
+                case "$gte":
+                    tests.add(new Greater(new Operand(compareValue), true));
+                    break;
+                case "$lt":
+                    tests.add(new Less(new Operand(compareValue), false));
+                    break;
+                case "$lte":
+                    tests.add(new Less(new Operand(compareValue), true));
+                    break;
+                case "$in":
+                    tests.add(compareValue instanceof JSONArray ? new In(operands((JSONArray) compareValue), false) : NEVER);
+                    break;
+                case "$nin":
+                    tests.add(compareValue instanceof JSONArray ? new In(operands((JSONArray) compareValue), true) : NEVER);
+                    break;
+                case "$exists":
+                    // Only reached for documents that have the field
+                    if (!Boolean.parseBoolean(compareValue.toString())) {
+                        tests.add(NEVER);
+                    }
+                    break;
+                case "$regex":
+                    tests.add(Regex.of(compareValue.toString()));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return new FieldTest(field, tests.size() == 1 ? tests.get(0) : new AllTests(tests.toArray(new ValueTest[0])));
+    }
+
+    private static Operand[] operands(JSONArray values) {
+        Operand[] operands = new Operand[values.length()];
+        for (int i = 0; i < operands.length; i++) {
+            operands[i] = new Operand(values.get(i));
+        }
+        return operands;
+    }
+
+    private static Filter all(List<Filter> conditions) {
+        if (conditions.isEmpty()) {
+            return Filter.ALL;
+        }
+        return conditions.size() == 1 ? conditions.get(0) : new AllOf(conditions.toArray(new Filter[0]));
+    }
+
+    private static final class AllOf implements Filter {
+        private final Filter[] conditions;
+
+        AllOf(Filter[] conditions) {
+            this.conditions = conditions;
+        }
+
+        @Override
+        public boolean matches(Document document) {
+            for (Filter condition : conditions) {
+                if (!condition.matches(document)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class AnyOf implements Filter {
+        private final Filter[] alternatives;
+
+        AnyOf(Filter[] alternatives) {
+            this.alternatives = alternatives;
+        }
+
+        @Override
+        public boolean matches(Document document) {
+            for (Filter alternative : alternatives) {
+                if (alternative.matches(document)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Not implements Filter {
+        private final Filter condition;
+
+        Not(Filter condition) {
+            this.condition = condition;
+        }
+
+        @Override
+        public boolean matches(Document document) {
+            return !condition.matches(document);
+        }
+    }
+
+    // One step of a dotted path: the rest of the condition applies to a nested document
+    private static final class Nested implements Filter {
+        private final String key;
+        private final Filter condition;
+
+        Nested(String key, Filter condition) {
+            this.key = key;
+            this.condition = condition;
+        }
+
+        @Override
+        public boolean matches(Document document) {
+            Document nested = document.getDocument(key);
+            return nested != null && condition.matches(nested);
+        }
+    }
+
+    private static final class FieldTest implements Filter {
+        private final String field;
+        private final ValueTest test;
+
+        FieldTest(String field, ValueTest test) {
+            this.field = field;
+            this.test = test;
+        }
+
+        @Override
+        public boolean matches(Document document) {
+            Object value = document.get(field);
+            return value != null && test.test(value);
+        }
+    }
+
+    /** A test of the value of a field the document has. */
+    private interface ValueTest {
+        boolean test(Object value);
+    }
+
+    private static final ValueTest NEVER = value -> false;
+
+    private static final class AllTests implements ValueTest {
+        private final ValueTest[] tests;
+
+        AllTests(ValueTest[] tests) {
+            this.tests = tests;
+        }
+
+        @Override
+        public boolean test(Object value) {
+            for (ValueTest test : tests) {
+                if (!test.test(value)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Equal implements ValueTest {
+        private final Operand operand;
+
+        Equal(Operand operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        public boolean test(Object value) {
+            return operand.isEqualTo(value);
+        }
+    }
+
+    private static final class NotEqual implements ValueTest {
+        private final Operand operand;
+
+        NotEqual(Operand operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        public boolean test(Object value) {
+            return !operand.isEqualTo(value);
+        }
+    }
+
+    private static final class Greater implements ValueTest {
+        private final Operand operand;
+        private final boolean orEqual;
+
+        Greater(Operand operand, boolean orEqual) {
+            this.operand = operand;
+            this.orEqual = orEqual;
+        }
+
+        @Override
+        public boolean test(Object value) {
+            return operand.compareFrom(value) > 0 || (orEqual && operand.isEqualTo(value));
+        }
+    }
+
+    private static final class Less implements ValueTest {
+        private final Operand operand;
+        private final boolean orEqual;
+
+        Less(Operand operand, boolean orEqual) {
+            this.operand = operand;
+            this.orEqual = orEqual;
+        }
+
+        @Override
+        public boolean test(Object value) {
+            return operand.compareFrom(value) < 0 || (orEqual && operand.isEqualTo(value));
+        }
+    }
+
+    private static final class In implements ValueTest {
+        private final Operand[] operands;
+        private final boolean negated;
+
+        In(Operand[] operands, boolean negated) {
+            this.operands = operands;
+            this.negated = negated;
+        }
+
+        @Override
+        public boolean test(Object value) {
+            for (Operand operand : operands) {
+                if (operand.isEqualTo(value)) {
+                    return !negated;
+                }
+            }
+            return negated;
+        }
+    }
+
+    private static final class Regex implements ValueTest {
+        private final Pattern pattern;
+        // Matchers are reused per thread so matching does not allocate
+        private final ThreadLocal<Matcher> matchers;
+
+        private Regex(Pattern pattern) {
+            this.pattern = pattern;
+            this.matchers = ThreadLocal.withInitial(() -> pattern.matcher(""));
+        }
+
+        static ValueTest of(String regex) {
+            try {
+                return new Regex(Pattern.compile(regex));
+            } catch (PatternSyntaxException e) {
+                return NEVER;
+            }
+        }
+
+        @Override
+        public boolean test(Object value) {
+            if (!(value instanceof String)) {
+                return false;
+            }
+            Matcher matcher = matchers.get().reset((String) value);
+            boolean matches = matcher.matches();
+            matcher.reset("");
+            return matches;
+        }
+    }
+
+    /**
+     * A constant from the query, prepared for comparison with stored values (which are
+     * String, Long, Double, Boolean, JSONObject.NULL, Document or List).
+     */
+    private static final class Operand {
+        private final boolean isNumber;
+        private final double number;
+        private final String text;
+        // The number whose text equals this operand's text, if any
+        private final boolean textIsLong;
+        private final long textLong;
+        private final boolean textIsDouble;
+        private final double textDouble;
+
+        Operand(Object constant) {
+            this.isNumber = constant instanceof Number;
+            this.number = isNumber ? ((Number) constant).doubleValue() : 0;
+            this.text = constant.toString();
+
+            long parsedLong = 0;
+            boolean isLong = false;
+            try {
+                parsedLong = Long.parseLong(text);
+                isLong = Long.toString(parsedLong).equals(text);
+            } catch (NumberFormatException e) {
+                // Not the text of a Long
+            }
+            this.textIsLong = isLong;
+            this.textLong = parsedLong;
+
+            double parsedDouble = 0;
+            boolean isDouble = false;
+            try {
+                parsedDouble = Double.parseDouble(text);
+                isDouble = Double.toString(parsedDouble).equals(text);
+            } catch (NumberFormatException e) {
+                // Not the text of a Double
+            }
+            this.textIsDouble = isDouble;
+            this.textDouble = parsedDouble;
+        }
+
+        boolean isEqualTo(Object value) {
+            if (value instanceof Number) {
+                if (isNumber) {
+                    return Math.abs(((Number) value).doubleValue() - number) < EPSILON;
+                } else if (value instanceof Long) {
+                    return textIsLong && (Long) value == textLong;
+                } else if (value instanceof Double) {
+                    return textIsDouble && Double.compare((Double) value, textDouble) == 0;
+                }
+                return value.toString().equals(text);
+            } else if (value instanceof Document || value instanceof List) {
+                return Document.toJsonValue(value).toString().equals(text);
+            }
+            return value.toString().equals(text);
+        }
+
+        // Sign of comparing the stored value against this operand
+        int compareFrom(Object value) {
+            if (isNumber && value instanceof Number) {
+                double stored = ((Number) value).doubleValue();
+                return stored > number ? 1 : stored < number ? -1 : 0;
+            }
+            return Integer.signum(value.toString().compareTo(text));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.server.query;
+
+import java.util.Collection;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs QUERY's pass over the documents of a collection, or over the candidates an index
+ * found, on a dedicated fork/join pool once there are at least {@code threshold} of
+ * them. The source is split into chunks; each chunk collects its matches into its own
+ * {@link TopK}, and the chunks' collectors are merged into one.
+ *
+ * The pool has at most {@code parallelism} threads, however many QUERY requests scan
+ * at once, so large scans cannot take every core away from other connections. A request
+ * waits for its scan on its own thread, which does not count towards the cap.
+ *
+ * Collections have no order of their own. A parallel scan may therefore keep different
+ * documents than a sequential one for an unsorted page or for ties in the sort field,
+ * but it keeps as many and counts the same matches.
+ */
+public final class ParallelScan {
+
+    // Smaller chunks cost more to schedule than they save
+    private static final int MIN_CHUNK = 4096;
+
+    private final int parallelism;
+    private final int threshold;
+    private volatile ForkJoinPool pool;
+
+    public ParallelScan(int parallelism, int threshold) {
+        this.parallelism = parallelism;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Calls {@code visit} with every item of {@code source} and a collector, which it
+     * offers the item's document to if it matches, and returns the merged collector.
+     * {@code newTopK} creates an empty collector for the query.
+     */
+    public <T> TopK scan(Collection<T> source, Supplier<TopK> newTopK, BiConsumer<T, TopK> visit) {
+        int size = source.size();
+        if (parallelism <= 1 || size < Math.max(threshold, 1)) {
+            TopK top = newTopK.get();
+            for (T item : source) {
+                visit.accept(item, top);
+            }
+            return top;
+        }
+
+        long chunk = Math.max(MIN_CHUNK, size / (parallelism * 4L));
+        return pool().invoke(new Chunk<>(source.spliterator(), chunk, newTopK, visit));
+    }
+
+    private ForkJoinPool pool() {
+        ForkJoinPool current = pool;
+        if (current == null) {
+            synchronized (this) {
+                current = pool;
+                if (current == null) {
+                    AtomicInteger count = new AtomicInteger();
+                    current = new ForkJoinPool(parallelism, p -> {
+                        ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                        t.setName("mpdb-scan-" + count.getAndIncrement());
+                        return t;
+                    }, null, false);
+                    pool = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private static final class Chunk<T> extends RecursiveTask<TopK> {
+        private static final long serialVersionUID = 1L;
+
+        private final Spliterator<T> source;
+        private final long chunk;
+        private final Supplier<TopK> newTopK;
+        private final BiConsumer<T, TopK> visit;
+
+        Chunk(Spliterator<T> source, long chunk, Supplier<TopK> newTopK, BiConsumer<T, TopK> visit) {
+            this.source = source;
+            this.chunk = chunk;
+            this.newTopK = newTopK;
+            this.visit = visit;
+        }
+
+        @Override
+        protected TopK compute() {
+            Spliterator<T> split = source.estimateSize() > chunk ? source.trySplit() : null;
+            if (split != null) {
+                Chunk<T> other = new Chunk<>(split, chunk, newTopK, visit);
+                other.fork();
+                TopK top = new Chunk<>(source, chunk, newTopK, visit).compute();
+                top.merge(other.join());
+                return top;
+            }
+
+            TopK top = newTopK.get();
+            source.forEachRemaining(item -> visit.accept(item, top));
+            return top;
+        }
+    }
+}
@@ -0,0 +1,582 @@
+package com.server.query;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.server.storage.Document;
+
+/**
+ * The stages of an AGGREGATE request, compiled into a chain that documents are pushed
+ * through one at a time, so a collection is read in a single pass and only what the
+ * last stage produces is kept for the response:
+ *
+ * <ul>
+ * <li>{@code $match}: a QUERY filter, with QUERY's matching rules</li>
+ * <li>{@code $project}: a projection as READ_DOCUMENTS and QUERY take it</li>
+ * <li>{@code $group}: groups by {@code _id} in a hash table, keeping one running value
+ * per accumulator ({@code $sum}, {@code $avg}, {@code $min}, {@code $max},
+ * {@code $count}) rather than the documents of the group</li>
+ * <li>{@code $sort}: orders by one or more fields as QUERY's {@code sortBy} does; followed
+ * by a {@code $limit}, it keeps only that many documents in a bounded heap</li>
+ * <li>{@code $limit}: passes on the first documents and stops the scan once it has them</li>
+ * </ul>
+ *
+ * Field references are written {@code "$field"} and may be dotted paths into nested
+ * documents. A pipeline is compiled per request and is not thread-safe.
+ */
+public final class Pipeline {
+
+    private final Stage head;
+    private final Collect results;
+    private final JSONObject leadingMatch;
+
+    private Pipeline(Stage head, Collect results, JSONObject leadingMatch) {
+        this.head = head;
+        this.results = results;
+        this.leadingMatch = leadingMatch;
+    }
+
+    /**
+     * Compiles {@code stages}, taking the filters of {@code $match} stages from {@code plans}.
+     *
+     * @throws IllegalArgumentException if a stage is not valid, with a message saying why
+     */
+    public static Pipeline compile(JSONArray stages, PlanCache plans) {
+        List<JSONObject> specs = new ArrayList<>();
+        for (int i = 0; i < stages.length(); i++) {
+            JSONObject stage = stages.optJSONObject(i);
+            if (stage == null || stage.length() != 1) {
+                throw new IllegalArgumentException("Stage " + i + " must be an object with a single stage name.");
+            }
+            specs.add(stage);
+        }
+
+        Collect results = new Collect();
+        Stage next = results;
+        for (int i = specs.size() - 1; i >= 0; i--) {
+            String name = specs.get(i).keys().next();
+            Object spec = specs.get(i).get(name);
+            switch (name) {
+                case "$match":
+                    if (!(spec instanceof JSONObject)) {
+                        throw new IllegalArgumentException("$match must be a query object.");
+                    }
+                    next = new Match(plans.get((JSONObject) spec), next);
+                    break;
+                case "$project":
+                    if (!Projection.isValid(spec) || Projection.of(spec) == null) {
+                        throw new IllegalArgumentException("$project must be a non-empty array of fields to include, "
+                                + "or an object setting fields to 1 to include them or 0 to exclude them.");
+                    }
+                    next = new Project(Projection.of(spec), next);
+                    break;
+                case "$group":
+                    next = Group.compile(spec, next);
+                    break;
+                case "$sort":
+                    // A limit right after the sort bounds how many documents it keeps
+                    int keep = next instanceof Limit ? ((Limit) next).limit : Integer.MAX_VALUE;
+                    next = Sort.compile(spec, keep, next);
+                    break;
+                case "$limit":
+                    if (!(spec instanceof Number) || ((Number) spec).doubleValue() != ((Number) spec).intValue()
+                            || ((Number) spec).intValue() <= 0) {
+                        throw new IllegalArgumentException("$limit must be a positive integer.");
+                    }
+                    next = new Limit(((Number) spec).intValue(), next);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown stage: " + name);
+            }
+        }
+
+        JSONObject leadingMatch = specs.isEmpty() ? null : specs.get(0).optJSONObject("$match");
+        return new Pipeline(next, results, leadingMatch);
+    }
+
+    /**
+     * The query of the first stage if it is a {@code $match}, so the caller can feed the
+     * pipeline only the documents an index finds for it; null otherwise.
+     */
+    public JSONObject leadingMatch() {
+        return leadingMatch;
+    }
+
+    /**
+     * Pushes one document into the pipeline. Returns false once the pipeline needs no
+     * more documents, after which the caller should stop its scan and call {@link #finish()}.
+     */
+    public boolean accept(Document document) {
+        return head.accept(document);
+    }
+
+    /** Ends the input, running the stages that wait for all of it, and returns the output. */
+    public List<Document> finish() {
+        head.finish();
+        return results.documents;
+    }
+
+    private abstract static class Stage {
+        final Stage next;
+
+        Stage(Stage next) {
+            this.next = next;
+        }
+
+        // Returns false when no further documents are wanted
+        abstract boolean accept(Document document);
+
+        void finish() {
+            next.finish();
+        }
+    }
+
+    private static final class Collect extends Stage {
+        final List<Document> documents = new ArrayList<>();
+
+        Collect() {
+            super(null);
+        }
+
+        @Override
+        boolean accept(Document document) {
+            documents.add(document);
+            return true;
+        }
+
+        @Override
+        void finish() {
+        }
+    }
+
+    private static final class Match extends Stage {
+        private final Filter filter;
+
+        Match(Filter filter, Stage next) {
+            super(next);
+            this.filter = filter;
+        }
+
+        @Override
+        boolean accept(Document document) {
+            return !filter.matches(document) || next.accept(document);
+        }
+    }
+
+    private static final class Project extends Stage {
+        private final Projection projection;
+
+        Project(Projection projection, Stage next) {
+            super(next);
+            this.projection = projection;
+        }
+
+        @Override
+        boolean accept(Document document) {
+            return next.accept(Document.fromJson(projection.apply(document)));
+        }
+    }
+
+    private static final class Limit extends Stage {
+        final int limit;
+        private int passed;
+
+        Limit(int limit, Stage next) {
+            super(next);
+            this.limit = limit;
+        }
+
+        @Override
+        boolean accept(Document document) {
+            if (passed >= limit) {
+                return false;
+            }
+            passed++;
+            return next.accept(document) && passed < limit;
+        }
+    }
+
+    private static final class Sort extends Stage {
+        private final int keep;
+        private final Comparator<Row> order;
+        private final PriorityQueue<Row> heap;
+        private final List<Row> rows;
+        private final String[][] paths;
+        private long sequence;
+
+        private Sort(String[][] paths, Comparator<Row> byValues, int keep, Stage next) {
+            super(next);
+            this.paths = paths;
+            this.keep = keep;
+            this.order = byValues.thenComparingLong(row -> row.sequence);
+            this.heap = keep < Integer.MAX_VALUE ? new PriorityQueue<>(Math.min(keep, 1024) + 1, order.reversed()) : null;
+            this.rows = heap == null ? new ArrayList<>() : null;
+        }
+
+        static Sort compile(Object spec, int keep, Stage next) {
+            if (!(spec instanceof JSONObject) || ((JSONObject) spec).isEmpty()) {
+                throw new IllegalArgumentException("$sort must be an object setting fields to 1 or -1.");
+            }
+            JSONObject fields = (JSONObject) spec;
+            String[][] paths = new String[fields.length()][];
+            Comparator<Row> byValues = null;
+            int i = 0;
+            for (String field : fields.keySet()) {
+                Object direction = fields.get(field);
+                if (!(direction instanceof Number) || Math.abs(((Number) direction).doubleValue()) != 1) {
+                    throw new IllegalArgumentException("$sort must be an object setting fields to 1 or -1.");
+                }
+                int position = i;
+                Comparator<Row> byField = (a, b) -> compareValues(a.values[position], b.values[position]);
+                if (((Number) direction).intValue() < 0) {
+                    byField = byField.reversed();
+                }
+                byValues = byValues == null ? byField : byValues.thenComparing(byField);
+                paths[i++] = path(field);
+            }
+            return new Sort(paths, byValues, keep, next);
+        }
+
+        @Override
+        boolean accept(Document document) {
+            Object[] values = new Object[paths.length];
+            for (int i = 0; i < paths.length; i++) {
+                values[i] = resolve(document, paths[i]);
+            }
+            Row row = new Row(document, values, sequence++);
+            if (heap == null) {
+                rows.add(row);
+            } else if (heap.size() < keep) {
+                heap.add(row);
+            } else if (order.compare(row, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(row);
+            }
+            return true;
+        }
+
+        @Override
+        void finish() {
+            List<Row> sorted = heap == null ? rows : new ArrayList<>(heap);
+            sorted.sort(order);
+            for (Row row : sorted) {
+                if (!next.accept(row.document)) {
+                    break;
+                }
+            }
+            next.finish();
+        }
+
+        private static final class Row {
+            final Document document;
+            final Object[] values;
+            final long sequence;
+
+            Row(Document document, Object[] values, long sequence) {
+                this.document = document;
+                this.values = values;
+                this.sequence = sequence;
+            }
+        }
+    }
+
+    private static final class Group extends Stage {
+        private final String[] keyNames;
+        private final String[][] keyPaths;
+        private final Object constantKey;
+        private final String[] names;
+        private final Accumulator[] accumulators;
+        private final Map<Object, Object[]> groups = new LinkedHashMap<>();
+
+        private Group(String[] keyNames, String[][] keyPaths, Object constantKey,
+                      String[] names, Accumulator[] accumulators, Stage next) {
+            super(next);
+            this.keyNames = keyNames;
+            this.keyPaths = keyPaths;
+            this.constantKey = constantKey;
+            this.names = names;
+            this.accumulators = accumulators;
+        }
+
+        static Group compile(Object spec, Stage next) {
+            if (!(spec instanceof JSONObject) || !((JSONObject) spec).has("_id")) {
+                throw new IllegalArgumentException("$group must be an object with an _id.");
+            }
+            JSONObject fields = (JSONObject) spec;
+
+            // _id is a field reference, an object of field references, or a constant
+            Object id = fields.get("_id");
+            String[] keyNames = null;
+            String[][] keyPaths = null;
+            Object constantKey = null;
+            if (id instanceof JSONObject) {
+                JSONObject compound = (JSONObject) id;
+                keyNames = compound.keySet().toArray(new String[0]);
+                keyPaths = new String[keyNames.length][];
+                for (int i = 0; i < keyNames.length; i++) {
+                    keyPaths[i] = reference(compound.get(keyNames[i]), "$group _id." + keyNames[i]);
+                }
+            } else if (isReference(id)) {
+                keyPaths = new String[][] {reference(id, "$group _id")};
+            } else {
+                constantKey = Document.fromJsonValue(id);
+            }
+
+            List<String> names = new ArrayList<>();
+            List<Accumulator> accumulators = new ArrayList<>();
+            for (String name : fields.keySet()) {
+                if (!name.equals("_id")) {
+                    names.add(name);
+                    accumulators.add(Accumulator.compile(name, fields.get(name)));
+                }
+            }
+            return new Group(keyNames, keyPaths, constantKey, names.toArray(new String[0]),
+                    accumulators.toArray(new Accumulator[0]), next);
+        }
+
+        @Override
+        boolean accept(Document document) {
+            Object[] states = groups.computeIfAbsent(key(document), k -> {
+                Object[] initial = new Object[accumulators.length];
+                for (int i = 0; i < initial.length; i++) {
+                    initial[i] = accumulators[i].initial();
+                }
+                return initial;
+            });
+            for (int i = 0; i < accumulators.length; i++) {
+                states[i] = accumulators[i].add(states[i], document);
+            }
+            return true;
+        }
+
+        private Object key(Document document) {
+            if (keyPaths == null) {
+                return constantKey;
+            } else if (keyNames == null) {
+                return groupValue(resolve(document, keyPaths[0]));
+            }
+            JSONObject compound = new JSONObject();
+            for (int i = 0; i < keyNames.length; i++) {
+                compound.put(keyNames[i], groupValue(resolve(document, keyPaths[i])));
+            }
+            return Document.fromJson(compound);
+        }
+
+        @Override
+        void finish() {
+            for (Map.Entry<Object, Object[]> group : groups.entrySet()) {
+                JSONObject result = new JSONObject();
+                result.put("_id", group.getKey());
+                for (int i = 0; i < accumulators.length; i++) {
+                    result.put(names[i], accumulators[i].result(group.getValue()[i]));
+                }
+                if (!next.accept(Document.fromJson(result))) {
+                    break;
+                }
+            }
+            groups.clear();
+            next.finish();
+        }
+
+        // Missing fields group with null, and numbers with the same value group together
+        private static Object groupValue(Object value) {
+            if (value == null) {
+                return JSONObject.NULL;
+            } else if (value instanceof Double) {
+                double number = (Double) value;
+                if (number == Math.rint(number) && Math.abs(number) < 0x1p63) {
+                    return (long) number;
+                }
+            }
+            return value;
+        }
+    }
+
+    /**
+     * A running value of a {@code $group}. Each group holds one state per accumulator,
+     * which {@code add} updates or replaces for every document of the group.
+     */
+    private abstract static class Accumulator {
+
+        static Accumulator compile(String name, Object spec) {
+            if (!(spec instanceof JSONObject) || ((JSONObject) spec).length() != 1) {
+                throw new IllegalArgumentException("$group field " + name + " must be an object with a single accumulator.");
+            }
+            JSONObject accumulator = (JSONObject) spec;
+            String operator = accumulator.keys().next();
+            Object argument = accumulator.get(operator);
+            String where = "$group field " + name;
+            switch (operator) {
+                case "$count":
+                    return new Sum(null, 1L);
+                case "$sum":
+                    if (argument instanceof Number) {
+                        return new Sum(null, Document.fromJsonValue(argument));
+                    }
+                    return new Sum(reference(argument, where), null);
+                case "$avg":
+                    return new Avg(reference(argument, where));
+                case "$min":
+                    return new Extreme(reference(argument, where), -1);
+                case "$max":
+                    return new Extreme(reference(argument, where), 1);
+                default:
+                    throw new IllegalArgumentException("Unknown accumulator " + operator + " in " + where + ".");
+            }
+        }
+
+        abstract Object initial();
+
+        abstract Object add(Object state, Document document);
+
+        abstract Object result(Object state);
+    }
+
+    // Sum of the numbers in a field, or of a constant per document; longs stay exact until they overflow
+    private static final class Sum extends Accumulator {
+        private final String[] path;
+        private final Object constant;
+
+        Sum(String[] path, Object constant) {
+            this.path = path;
+            this.constant = constant;
+        }
+
+        @Override
+        Object initial() {
+            return 0L;
+        }
+
+        @Override
+        Object add(Object state, Document document) {
+            Object value = path == null ? constant : resolve(document, path);
+            if (!(value instanceof Number)) {
+                return state;
+            } else if (state instanceof Long && value instanceof Long) {
+                long sum = (Long) state + (Long) value;
+                // Overflow if both operands have the sign the sum lacks
+                if ((((Long) state ^ sum) & ((Long) value ^ sum)) >= 0) {
+                    return sum;
+                }
+            }
+            return ((Number) state).doubleValue() + ((Number) value).doubleValue();
+        }
+
+        @Override
+        Object result(Object state) {
+            return state;
+        }
+    }
+
+    private static final class Avg extends Accumulator {
+        private final String[] path;
+
+        Avg(String[] path) {
+            this.path = path;
+        }
+
+        @Override
+        Object initial() {
+            return new double[2];
+        }
+
+        @Override
+        Object add(Object state, Document document) {
+            Object value = resolve(document, path);
+            if (value instanceof Number) {
+                double[] sumAndCount = (double[]) state;
+                sumAndCount[0] += ((Number) value).doubleValue();
+                sumAndCount[1]++;
+            }
+            return state;
+        }
+
+        @Override
+        Object result(Object state) {
+            double[] sumAndCount = (double[]) state;
+            return sumAndCount[1] == 0 ? JSONObject.NULL : (Object) (sumAndCount[0] / sumAndCount[1]);
+        }
+    }
+
+    // Smallest or largest value of a field in sort order; missing and null values are skipped
+    private static final class Extreme extends Accumulator {
+        private final String[] path;
+        private final int sign;
+
+        Extreme(String[] path, int sign) {
+            this.path = path;
+            this.sign = sign;
+        }
+
+        @Override
+        Object initial() {
+            return null;
+        }
+
+        @Override
+        Object add(Object state, Document document) {
+            Object value = resolve(document, path);
+            if (value == null || value == JSONObject.NULL) {
+                return state;
+            }
+            return state == null || sign * compareValues(value, state) > 0 ? value : state;
+        }
+
+        @Override
+        Object result(Object state) {
+            return state == null ? JSONObject.NULL : state;
+        }
+    }
+
+    // Values in QUERY's sort order: missing first, two numbers by value, anything else by text
+    private static int compareValues(Object a, Object b) {
+        if (a == null && b == null) return 0;
+        if (a == null) return -1;
+        if (b == null) return 1;
+
+        if (a instanceof Number && b instanceof Number) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        return a.toString().compareTo(b.toString());
+    }
+
+    // The value at a dotted path, or null if a part of it is missing or not a document
+    private static Object resolve(Document document, String[] path) {
+        Object value = document;
+        for (String part : path) {
+            if (!(value instanceof Document)) {
+                return null;
+            }
+            value = ((Document) value).get(part);
+        }
+        return value;
+    }
+
+    private static boolean isReference(Object value) {
+        return value instanceof String && ((String) value).startsWith("$");
+    }
+
+    private static String[] reference(Object value, String where) {
+        if (!isReference(value) || ((String) value).length() == 1) {
+            throw new IllegalArgumentException(where + " must be a field reference such as \"$field\".");
+        }
+        return path(((String) value).substring(1));
+    }
+
+    private static String[] path(String field) {
+        String[] path = field.split("\\.", -1);
+        for (String part : path) {
+            if (part.isEmpty()) {
+                throw new IllegalArgumentException("Invalid field: " + field);
+            }
+        }
+        return path;
+    }
+}
@@ -0,0 +1,104 @@
+package com.server.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Least-recently-used cache of compiled filters, so that a query repeated by a client
+ * is compiled once. Queries are keyed by a normalized text in which object keys are
+ * sorted, so the same filter sent with its keys in another order shares one entry.
+ * Numbers keep their exact text, because QUERY compares them with strings by it.
+ */
+public final class PlanCache {
+
+    private final int capacity;
+    private final LinkedHashMap<String, Filter> plans;
+    private long hits;
+    private long misses;
+
+    public PlanCache(int capacity) {
+        this.capacity = capacity;
+        this.plans = new LinkedHashMap<String, Filter>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Filter> eldest) {
+                return size() > PlanCache.this.capacity;
+            }
+        };
+    }
+
+    /** The compiled filter of {@code query}, compiling it on first use. */
+    public Filter get(JSONObject query) {
+        if (query.isEmpty()) {
+            return Filter.ALL;
+        } else if (capacity <= 0) {
+            return FilterCompiler.compile(query);
+        }
+
+        StringBuilder key = new StringBuilder();
+        normalize(query, key);
+        String shape = key.toString();
+
+        synchronized (this) {
+            Filter filter = plans.get(shape);
+            if (filter != null) {
+                hits++;
+                return filter;
+            }
+            misses++;
+        }
+        // Compiled outside the lock; a concurrent miss on the same query compiles it twice
+        Filter filter = FilterCompiler.compile(query);
+        synchronized (this) {
+            plans.put(shape, filter);
+        }
+        return filter;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return plans.size();
+    }
+
+    // Also used by ResultCache, whose keys contain the query
+    static void normalize(Object value, StringBuilder out) {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            List<String> keys = new ArrayList<>(object.keySet());
+            Collections.sort(keys);
+            out.append('{');
+            for (int i = 0; i < keys.size(); i++) {
+                if (i > 0) out.append(',');
+                out.append(JSONObject.quote(keys.get(i))).append(':');
+                normalize(object.get(keys.get(i)), out);
+            }
+            out.append('}');
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            out.append('[');
+            for (int i = 0; i < array.length(); i++) {
+                if (i > 0) out.append(',');
+                normalize(array.get(i), out);
+            }
+            out.append(']');
+        } else if (value instanceof String) {
+            out.append(JSONObject.quote((String) value));
+        } else {
+            out.append(value);
+        }
+    }
+}
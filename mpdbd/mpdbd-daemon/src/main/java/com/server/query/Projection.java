@@ -0,0 +1,178 @@
+package com.server.query;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.server.storage.Document;
+
+/**
+ * The fields of each document a read returns, compiled from the request's
+ * {@code projection}: either an array of fields to include, or an object mapping fields
+ * to {@code 1}/{@code true} to include them or {@code 0}/{@code false} to exclude them,
+ * but not both. Fields may be dotted paths into nested documents; a path through an
+ * array applies to each document in it.
+ *
+ * Only the fields a projection keeps are converted to JSON.
+ */
+public final class Projection {
+
+    private final boolean include;
+    private final Node root;
+
+    private Projection(boolean include, Node root) {
+        this.include = include;
+        this.root = root;
+    }
+
+    /** Whether {@code spec} is absent or a valid projection. */
+    public static boolean isValid(Object spec) {
+        if (spec == null) {
+            return true;
+        }
+        try {
+            of(spec);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The projection {@code spec} describes, or null if it is absent or empty and whole
+     * documents are returned.
+     *
+     * @throws IllegalArgumentException if {@code spec} is not a valid projection
+     */
+    public static Projection of(Object spec) {
+        if (spec == null) {
+            return null;
+        }
+
+        Node root = new Node();
+        Boolean include = null;
+        if (spec instanceof JSONArray) {
+            JSONArray fields = (JSONArray) spec;
+            for (int i = 0; i < fields.length(); i++) {
+                root.add(path(fields.opt(i)));
+            }
+            include = true;
+        } else if (spec instanceof JSONObject) {
+            JSONObject fields = (JSONObject) spec;
+            for (String field : fields.keySet()) {
+                boolean included = isIncluded(fields.get(field));
+                if (include != null && include != included) {
+                    throw new IllegalArgumentException("A projection cannot both include and exclude fields");
+                }
+                include = included;
+                root.add(path(field));
+            }
+        } else {
+            throw new IllegalArgumentException("A projection must be an array or an object");
+        }
+        return root.children.isEmpty() ? null : new Projection(include, root);
+    }
+
+    /** The projected fields of {@code document}. */
+    public JSONObject apply(Document document) {
+        return include ? include(root, document) : exclude(root, document);
+    }
+
+    private static JSONObject include(Node node, Document document) {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, Node> child : node.children.entrySet()) {
+            Object value = document.get(child.getKey());
+            if (value == null) {
+                continue;
+            }
+            Node field = child.getValue();
+            if (field.whole) {
+                json.put(child.getKey(), Document.toJsonValue(value));
+            } else if (value instanceof Document) {
+                json.put(child.getKey(), include(field, (Document) value));
+            } else if (value instanceof List) {
+                json.put(child.getKey(), eachDocument(field, (List<?>) value, true));
+            }
+        }
+        return json;
+    }
+
+    private static JSONObject exclude(Node node, Document document) {
+        JSONObject json = new JSONObject();
+        for (int i = 0; i < document.size(); i++) {
+            String key = document.key(i);
+            Object value = document.value(i);
+            Node field = node.children.get(key);
+            if (field == null) {
+                json.put(key, Document.toJsonValue(value));
+            } else if (value instanceof Document && !field.whole) {
+                json.put(key, exclude(field, (Document) value));
+            } else if (value instanceof List && !field.whole) {
+                json.put(key, eachDocument(field, (List<?>) value, false));
+            } else if (!field.whole) {
+                json.put(key, Document.toJsonValue(value));
+            }
+        }
+        return json;
+    }
+
+    // A path into an array applies to its documents; an inclusion drops its other values
+    private static JSONArray eachDocument(Node field, List<?> values, boolean include) {
+        JSONArray array = new JSONArray();
+        for (Object element : values) {
+            if (element instanceof Document) {
+                array.put(include ? include(field, (Document) element) : exclude(field, (Document) element));
+            } else if (!include) {
+                array.put(Document.toJsonValue(element));
+            }
+        }
+        return array;
+    }
+
+    private static boolean isIncluded(Object flag) {
+        if (flag instanceof Boolean) {
+            return (Boolean) flag;
+        } else if (flag instanceof Number) {
+            double value = ((Number) flag).doubleValue();
+            if (value == 1 || value == 0) {
+                return value == 1;
+            }
+        }
+        throw new IllegalArgumentException("Projected fields must be set to 1 or 0");
+    }
+
+    private static String[] path(Object field) {
+        if (!(field instanceof String) || ((String) field).isEmpty()) {
+            throw new IllegalArgumentException("Projected fields must be non-empty strings");
+        }
+        String[] path = ((String) field).split("\\.", -1);
+        for (String part : path) {
+            if (part.isEmpty()) {
+                throw new IllegalArgumentException("Invalid projected field: " + field);
+            }
+        }
+        return path;
+    }
+
+    /** A field of the projection; either the whole field or some of its nested fields. */
+    private static final class Node {
+        boolean whole;
+        final Map<String, Node> children = new LinkedHashMap<>();
+
+        // A path that is a prefix of another takes in the longer one
+        void add(String[] path) {
+            Node node = this;
+            for (String part : path) {
+                if (node.whole) {
+                    return;
+                }
+                node = node.children.computeIfAbsent(part, k -> new Node());
+            }
+            node.whole = true;
+            node.children.clear();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.server.query;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+import com.server.storage.Document;
+import com.server.storage.DocumentCollection;
+
+/**
+ * Least-recently-used cache of QUERY results: the page of documents and the total number
+ * of matches, keyed by collection, normalized query, sort and page. An entry records the
+ * {@link DocumentCollection#version() version} of the collection it was computed from and
+ * is only returned while that version is current, so any create, update or delete in the
+ * collection invalidates its entries without having to find them.
+ *
+ * Entries hold the immutable documents themselves; a response is still built from them
+ * per request, with its own projection and batching.
+ */
+public final class ResultCache {
+
+    private final int capacity;
+    private final int maxDocuments;
+    private final LinkedHashMap<String, CachedResult> entries;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param capacity     results kept; 0 disables the cache
+     * @param maxDocuments largest page that is cached, so huge results do not crowd out the rest
+     */
+    public ResultCache(int capacity, int maxDocuments) {
+        this.capacity = capacity;
+        this.maxDocuments = maxDocuments;
+        this.entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                if (size() > ResultCache.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /** The key of a QUERY's result; the projection and batch size do not change the result. */
+    public static String key(String dbName, String collectionName, JSONObject query,
+                             String sortBy, boolean ascending, int skip, int limit) {
+        StringBuilder key = new StringBuilder();
+        key.append(JSONObject.quote(dbName)).append('/').append(JSONObject.quote(collectionName)).append('/');
+        PlanCache.normalize(query, key);
+        key.append('/').append(JSONObject.quote(sortBy)).append(ascending ? "/asc/" : "/desc/")
+                .append(skip).append('/').append(limit);
+        return key.toString();
+    }
+
+    /** The cached result for {@code key} if it is current for {@code collection}, or null. */
+    public Result get(DocumentCollection collection, String key) {
+        if (capacity <= 0) {
+            return null;
+        }
+        long version = collection.version();
+        synchronized (this) {
+            CachedResult entry = entries.get(key);
+            if (entry != null && entry.collection.get() == collection && entry.version == version) {
+                hits++;
+                return entry.result;
+            }
+            misses++;
+            return null;
+        }
+    }
+
+    /**
+     * Caches {@code result}, computed from {@code collection} after reading
+     * {@code version} from it.
+     */
+    public void put(DocumentCollection collection, long version, String key, Result result) {
+        if (capacity <= 0 || result.page().size() > maxDocuments || collection.version() != version) {
+            return;
+        }
+        synchronized (this) {
+            entries.put(key, new CachedResult(collection, version, result));
+        }
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** The page and match count of a QUERY, before projection. */
+    public static final class Result {
+        private final List<Map.Entry<String, Document>> page;
+        private final int totalMatches;
+
+        public Result(List<Map.Entry<String, Document>> page, int totalMatches) {
+            this.page = List.copyOf(page);
+            this.totalMatches = totalMatches;
+        }
+
+        public List<Map.Entry<String, Document>> page() {
+            return page;
+        }
+
+        public int totalMatches() {
+            return totalMatches;
+        }
+    }
+
+    // A dropped collection is not kept alive by its entries, and a new one with the same
+    // name does not match them
+    private static final class CachedResult {
+        final WeakReference<DocumentCollection> collection;
+        final long version;
+        final Result result;
+
+        CachedResult(DocumentCollection collection, long version, Result result) {
+            this.collection = new WeakReference<>(collection);
+            this.version = version;
+            this.result = result;
+        }
+    }
+}
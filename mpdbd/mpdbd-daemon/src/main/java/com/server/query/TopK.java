@@ -0,0 +1,139 @@
+package com.server.query;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.server.storage.Document;
+
+/**
+ * Keeps the first {@code k} of the documents offered to it, in QUERY's {@code sortBy}
+ * order, without holding on to the others: a bounded heap whose root is the worst
+ * document kept, so memory is O(k) and time O(n log k). Each document's sort value is
+ * read once, when it is offered. Without a sort field the first {@code k} documents
+ * offered are kept in the order they came.
+ *
+ * Documents are ordered as QUERY sorts them: those without the field first when
+ * ascending and last when descending, two numbers by value, anything else by text.
+ * Ties keep the order in which the documents were offered.
+ *
+ * Not thread-safe; each QUERY uses its own.
+ */
+public final class TopK {
+
+    private final String sortField;
+    private final int k;
+    private final Comparator<Row> order;
+    // Unbounded sorts are cheaper as one sort of everything at the end
+    private final PriorityQueue<Row> heap;
+    private final List<Row> rows;
+    private long offered;
+
+    public TopK(String sortField, boolean ascending, int k) {
+        this.sortField = sortField;
+        this.k = Math.max(k, 0);
+        Comparator<Row> byValue = ascending ? TopK::compareValues : (a, b) -> compareValues(b, a);
+        this.order = byValue.thenComparingLong(row -> row.sequence);
+        boolean bounded = !sortField.isEmpty() && this.k < Integer.MAX_VALUE;
+        this.heap = bounded ? new PriorityQueue<>(Math.min(this.k, 1024) + 1, order.reversed()) : null;
+        this.rows = bounded ? null : new ArrayList<>();
+    }
+
+    public void offer(String id, Document document) {
+        if (heap == null && sortField.isEmpty() && rows.size() >= k) {
+            offered++;
+            return;
+        }
+        keep(new Row(id, document, sortField.isEmpty() ? null : document.get(sortField), offered++));
+    }
+
+    /**
+     * Adds the documents kept by {@code later}, a collector for the same query whose
+     * documents count as offered after all of this one's, as if they had been offered
+     * here. Used to combine the results of a scan split into parts.
+     */
+    public void merge(TopK later) {
+        long base = offered;
+        for (Row row : later.heap != null ? later.heap : later.rows) {
+            keep(new Row(row.getKey(), row.getValue(), row.value, base + row.sequence));
+        }
+        offered += later.offered;
+    }
+
+    private void keep(Row row) {
+        if (heap == null) {
+            if (!sortField.isEmpty() || rows.size() < k) {
+                rows.add(row);
+            }
+        } else if (heap.size() < k) {
+            heap.add(row);
+        } else if (k > 0 && order.compare(row, heap.peek()) < 0) {
+            heap.poll();
+            heap.add(row);
+        }
+    }
+
+    /** Number of documents offered, which is QUERY's {@code totalMatches}. */
+    public int offered() {
+        return (int) Math.min(offered, Integer.MAX_VALUE);
+    }
+
+    /** The kept documents in order, starting at position {@code skip}. */
+    public List<Map.Entry<String, Document>> page(int skip) {
+        List<Row> sorted;
+        if (heap != null) {
+            sorted = new ArrayList<>(heap);
+            sorted.sort(order);
+        } else {
+            sorted = rows;
+            if (!sortField.isEmpty()) {
+                sorted.sort(order);
+            }
+        }
+
+        int end = Math.min(sorted.size(), k);
+        int start = Math.max(skip, 0);
+        return start < end ? Collections.unmodifiableList(sorted.subList(start, end)) : Collections.emptyList();
+    }
+
+    private static int compareValues(Row a, Row b) {
+        if (a.value == null && b.value == null) return 0;
+        if (a.value == null) return -1;
+        if (b.value == null) return 1;
+
+        if (a.isNumber && b.isNumber) {
+            return Double.compare(a.number, b.number);
+        }
+        return a.text().compareTo(b.text());
+    }
+
+    private static final class Row extends AbstractMap.SimpleImmutableEntry<String, Document> {
+        private static final long serialVersionUID = 1L;
+
+        final Object value;
+        final boolean isNumber;
+        final double number;
+        final long sequence;
+        private String text;
+
+        Row(String id, Document document, Object value, long sequence) {
+            super(id, document);
+            this.value = value;
+            this.isNumber = value instanceof Number;
+            this.number = isNumber ? ((Number) value).doubleValue() : 0;
+            this.sequence = sequence;
+        }
+
+        // Numbers are only compared by text against other values, so it is made on demand
+        String text() {
+            if (text == null) {
+                text = value.toString();
+            }
+            return text;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.server.storage;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import com.server.log.Log;
+
+/**
+ * Drops, in the background, the documents of collections that are saved in their
+ * segment files and have been neither used nor changed for a while, so memory goes to
+ * the collections in use. An unloaded collection is read back in when next used.
+ */
+public class CollectionUnloader implements Closeable {
+
+    private final SegmentStore segments;
+    private final Map<String, ConcurrentHashMap<String, DocumentCollection>> databases;
+    private final long idleMs;
+    private ScheduledExecutorService scheduler;
+
+    private volatile long unloaded = 0;
+
+    /**
+     * @param idleMs unload a collection once it has not been used for this long
+     */
+    public CollectionUnloader(SegmentStore segments, Map<String, ConcurrentHashMap<String, DocumentCollection>> databases,
+                              long idleMs) {
+        this.segments = segments;
+        this.databases = databases;
+        this.idleMs = idleMs;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "mpdb-unloader");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        // A collection goes at most two periods after it has been idle for idleMs
+        long periodMs = Math.max(100, Math.min(idleMs / 2, 10_000));
+        scheduler.scheduleWithFixedDelay(this::unloadIdle, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** Unloads the collections idle for long enough now; returns how many were unloaded. */
+    public synchronized int unloadIdle() {
+        try {
+            int count = segments.unloadIdle(databases, idleMs);
+            if (count > 0) {
+                unloaded += count;
+                Log.debug("💤 Unloaded " + count + " idle collections");
+            }
+            return count;
+        } catch (RuntimeException e) {
+            Log.error("❌ Unloading idle collections failed: " + e.getMessage(), e);
+            return 0;
+        }
+    }
+
+    /** Collections unloaded so far. */
+    public long getUnloaded() {
+        return unloaded;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
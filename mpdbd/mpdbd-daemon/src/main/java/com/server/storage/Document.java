@@ -0,0 +1,348 @@
+package com.server.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Immutable, parsed form of a stored document. It is built once when a document is
+ * inserted or loaded, so reads, predicates and sorts work on typed values without
+ * any JSON parsing; JSON is produced again only when a document goes on the wire.
+ *
+ * Field values are {@link String}, {@link Long}, {@link Double}, {@link Boolean},
+ * {@link JSONObject#NULL}, a nested {@code Document} or an immutable {@link List}
+ * of such values. Field names are kept sorted, and documents with the same set of
+ * fields share a single key array.
+ *
+ * A stored document also carries its version: 1 when it is created, and one more for
+ * every update. The version is not part of the content; two documents with the same
+ * fields are equal whatever their versions.
+ *
+ * Inside a {@link DocumentCollection} a document is also stamped with the commit
+ * sequence number of the write that stored it and may link to the version it replaced,
+ * so that an open {@link Snapshot} can still read that one. A delete may leave a
+ * tombstone, a document without fields, in the chain. None of this leaves the
+ * collection: readers only ever get the documents themselves.
+ */
+public final class Document {
+
+    public static final Document EMPTY = new Document(new String[0], new Object[0]);
+
+    // Key arrays shared by every document with the same fields
+    private static final int MAX_SHAPES = 10_000;
+    private static final ConcurrentHashMap<Shape, String[]> SHAPES = new ConcurrentHashMap<>();
+
+    // Bounded cache that lets equal short strings (field names, categories, statuses...)
+    // share one instance. Races only cost a missed dedup, never a wrong value.
+    private static final int STRING_CACHE_SIZE = 4096;
+    private static final int MAX_CACHED_LENGTH = 32;
+    private static final String[] STRING_CACHE = new String[STRING_CACHE_SIZE];
+
+    private final String[] keys;
+    private final Object[] values;
+    private final long version;
+    // Commit sequence number of the write that stored this version, 0 until it is stored
+    private final long sequence;
+    // The version this one replaced, kept while an open snapshot may read it
+    private volatile Document previous;
+
+    private Document(String[] keys, Object[] values) {
+        this(keys, values, 1);
+    }
+
+    private Document(String[] keys, Object[] values, long version) {
+        this(keys, values, version, 0, null);
+    }
+
+    private Document(String[] keys, Object[] values, long version, long sequence, Document previous) {
+        this.keys = keys;
+        this.values = values;
+        this.version = version;
+        this.sequence = sequence;
+        this.previous = previous;
+    }
+
+    /** Converts a parsed JSON object; nested objects and arrays are converted too. */
+    public static Document fromJson(JSONObject json) {
+        if (json.isEmpty()) {
+            return EMPTY;
+        }
+
+        String[] names = json.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+        Object[] converted = new Object[names.length];
+        for (int i = 0; i < names.length; i++) {
+            converted[i] = fromJsonValue(json.opt(names[i]));
+        }
+        return new Document(shape(names), converted);
+    }
+
+    public static Document parse(String json) {
+        return fromJson(new JSONObject(json));
+    }
+
+    /** Converts a value as returned by org.json into the stored representation. */
+    public static Object fromJsonValue(Object value) {
+        if (value == null || value == JSONObject.NULL) {
+            return JSONObject.NULL;
+        } else if (value instanceof String) {
+            return dedup((String) value);
+        } else if (value instanceof Long || value instanceof Double || value instanceof Boolean) {
+            return value;
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return Long.valueOf(((Number) value).longValue());
+        } else if (value instanceof BigInteger) {
+            BigInteger big = (BigInteger) value;
+            return big.bitLength() < 64 ? (Object) big.longValue() : (Object) big.doubleValue();
+        } else if (value instanceof BigDecimal || value instanceof Number) {
+            return Double.valueOf(((Number) value).doubleValue());
+        } else if (value instanceof JSONObject) {
+            return fromJson((JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            Object[] elements = new Object[array.length()];
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = fromJsonValue(array.opt(i));
+            }
+            return List.of(elements);
+        } else if (value instanceof Document || value instanceof List) {
+            return value;
+        }
+        return dedup(value.toString());
+    }
+
+    private static String[] shape(String[] names) {
+        Shape key = new Shape(names);
+        String[] shared = SHAPES.get(key);
+        if (shared != null) {
+            return shared;
+        }
+
+        for (int i = 0; i < names.length; i++) {
+            names[i] = dedup(names[i]);
+        }
+        if (SHAPES.size() >= MAX_SHAPES) {
+            return names;
+        }
+        shared = SHAPES.putIfAbsent(key, names);
+        return shared != null ? shared : names;
+    }
+
+    private static String dedup(String value) {
+        if (value.length() > MAX_CACHED_LENGTH) {
+            return value;
+        }
+        int slot = value.hashCode() & (STRING_CACHE_SIZE - 1);
+        String cached = STRING_CACHE[slot];
+        if (value.equals(cached)) {
+            return cached;
+        }
+        STRING_CACHE[slot] = value;
+        return value;
+    }
+
+    private static final class Shape {
+        private final String[] names;
+        private final int hash;
+
+        Shape(String[] names) {
+            this.names = names;
+            this.hash = Arrays.hashCode(names);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Shape && Arrays.equals(names, ((Shape) o).names);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private int indexOf(String key) {
+        return Arrays.binarySearch(keys, key);
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    public boolean has(String key) {
+        return indexOf(key) >= 0;
+    }
+
+    /** The value of a top-level field, or null if the field is absent. */
+    public Object get(String key) {
+        int i = indexOf(key);
+        return i >= 0 ? values[i] : null;
+    }
+
+    /** The nested document in a top-level field, or null if the field is absent or not an object. */
+    public Document getDocument(String key) {
+        Object value = get(key);
+        return value instanceof Document ? (Document) value : null;
+    }
+
+    public String key(int index) {
+        return keys[index];
+    }
+
+    public Object value(int index) {
+        return values[index];
+    }
+
+    public List<String> keys() {
+        return Collections.unmodifiableList(Arrays.asList(keys));
+    }
+
+    public long version() {
+        return version;
+    }
+
+    /** This document at another version, as when it is restored from the write-ahead log. */
+    public Document withVersion(long version) {
+        return version == this.version ? this : new Document(keys, values, version);
+    }
+
+    /** A copy of this document with the given top-level fields set, at the next version. */
+    public Document with(JSONObject updates) {
+        if (updates.isEmpty()) {
+            return this;
+        }
+
+        TreeMap<String, Object> merged = new TreeMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            merged.put(keys[i], values[i]);
+        }
+        for (String key : updates.keySet()) {
+            merged.put(key, fromJsonValue(updates.opt(key)));
+        }
+
+        String[] names = merged.keySet().toArray(new String[0]);
+        return new Document(shape(names), merged.values().toArray(), version + 1);
+    }
+
+    // This document as stored by the write with the given sequence number, replacing
+    // previous; always a new instance, as the caller may still use this one elsewhere
+    Document committed(long sequence, Document previous) {
+        return new Document(keys, values, version, sequence, previous);
+    }
+
+    // The tombstone a delete leaves while snapshots may still read the deleted version
+    static Document deleted(long sequence, Document previous) {
+        return new Document(null, null, 0, sequence, previous);
+    }
+
+    boolean isDeleted() {
+        return keys == null;
+    }
+
+    long sequence() {
+        return sequence;
+    }
+
+    Document previous() {
+        return previous;
+    }
+
+    // Cuts the chain after this version once no open snapshot reads older ones
+    void forgetPrevious() {
+        previous = null;
+    }
+
+    // The version of the chain starting here that a snapshot at the given sequence
+    // number reads, or null if the document did not exist then
+    Document visibleAt(long sequence) {
+        Document version = this;
+        while (version != null && version.sequence > sequence) {
+            version = version.previous;
+        }
+        return version == null || version.isDeleted() ? null : version;
+    }
+
+    public JSONObject toJSONObject() {
+        JSONObject json = new JSONObject();
+        for (int i = 0; i < keys.length; i++) {
+            json.put(keys[i], toJsonValue(values[i]));
+        }
+        return json;
+    }
+
+    /** Converts a stored value back into what org.json expects. */
+    public static Object toJsonValue(Object value) {
+        if (value instanceof Document) {
+            return ((Document) value).toJSONObject();
+        } else if (value instanceof List) {
+            JSONArray array = new JSONArray();
+            for (Object element : (List<?>) value) {
+                array.put(toJsonValue(element));
+            }
+            return array;
+        }
+        return value;
+    }
+
+    /** Writes this document as compact JSON. */
+    public void writeJson(Appendable out) throws IOException {
+        out.append('{');
+        for (int i = 0; i < keys.length; i++) {
+            if (i > 0) out.append(',');
+            out.append(JSONObject.quote(keys[i])).append(':');
+            writeJsonValue(out, values[i]);
+        }
+        out.append('}');
+    }
+
+    private static void writeJsonValue(Appendable out, Object value) throws IOException {
+        if (value instanceof String) {
+            out.append(JSONObject.quote((String) value));
+        } else if (value instanceof Double) {
+            out.append(JSONObject.numberToString((Double) value));
+        } else if (value instanceof Document) {
+            ((Document) value).writeJson(out);
+        } else if (value instanceof List) {
+            out.append('[');
+            boolean first = true;
+            for (Object element : (List<?>) value) {
+                if (!first) out.append(',');
+                first = false;
+                writeJsonValue(out, element);
+            }
+            out.append(']');
+        } else {
+            out.append(String.valueOf(value));
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            writeJson(sb);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Document)) return false;
+        Document other = (Document) o;
+        return Arrays.equals(keys, other.keys) && Arrays.equals(values, other.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(keys) + Arrays.hashCode(values);
+    }
+}
@@ -0,0 +1,688 @@
+package com.server.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * The documents of one collection, keyed by id, together with the collection's
+ * secondary indexes.
+ *
+ * Every write through the map methods updates the indexes inside the same atomic
+ * per-key operation, so a document and its index entries never disagree for long
+ * enough to lose an entry, however many threads write the same id. The key, value and
+ * entry views are read-only; setting a value through an entry bypasses the indexes and
+ * must not be used.
+ *
+ * Each write that changes a document also bumps the collection's {@link #version()},
+ * which lets readers tell whether a result they computed earlier is still current.
+ *
+ * The map methods read the latest documents. {@link #get(String, Snapshot)} and
+ * {@link #entrySet(Snapshot)} read them as of a {@link Snapshot} instead: while
+ * snapshots are open, a write links the version it stores to the one it replaces and
+ * a delete leaves a tombstone, which the map methods skip. {@link #collectVersions(long)}
+ * drops them once no open snapshot can read them.
+ *
+ * A collection saved in a segment file may be kept out of memory: it is read in by
+ * whichever method first needs its documents, and {@link #unloadIfIdle} lets it go
+ * again once it has been neither used nor changed for a while. Its size and index
+ * definitions stay known meanwhile.
+ */
+public class DocumentCollection extends AbstractMap<String, Document> implements ConcurrentMap<String, Document> {
+
+    /** Reads the documents of a saved collection, handing each to {@code documents}, possibly from several threads. */
+    public interface Loader {
+        void load(BiConsumer<String, Document> documents) throws IOException;
+    }
+
+    // What is held in memory while the collection is loaded; replaced as a whole when
+    // it is unloaded and loaded again
+    private static final class Contents {
+        // The latest version of each document, or the tombstone of a deleted one
+        final ConcurrentHashMap<String, Document> documents = new ConcurrentHashMap<>();
+        // Ids whose stored version links to older ones or is a tombstone
+        final Set<String> versioned = ConcurrentHashMap.newKeySet();
+        final AtomicLong tombstones = new AtomicLong();
+        // Replaced as a whole when an index is created or dropped, in creation order
+        volatile Map<String, FieldIndex> indexes = Collections.emptyMap();
+        // Writes running on these contents, which cannot be unloaded until they finish
+        final AtomicInteger writers = new AtomicInteger();
+        // Set once the contents are being unloaded; writes then go to the next ones
+        volatile boolean retired;
+    }
+
+    // Null while the collection is unloaded
+    private volatile Contents contents;
+    private final Object loadLock = new Object();
+    private final Set<Map.Entry<String, Document>> entries = new Entries(Long.MAX_VALUE);
+
+    private final Object indexLock = new Object();
+    private final AtomicLong version = new AtomicLong();
+    private volatile long indexChanges;
+
+    // How to read the collection back from where it was last saved, null until it was
+    private volatile Loader loader;
+    // The value of changes() the saved copy reflects, -1 if there is none
+    private volatile long savedChanges = -1;
+    // Size and index definitions while unloaded, field to index type
+    private volatile int unloadedSize;
+    private volatile Map<String, String> unloadedIndexes = Collections.emptyMap();
+    // Set on use and cleared by the idle check, which rarely writes it
+    private volatile boolean used;
+    private volatile long idleSinceMillis = System.currentTimeMillis();
+
+    public DocumentCollection() {
+        contents = new Contents();
+    }
+
+    /**
+     * A saved collection that is not loaded yet: {@code loader} reads its {@code size}
+     * documents, and {@code indexes} maps each indexed field to the index type.
+     */
+    public DocumentCollection(Loader loader, int size, Map<String, String> indexes) {
+        this.loader = loader;
+        this.savedChanges = 0;
+        this.unloadedSize = size;
+        this.unloadedIndexes = Collections.unmodifiableMap(new LinkedHashMap<>(indexes));
+    }
+
+    /**
+     * Creates an index of the given type ({@link HashIndex#TYPE} or
+     * {@link OrderedIndex#TYPE}) on {@code field} and fills it from the current
+     * documents. Writes running meanwhile are indexed as well. Returns false if the
+     * field is already indexed.
+     */
+    public boolean createIndex(String field, String type) {
+        Contents contents = pin();
+        try {
+            FieldIndex index;
+            synchronized (indexLock) {
+                if (contents.indexes.containsKey(field)) {
+                    return false;
+                }
+                index = FieldIndex.create(field, type);
+                Map<String, FieldIndex> updated = new LinkedHashMap<>(contents.indexes);
+                updated.put(field, index);
+                contents.indexes = Collections.unmodifiableMap(updated);
+                indexChanges++;
+            }
+
+            // Reading each document under its key's lock orders the fill with concurrent writes
+            for (String id : contents.documents.keySet()) {
+                contents.documents.computeIfPresent(id, (k, document) -> {
+                    if (!document.isDeleted()) {
+                        index.update(k, null, document);
+                    }
+                    return document;
+                });
+            }
+            return true;
+        } finally {
+            contents.writers.decrementAndGet();
+        }
+    }
+
+    /** Drops the index on {@code field}; returns false if there is none. */
+    public boolean dropIndex(String field) {
+        Contents contents = pin();
+        try {
+            synchronized (indexLock) {
+                if (!contents.indexes.containsKey(field)) {
+                    return false;
+                }
+                Map<String, FieldIndex> updated = new LinkedHashMap<>(contents.indexes);
+                updated.remove(field);
+                contents.indexes = Collections.unmodifiableMap(updated);
+                indexChanges++;
+                return true;
+            }
+        } finally {
+            contents.writers.decrementAndGet();
+        }
+    }
+
+    /** The index on {@code field}, or null if the field is not indexed. */
+    public FieldIndex getIndex(String field) {
+        return contents().indexes.get(field);
+    }
+
+    public Collection<FieldIndex> getIndexes() {
+        return contents().indexes.values();
+    }
+
+    public boolean hasIndexes() {
+        return !contents().indexes.isEmpty();
+    }
+
+    /** The indexed fields mapped to their index types, known without loading the collection. */
+    public Map<String, String> indexTypes() {
+        Contents contents = this.contents;
+        if (contents == null) {
+            return unloadedIndexes;
+        }
+        Map<String, String> types = new LinkedHashMap<>();
+        for (FieldIndex index : contents.indexes.values()) {
+            types.put(index.getField(), index.getType());
+        }
+        return types;
+    }
+
+    /** Whether the documents are in memory right now. */
+    public boolean isLoaded() {
+        return contents != null;
+    }
+
+    // The contents to read, loading them first if needed
+    private Contents contents() {
+        Contents contents = this.contents;
+        if (contents == null) {
+            contents = load();
+        }
+        if (!used) {
+            used = true;
+        }
+        return contents;
+    }
+
+    // The contents to write, loading them first if needed. They stay loaded until the
+    // caller decrements their writer count.
+    private Contents pin() {
+        while (true) {
+            Contents contents = contents();
+            contents.writers.incrementAndGet();
+            if (!contents.retired) {
+                return contents;
+            }
+            contents.writers.decrementAndGet();
+        }
+    }
+
+    private Contents load() {
+        synchronized (loadLock) {
+            Contents contents = this.contents;
+            if (contents != null) {
+                return contents;
+            }
+
+            Contents loaded = new Contents();
+            try {
+                loader.load(loaded.documents::put);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not load collection: " + e.getMessage(), e);
+            }
+            Map<String, FieldIndex> indexes = new LinkedHashMap<>();
+            for (Map.Entry<String, String> definition : unloadedIndexes.entrySet()) {
+                FieldIndex index = FieldIndex.create(definition.getKey(), definition.getValue());
+                loaded.documents.forEach((id, document) -> index.update(id, null, document));
+                indexes.put(index.getField(), index);
+            }
+            loaded.indexes = Collections.unmodifiableMap(indexes);
+
+            idleSinceMillis = System.currentTimeMillis();
+            this.contents = loaded;
+            return loaded;
+        }
+    }
+
+    /**
+     * Number of changes to the documents and index definitions so far; the collection
+     * needs saving when this differs from the value last passed to {@link #saved}.
+     */
+    long changes() {
+        return version.get() + indexChanges;
+    }
+
+    /** Whether the collection changed since it was last saved, or was never saved. */
+    boolean isDirty() {
+        return savedChanges != changes();
+    }
+
+    /**
+     * Records that the collection, as of {@code changes}, has been saved where
+     * {@code loader} reads it back from.
+     */
+    void saved(long changes, Loader loader) {
+        // Set first, so whoever sees the collection clean can reload it
+        this.loader = loader;
+        savedChanges = changes;
+    }
+
+    /**
+     * Drops the documents from memory if the collection is saved, unchanged since, has
+     * not been used for {@code idleMs} and no snapshot needs an older version of any of
+     * them. Called from one thread at a time; returns whether it was unloaded.
+     */
+    boolean unloadIfIdle(long nowMillis, long idleMs) {
+        if (contents == null) {
+            return false;
+        }
+        if (used) {
+            used = false;
+            idleSinceMillis = nowMillis;
+            return false;
+        }
+        if (nowMillis - idleSinceMillis < idleMs) {
+            return false;
+        }
+
+        synchronized (loadLock) {
+            Contents contents = this.contents;
+            if (contents == null || loader == null || isDirty() || !contents.versioned.isEmpty()) {
+                return false;
+            }
+            // A write either registered before this and is seen below, or sees the
+            // contents retired and loads them again
+            contents.retired = true;
+            if (contents.writers.get() != 0 || isDirty()) {
+                contents.retired = false;
+                return false;
+            }
+            unloadedSize = contents.documents.size();
+            unloadedIndexes = Collections.unmodifiableMap(indexTypes());
+            // Readers still holding the old contents read the documents as saved
+            this.contents = null;
+            return true;
+        }
+    }
+
+    /**
+     * Number of writes that have changed a document so far. A result computed from the
+     * documents after reading version {@code v} is current as long as the version is
+     * still {@code v}.
+     */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * Drops the older versions and tombstones that no snapshot reading at {@code horizon}
+     * or later can see, and returns how many were dropped. Only the documents written
+     * while a snapshot was open are visited.
+     */
+    public int collectVersions(long horizon) {
+        // An unloaded collection has no versions kept
+        Contents contents = this.contents;
+        if (contents == null) {
+            return 0;
+        }
+        Set<String> versioned = contents.versioned;
+        int[] dropped = new int[1];
+        for (String id : versioned) {
+            contents.documents.compute(id, (k, stored) -> {
+                if (stored == null) {
+                    versioned.remove(k);
+                    return null;
+                }
+                // Every snapshot at or after the horizon reads this version or a newer one
+                Document oldest = stored;
+                while (oldest.sequence() > horizon && oldest.previous() != null) {
+                    oldest = oldest.previous();
+                }
+                for (Document older = oldest.previous(); older != null; older = older.previous()) {
+                    dropped[0]++;
+                }
+                oldest.forgetPrevious();
+
+                if (stored.isDeleted() && stored.sequence() <= horizon) {
+                    // Every snapshot sees the delete
+                    contents.tombstones.decrementAndGet();
+                    versioned.remove(k);
+                    dropped[0]++;
+                    return null;
+                }
+                if (stored.previous() == null) {
+                    versioned.remove(k);
+                }
+                return stored;
+            });
+        }
+        return dropped[0];
+    }
+
+    // Applies one write to a key and to the indexes while holding the key's lock
+    private Document update(String id, BiFunction<String, Document, Document> write) {
+        return update(id, write, new long[1]);
+    }
+
+    // As above, also setting sequence[0] to the commit sequence number the write took
+    private Document update(String id, BiFunction<String, Document, Document> write, long[] sequence) {
+        Contents contents = pin();
+        try {
+            boolean[] changed = new boolean[1];
+            Document[] result = new Document[1];
+            contents.documents.compute(id, (k, stored) -> {
+                Document before = stored == null || stored.isDeleted() ? null : stored;
+                Document after = write.apply(k, before);
+                if (after == before) {
+                    result[0] = before;
+                    return stored;
+                }
+                changed[0] = true;
+                for (FieldIndex index : contents.indexes.values()) {
+                    index.update(k, before, after);
+                }
+                sequence[0] = Snapshot.nextSequence();
+                Document committed = commit(contents, k, stored, after, sequence[0]);
+                result[0] = after == null ? null : committed;
+                return committed;
+            });
+            // Bumped only once the write is visible, so a reader that saw the old version
+            // either saw the write as well or sees the new version afterwards
+            if (changed[0]) {
+                version.incrementAndGet();
+            }
+            return result[0];
+        } finally {
+            contents.writers.decrementAndGet();
+        }
+    }
+
+    // What to store for a write of after (null for a delete) over stored (a document, a
+    // tombstone or null). The sequence number is taken before checking for snapshots, so
+    // a snapshot that reads below it is seen and keeps what it reads.
+    private static Document commit(Contents contents, String id, Document stored, Document after, long sequence) {
+        Document previous = Snapshot.anyOpen() ? stored : null;
+        if (stored != null && stored.isDeleted()) {
+            contents.tombstones.decrementAndGet();
+        }
+        if (previous != null) {
+            contents.versioned.add(id);
+        }
+
+        if (after != null) {
+            return after.committed(sequence, previous);
+        } else if (previous == null) {
+            return null;
+        }
+        contents.tombstones.incrementAndGet();
+        return Document.deleted(sequence, previous);
+    }
+
+    @Override
+    public Document get(Object id) {
+        Document stored = contents().documents.get(id);
+        return stored == null || stored.isDeleted() ? null : stored;
+    }
+
+    /** The document stored under {@code id} as of {@code snapshot}, or null if there was none. */
+    public Document get(String id, Snapshot snapshot) {
+        Document stored = contents().documents.get(id);
+        return stored == null ? null : stored.visibleAt(snapshot.sequence());
+    }
+
+    @Override
+    public boolean containsKey(Object id) {
+        return get(id) != null;
+    }
+
+    @Override
+    public int size() {
+        Contents contents = this.contents;
+        if (contents == null) {
+            return unloadedSize;
+        }
+        // Tombstones are counted apart from the map, so this may be off while writes run
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, contents.documents.mappingCount() - contents.tombstones.get()));
+    }
+
+    @Override
+    public Set<Map.Entry<String, Document>> entrySet() {
+        return entries;
+    }
+
+    /**
+     * The documents as of {@code snapshot}, keyed by id: a document written since is read
+     * at the version the snapshot saw, and one deleted since is still there. Its size is
+     * the current number of documents, as counting the snapshot's would mean reading them.
+     */
+    public Set<Map.Entry<String, Document>> entrySet(Snapshot snapshot) {
+        return new Entries(snapshot.sequence());
+    }
+
+    @Override
+    public Document put(String id, Document document) {
+        Objects.requireNonNull(document);
+        Document[] previous = new Document[1];
+        update(id, (k, before) -> {
+            previous[0] = before;
+            return document;
+        });
+        return previous[0];
+    }
+
+    @Override
+    public Document putIfAbsent(String id, Document document) {
+        Objects.requireNonNull(document);
+        Document[] previous = new Document[1];
+        update(id, (k, before) -> {
+            previous[0] = before;
+            return before != null ? before : document;
+        });
+        return previous[0];
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends Document> documents) {
+        for (Map.Entry<? extends String, ? extends Document> entry : documents.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public Document remove(Object id) {
+        if (!(id instanceof String)) {
+            return null;
+        }
+        Document[] previous = new Document[1];
+        update((String) id, (k, before) -> {
+            previous[0] = before;
+            return null;
+        });
+        return previous[0];
+    }
+
+    @Override
+    public boolean remove(Object id, Object document) {
+        if (!(id instanceof String) || document == null) {
+            return false;
+        }
+        boolean[] removed = new boolean[1];
+        update((String) id, (k, before) -> {
+            removed[0] = before != null && before.equals(document);
+            return removed[0] ? null : before;
+        });
+        return removed[0];
+    }
+
+    @Override
+    public Document replace(String id, Document document) {
+        Objects.requireNonNull(document);
+        Document[] previous = new Document[1];
+        update(id, (k, before) -> {
+            previous[0] = before;
+            return before == null ? null : document;
+        });
+        return previous[0];
+    }
+
+    @Override
+    public boolean replace(String id, Document expected, Document document) {
+        Objects.requireNonNull(expected);
+        Objects.requireNonNull(document);
+        boolean[] replaced = new boolean[1];
+        update(id, (k, before) -> {
+            replaced[0] = before != null && before.equals(expected);
+            return replaced[0] ? document : before;
+        });
+        return replaced[0];
+    }
+
+    @Override
+    public Document compute(String id, BiFunction<? super String, ? super Document, ? extends Document> remapping) {
+        return update(id, remapping::apply);
+    }
+
+    /**
+     * Like {@link #compute}, but returns the commit sequence number the write took, or 0
+     * if {@code write} returned the document it was given and so changed nothing. Each
+     * document's writes take increasing numbers, which tells the write-ahead log replay
+     * which of two records of a document came last.
+     */
+    public long write(String id, BiFunction<String, Document, Document> write) {
+        long[] sequence = new long[1];
+        update(id, write, sequence);
+        return sequence[0];
+    }
+
+    @Override
+    public Document computeIfAbsent(String id, Function<? super String, ? extends Document> mapping) {
+        return update(id, (k, before) -> before != null ? before : mapping.apply(k));
+    }
+
+    @Override
+    public Document computeIfPresent(String id, BiFunction<? super String, ? super Document, ? extends Document> remapping) {
+        return update(id, (k, before) -> before == null ? null : remapping.apply(k, before));
+    }
+
+    @Override
+    public Document merge(String id, Document document, BiFunction<? super Document, ? super Document, ? extends Document> remapping) {
+        Objects.requireNonNull(document);
+        return update(id, (k, before) -> before == null ? document : remapping.apply(before, document));
+    }
+
+    @Override
+    public void replaceAll(BiFunction<? super String, ? super Document, ? extends Document> function) {
+        for (String id : contents().documents.keySet()) {
+            computeIfPresent(id, function);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (String id : contents().documents.keySet()) {
+            remove(id);
+        }
+    }
+
+    // Read-only view of the entries at a commit sequence number, Long.MAX_VALUE for the
+    // latest ones. It splits like the map, so parallel scans of it stay balanced.
+    private final class Entries extends AbstractSet<Map.Entry<String, Document>> {
+        private final long sequence;
+
+        Entries(long sequence) {
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int size() {
+            return DocumentCollection.this.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry) || !(((Map.Entry<?, ?>) o).getKey() instanceof String)) {
+                return false;
+            }
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+            Document stored = contents().documents.get(entry.getKey());
+            Document document = stored == null ? null : stored.visibleAt(sequence);
+            return document != null && document.equals(entry.getValue());
+        }
+
+        @Override
+        public Iterator<Map.Entry<String, Document>> iterator() {
+            Iterator<Map.Entry<String, Document>> stored = contents().documents.entrySet().iterator();
+            return new Iterator<>() {
+                private Map.Entry<String, Document> next;
+
+                @Override
+                public boolean hasNext() {
+                    while (next == null && stored.hasNext()) {
+                        next = visible(stored.next());
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public Map.Entry<String, Document> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Map.Entry<String, Document> entry = next;
+                    next = null;
+                    return entry;
+                }
+            };
+        }
+
+        @Override
+        public Spliterator<Map.Entry<String, Document>> spliterator() {
+            return new Visible(contents().documents.entrySet().spliterator());
+        }
+
+        // The entry as this view reads it, or null if it has no document at the sequence number
+        private Map.Entry<String, Document> visible(Map.Entry<String, Document> stored) {
+            Document document = stored.getValue().visibleAt(sequence);
+            if (document == stored.getValue()) {
+                return stored;
+            }
+            return document == null ? null : new AbstractMap.SimpleImmutableEntry<>(stored.getKey(), document);
+        }
+
+        private final class Visible implements Spliterator<Map.Entry<String, Document>> {
+            private final Spliterator<Map.Entry<String, Document>> stored;
+            private Map.Entry<String, Document> found;
+
+            Visible(Spliterator<Map.Entry<String, Document>> stored) {
+                this.stored = stored;
+            }
+
+            @Override
+            public boolean tryAdvance(Consumer<? super Map.Entry<String, Document>> action) {
+                found = null;
+                while (found == null && stored.tryAdvance(entry -> found = visible(entry))) {
+                    // Skips the entries the view does not read
+                }
+                if (found == null) {
+                    return false;
+                }
+                action.accept(found);
+                return true;
+            }
+
+            @Override
+            public void forEachRemaining(Consumer<? super Map.Entry<String, Document>> action) {
+                stored.forEachRemaining(entry -> {
+                    Map.Entry<String, Document> document = visible(entry);
+                    if (document != null) {
+                        action.accept(document);
+                    }
+                });
+            }
+
+            @Override
+            public Spliterator<Map.Entry<String, Document>> trySplit() {
+                Spliterator<Map.Entry<String, Document>> split = stored.trySplit();
+                return split == null ? null : new Visible(split);
+            }
+
+            @Override
+            public long estimateSize() {
+                return stored.estimateSize();
+            }
+
+            @Override
+            public int characteristics() {
+                return Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.CONCURRENT;
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.server.storage;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Secondary index on one field of a collection's documents, possibly a dotted path
+ * into nested documents. Indexes are created by and maintained through the
+ * {@link DocumentCollection} they belong to.
+ *
+ * Indexes narrow QUERY down to candidate documents and may return more ids than
+ * match; callers check each candidate against the full predicate.
+ */
+public abstract class FieldIndex {
+
+    private final String field;
+    private final String[] path;
+
+    FieldIndex(String field) {
+        this.field = field;
+        this.path = field.split("\\.");
+    }
+
+    /** Creates an empty index of the given type; see {@link #isValidType}. */
+    static FieldIndex create(String field, String type) {
+        switch (type) {
+            case HashIndex.TYPE:
+                return new HashIndex(field);
+            case OrderedIndex.TYPE:
+                return new OrderedIndex(field);
+            default:
+                throw new IllegalArgumentException("Unknown index type: " + type);
+        }
+    }
+
+    public static boolean isValidType(String type) {
+        return HashIndex.TYPE.equals(type) || OrderedIndex.TYPE.equals(type);
+    }
+
+    /** Whether {@code field} is a usable field path: non-empty names separated by dots. */
+    public static boolean isValidField(String field) {
+        if (field == null || field.isEmpty()) {
+            return false;
+        }
+        for (String part : field.split("\\.", -1)) {
+            if (part.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public abstract String getType();
+
+    /** Number of distinct values currently indexed. */
+    public abstract int distinctValues();
+
+    /**
+     * Ids of the documents whose field may equal {@code value}, a string, number or
+     * boolean, or null if the index cannot answer the lookup right now.
+     */
+    public abstract Set<String> lookup(Object value);
+
+    /**
+     * Ids of the documents that may satisfy one QUERY condition on the field, either a
+     * value to compare for equality or an operator object such as {@code {"$in": [...]}},
+     * or null if the index cannot narrow the condition down.
+     */
+    public Set<String> candidates(Object condition) {
+        if (isScalar(condition)) {
+            return lookup(condition);
+        } else if (!(condition instanceof JSONObject)) {
+            return null;
+        }
+
+        JSONObject opQuery = (JSONObject) condition;
+        if (isScalar(opQuery.opt("$eq"))) {
+            return lookup(opQuery.get("$eq"));
+        }
+        JSONArray values = opQuery.optJSONArray("$in");
+        if (values == null) {
+            return null;
+        }
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < values.length(); i++) {
+            Set<String> matches = isScalar(values.opt(i)) ? lookup(values.opt(i)) : null;
+            if (matches == null) {
+                return null;
+            }
+            ids.addAll(matches);
+        }
+        return ids;
+    }
+
+    static boolean isScalar(Object value) {
+        return value instanceof String || value instanceof Number || value instanceof Boolean;
+    }
+
+    /** The value of the indexed field in {@code document}, or null if it has none. */
+    Object valueOf(Document document) {
+        Document current = document;
+        for (int i = 0; i < path.length - 1; i++) {
+            current = current.getDocument(path[i]);
+            if (current == null) {
+                return null;
+            }
+        }
+        return current.get(path[path.length - 1]);
+    }
+
+    /**
+     * Moves a document from the entry of its old value to that of its new one. Either
+     * document may be null when it is inserted or removed. Called by the collection
+     * while it holds the lock of the document's key.
+     */
+    abstract void update(String id, Document before, Document after);
+}
@@ -0,0 +1,149 @@
+package com.server.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hash index from the value of a field to the ids of the documents holding that
+ * value. Documents without the field are not indexed. It answers equality and
+ * {@code $in} conditions.
+ *
+ * Values are keyed the way QUERY compares them for equality: everything but numbers
+ * by its JSON text, and numbers by which {@link #EPSILON}-wide bucket their
+ * {@code double} value falls in. QUERY treats numbers closer than EPSILON as equal,
+ * so a number is looked up in every bucket its EPSILON neighbourhood touches, which
+ * may return ids of numbers that are not quite equal. QUERY also equates a number
+ * with its text, so a lookup checks the text key as well.
+ */
+public final class HashIndex extends FieldIndex {
+
+    public static final String TYPE = "hash";
+
+    // The tolerance QUERY compares numbers with
+    private static final double EPSILON = 0.00001;
+
+    private final ConcurrentHashMap<Object, Set<String>> entries = new ConcurrentHashMap<>();
+
+    HashIndex(String field) {
+        super(field);
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    @Override
+    public int distinctValues() {
+        return entries.size();
+    }
+
+    /** The returned set is a live, read-only view unless it combines several keys. */
+    @Override
+    public Set<String> lookup(Object value) {
+        List<Set<String>> found = new ArrayList<>(2);
+        for (Object key : lookupKeys(value)) {
+            Set<String> ids = entries.get(key);
+            if (ids != null && !ids.isEmpty()) {
+                found.add(ids);
+            }
+        }
+
+        if (found.isEmpty()) {
+            return Collections.emptySet();
+        } else if (found.size() == 1) {
+            return Collections.unmodifiableSet(found.get(0));
+        }
+        Set<String> union = new HashSet<>();
+        for (Set<String> ids : found) {
+            union.addAll(ids);
+        }
+        return union;
+    }
+
+    // Every key a value QUERY finds equal to this one may be stored under
+    private static List<Object> lookupKeys(Object value) {
+        List<Object> keys = new ArrayList<>(4);
+        if (value instanceof Number) {
+            double number = ((Number) value).doubleValue();
+            if (Double.isFinite(number)) {
+                // Division by EPSILON is monotonic, so every number within EPSILON lands in
+                // a bucket between these two; far from zero adjacent buckets are adjacent doubles
+                double last = bucket(number + EPSILON);
+                for (double bucket = bucket(number - EPSILON); bucket <= last;
+                     bucket = bucket + 1 > bucket ? bucket + 1 : Math.nextUp(bucket)) {
+                    keys.add(bucket + 0.0);
+                }
+            } else {
+                keys.add(key(value));
+            }
+        } else {
+            keys.add(key(value));
+        }
+        Object alternate = alternateKey(value);
+        if (alternate != null) {
+            keys.add(alternate);
+        }
+        return keys;
+    }
+
+    @Override
+    void update(String id, Document before, Document after) {
+        Object oldKey = before == null ? null : keyOrNull(valueOf(before));
+        Object newKey = after == null ? null : keyOrNull(valueOf(after));
+        if (oldKey != null && oldKey.equals(newKey)) {
+            return;
+        }
+
+        if (oldKey != null) {
+            entries.computeIfPresent(oldKey, (k, ids) -> {
+                ids.remove(id);
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+        if (newKey != null) {
+            entries.compute(newKey, (k, ids) -> {
+                if (ids == null) {
+                    ids = ConcurrentHashMap.newKeySet();
+                }
+                ids.add(id);
+                return ids;
+            });
+        }
+    }
+
+    private static Object keyOrNull(Object value) {
+        return value == null ? null : key(value);
+    }
+
+    private static Object key(Object value) {
+        if (value instanceof Number) {
+            double number = ((Number) value).doubleValue();
+            // -0.0 and 0.0 compare equal in QUERY but not as Double keys
+            return Double.isFinite(number) ? bucket(number) + 0.0 : number;
+        }
+        return Document.toJsonValue(value).toString();
+    }
+
+    private static double bucket(double number) {
+        return Math.floor(number / EPSILON);
+    }
+
+    // QUERY's equality also matches a number against a string with the same text
+    private static Object alternateKey(Object value) {
+        if (value instanceof Number) {
+            return value.toString();
+        } else if (value instanceof String) {
+            try {
+                return key(Double.parseDouble((String) value));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+}
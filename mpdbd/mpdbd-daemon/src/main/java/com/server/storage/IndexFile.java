@@ -0,0 +1,53 @@
+package com.server.storage;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Reads the index definitions file ({@code mpdb_indexes.json}) that was saved next to
+ * the single snapshot file: for each database and collection, the fields it is indexed
+ * on and the type of each index. The segment manifest holds these definitions now.
+ * Only definitions are stored; index contents are rebuilt from the documents at startup.
+ */
+public final class IndexFile {
+
+    private IndexFile() {
+    }
+
+    /**
+     * Creates the indexes listed in {@code source} on the collections that exist and
+     * returns how many were created. A missing file means there are no indexes.
+     */
+    public static int read(Path source, Map<String, ConcurrentHashMap<String, DocumentCollection>> databases) throws IOException {
+        if (!Files.exists(source)) {
+            return 0;
+        }
+
+        JSONObject definitions = new JSONObject(new String(Files.readAllBytes(source), StandardCharsets.UTF_8));
+        int created = 0;
+        for (String dbName : definitions.keySet()) {
+            ConcurrentHashMap<String, DocumentCollection> db = databases.get(dbName);
+            JSONObject collections = definitions.getJSONObject(dbName);
+            for (String collName : collections.keySet()) {
+                DocumentCollection collection = db == null ? null : db.get(collName);
+                if (collection == null) {
+                    continue;
+                }
+                JSONArray indexes = collections.getJSONArray(collName);
+                for (int i = 0; i < indexes.length(); i++) {
+                    JSONObject index = indexes.getJSONObject(i);
+                    if (collection.createIndex(index.getString("field"), index.optString("type", HashIndex.TYPE))) {
+                        created++;
+                    }
+                }
+            }
+        }
+        return created;
+    }
+}
@@ -0,0 +1,331 @@
+package com.server.storage;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.json.JSONObject;
+
+/**
+ * Ordered index on a field, kept in concurrent skip lists so that range conditions
+ * ({@code $gt}, {@code $gte}, {@code $lt}, {@code $lte}) are answered by seeking, and
+ * QUERY's {@code sortBy} can be served by walking the index in order.
+ *
+ * QUERY compares two numbers numerically and anything else by its text, so numbers
+ * and other values live in separate lists: numbers ordered by {@code double} value,
+ * other values by their {@code toString()} text. A bound is applied to each list the
+ * way QUERY would compare it, and where it cannot be (a text bound against numbers)
+ * the whole list is kept as candidates. Documents without the field are kept apart
+ * too, because a sort puts them first.
+ */
+public final class OrderedIndex extends FieldIndex {
+
+    public static final String TYPE = "ordered";
+
+    // QUERY treats numbers this close as equal
+    private static final double EPSILON = 0.00001;
+    private static final Object ABSENT = new Object();
+
+    private final ConcurrentSkipListMap<Double, Set<String>> numbers = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, Set<String>> texts = new ConcurrentSkipListMap<>();
+    private final Set<String> absent = ConcurrentHashMap.newKeySet();
+    // Objects and arrays compare by a different text for equality than for order
+    private final AtomicInteger structuredValues = new AtomicInteger();
+
+    OrderedIndex(String field) {
+        super(field);
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    @Override
+    public int distinctValues() {
+        return numbers.size() + texts.size();
+    }
+
+    @Override
+    public Set<String> lookup(Object value) {
+        Range range = rangeOf(value);
+        return range == null ? null : collect(range);
+    }
+
+    @Override
+    public Set<String> candidates(Object condition) {
+        Range range = rangeOf(condition);
+        return range != null ? collect(range) : super.candidates(condition);
+    }
+
+    /**
+     * Whether walking the index gives QUERY's sort order, which holds unless the field
+     * holds numbers in some documents and other values in others.
+     */
+    public boolean isSortable() {
+        return numbers.isEmpty() || texts.isEmpty();
+    }
+
+    /**
+     * Ids in sort order, documents without the field first when ascending and last when
+     * descending. If the index can serve {@code condition}, a QUERY condition on the
+     * field, only its range is walked; otherwise every document is.
+     */
+    public Iterator<String> walk(Object condition, boolean ascending) {
+        Range range = condition == null ? null : rangeOf(condition);
+        if (range == null) {
+            range = new Range();
+            range.absent = true;
+        }
+
+        Stream<Set<String>> numberIds = slice(numbers, range.numbers, range.numberLow, range.numberLowInclusive,
+                range.numberHigh, range.numberHighInclusive, ascending);
+        Stream<Set<String>> textIds = slice(texts, range.texts, range.textLow, range.textLowInclusive,
+                range.textHigh, range.textHighInclusive, ascending);
+        Stream<Set<String>> absentIds = range.absent ? Stream.of(absent) : Stream.empty();
+
+        Stream<Set<String>> ordered = ascending
+                ? Stream.concat(absentIds, Stream.concat(numberIds, textIds))
+                : Stream.concat(Stream.concat(textIds, numberIds), absentIds);
+        return ordered.flatMap(Set::stream).iterator();
+    }
+
+    private Set<String> collect(Range range) {
+        Set<String> ids = new HashSet<>();
+        Iterator<String> walk = Stream.concat(
+                slice(numbers, range.numbers, range.numberLow, range.numberLowInclusive, range.numberHigh, range.numberHighInclusive, true),
+                slice(texts, range.texts, range.textLow, range.textLowInclusive, range.textHigh, range.textHighInclusive, true))
+                .flatMap(Set::stream).iterator();
+        while (walk.hasNext()) {
+            ids.add(walk.next());
+        }
+        return ids;
+    }
+
+    private static <K extends Comparable<K>> Stream<Set<String>> slice(ConcurrentSkipListMap<K, Set<String>> map, boolean include,
+                                                                     K low, boolean lowInclusive, K high, boolean highInclusive,
+                                                                     boolean ascending) {
+        if (!include) {
+            return Stream.empty();
+        }
+
+        NavigableMap<K, Set<String>> slice;
+        if (low != null && high != null) {
+            int order = low.compareTo(high);
+            if (order > 0 || (order == 0 && !(lowInclusive && highInclusive))) {
+                return Stream.empty();
+            }
+            slice = map.subMap(low, lowInclusive, high, highInclusive);
+        } else if (low != null) {
+            slice = map.tailMap(low, lowInclusive);
+        } else if (high != null) {
+            slice = map.headMap(high, highInclusive);
+        } else {
+            slice = map;
+        }
+        return (ascending ? slice : slice.descendingMap()).values().stream();
+    }
+
+    // The range matching QUERY's equality or range operators in a condition, or null
+    // if the condition has none this index can serve
+    private Range rangeOf(Object condition) {
+        if (structuredValues.get() > 0) {
+            return null;
+        }
+
+        Range range = new Range();
+        if (isScalar(condition)) {
+            range.equalTo(condition);
+            return range;
+        } else if (!(condition instanceof JSONObject)) {
+            return null;
+        }
+
+        JSONObject opQuery = (JSONObject) condition;
+        boolean narrowed = false;
+        for (String op : opQuery.keySet()) {
+            Object bound = opQuery.get(op);
+            switch (op) {
+                case "$gt":
+                    range.above(bound, false);
+                    narrowed = true;
+                    break;
+                case "$gte":
+                    range.above(bound, true);
+                    narrowed = true;
+                    break;
+                case "$lt":
+                    range.below(bound, false);
+                    narrowed = true;
+                    break;
+                case "$lte":
+                    range.below(bound, true);
+                    narrowed = true;
+                    break;
+                case "$eq":
+                    if (isScalar(bound)) {
+                        range.equalTo(bound);
+                        narrowed = true;
+                    }
+                    break;
+            }
+        }
+        return narrowed ? range : null;
+    }
+
+    @Override
+    void update(String id, Document before, Document after) {
+        Object oldValue = before == null ? null : valueOf(before);
+        Object newValue = after == null ? null : valueOf(after);
+        if (isStructured(oldValue)) {
+            structuredValues.decrementAndGet();
+        }
+        if (isStructured(newValue)) {
+            structuredValues.incrementAndGet();
+        }
+
+        Object oldKey = before == null ? null : key(oldValue);
+        Object newKey = after == null ? null : key(newValue);
+        if (Objects.equals(oldKey, newKey)) {
+            return;
+        }
+
+        if (oldKey == ABSENT) {
+            absent.remove(id);
+        } else if (oldKey instanceof Double) {
+            remove(numbers, (Double) oldKey, id);
+        } else if (oldKey != null) {
+            remove(texts, (String) oldKey, id);
+        }
+
+        if (newKey == ABSENT) {
+            absent.add(id);
+        } else if (newKey instanceof Double) {
+            add(numbers, (Double) newKey, id);
+        } else if (newKey != null) {
+            add(texts, (String) newKey, id);
+        }
+    }
+
+    private static <K> void add(ConcurrentSkipListMap<K, Set<String>> map, K key, String id) {
+        map.compute(key, (k, ids) -> {
+            if (ids == null) {
+                ids = ConcurrentHashMap.newKeySet();
+            }
+            ids.add(id);
+            return ids;
+        });
+    }
+
+    private static <K> void remove(ConcurrentSkipListMap<K, Set<String>> map, K key, String id) {
+        map.computeIfPresent(key, (k, ids) -> {
+            ids.remove(id);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    private static Object key(Object value) {
+        if (value == null) {
+            return ABSENT;
+        } else if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return value.toString();
+    }
+
+    private static boolean isStructured(Object value) {
+        return value instanceof Document || value instanceof List;
+    }
+
+    /**
+     * Bounds on both lists, narrowed by each operator of a condition the way QUERY's
+     * comparisons would narrow them. Null bounds are open.
+     */
+    private static final class Range {
+        boolean numbers = true;
+        Double numberLow;
+        boolean numberLowInclusive;
+        Double numberHigh;
+        boolean numberHighInclusive;
+
+        boolean texts = true;
+        String textLow;
+        boolean textLowInclusive;
+        String textHigh;
+        boolean textHighInclusive;
+
+        boolean absent;
+
+        // $gt / $gte: a number bound narrows both lists, any other bound only the texts
+        void above(Object bound, boolean inclusive) {
+            if (bound instanceof Number) {
+                double number = ((Number) bound).doubleValue();
+                raiseNumberLow(inclusive ? number - EPSILON : number, inclusive);
+            }
+            raiseTextLow(bound.toString(), inclusive);
+        }
+
+        // $lt / $lte
+        void below(Object bound, boolean inclusive) {
+            if (bound instanceof Number) {
+                double number = ((Number) bound).doubleValue();
+                lowerNumberHigh(inclusive ? number + EPSILON : number, inclusive);
+            }
+            lowerTextHigh(bound.toString(), inclusive);
+        }
+
+        // A number equals numbers within EPSILON and its own text; a string equals
+        // itself and the number it spells, if any
+        void equalTo(Object value) {
+            if (value instanceof Number) {
+                double number = ((Number) value).doubleValue();
+                raiseNumberLow(number - EPSILON, true);
+                lowerNumberHigh(number + EPSILON, true);
+            } else if (value instanceof String) {
+                try {
+                    double number = Double.parseDouble((String) value);
+                    raiseNumberLow(number, true);
+                    lowerNumberHigh(number, true);
+                } catch (NumberFormatException e) {
+                    numbers = false;
+                }
+            } else {
+                numbers = false;
+            }
+            raiseTextLow(value.toString(), true);
+            lowerTextHigh(value.toString(), true);
+        }
+
+        private void raiseNumberLow(double low, boolean inclusive) {
+            if (numberLow == null || low > numberLow || (low == numberLow && !inclusive)) {
+                numberLow = low;
+                numberLowInclusive = inclusive;
+            }
+        }
+
+        private void lowerNumberHigh(double high, boolean inclusive) {
+            if (numberHigh == null || high < numberHigh || (high == numberHigh && !inclusive)) {
+                numberHigh = high;
+                numberHighInclusive = inclusive;
+            }
+        }
+
+        private void raiseTextLow(String low, boolean inclusive) {
+            int order = textLow == null ? 1 : low.compareTo(textLow);
+            if (order > 0 || (order == 0 && !inclusive)) {
+                textLow = low;
+                textLowInclusive = inclusive;
+            }
+        }
+
+        private void lowerTextHigh(String high, boolean inclusive) {
+            int order = textHigh == null ? -1 : high.compareTo(textHigh);
+            if (order < 0 || (order == 0 && !inclusive)) {
+                textHigh = high;
+                textHighInclusive = inclusive;
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.server.storage;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.server.log.Log;
+
+/**
+ * Keeps each collection in a segment file of its own, one directory per database,
+ * listed in a small manifest ({@code mpdb_manifest.json}) that maps database and
+ * collection names to those files along with each collection's document count and
+ * index definitions:
+ *
+ * <pre>
+ * {"databases":{"shop":{"directory":"shop","collections":{
+ *     "orders":{"file":"orders.json","documents":1200,"indexes":[{"field":"status","type":"hash"}]}}}}}
+ * </pre>
+ *
+ * Opening the store reads only the manifest; each collection is loaded from its segment
+ * when first used. Saving rewrites the segments of the collections that changed since
+ * they were last saved, then the manifest, and then deletes the files of collections
+ * and databases that were dropped. A crash in between leaves either manifest pointing
+ * at segments that the write-ahead log brings up to date.
+ */
+public class SegmentStore {
+
+    public static final String MANIFEST_FILE = "mpdb_manifest.json";
+
+    // Segments smaller than this are parsed on the loading thread alone
+    private static final long PARALLEL_LOAD_BYTES = 1 << 20;
+
+    private final Path dataDir;
+    private final Path manifestFile;
+    private final int loadThreads;
+    // The manifest as last read or written
+    private JSONObject manifest = new JSONObject().put("databases", new JSONObject());
+
+    public SegmentStore(Path dataDir, int loadThreads) {
+        this.dataDir = dataDir;
+        this.manifestFile = dataDir.resolve(MANIFEST_FILE);
+        this.loadThreads = loadThreads;
+    }
+
+    public boolean exists() {
+        return Files.exists(manifestFile);
+    }
+
+    /**
+     * Reads the manifest and puts an unloaded collection into {@code databases} for every
+     * collection it lists. Returns the number of documents they hold.
+     */
+    public synchronized long open(Map<String, ConcurrentHashMap<String, DocumentCollection>> databases) throws IOException {
+        manifest = new JSONObject(new String(Files.readAllBytes(manifestFile), StandardCharsets.UTF_8));
+        JSONObject dbs = manifest.getJSONObject("databases");
+        long documents = 0;
+        for (String dbName : dbs.keySet()) {
+            JSONObject db = dbs.getJSONObject(dbName);
+            Path directory = dataDir.resolve(db.getString("directory"));
+            ConcurrentHashMap<String, DocumentCollection> collections = new ConcurrentHashMap<>();
+            JSONObject entries = db.getJSONObject("collections");
+            for (String collName : entries.keySet()) {
+                JSONObject entry = entries.getJSONObject(collName);
+                Path segment = directory.resolve(entry.getString("file"));
+                if (!Files.exists(segment)) {
+                    throw new IOException("Segment file " + segment + " listed in " + manifestFile + " is missing");
+                }
+                collections.put(collName, new DocumentCollection(loader(dbName, collName, segment),
+                        entry.getInt("documents"), indexTypes(entry.getJSONArray("indexes"))));
+                documents += entry.getInt("documents");
+            }
+            databases.put(dbName, collections);
+        }
+        return documents;
+    }
+
+    /**
+     * Saves every collection that changed since it was last saved and writes the
+     * manifest. Returns how many segments were written.
+     */
+    public synchronized int write(Map<String, ConcurrentHashMap<String, DocumentCollection>> databases) throws IOException {
+        JSONObject previous = manifest.getJSONObject("databases");
+        // Names of files in use or just given up, lower-cased for case-insensitive file systems
+        Set<String> directories = new HashSet<>();
+        for (String dbName : previous.keySet()) {
+            directories.add(previous.getJSONObject(dbName).getString("directory").toLowerCase(Locale.ROOT));
+        }
+
+        JSONObject dbs = new JSONObject();
+        int written = 0;
+        for (Map.Entry<String, ConcurrentHashMap<String, DocumentCollection>> dbEntry : databases.entrySet()) {
+            String dbName = dbEntry.getKey();
+            JSONObject before = previous.optJSONObject(dbName);
+            JSONObject collectionsBefore = before == null ? new JSONObject() : before.getJSONObject("collections");
+            String directoryName = before != null ? before.getString("directory") : unusedName(directories, fileName(dbName), "");
+            Path directory = Files.createDirectories(dataDir.resolve(directoryName));
+
+            Set<String> files = new HashSet<>();
+            for (String collName : collectionsBefore.keySet()) {
+                files.add(collectionsBefore.getJSONObject(collName).getString("file").toLowerCase(Locale.ROOT));
+            }
+
+            JSONObject collections = new JSONObject();
+            for (Map.Entry<String, DocumentCollection> collEntry : dbEntry.getValue().entrySet()) {
+                String collName = collEntry.getKey();
+                DocumentCollection collection = collEntry.getValue();
+                JSONObject entryBefore = collectionsBefore.optJSONObject(collName);
+                String file = entryBefore != null ? entryBefore.getString("file") : unusedName(files, fileName(collName), ".json");
+
+                long documents;
+                if (entryBefore != null && !collection.isDirty()) {
+                    documents = entryBefore.getLong("documents");
+                } else {
+                    // Read before the snapshot opens, so changes made after it count as unsaved
+                    long changes = collection.changes();
+                    Path segment = directory.resolve(file);
+                    try (Snapshot snapshot = Snapshot.open()) {
+                        documents = SnapshotFile.writeSegment(segment, collection, snapshot);
+                    }
+                    collection.saved(changes, loader(dbName, collName, segment));
+                    written++;
+                }
+
+                JSONArray indexes = new JSONArray();
+                for (Map.Entry<String, String> index : collection.indexTypes().entrySet()) {
+                    indexes.put(new JSONObject().put("field", index.getKey()).put("type", index.getValue()));
+                }
+                collections.put(collName, new JSONObject()
+                        .put("file", file)
+                        .put("documents", documents)
+                        .put("indexes", indexes));
+            }
+            dbs.put(dbName, new JSONObject().put("directory", directoryName).put("collections", collections));
+        }
+
+        JSONObject updated = new JSONObject().put("databases", dbs);
+        Path temp = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temp.toFile());
+             Writer writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8)) {
+            writer.write(updated.toString());
+            writer.flush();
+            stream.getChannel().force(true);
+        }
+        Files.move(temp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        Set<Path> kept = segments(updated);
+        for (Path segment : segments(manifest)) {
+            if (!kept.contains(segment)) {
+                Files.deleteIfExists(segment);
+            }
+        }
+        for (String dbName : previous.keySet()) {
+            if (!dbs.has(dbName)) {
+                deleteIfEmpty(dataDir.resolve(previous.getJSONObject(dbName).getString("directory")));
+            }
+        }
+        manifest = updated;
+        return written;
+    }
+
+    /**
+     * Unloads the collections that have been saved, are unchanged since and were not
+     * used for {@code idleMs}. Returns how many were unloaded.
+     */
+    public int unloadIdle(Map<String, ConcurrentHashMap<String, DocumentCollection>> databases, long idleMs) {
+        long now = System.currentTimeMillis();
+        int unloaded = 0;
+        for (ConcurrentHashMap<String, DocumentCollection> db : databases.values()) {
+            for (DocumentCollection collection : db.values()) {
+                if (collection.unloadIfIdle(now, idleMs)) {
+                    unloaded++;
+                }
+            }
+        }
+        return unloaded;
+    }
+
+    private DocumentCollection.Loader loader(String dbName, String collName, Path segment) {
+        return documents -> {
+            long start = System.nanoTime();
+            int parallelism = Files.size(segment) < PARALLEL_LOAD_BYTES ? 1 : loadThreads;
+            long count = SnapshotFile.readSegment(segment, parallelism, documents);
+            Log.info("📂 Loaded " + count + " documents of " + dbName + "/" + collName + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        };
+    }
+
+    private static Map<String, String> indexTypes(JSONArray indexes) {
+        Map<String, String> types = new LinkedHashMap<>();
+        for (int i = 0; i < indexes.length(); i++) {
+            JSONObject index = indexes.getJSONObject(i);
+            types.put(index.getString("field"), index.optString("type", HashIndex.TYPE));
+        }
+        return types;
+    }
+
+    private Set<Path> segments(JSONObject manifest) {
+        Set<Path> segments = new HashSet<>();
+        JSONObject dbs = manifest.getJSONObject("databases");
+        for (String dbName : dbs.keySet()) {
+            JSONObject db = dbs.getJSONObject(dbName);
+            JSONObject collections = db.getJSONObject("collections");
+            for (String collName : collections.keySet()) {
+                segments.add(dataDir.resolve(db.getString("directory")).resolve(collections.getJSONObject(collName).getString("file")));
+            }
+        }
+        return segments;
+    }
+
+    private static void deleteIfEmpty(Path directory) throws IOException {
+        try {
+            Files.deleteIfExists(directory);
+        } catch (DirectoryNotEmptyException e) {
+            // Holds files this store does not know about
+        }
+    }
+
+    /**
+     * A file name standing for {@code name}: letters, digits, '-' and '_' are kept and
+     * every other character becomes '%' and its UTF-8 bytes in hex, so names never
+     * contain dots or separators and cannot clash with the store's own files. Long
+     * names are cut short; {@link #unusedName} tells apart names that end up the same.
+     */
+    static String fileName(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_') {
+                sb.append(c);
+            } else {
+                sb.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+            }
+        }
+        if (sb.length() > 120) {
+            sb.setLength(120);
+        }
+        return sb.length() == 0 ? "_" : sb.toString();
+    }
+
+    // base + suffix, or base~2 + suffix and so on if that is taken; takes the name
+    private static String unusedName(Set<String> taken, String base, String suffix) {
+        String name = base + suffix;
+        for (int i = 2; taken.contains(name.toLowerCase(Locale.ROOT)); i++) {
+            name = base + "~" + i + suffix;
+        }
+        taken.add(name.toLowerCase(Locale.ROOT));
+        return name;
+    }
+}
@@ -0,0 +1,97 @@
+package com.server.storage;
+
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A consistent point-in-time view of every collection, for reads that take long enough
+ * for writes to land while they run: full scans, cursors and checkpoints.
+ *
+ * Every document write takes the next number of a global commit sequence and stamps it
+ * on the version it stores. A snapshot pins the sequence number current when it was
+ * opened and reads, for each document, the newest version stamped at or below it. While
+ * any snapshot is open, writers keep the version they replace, and deletes leave a
+ * tombstone behind, so the versions an open snapshot reads stay reachable; the
+ * {@link VersionCollector} drops them again once no open snapshot can read them.
+ *
+ * Opening and closing a snapshot takes a short lock that writers never take, so
+ * snapshots and writers never wait for each other. A snapshot must be closed, or the
+ * versions it pins are kept for good.
+ */
+public final class Snapshot implements AutoCloseable {
+
+    // The last commit sequence number taken by a write
+    private static final AtomicLong CLOCK = new AtomicLong();
+    // Sequence numbers of the open snapshots, with how many are open at each
+    private static final TreeMap<Long, Integer> OPEN = new TreeMap<>();
+    // Read by every write, so it is kept apart from the map
+    private static final AtomicInteger OPEN_COUNT = new AtomicInteger();
+
+    private final long sequence;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private Snapshot(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /** Opens a snapshot of the writes made so far. */
+    public static Snapshot open() {
+        synchronized (OPEN) {
+            // Counted before the clock is read: a write that takes a later number than the
+            // snapshot then sees it open and keeps the version the snapshot reads
+            OPEN_COUNT.incrementAndGet();
+            long sequence = CLOCK.get();
+            OPEN.merge(sequence, 1, Integer::sum);
+            return new Snapshot(sequence);
+        }
+    }
+
+    /** The commit sequence number this snapshot reads at. */
+    public long sequence() {
+        return sequence;
+    }
+
+    /** Releases the versions this snapshot pins. Closing it again does nothing. */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (OPEN) {
+            OPEN.computeIfPresent(sequence, (s, count) -> count == 1 ? null : count - 1);
+            OPEN_COUNT.decrementAndGet();
+        }
+    }
+
+    /** Number of snapshots open right now. */
+    public static int openCount() {
+        return OPEN_COUNT.get();
+    }
+
+    /**
+     * The oldest sequence number an open snapshot reads at, or the current one if none
+     * is open. Snapshots opened later read at this number or above, so no reader will
+     * ever need a version replaced at or below it.
+     */
+    public static long horizon() {
+        synchronized (OPEN) {
+            return OPEN.isEmpty() ? CLOCK.get() : OPEN.firstKey();
+        }
+    }
+
+    // Taken by a write before it checks for open snapshots
+    static long nextSequence() {
+        return CLOCK.incrementAndGet();
+    }
+
+    // Moves the clock past a number taken before a restart, so later writes take larger ones
+    static void advanceTo(long sequence) {
+        CLOCK.accumulateAndGet(sequence, Math::max);
+    }
+
+    static boolean anyOpen() {
+        return OPEN_COUNT.get() > 0;
+    }
+}
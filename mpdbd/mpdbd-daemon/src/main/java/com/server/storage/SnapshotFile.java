@@ -0,0 +1,392 @@
+package com.server.storage;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+import org.json.JSONObject;
+
+/**
+ * Reads and writes snapshot files. A segment file holds one collection: a JSON object
+ * of documents keyed by id. The older single snapshot file ({@code mpdb_data.json})
+ * holds everything: one JSON object of databases, each holding collections, each
+ * holding documents keyed by id.
+ */
+public final class SnapshotFile {
+
+    private SnapshotFile() {
+    }
+
+    /** Writes the databases as of a snapshot opened now; see below. */
+    public static void write(Path target, Map<String, ConcurrentHashMap<String, DocumentCollection>> databases) throws IOException {
+        try (Snapshot snapshot = Snapshot.open()) {
+            write(target, databases, snapshot);
+        }
+    }
+
+    /**
+     * Streams the documents as of {@code snapshot} into a temporary file next to
+     * {@code target}, fsyncs it and renames it over {@code target}, so a crash never
+     * leaves a half-written snapshot. Writes may go on meanwhile without being blocked
+     * or showing up in the file; only databases and collections created or dropped
+     * while this runs may or may not be in it. Replaying the write-ahead log written
+     * since on top of the file brings it up to date either way.
+     */
+    public static void write(Path target, Map<String, ConcurrentHashMap<String, DocumentCollection>> databases,
+                             Snapshot snapshot) throws IOException {
+        replace(target, writer -> {
+            writer.write('{');
+            boolean firstDb = true;
+            for (Map.Entry<String, ConcurrentHashMap<String, DocumentCollection>> dbEntry : databases.entrySet()) {
+                if (!firstDb) writer.write(',');
+                firstDb = false;
+                writer.write(JSONObject.quote(dbEntry.getKey()));
+                writer.write(":{");
+
+                boolean firstColl = true;
+                for (Map.Entry<String, DocumentCollection> collEntry : dbEntry.getValue().entrySet()) {
+                    if (!firstColl) writer.write(',');
+                    firstColl = false;
+                    writer.write('\n');
+                    writer.write(JSONObject.quote(collEntry.getKey()));
+                    writer.write(':');
+                    writeDocuments(writer, collEntry.getValue(), snapshot);
+                }
+                writer.write("}\n");
+            }
+            writer.write('}');
+            return 0;
+        });
+    }
+
+    /**
+     * Writes the documents of {@code collection} as of {@code snapshot} to the segment
+     * file {@code target}, replacing it the same way, and returns how many there were.
+     */
+    public static long writeSegment(Path target, DocumentCollection collection, Snapshot snapshot) throws IOException {
+        return replace(target, writer -> writeDocuments(writer, collection, snapshot));
+    }
+
+    private interface Content {
+        long write(Writer writer) throws IOException;
+    }
+
+    // Writes a temporary file next to target, fsyncs it and renames it over target
+    private static long replace(Path target, Content content) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        long written;
+        try (FileOutputStream stream = new FileOutputStream(temp.toFile());
+             Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 1 << 16)) {
+            written = content.write(writer);
+            writer.flush();
+            stream.getChannel().force(true);
+        }
+
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return written;
+    }
+
+    private static long writeDocuments(Writer writer, DocumentCollection collection, Snapshot snapshot) throws IOException {
+        writer.write('{');
+        long count = 0;
+        for (Map.Entry<String, Document> docEntry : collection.entrySet(snapshot)) {
+            if (count++ > 0) writer.write(',');
+            writer.write('\n');
+            writer.write(JSONObject.quote(docEntry.getKey()));
+            writer.write(':');
+            docEntry.getValue().writeJson(writer);
+        }
+        writer.write('}');
+        return count;
+    }
+
+    /** Receives load progress, called roughly every 64K characters read. */
+    public interface ProgressListener {
+        void onProgress(long charsRead, long totalBytes);
+    }
+
+    // Documents are handed to the parser threads in batches of this many
+    private static final int BATCH_SIZE = 512;
+
+    /**
+     * Loads a snapshot into {@code databases} and returns the number of documents read.
+     * One thread scans the file as a stream, cutting out the raw text of each document,
+     * and batches of documents are parsed on {@code parallelism} threads. Neither the
+     * whole file nor the whole object tree is ever held in memory.
+     */
+    public static long read(Path source, Map<String, ConcurrentHashMap<String, DocumentCollection>> databases,
+                            int parallelism, ProgressListener progress) throws IOException {
+        long totalBytes = Files.size(source);
+        Parser parser = new Parser(parallelism);
+
+        try (Reader reader = new InputStreamReader(Files.newInputStream(source), StandardCharsets.UTF_8)) {
+            Scanner in = new Scanner(reader, progress, totalBytes);
+
+            in.expect('{');
+            for (String dbName = in.firstKey(); dbName != null; dbName = in.nextKey()) {
+                ConcurrentHashMap<String, DocumentCollection> dbMap = new ConcurrentHashMap<>();
+                databases.put(dbName, dbMap);
+
+                in.expect('{');
+                for (String collName = in.firstKey(); collName != null; collName = in.nextKey()) {
+                    DocumentCollection collMap = new DocumentCollection();
+                    dbMap.put(collName, collMap);
+
+                    parser.documents(in, collMap::put);
+                    if (parser.failed()) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            parser.close();
+        }
+        return parser.result(source);
+    }
+
+    /**
+     * Reads the segment file {@code source}, handing each document to {@code documents}
+     * from up to {@code parallelism} threads, and returns how many there were.
+     */
+    public static long readSegment(Path source, int parallelism, BiConsumer<String, Document> documents) throws IOException {
+        Parser parser = new Parser(parallelism);
+        try (Reader reader = new InputStreamReader(Files.newInputStream(source), StandardCharsets.UTF_8)) {
+            parser.documents(new Scanner(reader, null, 0), documents);
+        } finally {
+            parser.close();
+        }
+        return parser.result(source);
+    }
+
+    /**
+     * Parses the documents the scanner cuts out, in batches on a pool of threads when
+     * there are several. {@link #close} waits for the batches still being parsed.
+     */
+    private static final class Parser implements Closeable {
+        private final ExecutorService pool;
+        // Bounds how much raw text is waiting for a parser thread
+        private final int maxInFlight;
+        private final Semaphore inFlight;
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final AtomicLong documents = new AtomicLong();
+
+        Parser(int parallelism) {
+            pool = parallelism > 1 ? Executors.newFixedThreadPool(parallelism, r -> {
+                Thread t = new Thread(r, "mpdb-loader");
+                t.setDaemon(true);
+                return t;
+            }) : null;
+            maxInFlight = Math.max(1, parallelism) * 4;
+            inFlight = new Semaphore(maxInFlight);
+        }
+
+        /** Reads one object of documents keyed by id, handing each to {@code sink}. */
+        void documents(Scanner in, BiConsumer<String, Document> sink) throws IOException {
+            List<String> batch = new ArrayList<>(BATCH_SIZE * 2);
+            in.expect('{');
+            for (String docId = in.firstKey(); docId != null; docId = in.nextKey()) {
+                batch.add(docId);
+                batch.add(in.rawObject());
+                if (batch.size() >= BATCH_SIZE * 2) {
+                    submit(sink, batch);
+                    batch = new ArrayList<>(BATCH_SIZE * 2);
+                }
+            }
+            submit(sink, batch);
+        }
+
+        private void submit(BiConsumer<String, Document> sink, List<String> batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            Runnable parse = () -> {
+                try {
+                    for (int i = 0; i < batch.size(); i += 2) {
+                        sink.accept(batch.get(i), Document.parse(batch.get(i + 1)));
+                    }
+                    documents.addAndGet(batch.size() / 2);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    inFlight.release();
+                }
+            };
+
+            inFlight.acquireUninterruptibly();
+            if (pool == null) {
+                parse.run();
+            } else {
+                pool.execute(parse);
+            }
+        }
+
+        boolean failed() {
+            return failure.get() != null;
+        }
+
+        /** The number of documents parsed, once closed; throws if any failed to parse. */
+        long result(Path source) throws IOException {
+            if (failure.get() != null) {
+                throw new IOException("Error parsing document in " + source + ": " + failure.get().getMessage(), failure.get());
+            }
+            return documents.get();
+        }
+
+        @Override
+        public void close() {
+            inFlight.acquireUninterruptibly(maxInFlight);
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Minimal JSON scanner for the three object levels above the documents. It reads
+     * the file in large chunks so there is no per-character locking or copying.
+     */
+    private static final class Scanner {
+        private final Reader reader;
+        private final ProgressListener progress;
+        private final long totalBytes;
+        private final char[] buffer = new char[1 << 16];
+        private int pos = 0;
+        private int limit = 0;
+        private long charsRead = 0;
+
+        Scanner(Reader reader, ProgressListener progress, long totalBytes) {
+            this.reader = reader;
+            this.progress = progress;
+            this.totalBytes = totalBytes;
+        }
+
+        private char next() throws IOException {
+            if (pos == limit) {
+                limit = reader.read(buffer);
+                pos = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    throw error("Unexpected end of file");
+                }
+                charsRead += limit;
+                if (progress != null) {
+                    progress.onProgress(charsRead, totalBytes);
+                }
+            }
+            return buffer[pos++];
+        }
+
+        private char nextClean() throws IOException {
+            char c;
+            do {
+                c = next();
+            } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+            return c;
+        }
+
+        private IOException error(String message) {
+            return new IOException(message + " at character " + (charsRead - limit + pos));
+        }
+
+        void expect(char expected) throws IOException {
+            char c = nextClean();
+            if (c != expected) {
+                throw error("Expected '" + expected + "' but found '" + c + "'");
+            }
+        }
+
+        /** The first key of an object just opened, or null if the object is empty. */
+        String firstKey() throws IOException {
+            char c = nextClean();
+            if (c == '}') {
+                return null;
+            }
+            return key(c);
+        }
+
+        /** The next key of the current object, or null once the object is closed. */
+        String nextKey() throws IOException {
+            char c = nextClean();
+            if (c == '}') {
+                return null;
+            }
+            if (c != ',') {
+                throw error("Expected ',' or '}' but found '" + c + "'");
+            }
+            return key(nextClean());
+        }
+
+        private String key(char quote) throws IOException {
+            if (quote != '"') {
+                throw error("Expected a key but found '" + quote + "'");
+            }
+
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    break;
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                c = next();
+                switch (c) {
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        char[] hex = {next(), next(), next(), next()};
+                        try {
+                            sb.append((char) Integer.parseInt(new String(hex), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Invalid escape \\u" + new String(hex));
+                        }
+                        break;
+                    default: sb.append(c);
+                }
+            }
+
+            expect(':');
+            return sb.toString();
+        }
+
+        /** The raw text of the object value that follows, brackets included. */
+        String rawObject() throws IOException {
+            expect('{');
+            StringBuilder sb = new StringBuilder(256).append('{');
+            int depth = 1;
+            boolean inString = false;
+
+            while (depth > 0) {
+                char c = next();
+                sb.append(c);
+                if (inString) {
+                    if (c == '\\') {
+                        sb.append(next());
+                    } else if (c == '"') {
+                        inString = false;
+                    }
+                } else if (c == '"') {
+                    inString = true;
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.server.storage;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.json.JSONException;
+
+import com.server.ServerConfig;
+import com.server.log.Log;
+import com.server.metrics.Histogram;
+
+/**
+ * Owns the in-memory databases and everything that keeps them durable: the segment
+ * files, the write-ahead log and the background checkpointer. The daemon opens it once
+ * at startup, before the first connection is accepted; request handlers only share it.
+ */
+public class StorageEngine implements Closeable {
+
+    public static final String DEFAULT_DATA_DIR = "data/";
+
+    private static StorageEngine instance;
+
+    // The single snapshot and index files used before segment files, moved into segments when found
+    private final Path snapshotFile;
+    private final Path indexFile;
+    private final Path walFile;
+    private final Path retiredWalFile;
+    private final SegmentStore segments;
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, DocumentCollection>> databases = new ConcurrentHashMap<>();
+
+    private WriteAheadLog wal;
+    private Checkpointer checkpointer;
+    private VersionCollector versionCollector;
+    private CollectionUnloader unloader;
+    // Commit sequence number of the last record replayed for each document, during replay
+    private Map<String, Long> replayedSequences;
+    // Nanoseconds per log write, including the fsync when every write is synced
+    private final Histogram walAppends = new Histogram();
+
+    private StorageEngine(Path dataDir) {
+        this.snapshotFile = dataDir.resolve("mpdb_data.json");
+        this.indexFile = dataDir.resolve("mpdb_indexes.json");
+        this.walFile = dataDir.resolve("mpdb_wal.log");
+        this.retiredWalFile = dataDir.resolve("mpdb_wal.log.checkpoint");
+        this.segments = new SegmentStore(dataDir, ServerConfig.loadThreads());
+    }
+
+    /**
+     * Opens the storage in {@code dataDir}: reads the manifest of the segment files,
+     * replays the write-ahead log on top of them and starts background checkpointing.
+     * Collections the log does not touch are loaded when first used.
+     */
+    public static StorageEngine open(Path dataDir) throws IOException {
+        Files.createDirectories(dataDir);
+        StorageEngine engine = new StorageEngine(dataDir);
+        engine.load();
+        return engine;
+    }
+
+    /** Opens the shared instance used by the daemon. Does nothing if it is already open. */
+    public static synchronized StorageEngine initialize(Path dataDir) throws IOException {
+        if (instance == null) {
+            instance = open(dataDir);
+        }
+        return instance;
+    }
+
+    /** The shared instance, opened on the default data directory if nobody initialized it. */
+    public static synchronized StorageEngine getInstance() {
+        if (instance == null) {
+            try {
+                instance = open(Paths.get(DEFAULT_DATA_DIR));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return instance;
+    }
+
+    private void load() throws IOException {
+        long start = System.nanoTime();
+        long documents = 0;
+        boolean migrating = false;
+
+        if (segments.exists()) {
+            documents = segments.open(databases);
+            if (Files.exists(snapshotFile)) {
+                Log.warn("⚠️ Ignoring " + snapshotFile + ", which the segment files replaced");
+            }
+        } else if (Files.exists(snapshotFile)) {
+            Log.info("⏳ Loading data from " + snapshotFile + " (" + Files.size(snapshotFile) / (1024 * 1024) + " MB)");
+            documents = SnapshotFile.read(snapshotFile, databases, ServerConfig.loadThreads(), new ProgressPrinter());
+            // Indexes built now are kept up to date by the log replay below
+            IndexFile.read(indexFile, databases);
+            migrating = true;
+        } else {
+            Log.info("🆕 No existing database file found. Starting fresh.");
+        }
+
+        // A retired log only exists if a checkpoint did not finish; it precedes the live log
+        replayedSequences = new HashMap<>();
+        long replayed = WriteAheadLog.replay(retiredWalFile, this::applyLogRecord)
+                + WriteAheadLog.replay(walFile, this::applyLogRecord);
+        replayedSequences = null;
+
+        if (migrating) {
+            int written = segments.write(databases);
+            // Kept under another name rather than deleted, in case the move has to be undone
+            Files.move(snapshotFile, migrated(snapshotFile), StandardCopyOption.REPLACE_EXISTING);
+            if (Files.exists(indexFile)) {
+                Files.move(indexFile, migrated(indexFile), StandardCopyOption.REPLACE_EXISTING);
+            }
+            Log.info("📦 Moved " + snapshotFile + " into " + written + " collection segment files, keeping it as "
+                    + migrated(snapshotFile));
+        }
+
+        wal = new WriteAheadLog(walFile,
+                WriteAheadLog.FsyncPolicy.parse(ServerConfig.walFsyncPolicy()),
+                ServerConfig.walFsyncIntervalMs());
+        checkpointer = new Checkpointer(wal, retiredWalFile,
+                // Read as of now, after the log was rotated, so the segments hold every write in the retired log
+                () -> segments.write(databases),
+                ServerConfig.checkpointWalBytes(),
+                ServerConfig.checkpointIntervalMs());
+        checkpointer.start();
+        versionCollector = new VersionCollector(databases, ServerConfig.versionCollectorIntervalMs());
+        versionCollector.start();
+        unloader = new CollectionUnloader(segments, databases, ServerConfig.unloadIdleMs());
+        if (ServerConfig.unloadIdleMs() > 0) {
+            unloader.start();
+        }
+
+        int collections = 0;
+        int loaded = 0;
+        for (ConcurrentHashMap<String, DocumentCollection> db : databases.values()) {
+            for (DocumentCollection collection : db.values()) {
+                collections++;
+                loaded += collection.isLoaded() ? 1 : 0;
+            }
+        }
+        Log.info("📝 Opened " + databases.size() + " databases with " + collections + " collections (" + documents
+                + " documents saved, " + loaded + " collections loaded) and replayed " + replayed + " log records in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    private static Path migrated(Path file) {
+        return file.resolveSibling(file.getFileName() + ".migrated");
+    }
+
+    // Prints a line every time another 10% of the snapshot has been read
+    private static class ProgressPrinter implements SnapshotFile.ProgressListener {
+        private final long start = System.nanoTime();
+        private int lastDecile = 0;
+
+        @Override
+        public void onProgress(long charsRead, long totalBytes) {
+            int decile = totalBytes == 0 ? 10 : (int) Math.min(10, charsRead * 10 / totalBytes);
+            if (decile > lastDecile) {
+                lastDecile = decile;
+                Log.info("⏳ Loaded " + decile * 10 + "% (" + charsRead / (1024 * 1024) + " MB) in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            }
+        }
+    }
+
+    public ConcurrentHashMap<String, ConcurrentHashMap<String, DocumentCollection>> getDatabases() {
+        return databases;
+    }
+
+    public VersionCollector getVersionCollector() {
+        return versionCollector;
+    }
+
+    public CollectionUnloader getCollectionUnloader() {
+        return unloader;
+    }
+
+    public Checkpointer getCheckpointer() {
+        return checkpointer;
+    }
+
+    /** Latency of write-ahead log appends, in nanoseconds. */
+    public Histogram getWalAppendLatency() {
+        return walAppends;
+    }
+
+    public static JSONObject logRecord(String op, String dbName) {
+        JSONObject record = new JSONObject();
+        record.put("op", op);
+        record.put("db", dbName);
+        return record;
+    }
+
+    public static JSONObject logRecord(String op, String dbName, String collectionName) {
+        return logRecord(op, dbName).put("coll", collectionName);
+    }
+
+    /**
+     * Appends a mutation that has already been applied in memory to the write-ahead log.
+     * Throws {@link UncheckedIOException} if the record could not be written, so the
+     * write is never acknowledged.
+     */
+    public void log(JSONObject record) {
+        long start = System.nanoTime();
+        try {
+            wal.append(record);
+            walAppends.record(System.nanoTime() - start);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing to write-ahead log: " + e.getMessage(), e);
+        }
+    }
+
+    /** Appends the mutations of a batch, already applied in memory, with one log write. */
+    public void log(List<JSONObject> records) {
+        long start = System.nanoTime();
+        try {
+            wal.appendAll(records);
+            walAppends.record(System.nanoTime() - start);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing to write-ahead log: " + e.getMessage(), e);
+        }
+    }
+
+    // Replays one write-ahead log record; records are idempotent so replaying onto
+    // a snapshot that already contains them is harmless
+    private void applyLogRecord(JSONObject record) {
+        String op = record.optString("op");
+        String dbName = record.optString("db");
+        ConcurrentHashMap<String, DocumentCollection> db = databases.get(dbName);
+        DocumentCollection collection = db == null ? null : db.get(record.optString("coll"));
+
+        switch (op) {
+            case "CREATE_DB":
+                databases.putIfAbsent(dbName, new ConcurrentHashMap<>());
+                break;
+            case "DELETE_DB":
+                databases.remove(dbName);
+                break;
+            case "CREATE_COLLECTION":
+                if (db != null) {
+                    db.putIfAbsent(record.optString("coll"), new DocumentCollection());
+                }
+                break;
+            case "DELETE_COLLECTION":
+                if (db != null) {
+                    db.remove(record.optString("coll"));
+                }
+                break;
+            case "CREATE_DOCUMENT":
+                if (collection != null && isLatest(record)) {
+                    collection.put(record.getString("id"),
+                            Document.fromJson(record.getJSONObject("doc")).withVersion(record.optLong("version", 1)));
+                }
+                break;
+            case "UPDATE_DOCUMENT":
+                if (collection == null || !isLatest(record)) {
+                    break;
+                } else if (!record.has("version")) {
+                    // Written before documents had versions
+                    collection.put(record.getString("id"), Document.fromJson(record.getJSONObject("doc")));
+                    break;
+                }
+                // Concurrent updates of a document may reach the log out of order, and one
+                // may even follow the delete it preceded; the version tells which is newer
+                Document updated = Document.fromJson(record.getJSONObject("doc")).withVersion(record.getLong("version"));
+                collection.computeIfPresent(record.getString("id"),
+                        (id, current) -> current.version() < updated.version() ? updated : current);
+                break;
+            case "DELETE_DOCUMENT":
+                if (collection != null && isLatest(record)) {
+                    collection.remove(record.getString("id"));
+                }
+                break;
+            case "CREATE_INDEX":
+                if (collection != null) {
+                    collection.createIndex(record.getString("field"), record.optString("type", HashIndex.TYPE));
+                }
+                break;
+            case "DROP_INDEX":
+                if (collection != null) {
+                    collection.dropIndex(record.getString("field"));
+                }
+                break;
+            default:
+                Log.error("❌ Unknown write-ahead log record: " + op);
+        }
+    }
+
+    // Whether a document record is newer than the last one replayed for its document. The
+    // writes to a document take increasing commit sequence numbers under its lock but may
+    // reach the log out of order, a delete before the create it followed for instance.
+    // Records written before they carried the number always apply.
+    private boolean isLatest(JSONObject record) {
+        if (!record.has("seq")) {
+            return true;
+        }
+        long sequence = record.getLong("seq");
+        Snapshot.advanceTo(sequence);
+        String key = record.optString("db") + '\0' + record.optString("coll") + '\0' + record.getString("id");
+        Long last = replayedSequences.get(key);
+        if (last != null && last > sequence) {
+            return false;
+        }
+        replayedSequences.put(key, sequence);
+        return true;
+    }
+
+    /**
+     * Folds the write-ahead log into the segment files right away instead of waiting
+     * for the background checkpointer.
+     */
+    public void checkpoint() {
+        try {
+            checkpointer.checkpoint();
+        } catch (IOException | JSONException e) {
+            Log.error("❌ Error saving data: " + e.getMessage(), e);
+        }
+    }
+
+    /** Stops background checkpointing, saves the changed collections and closes the log. */
+    @Override
+    public void close() {
+        unloader.close();
+        versionCollector.close();
+        checkpointer.close();
+        checkpoint();
+        try {
+            wal.close();
+        } catch (IOException e) {
+            Log.error("❌ Error closing write-ahead log: " + e.getMessage());
+        }
+    }
+}
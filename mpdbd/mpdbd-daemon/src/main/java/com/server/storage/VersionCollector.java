@@ -0,0 +1,83 @@
+package com.server.storage;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import com.server.log.Log;
+
+/**
+ * Drops, in the background, the document versions and tombstones that writes kept for
+ * open {@link Snapshot}s once no open snapshot can read them any more. Only documents
+ * written while a snapshot was open are visited, so a pass costs nothing while no
+ * snapshots are used.
+ */
+public class VersionCollector implements Closeable {
+
+    private final Map<String, ConcurrentHashMap<String, DocumentCollection>> databases;
+    private final long intervalMs;
+    private ScheduledExecutorService scheduler;
+
+    private volatile long lastHorizon = -1;
+    private volatile long collected = 0;
+
+    /**
+     * @param intervalMs how often to look for versions to drop
+     */
+    public VersionCollector(Map<String, ConcurrentHashMap<String, DocumentCollection>> databases, long intervalMs) {
+        this.databases = databases;
+        this.intervalMs = intervalMs;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "mpdb-version-collector");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::collectIfDue, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void collectIfDue() {
+        try {
+            // Nothing more can be dropped until the oldest snapshot closes or writes go on
+            long horizon = Snapshot.horizon();
+            if (horizon != lastHorizon) {
+                collect();
+            }
+        } catch (RuntimeException e) {
+            Log.error("❌ Version collection failed: " + e.getMessage(), e);
+        }
+    }
+
+    /** Drops every version no open snapshot can read now; returns how many were dropped. */
+    public synchronized long collect() {
+        long horizon = Snapshot.horizon();
+        long dropped = 0;
+        for (ConcurrentHashMap<String, DocumentCollection> db : databases.values()) {
+            for (DocumentCollection collection : db.values()) {
+                dropped += collection.collectVersions(horizon);
+            }
+        }
+        lastHorizon = horizon;
+        collected += dropped;
+        return dropped;
+    }
+
+    /** Versions and tombstones dropped so far. */
+    public long getCollected() {
+        return collected;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
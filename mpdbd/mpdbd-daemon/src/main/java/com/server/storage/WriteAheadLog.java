@@ -0,0 +1,222 @@
+package com.server.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+import org.json.JSONObject;
+import org.json.JSONException;
+
+import com.server.log.Log;
+
+/**
+ * Append-only log of mutations. Each record is one compact JSON object per line,
+ * so a write costs O(record size) instead of rewriting the whole data file.
+ * On startup the log is replayed on top of the last snapshot.
+ */
+public class WriteAheadLog implements Closeable {
+
+    public enum FsyncPolicy {
+        /** fsync after every append before the write is acknowledged */
+        ALWAYS,
+        /** fsync from a background thread every {@code fsyncIntervalMs} */
+        INTERVAL,
+        /** never fsync explicitly, the OS flushes dirty pages on its own schedule */
+        OS;
+
+        public static FsyncPolicy parse(String value) {
+            try {
+                return FsyncPolicy.valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                Log.error("❌ Unknown WAL fsync policy '" + value + "', using INTERVAL");
+                return INTERVAL;
+            }
+        }
+    }
+
+    private final Path file;
+    private final FsyncPolicy policy;
+    private FileChannel channel;
+    private volatile boolean dirty = false;
+    private ScheduledExecutorService syncer;
+
+    public WriteAheadLog(Path file, FsyncPolicy policy, long fsyncIntervalMs) throws IOException {
+        this.file = file;
+        this.policy = policy;
+        this.channel = openChannel(file);
+        discardTornTail();
+
+        if (policy == FsyncPolicy.INTERVAL) {
+            syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "mpdb-wal-sync");
+                t.setDaemon(true);
+                return t;
+            });
+            syncer.scheduleWithFixedDelay(this::syncIfDirty, fsyncIntervalMs, fsyncIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static FileChannel openChannel(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Drops a partial record left by a crash mid-append, otherwise the next record
+     * would be glued onto it and both would be lost on replay.
+     */
+    private void discardTornTail() throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return;
+        }
+
+        try (FileChannel reader = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer one = ByteBuffer.allocate(1);
+            long pos = size - 1;
+            while (pos >= 0) {
+                one.clear();
+                reader.read(one, pos);
+                if (one.get(0) == '\n') {
+                    break;
+                }
+                pos--;
+            }
+            long validSize = pos + 1;
+            if (validSize < size) {
+                Log.error("❌ Discarding " + (size - validSize) + " bytes of torn write-ahead log record");
+                channel.truncate(validSize);
+            }
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public FsyncPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Appends a single record. With {@link FsyncPolicy#ALWAYS} the record is on stable
+     * storage when this method returns.
+     */
+    public synchronized void append(JSONObject record) throws IOException {
+        write((record.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Appends a batch of records with a single write and, with {@link FsyncPolicy#ALWAYS},
+     * a single fsync. Each record is still its own line, so replay is unchanged.
+     */
+    public synchronized void appendAll(List<JSONObject> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder(records.size() * 128);
+        for (JSONObject record : records) {
+            sb.append(record.toString()).append('\n');
+        }
+        write(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        if (policy == FsyncPolicy.ALWAYS) {
+            channel.force(false);
+        } else {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Discards every record in the log. Callers must make sure the records are covered
+     * by a snapshot on disk first.
+     */
+    public synchronized void truncate() throws IOException {
+        channel.truncate(0);
+        channel.force(true);
+        dirty = false;
+    }
+
+    /**
+     * Moves the current log aside to {@code retired} and starts a new, empty log.
+     * Appends only wait for the rename, not for whatever is done with the retired file.
+     */
+    public synchronized void rotate(Path retired) throws IOException {
+        channel.force(false);
+        channel.close();
+        Files.move(file, retired, StandardCopyOption.ATOMIC_MOVE);
+        channel = openChannel(file);
+        dirty = false;
+    }
+
+    public synchronized long size() throws IOException {
+        return channel.size();
+    }
+
+    private synchronized void syncIfDirty() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            channel.force(false);
+            dirty = false;
+        } catch (IOException e) {
+            Log.error("❌ Error syncing write-ahead log: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+        if (channel.isOpen()) {
+            channel.force(false);
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads every complete record from the log and hands it to {@code apply}.
+     * A torn or corrupt record (e.g. after a crash mid-append) ends the replay.
+     *
+     * @return the number of records replayed
+     */
+    public static long replay(Path file, Consumer<JSONObject> apply) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+
+        long count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                JSONObject record;
+                try {
+                    record = new JSONObject(line);
+                } catch (JSONException e) {
+                    Log.error("❌ Ignoring torn write-ahead log record after " + count + " records");
+                    break;
+                }
+                apply.accept(record);
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,121 @@
+package com.mpdbd;
+
+import com.server.query.PlanCache;
+import com.server.query.Pipeline;
+import com.server.storage.Document;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AggregateTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Shop shop;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        shop = new Shop(tempDir, "orders");
+        String[][] orders = {
+            {"o1", "open", "ada", "10"},
+            {"o2", "open", "bob", "20.5"},
+            {"o3", "closed", "ada", "30"},
+            {"o4", "closed", "ada", "40"},
+            {"o5", "cancelled", "cy", "5"},
+        };
+        for (String[] order : orders) {
+            JSONObject document = new JSONObject().put("status", order[1])
+                    .put("customer", new JSONObject().put("name", order[2]))
+                    .put("total", order[3].contains(".") ? (Object) Double.parseDouble(order[3]) : (Object) Long.parseLong(order[3]));
+            shop.insert("orders", order[0], document);
+        }
+    }
+
+    @AfterEach
+    public void cleanup() {
+        shop.close();
+    }
+
+    private JSONObject aggregate(String pipeline) {
+        return shop.send(Shop.request("AGGREGATE", "orders").put("pipeline", new JSONArray(pipeline)));
+    }
+
+    @Test
+    public void testGroupWithAccumulators() {
+        JSONObject response = aggregate("[{\"$group\":{\"_id\":\"$status\",\"n\":{\"$count\":{}},\"total\":{\"$sum\":\"$total\"},"
+                + "\"avg\":{\"$avg\":\"$total\"},\"min\":{\"$min\":\"$total\"},\"max\":{\"$max\":\"$customer.name\"}}},"
+                + "{\"$sort\":{\"_id\":1}}]");
+        assertEquals("success", response.getString("status"));
+        assertEquals(3, response.getInt("count"));
+
+        JSONArray results = response.getJSONArray("results");
+        assertTrue(new JSONObject("{\"_id\":\"cancelled\",\"n\":1,\"total\":5,\"avg\":5.0,\"min\":5,\"max\":\"cy\"}").similar(results.get(0)));
+        assertTrue(new JSONObject("{\"_id\":\"closed\",\"n\":2,\"total\":70,\"avg\":35.0,\"min\":30,\"max\":\"ada\"}").similar(results.get(1)));
+        assertTrue(new JSONObject("{\"_id\":\"open\",\"n\":2,\"total\":30.5,\"avg\":15.25,\"min\":10,\"max\":\"bob\"}").similar(results.get(2)));
+    }
+
+    @Test
+    public void testMatchCompoundGroupSortAndLimit() {
+        JSONObject response = aggregate("[{\"$match\":{\"status\":{\"$ne\":\"cancelled\"}}},"
+                + "{\"$group\":{\"_id\":{\"customer\":\"$customer.name\",\"status\":\"$status\"},\"spent\":{\"$sum\":\"$total\"}}},"
+                + "{\"$sort\":{\"spent\":-1}},{\"$limit\":2}]");
+        JSONArray results = response.getJSONArray("results");
+        assertEquals(2, results.length());
+        assertEquals("{\"customer\":\"ada\",\"status\":\"closed\"}", results.getJSONObject(0).getJSONObject("_id").toString());
+        assertEquals(70, results.getJSONObject(0).getLong("spent"));
+        assertEquals("bob", results.getJSONObject(1).getJSONObject("_id").getString("customer"));
+
+        // Grouping everything under a constant, after an indexed $match and a projection
+        shop.send(Shop.request("CREATE_INDEX", "orders").put("field", "status"));
+        response = aggregate("[{\"$match\":{\"status\":\"closed\"}},{\"$project\":[\"total\"]},"
+                + "{\"$group\":{\"_id\":null,\"n\":{\"$sum\":1},\"total\":{\"$sum\":\"$total\"},\"who\":{\"$min\":\"$customer.name\"}}}]");
+        assertTrue(new JSONObject("{\"_id\":null,\"n\":2,\"total\":70,\"who\":null}").similar(response.getJSONArray("results").get(0)),
+                response.toString());
+    }
+
+    @Test
+    public void testLimitStopsTheScan() {
+        Pipeline pipeline = Pipeline.compile(new JSONArray("[{\"$limit\":2},{\"$project\":{\"total\":0}}]"), new PlanCache(0));
+        Document order = Document.parse("{\"status\":\"open\",\"total\":1}");
+        assertTrue(pipeline.accept(order));
+        assertFalse(pipeline.accept(order));
+        List<Document> results = pipeline.finish();
+        assertEquals(2, results.size());
+        assertEquals(List.of("status"), results.get(0).keys());
+
+        JSONObject response = aggregate("[{\"$sort\":{\"total\":1}},{\"$limit\":1}]");
+        assertEquals(5, response.getJSONArray("results").getJSONObject(0).getLong("total"));
+    }
+
+    @Test
+    public void testInvalidPipelines() {
+        String[][] cases = {
+            {"[{\"$bogus\":{}}]", "Invalid pipeline: Unknown stage: $bogus"},
+            {"[{\"$match\":{},\"$limit\":1}]", "Invalid pipeline: Stage 0 must be an object with a single stage name."},
+            {"[{\"$limit\":0}]", "Invalid pipeline: $limit must be a positive integer."},
+            {"[{\"$sort\":{\"total\":2}}]", "Invalid pipeline: $sort must be an object setting fields to 1 or -1."},
+            {"[{\"$group\":{\"n\":{\"$count\":{}}}}]", "Invalid pipeline: $group must be an object with an _id."},
+            {"[{\"$group\":{\"_id\":null,\"n\":{\"$median\":\"$total\"}}}]", "Invalid pipeline: Unknown accumulator $median in $group field n."},
+            {"[{\"$group\":{\"_id\":null,\"n\":{\"$avg\":\"total\"}}}]",
+                "Invalid pipeline: $group field n must be a field reference such as \"$field\"."},
+        };
+        for (String[] c : cases) {
+            JSONObject response = aggregate(c[0]);
+            assertEquals("error", response.getString("status"));
+            assertEquals(c[1], response.getString("message"));
+        }
+
+        JSONObject missing = shop.send(Shop.request("AGGREGATE", "orders"));
+        assertEquals("dbName, collectionName, and pipeline are required.", missing.getString("message"));
+    }
+}
@@ -0,0 +1,101 @@
+package com.mpdbd;
+
+import com.server.storage.DocumentCollection;
+import com.server.storage.StorageEngine;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BulkWriteTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Shop shop;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        shop = new Shop(tempDir, "items");
+    }
+
+    @AfterEach
+    public void cleanup() {
+        shop.close();
+    }
+
+    private JSONObject bulkWrite(boolean ordered, JSONArray operations) {
+        return shop.send(Shop.request("BULK_WRITE", "items").put("ordered", ordered).put("operations", operations));
+    }
+
+    private static JSONObject insert(String id, int price) {
+        return new JSONObject().put("op", "insert").put("documentId", id).put("document", new JSONObject().put("price", price));
+    }
+
+    private static DocumentCollection items(StorageEngine engine) {
+        return engine.getDatabases().get(Shop.DB).get("items");
+    }
+
+    @Test
+    public void testMixedBatch() throws IOException {
+        JSONObject response = bulkWrite(true, new JSONArray()
+                .put(insert("a", 1))
+                .put(insert("b", 2))
+                .put(new JSONObject().put("op", "insert").put("document", new JSONObject().put("price", 3)))
+                .put(new JSONObject().put("op", "update").put("documentId", "a").put("updates", new JSONObject().put("price", 10)))
+                .put(new JSONObject().put("op", "delete").put("documentId", "b")));
+
+        assertEquals("success", response.getString("status"));
+        assertEquals(3, response.getInt("insertedCount"));
+        assertEquals(1, response.getInt("updatedCount"));
+        assertEquals(1, response.getInt("deletedCount"));
+        assertEquals(5, response.getJSONArray("results").length());
+        String generatedId = response.getJSONArray("results").getJSONObject(2).getString("documentId");
+
+        // Everything reached the log and survives a restart
+        StorageEngine reopened = StorageEngine.open(tempDir);
+        assertEquals(2, items(reopened).size());
+        assertEquals(10L, items(reopened).get("a").get("price"));
+        assertTrue(items(reopened).containsKey(generatedId));
+        reopened.close();
+    }
+
+    @Test
+    public void testOrderedBatchStopsAtFirstError() {
+        JSONObject response = bulkWrite(true, new JSONArray()
+                .put(insert("a", 1))
+                .put(insert("a", 2))
+                .put(insert("c", 3)));
+
+        assertEquals("error", response.getString("status"));
+        assertEquals(1, response.getInt("insertedCount"));
+        JSONArray results = response.getJSONArray("results");
+        assertEquals(2, results.length());
+        assertEquals("Document with ID 'a' already exists.", results.getJSONObject(1).getString("message"));
+        assertFalse(shop.collection("items").containsKey("c"));
+        assertEquals(1L, shop.collection("items").get("a").get("price"));
+    }
+
+    @Test
+    public void testUnorderedBatchAttemptsEveryOperation() {
+        JSONObject response = bulkWrite(false, new JSONArray()
+                .put(insert("a", 1))
+                .put(new JSONObject().put("op", "delete").put("documentId", "missing"))
+                .put(new JSONObject().put("op", "upsert"))
+                .put(insert("c", 3)));
+
+        assertEquals("error", response.getString("status"));
+        assertEquals(2, response.getInt("insertedCount"));
+        assertEquals(2, response.getInt("errorCount"));
+        assertEquals(4, response.getJSONArray("results").length());
+        assertEquals("Unknown operation: upsert", response.getJSONArray("results").getJSONObject(2).getString("message"));
+        assertTrue(shop.collection("items").containsKey("c"));
+    }
+}
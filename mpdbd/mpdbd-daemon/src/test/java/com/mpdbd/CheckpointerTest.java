@@ -0,0 +1,138 @@
+package com.mpdbd;
+
+import com.server.storage.Checkpointer;
+import com.server.storage.Document;
+import com.server.storage.DocumentCollection;
+import com.server.storage.SnapshotFile;
+import com.server.storage.WriteAheadLog;
+import com.server.storage.WriteAheadLog.FsyncPolicy;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CheckpointerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path snapshot;
+    private Path walFile;
+    private Path retired;
+    private WriteAheadLog wal;
+    private ConcurrentHashMap<String, ConcurrentHashMap<String, DocumentCollection>> databases;
+    private DocumentCollection collection;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        snapshot = tempDir.resolve("mpdb_data.json");
+        walFile = tempDir.resolve("mpdb_wal.log");
+        retired = tempDir.resolve("mpdb_wal.log.checkpoint");
+        wal = new WriteAheadLog(walFile, FsyncPolicy.OS, 0);
+
+        databases = new ConcurrentHashMap<>();
+        collection = new DocumentCollection();
+        databases.computeIfAbsent("db", k -> new ConcurrentHashMap<>()).put("coll", collection);
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        wal.close();
+    }
+
+    private void put(String id, int value) throws IOException {
+        JSONObject doc = new JSONObject().put("value", value);
+        collection.put(id, Document.fromJson(doc));
+        wal.append(new JSONObject().put("op", "CREATE_DOCUMENT").put("id", id).put("doc", doc));
+    }
+
+    // Recovery as the daemon does it: snapshot, then the retired log, then the live log
+    private DocumentCollection recover() throws IOException {
+        ConcurrentHashMap<String, ConcurrentHashMap<String, DocumentCollection>> recovered = new ConcurrentHashMap<>();
+        if (Files.exists(snapshot)) {
+            SnapshotFile.read(snapshot, recovered, 1, null);
+        }
+        DocumentCollection coll = recovered
+                .computeIfAbsent("db", k -> new ConcurrentHashMap<>())
+                .computeIfAbsent("coll", k -> new DocumentCollection());
+        WriteAheadLog.replay(retired, r -> coll.put(r.getString("id"), Document.fromJson(r.getJSONObject("doc"))));
+        WriteAheadLog.replay(walFile, r -> coll.put(r.getString("id"), Document.fromJson(r.getJSONObject("doc"))));
+        return coll;
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws IOException {
+        collection.put("a", Document.fromJson(new JSONObject().put("name", "quote \" and\nnewline")));
+        databases.put("empty", new ConcurrentHashMap<>());
+        SnapshotFile.write(snapshot, databases);
+
+        // The snapshot stays a plain JSON document
+        JSONObject parsed = new JSONObject(new String(Files.readAllBytes(snapshot), "UTF-8"));
+        assertEquals("quote \" and\nnewline", parsed.getJSONObject("db").getJSONObject("coll").getJSONObject("a").getString("name"));
+
+        ConcurrentHashMap<String, ConcurrentHashMap<String, DocumentCollection>> loaded = new ConcurrentHashMap<>();
+        SnapshotFile.read(snapshot, loaded, 2, null);
+        assertEquals(databases.keySet(), loaded.keySet());
+        assertTrue(loaded.get("empty").isEmpty());
+        assertFalse(Files.exists(tempDir.resolve("mpdb_data.json.tmp")));
+    }
+
+    @Test
+    public void testCheckpointTruncatesLog() throws IOException {
+        Checkpointer checkpointer = new Checkpointer(wal, retired, () -> SnapshotFile.write(snapshot, databases), Long.MAX_VALUE, Long.MAX_VALUE);
+
+        for (int i = 0; i < 10; i++) {
+            put("doc-" + i, i);
+        }
+        assertTrue(wal.size() > 0);
+
+        assertTrue(checkpointer.checkpoint());
+        assertEquals(0, wal.size());
+        assertFalse(Files.exists(retired));
+        assertEquals(1, checkpointer.getCheckpointCount());
+
+        // Nothing new was logged, so there is nothing to do
+        assertFalse(checkpointer.checkpoint());
+
+        put("doc-10", 10);
+        DocumentCollection recovered = recover();
+        assertEquals(11, recovered.size());
+        assertEquals(10, ((Long) recovered.get("doc-10").get("value")).intValue());
+    }
+
+    @Test
+    public void testRecoveryAfterInterruptedCheckpoint() throws IOException {
+        Checkpointer failing = new Checkpointer(wal, retired, () -> {
+            throw new IOException("disk full");
+        }, Long.MAX_VALUE, Long.MAX_VALUE);
+
+        put("a", 1);
+        put("b", 2);
+        assertThrows(IOException.class, failing::checkpoint);
+        assertTrue(Files.exists(retired));
+
+        // Writes keep going to the new live log meanwhile
+        put("a", 3);
+
+        DocumentCollection recovered = recover();
+        assertEquals(3, ((Long) recovered.get("a").get("value")).intValue());
+        assertEquals(2, ((Long) recovered.get("b").get("value")).intValue());
+
+        // The next checkpoint covers the retired log without losing the live one
+        Checkpointer checkpointer = new Checkpointer(wal, retired, () -> SnapshotFile.write(snapshot, databases), Long.MAX_VALUE, Long.MAX_VALUE);
+        assertTrue(checkpointer.checkpoint());
+        assertFalse(Files.exists(retired));
+
+        recovered = recover();
+        assertEquals(3, ((Long) recovered.get("a").get("value")).intValue());
+        assertEquals(2, recovered.size());
+    }
+}
@@ -30,6 +30,8 @@ public class ClientHandlerTest {
     private static final String TEST_COLLECTION = "testCollection";
     private static final String DATA_DIR = "data/";
     private static final String DB_FILE = DATA_DIR + "mpdb_data.json";
+    private static final String WAL_FILE = DATA_DIR + "mpdb_wal.log";
+    private static final String MANIFEST_FILE = DATA_DIR + "mpdb_manifest.json";
 
     @BeforeAll
     public void setupAll() throws IOException {
@@ -38,6 +40,8 @@ public class ClientHandlerTest {
         
         // Delete any existing test file
         Files.deleteIfExists(Paths.get(DB_FILE));
+        Files.deleteIfExists(Paths.get(WAL_FILE));
+        Files.deleteIfExists(Paths.get(MANIFEST_FILE));
     }
 
     @BeforeEach
@@ -67,6 +71,8 @@ public class ClientHandlerTest {
     public void cleanupAll() throws IOException {
         // Clean up test database file
         Files.deleteIfExists(Paths.get(DB_FILE));
+        Files.deleteIfExists(Paths.get(WAL_FILE));
+        Files.deleteIfExists(Paths.get(MANIFEST_FILE));
     }
 
     private JSONObject sendRequest(JSONObject request) throws IOException {
@@ -0,0 +1,108 @@
+package com.mpdbd;
+
+import com.server.RequestHandler;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CountTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Shop shop;
+    private RequestHandler handler;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        shop = new Shop(tempDir, "orders", "empty");
+        handler = shop.handler;
+        for (int i = 0; i < 30; i++) {
+            shop.insert("orders", "order" + i, new JSONObject().put("status", i % 3 == 0 ? "open" : "closed").put("total", i));
+        }
+    }
+
+    @AfterEach
+    public void cleanup() {
+        System.clearProperty("mpdb.query.parallelThreshold");
+        System.clearProperty("mpdb.query.parallelism");
+        System.clearProperty("mpdb.query.resultCacheSize");
+        shop.close();
+    }
+
+    private JSONObject send(String action, String collection, JSONObject fields) {
+        JSONObject request = new JSONObject(fields.toString()).put("action", action).put("dbName", Shop.DB).put("collectionName", collection);
+        return new JSONObject(handler.handle(request.toString()));
+    }
+
+    private int count(JSONObject query) {
+        JSONObject fields = query == null ? new JSONObject() : new JSONObject().put("query", query);
+        JSONObject response = send("COUNT", "orders", fields);
+        assertEquals("success", response.getString("status"), response.toString());
+        return response.getInt("count");
+    }
+
+    private boolean exists(JSONObject fields) {
+        return send("EXISTS", "orders", fields).getBoolean("exists");
+    }
+
+    @Test
+    public void testCountWithAndWithoutIndexes() {
+        JSONObject open = new JSONObject().put("status", "open");
+        JSONObject openAndSmall = new JSONObject().put("status", "open").put("total", new JSONObject().put("$lt", 10));
+
+        assertEquals(30, count(null));
+        assertEquals(30, count(new JSONObject()));
+        assertEquals(10, count(open));
+        assertEquals(4, count(openAndSmall));
+        assertEquals(0, send("COUNT", "empty", new JSONObject()).getInt("count"));
+
+        // Index candidates are checked against the whole filter
+        send("CREATE_INDEX", "orders", new JSONObject().put("field", "status"));
+        assertEquals(10, count(open));
+        assertEquals(4, count(openAndSmall));
+
+        // A scan split across the scan threads counts the same
+        System.setProperty("mpdb.query.parallelThreshold", "8");
+        System.setProperty("mpdb.query.parallelism", "4");
+        handler = new RequestHandler(shop.storage);
+        assertEquals(20, count(new JSONObject().put("total", new JSONObject().put("$gte", 10))));
+    }
+
+    @Test
+    public void testExists() {
+        assertTrue(exists(new JSONObject()));
+        assertFalse(send("EXISTS", "empty", new JSONObject()).getBoolean("exists"));
+        assertTrue(exists(new JSONObject().put("query", new JSONObject().put("total", 29))));
+        assertFalse(exists(new JSONObject().put("query", new JSONObject().put("total", 30))));
+
+        assertTrue(exists(new JSONObject().put("documentId", "order3")));
+        assertFalse(exists(new JSONObject().put("documentId", "order30")));
+        assertTrue(exists(new JSONObject().put("documentId", "order3").put("query", new JSONObject().put("status", "open"))));
+        assertFalse(exists(new JSONObject().put("documentId", "order4").put("query", new JSONObject().put("status", "open"))));
+
+        send("CREATE_INDEX", "orders", new JSONObject().put("field", "status"));
+        assertTrue(exists(new JSONObject().put("query", new JSONObject().put("status", "closed"))));
+        assertFalse(exists(new JSONObject().put("query", new JSONObject().put("status", "lost"))));
+    }
+
+    @Test
+    public void testInvalidRequests() {
+        JSONObject response = send("COUNT", "orders", new JSONObject().put("query", "open"));
+        assertEquals("error", response.getString("status"));
+        assertEquals("query must be an object.", response.getString("message"));
+
+        response = new JSONObject(handler.handle("{\"action\":\"EXISTS\",\"dbName\":\"shop\"}"));
+        assertEquals("dbName and collectionName are required.", response.getString("message"));
+
+        response = send("COUNT", "missing", new JSONObject());
+        assertEquals("Collection 'missing' not found in database 'shop'.", response.getString("message"));
+    }
+}
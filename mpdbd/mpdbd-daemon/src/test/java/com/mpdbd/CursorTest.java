@@ -0,0 +1,226 @@
+package com.mpdbd;
+
+import com.server.ClientHandler;
+import com.server.RequestHandler;
+import com.server.Session;
+import com.server.storage.Snapshot;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class CursorTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Shop shop;
+    private RequestHandler handler;
+    private Session session;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        shop = new Shop(tempDir, "users", "empty");
+        handler = shop.handler;
+        session = new Session(false);
+        for (int i = 0; i < 5; i++) {
+            shop.insert("users", "user" + i, new JSONObject().put("age", 20 + i));
+        }
+    }
+
+    @AfterEach
+    public void cleanup() {
+        System.clearProperty("mpdb.cursor.maxPerConnection");
+        System.clearProperty("mpdb.cursor.idleTimeoutMs");
+        shop.close();
+    }
+
+    private JSONObject send(Session on, JSONObject request) {
+        return new JSONObject(handler.handle(request.toString(), on));
+    }
+
+    private JSONObject query(Session on, int batchSize) {
+        return send(on, Shop.request("QUERY", "users")
+                .put("query", new JSONObject()).put("sortBy", "age").put("batchSize", batchSize));
+    }
+
+    private JSONObject getMore(Session on, long cursorId) {
+        return send(on, new JSONObject().put("action", "GET_MORE").put("cursorId", cursorId));
+    }
+
+    @Test
+    public void testQueryIsReturnedInBatches() {
+        JSONObject first = query(session, 2);
+        assertEquals("success", first.getString("status"));
+        assertEquals(5, first.getInt("totalMatches"));
+        assertEquals(2, first.getInt("count"));
+        assertTrue(first.getBoolean("hasMore"));
+        long cursorId = first.getLong("cursorId");
+
+        List<Set<String>> batches = new ArrayList<>();
+        batches.add(first.getJSONObject("documents").keySet());
+        JSONObject next = getMore(session, cursorId);
+        batches.add(next.getJSONObject("documents").keySet());
+        assertTrue(next.getBoolean("hasMore"));
+        JSONObject last = getMore(session, cursorId);
+        batches.add(last.getJSONObject("documents").keySet());
+        assertFalse(last.getBoolean("hasMore"));
+        assertFalse(last.has("cursorId"));
+
+        assertEquals(List.of(Set.of("user0", "user1"), Set.of("user2", "user3"), Set.of("user4")), batches);
+
+        // A cursor read to the end is closed
+        JSONObject gone = getMore(session, cursorId);
+        assertEquals("error", gone.getString("status"));
+        assertTrue(gone.getString("message").startsWith("Cursor " + cursorId + " not found."));
+    }
+
+    @Test
+    public void testUnsortedQueryIsReadAsTheCursorGoes() {
+        JSONObject request = Shop.request("QUERY", "users")
+                .put("query", new JSONObject().put("age", new JSONObject().put("$gte", 21))).put("skip", 1).put("limit", 2)
+                .put("batchSize", 1);
+        JSONObject first = send(session, request);
+        // Counting the matches would take a second scan
+        assertFalse(first.has("totalMatches"));
+        long cursorId = first.getLong("cursorId");
+
+        // Deleted after the query began, so the cursor still reads them
+        for (int i = 0; i < 5; i++) {
+            handler.handle(Shop.request("DELETE_DOCUMENT", "users")
+                    .put("documentId", "user" + i).toString());
+        }
+        JSONObject last = getMore(session, cursorId);
+        assertEquals(1, last.getInt("count"));
+        assertFalse(last.getBoolean("hasMore"));
+
+        Set<String> ids = new HashSet<>(first.getJSONObject("documents").keySet());
+        ids.addAll(last.getJSONObject("documents").keySet());
+        assertEquals(2, ids.size());
+        assertTrue(Set.of("user1", "user2", "user3", "user4").containsAll(ids));
+        // A cursor's result is read once, so it is not cached
+        assertEquals(0, handler.getResultCache().size());
+    }
+
+    @Test
+    public void testResultThatFitsOneBatchOpensNoCursor() {
+        JSONObject response = query(session, 10);
+        assertEquals(5, response.getInt("count"));
+        assertFalse(response.getBoolean("hasMore"));
+        assertFalse(response.has("cursorId"));
+
+        JSONObject invalid = query(session, 0);
+        assertEquals("error", invalid.getString("status"));
+        assertEquals("batchSize must be a positive integer.", invalid.getString("message"));
+    }
+
+    @Test
+    public void testReadDocumentsAndReadDbInBatches() {
+        Set<String> ids = new HashSet<>();
+        JSONObject response = send(session, Shop.request("READ_DOCUMENTS", "users").put("batchSize", 3));
+        ids.addAll(response.getJSONObject("documents").keySet());
+        while (response.getBoolean("hasMore")) {
+            response = getMore(session, response.getLong("cursorId"));
+            assertTrue(response.getInt("count") <= 3);
+            ids.addAll(response.getJSONObject("documents").keySet());
+        }
+        assertEquals(Set.of("user0", "user1", "user2", "user3", "user4"), ids);
+
+        Set<String> collections = new HashSet<>();
+        ids.clear();
+        response = send(session, new JSONObject().put("action", "READ_DB").put("dbName", Shop.DB).put("batchSize", 2));
+        while (true) {
+            JSONObject data = response.getJSONObject("data");
+            for (String collection : data.keySet()) {
+                collections.add(collection);
+                ids.addAll(data.getJSONObject(collection).keySet());
+            }
+            if (!response.getBoolean("hasMore")) {
+                break;
+            }
+            response = getMore(session, response.getLong("cursorId"));
+        }
+        assertEquals(Set.of("users", "empty"), collections);
+        assertEquals(5, ids.size());
+    }
+
+    @Test
+    public void testCursorsBelongToTheirConnectionAndAreLimited() {
+        System.setProperty("mpdb.cursor.maxPerConnection", "2");
+        handler = new RequestHandler(shop.storage);
+
+        long first = query(session, 1).getLong("cursorId");
+        query(session, 1);
+        JSONObject refused = query(session, 1);
+        assertEquals("error", refused.getString("status"));
+        assertTrue(refused.getString("message").startsWith("Too many open cursors on this connection (limit 2)"));
+
+        // Another connection neither sees these cursors nor counts them
+        Session other = new Session(false);
+        assertEquals("error", getMore(other, first).getString("status"));
+        assertTrue(query(other, 1).has("cursorId"));
+
+        JSONObject killed = send(session, new JSONObject().put("action", "KILL_CURSOR").put("cursorId", first));
+        assertEquals("Cursor " + first + " closed.", killed.getString("message"));
+        assertEquals("error", getMore(session, first).getString("status"));
+        assertTrue(query(session, 1).has("cursorId"));
+
+        // Closing the connection releases its cursors, and requests still running on it open none
+        session.close();
+        JSONObject closed = query(session, 1);
+        assertEquals("error", closed.getString("status"));
+        assertEquals("Connection closed", closed.getString("message"));
+        assertEquals(0, send(session, Shop.request("READ_DOCUMENTS", "users").put("batchSize", 1)).optLong("cursorId"));
+    }
+
+    @Test
+    public void testResetConnectionReleasesItsCursors() throws IOException {
+        int open = Snapshot.openCount();
+        String request = Shop.request("READ_DOCUMENTS", "users").put("batchSize", 1) + "\n";
+        InputStream reset = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+        Socket socket = mock(Socket.class);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        when(socket.getInputStream()).thenReturn(new SequenceInputStream(
+                new ByteArrayInputStream(request.getBytes(StandardCharsets.UTF_8)), reset));
+        when(socket.getOutputStream()).thenReturn(output);
+
+        new ClientHandler(socket, handler).run();
+
+        assertTrue(new JSONObject(output.toString(StandardCharsets.UTF_8).trim()).getBoolean("hasMore"));
+        assertEquals(open, Snapshot.openCount());
+        verify(socket).close();
+    }
+
+    @Test
+    public void testIdleCursorsAreClosed() throws InterruptedException {
+        System.setProperty("mpdb.cursor.idleTimeoutMs", "50");
+        handler = new RequestHandler(shop.storage);
+
+        long cursorId = query(session, 1).getLong("cursorId");
+        assertEquals("success", getMore(session, cursorId).getString("status"));
+        Thread.sleep(100);
+        assertEquals("error", getMore(session, cursorId).getString("status"));
+    }
+}
@@ -0,0 +1,80 @@
+package com.mpdbd;
+
+import com.server.storage.Document;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DocumentTest {
+
+    private static final String JSON = "{\"name\":\"Product 1\",\"price\":15.5,\"quantity\":10,\"inStock\":true,"
+            + "\"discontinued\":null,\"tags\":[\"a\",2,{\"x\":1}],\"dims\":{\"w\":3,\"h\":4.25}}";
+
+    @Test
+    public void testValuesAreTyped() {
+        Document doc = Document.parse(JSON);
+
+        assertEquals("Product 1", doc.get("name"));
+        assertEquals(15.5, doc.get("price"));
+        assertEquals(10L, doc.get("quantity"));
+        assertEquals(Boolean.TRUE, doc.get("inStock"));
+        assertEquals(JSONObject.NULL, doc.get("discontinued"));
+        assertNull(doc.get("missing"));
+        assertFalse(doc.has("missing"));
+
+        List<?> tags = (List<?>) doc.get("tags");
+        assertEquals(3, tags.size());
+        assertEquals(2L, tags.get(1));
+        assertEquals(1L, ((Document) tags.get(2)).get("x"));
+
+        assertEquals(4.25, doc.getDocument("dims").get("h"));
+        assertNull(doc.getDocument("name"));
+    }
+
+    @Test
+    public void testJsonRoundTrip() {
+        Document doc = Document.parse(JSON);
+
+        JSONObject json = doc.toJSONObject();
+        assertTrue(json.similar(new JSONObject(JSON)));
+        assertTrue(new JSONObject(doc.toString()).similar(new JSONObject(JSON)));
+        assertTrue(json.get("tags") instanceof JSONArray);
+
+        assertEquals(doc, Document.parse(doc.toString()));
+        assertEquals("{}", Document.parse("{}").toString());
+    }
+
+    @Test
+    public void testWithReturnsUpdatedCopy() {
+        Document doc = Document.parse(JSON);
+        Document updated = doc.with(new JSONObject().put("quantity", 11).put("color", "red"));
+
+        assertEquals(10L, doc.get("quantity"));
+        assertFalse(doc.has("color"));
+        assertEquals(11L, updated.get("quantity"));
+        assertEquals("red", updated.get("color"));
+        assertEquals(doc.size() + 1, updated.size());
+    }
+
+    @Test
+    public void testDocumentsWithSameFieldsShareKeys() {
+        Document a = Document.parse("{\"category\":\"Books\",\"n\":1}");
+        Document b = Document.parse("{\"n\":2,\"category\":\"Books\"}");
+
+        assertEquals(a.keys(), b.keys());
+        assertSame(a.key(0), b.key(0));
+        assertSame(a.get("category"), b.get("category"));
+        assertNotEquals(a, b);
+    }
+
+    @Test
+    public void testLargeNumbers() {
+        Document doc = Document.parse("{\"big\":123456789012345678901234567890,\"long\":9007199254740993}");
+        assertTrue(doc.get("big") instanceof Double);
+        assertEquals(9007199254740993L, doc.get("long"));
+    }
+}
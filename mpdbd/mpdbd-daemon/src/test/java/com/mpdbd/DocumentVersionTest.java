@@ -0,0 +1,218 @@
+package com.mpdbd;
+
+import com.server.storage.Document;
+import com.server.storage.DocumentCollection;
+import com.server.storage.StorageEngine;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DocumentVersionTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Shop shop;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        shop = new Shop(tempDir, "stock");
+    }
+
+    @AfterEach
+    public void cleanup() {
+        shop.close();
+    }
+
+    private JSONObject send(String action, JSONObject fields) {
+        JSONObject request = new JSONObject(fields.toString()).put("action", action).put("dbName", Shop.DB).put("collectionName", "stock");
+        return shop.send(request);
+    }
+
+    private JSONObject update(String id, JSONObject updates, Long expectedVersion) {
+        JSONObject fields = new JSONObject().put("documentId", id).put("updates", updates);
+        if (expectedVersion != null) {
+            fields.put("expectedVersion", expectedVersion);
+        }
+        return send("UPDATE_DOCUMENT", fields);
+    }
+
+    @Test
+    public void testWritesReturnVersions() {
+        JSONObject created = send("CREATE_DOCUMENT", new JSONObject().put("documentId", "apple").put("document", new JSONObject().put("qty", 5)));
+        assertEquals(1, created.getLong("version"));
+        assertEquals(1, send("READ_DOCUMENT", new JSONObject().put("documentId", "apple")).getLong("version"));
+
+        assertEquals(2, update("apple", new JSONObject().put("qty", 4), null).getLong("version"));
+        JSONObject read = send("READ_DOCUMENT", new JSONObject().put("documentId", "apple"));
+        assertEquals(2, read.getLong("version"));
+        assertEquals(4, read.getJSONObject("document").getInt("qty"));
+
+        JSONObject duplicate = send("CREATE_DOCUMENT", new JSONObject().put("documentId", "apple").put("document", new JSONObject()));
+        assertEquals("Document with ID 'apple' already exists.", duplicate.getString("message"));
+        assertEquals(2, send("READ_DOCUMENT", new JSONObject().put("documentId", "apple")).getLong("version"));
+    }
+
+    @Test
+    public void testExpectedVersionIsCompareAndSet() {
+        send("CREATE_DOCUMENT", new JSONObject().put("documentId", "apple").put("document", new JSONObject().put("qty", 5)));
+
+        assertEquals("success", update("apple", new JSONObject().put("qty", 4), 1L).getString("status"));
+        JSONObject stale = update("apple", new JSONObject().put("qty", 3), 1L);
+        assertEquals("error", stale.getString("status"));
+        assertEquals("Version conflict: document 'apple' is at version 2, not 1.", stale.getString("message"));
+        assertEquals(2, stale.getLong("version"));
+        assertEquals(4, send("READ_DOCUMENT", new JSONObject().put("documentId", "apple")).getJSONObject("document").getInt("qty"));
+
+        JSONObject invalid = update("apple", new JSONObject().put("qty", 3), 0L);
+        assertEquals("expectedVersion must be a positive integer.", invalid.getString("message"));
+        invalid = send("DELETE_DOCUMENT", new JSONObject().put("documentId", "apple").put("expectedVersion", "2"));
+        assertEquals("expectedVersion must be a positive integer.", invalid.getString("message"));
+
+        assertEquals("error", send("DELETE_DOCUMENT", new JSONObject().put("documentId", "apple").put("expectedVersion", 1)).getString("status"));
+        assertEquals("success", send("DELETE_DOCUMENT", new JSONObject().put("documentId", "apple").put("expectedVersion", 2)).getString("status"));
+        assertEquals("Document with ID 'apple' not found.", update("apple", new JSONObject(), 2L).getString("message"));
+    }
+
+    @Test
+    public void testBulkWriteChecksVersions() {
+        send("CREATE_DOCUMENT", new JSONObject().put("documentId", "apple").put("document", new JSONObject().put("qty", 5)));
+        JSONArray operations = new JSONArray()
+                .put(new JSONObject().put("op", "update").put("documentId", "apple").put("updates", new JSONObject().put("qty", 4)).put("expectedVersion", 1))
+                .put(new JSONObject().put("op", "update").put("documentId", "apple").put("updates", new JSONObject().put("qty", 3)).put("expectedVersion", 1))
+                .put(new JSONObject().put("op", "delete").put("documentId", "apple").put("expectedVersion", 2));
+        JSONObject response = send("BULK_WRITE", new JSONObject().put("operations", operations).put("ordered", false));
+        assertEquals(1, response.getInt("updatedCount"));
+        assertEquals(1, response.getInt("deletedCount"));
+        assertEquals("Version conflict: document 'apple' is at version 2, not 1.",
+                response.getJSONArray("results").getJSONObject(1).getString("message"));
+    }
+
+    @Test
+    public void testConcurrentUpdatesAreNotLost() throws Exception {
+        send("CREATE_DOCUMENT", new JSONObject().put("documentId", "counter").put("document", new JSONObject().put("n", 0)));
+        int threads = 8;
+        int increments = 50;
+
+        PrintStream console = System.out;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            // Request logging would dominate the run
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < increments; i++) {
+                        // Each thread also sets a field of its own, which no other update may drop
+                        update("counter", new JSONObject().put("t" + thread, i), null);
+
+                        // Read-modify-write retried until no other write came in between
+                        while (true) {
+                            JSONObject read = send("READ_DOCUMENT", new JSONObject().put("documentId", "counter"));
+                            int n = read.getJSONObject("document").getInt("n");
+                            JSONObject written = update("counter", new JSONObject().put("n", n + 1), read.getLong("version"));
+                            if (written.getString("status").equals("success")) {
+                                break;
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            System.setOut(console);
+            pool.shutdown();
+        }
+
+        JSONObject read = send("READ_DOCUMENT", new JSONObject().put("documentId", "counter"));
+        assertEquals(threads * increments, read.getJSONObject("document").getInt("n"));
+        for (int t = 0; t < threads; t++) {
+            assertEquals(increments - 1, read.getJSONObject("document").getInt("t" + t));
+        }
+        assertEquals(1 + 2L * threads * increments, read.getLong("version"));
+    }
+
+    @Test
+    public void testReplayKeepsTheNewestVersion() throws IOException {
+        Path dir = tempDir.resolve("replay");
+        StorageEngine logged = StorageEngine.open(dir);
+        DocumentCollection collection = new DocumentCollection();
+        logged.getDatabases().computeIfAbsent("db", k -> new ConcurrentHashMap<>()).put("coll", collection);
+        logged.log(StorageEngine.logRecord("CREATE_DB", "db"));
+        logged.log(StorageEngine.logRecord("CREATE_COLLECTION", "db", "coll"));
+        for (String id : new String[] {"a", "b"}) {
+            logged.log(StorageEngine.logRecord("CREATE_DOCUMENT", "db", "coll").put("id", id).put("doc", new JSONObject().put("n", 1)).put("version", 1));
+        }
+        // Two updates of a that reached the log in the opposite order
+        logged.log(StorageEngine.logRecord("UPDATE_DOCUMENT", "db", "coll").put("id", "a").put("doc", new JSONObject().put("n", 3)).put("version", 3));
+        logged.log(StorageEngine.logRecord("UPDATE_DOCUMENT", "db", "coll").put("id", "a").put("doc", new JSONObject().put("n", 2)).put("version", 2));
+        // An update of b logged after the delete that followed it
+        logged.log(StorageEngine.logRecord("DELETE_DOCUMENT", "db", "coll").put("id", "b"));
+        logged.log(StorageEngine.logRecord("UPDATE_DOCUMENT", "db", "coll").put("id", "b").put("doc", new JSONObject().put("n", 2)).put("version", 2));
+
+        StorageEngine replayed = StorageEngine.open(dir);
+        try {
+            DocumentCollection coll = replayed.getDatabases().get("db").get("coll");
+            Document a = coll.get("a");
+            assertEquals(3L, a.get("n"));
+            assertEquals(3, a.version());
+            assertNull(coll.get("b"));
+        } finally {
+            replayed.close();
+        }
+    }
+
+    @Test
+    public void testReplayOrdersCreatesAndDeletesBySequence() throws IOException {
+        Path dir = tempDir.resolve("sequence");
+        StorageEngine logged = StorageEngine.open(dir);
+        logged.getDatabases().computeIfAbsent("db", k -> new ConcurrentHashMap<>()).put("coll", new DocumentCollection());
+        logged.log(StorageEngine.logRecord("CREATE_DB", "db"));
+        logged.log(StorageEngine.logRecord("CREATE_COLLECTION", "db", "coll"));
+        long base = 1_000_000_000L;
+        // a was created and then deleted, but the delete reached the log first
+        logged.log(StorageEngine.logRecord("DELETE_DOCUMENT", "db", "coll").put("id", "a").put("seq", base + 2));
+        logged.log(StorageEngine.logRecord("CREATE_DOCUMENT", "db", "coll").put("id", "a").put("doc", new JSONObject().put("n", 1))
+                .put("version", 1).put("seq", base + 1));
+        // b was created, updated, deleted and created again; the update was logged last
+        logged.log(StorageEngine.logRecord("CREATE_DOCUMENT", "db", "coll").put("id", "b").put("doc", new JSONObject().put("n", 1))
+                .put("version", 1).put("seq", base + 3));
+        logged.log(StorageEngine.logRecord("DELETE_DOCUMENT", "db", "coll").put("id", "b").put("seq", base + 5));
+        logged.log(StorageEngine.logRecord("CREATE_DOCUMENT", "db", "coll").put("id", "b").put("doc", new JSONObject().put("n", 10))
+                .put("version", 1).put("seq", base + 6));
+        logged.log(StorageEngine.logRecord("UPDATE_DOCUMENT", "db", "coll").put("id", "b").put("doc", new JSONObject().put("n", 2))
+                .put("version", 2).put("seq", base + 4));
+
+        StorageEngine replayed = StorageEngine.open(dir);
+        try {
+            DocumentCollection coll = replayed.getDatabases().get("db").get("coll");
+            assertNull(coll.get("a"));
+            assertEquals(10L, coll.get("b").get("n"));
+            assertEquals(1, coll.get("b").version());
+            // Writes after the restart take numbers after the replayed ones
+            assertTrue(coll.write("c", (id, current) -> Document.fromJson(new JSONObject())) > base + 6);
+        } finally {
+            replayed.close();
+        }
+    }
+}
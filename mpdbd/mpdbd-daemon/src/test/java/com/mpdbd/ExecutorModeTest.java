@@ -0,0 +1,152 @@
+package com.mpdbd;
+
+import com.server.NioServer;
+import com.server.RequestExecutors;
+import com.server.RequestExecutors.Mode;
+import com.server.RequestHandler;
+import com.server.RequestLimiter;
+import com.server.Server;
+import com.server.ServerConfig;
+import com.server.storage.StorageEngine;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ExecutorModeTest {
+
+    @TempDir
+    Path tempDir;
+
+    private StorageEngine storage;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        storage = StorageEngine.open(tempDir);
+    }
+
+    @AfterEach
+    public void cleanup() {
+        storage.close();
+    }
+
+    private static JSONObject roundTrip(int port, String request) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(10_000);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.println(request);
+            return new JSONObject(in.readLine());
+        }
+    }
+
+    @Test
+    public void testPoolAnswersBusyWhenQueueIsFull() throws Exception {
+        ExecutorService workers = RequestExecutors.boundedPool(1, 1);
+        NioServer server = new NioServer(new RequestHandler(storage), new InetSocketAddress("127.0.0.1", 0), 50, 1, workers, 1024 * 1024);
+        server.start();
+        try {
+            // Occupy the only worker and the only queue slot
+            CountDownLatch release = new CountDownLatch(1);
+            Future<?> running = workers.submit(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            Future<?> queued = workers.submit(() -> { });
+
+            JSONObject busy = roundTrip(server.getPort(), "{\"action\":\"LIST_DB\"}");
+            assertEquals("error", busy.getString("status"));
+            assertEquals(RequestHandler.BUSY_MESSAGE, busy.getString("message"));
+
+            // Once both have run the queue is empty again, so the next request waits there
+            release.countDown();
+            running.get(5, TimeUnit.SECONDS);
+            queued.get(5, TimeUnit.SECONDS);
+            assertEquals("success", roundTrip(server.getPort(), "{\"action\":\"LIST_DB\"}").getString("status"));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testLimiterRejectsOnceWaitQueueIsFull() throws Exception {
+        RequestLimiter limiter = new RequestLimiter(1, 1);
+        assertTrue(limiter.acquire());
+
+        ExecutorService waiter = Executors.newSingleThreadExecutor();
+        Future<Boolean> waiting = waiter.submit(limiter::acquire);
+        Thread.sleep(200);
+        assertFalse(waiting.isDone());
+
+        // One request runs and one waits, so a third is turned away immediately
+        assertFalse(limiter.acquire());
+
+        limiter.release();
+        assertTrue(waiting.get(5, TimeUnit.SECONDS));
+        waiter.shutdown();
+    }
+
+    @Test
+    public void testEveryModeServesRequests() throws IOException {
+        for (Mode mode : Mode.values()) {
+            if (mode == Mode.VIRTUAL && !RequestExecutors.virtualThreadsSupported()) {
+                continue;
+            }
+
+            Server server = RequestExecutors.startServer(mode, new RequestHandler(storage),
+                    new InetSocketAddress("127.0.0.1", 0), 50, 1, 2, 16, 1024 * 1024);
+            try {
+                assertEquals("success", roundTrip(server.getPort(), "{\"action\":\"CREATE_DB\",\"dbName\":\"" + mode + "\"}").getString("status"), mode.name());
+            } finally {
+                server.close();
+            }
+        }
+        assertTrue(storage.getDatabases().containsKey("POOL"));
+        assertTrue(storage.getDatabases().containsKey("LEGACY"));
+    }
+
+    @Test
+    public void testVirtualModeIsRefusedWithoutVirtualThreads() {
+        System.setProperty("mpdb.server.executor", "Virtual");
+        try {
+            if (RequestExecutors.virtualThreadsSupported()) {
+                assertEquals("Virtual", ServerConfig.executorMode());
+            } else {
+                IllegalStateException e = assertThrows(IllegalStateException.class, ServerConfig::executorMode);
+                assertTrue(e.getMessage().startsWith("mpdb.server.executor=virtual needs Java 21 or later"));
+            }
+        } finally {
+            System.clearProperty("mpdb.server.executor");
+        }
+        assertEquals("pool", ServerConfig.executorMode());
+    }
+
+    @Test
+    public void testUnknownModeIsRefused() {
+        assertThrows(IllegalArgumentException.class, () -> Mode.parse("threads"));
+
+        System.setProperty("mpdb.server.executor", "threads");
+        try {
+            IllegalStateException e = assertThrows(IllegalStateException.class, ServerConfig::executorMode);
+            assertTrue(e.getMessage().startsWith("mpdb.server.executor=threads is not an executor mode"));
+        } finally {
+            System.clearProperty("mpdb.server.executor");
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.mpdbd;
+
+import com.server.query.Filter;
+import com.server.query.FilterCompiler;
+import com.server.query.PlanCache;
+import com.server.storage.Document;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FilterCompilerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static final Document DOC = Document.parse("{\"name\":\"Alice\",\"age\":30,\"score\":4.5,\"code\":\"42\","
+            + "\"active\":true,\"nothing\":null,\"tags\":[\"a\",\"b\"],\"address\":{\"city\":\"Paris\",\"zip\":75001}}");
+
+    private static boolean matches(String query) {
+        return FilterCompiler.compile(new JSONObject(query)).matches(DOC);
+    }
+
+    @Test
+    public void testEqualityAndComparisons() {
+        assertTrue(matches("{}"));
+        assertTrue(matches("{\"name\":\"Alice\",\"age\":30}"));
+        assertTrue(matches("{\"age\":30.000001}"));
+        assertFalse(matches("{\"age\":31}"));
+        assertFalse(matches("{\"missing\":1}"));
+
+        // Numbers and strings are equal when their texts are
+        assertTrue(matches("{\"age\":\"30\"}"));
+        assertFalse(matches("{\"age\":\"30.0\"}"));
+        assertTrue(matches("{\"score\":\"4.5\"}"));
+        assertTrue(matches("{\"code\":42}"));
+        assertTrue(matches("{\"active\":\"true\"}"));
+        assertTrue(matches("{\"nothing\":null}"));
+        assertTrue(matches("{\"tags\":[\"a\",\"b\"]}"));
+        assertTrue(matches("{\"address\":{\"$eq\":{\"city\":\"Paris\",\"zip\":75001}}}"));
+
+        assertTrue(matches("{\"age\":{\"$gt\":29,\"$lte\":30}}"));
+        assertFalse(matches("{\"age\":{\"$gt\":30}}"));
+        assertTrue(matches("{\"age\":{\"$gte\":30.000001}}"));
+        assertTrue(matches("{\"name\":{\"$gt\":\"Al\",\"$lt\":\"B\"}}"));
+        // A number against a string compares by text
+        assertTrue(matches("{\"age\":{\"$lt\":\"4\"}}"));
+        assertTrue(matches("{\"age\":{\"$ne\":\"31\"}}"));
+    }
+
+    @Test
+    public void testOperatorEdgeCases() {
+        assertTrue(matches("{\"age\":{\"$in\":[1,\"30\"]}}"));
+        assertFalse(matches("{\"age\":{\"$nin\":[30]}}"));
+        assertTrue(matches("{\"age\":{\"$nin\":[]}}"));
+        assertFalse(matches("{\"age\":{\"$in\":30}}"));
+        assertFalse(matches("{\"age\":{\"$nin\":30}}"));
+
+        assertTrue(matches("{\"age\":{\"$exists\":true}}"));
+        assertFalse(matches("{\"age\":{\"$exists\":false}}"));
+        // A condition on a missing field fails whatever the operator
+        assertFalse(matches("{\"missing\":{\"$exists\":false}}"));
+        assertFalse(matches("{\"missing\":{}}"));
+        assertTrue(matches("{\"age\":{\"$unknown\":1}}"));
+
+        assertTrue(matches("{\"name\":{\"$regex\":\"Al.*\"}}"));
+        assertFalse(matches("{\"name\":{\"$regex\":\"Al\"}}"));
+        assertFalse(matches("{\"age\":{\"$regex\":\"30\"}}"));
+        assertFalse(matches("{\"name\":{\"$regex\":\"(\"}}"));
+    }
+
+    @Test
+    public void testLogicalOperatorsAndNestedFields() {
+        assertTrue(matches("{\"$and\":[{\"age\":30},{\"name\":\"Alice\"},5]}"));
+        assertFalse(matches("{\"$and\":[{\"age\":30},{\"name\":\"Bob\"}]}"));
+        assertTrue(matches("{\"$and\":\"ignored\"}"));
+        assertTrue(matches("{\"$or\":[{\"age\":1},{\"name\":\"Alice\"}]}"));
+        assertFalse(matches("{\"$or\":[]}"));
+        assertTrue(matches("{\"$or\":\"ignored\"}"));
+        assertFalse(matches("{\"$not\":{\"age\":30}}"));
+        assertTrue(matches("{\"$not\":{\"age\":31}}"));
+
+        assertTrue(matches("{\"address.city\":\"Paris\"}"));
+        assertTrue(matches("{\"address.zip\":{\"$gte\":75000}}"));
+        assertFalse(matches("{\"address.city.name\":\"Paris\"}"));
+        assertFalse(matches("{\"name.first\":\"Alice\"}"));
+        // The rest of a dotted key is a query on the nested document
+        assertTrue(matches("{\"address.$or\":[{\"city\":\"Lyon\"},{\"zip\":75001}]}"));
+        assertFalse(matches("{\"missing.$and\":\"ignored\"}"));
+    }
+
+    @Test
+    public void testPlanCacheReusesFiltersOfTheSameQuery() {
+        PlanCache plans = new PlanCache(2);
+        Filter first = plans.get(new JSONObject("{\"age\":{\"$gt\":1,\"$lt\":5},\"name\":\"Alice\"}"));
+        Filter second = plans.get(new JSONObject("{\"name\":\"Alice\",\"age\":{\"$lt\":5,\"$gt\":1}}"));
+        assertSame(first, second);
+        assertEquals(1, plans.hits());
+        assertEquals(1, plans.misses());
+
+        // 5 and 5.0 differ when compared with strings, so they are different queries
+        assertNotSame(plans.get(new JSONObject("{\"code\":5}")), plans.get(new JSONObject("{\"code\":5.0}")));
+        assertEquals(2, plans.size());
+        assertEquals(3, plans.misses());
+
+        assertSame(Filter.ALL, plans.get(new JSONObject()));
+    }
+
+    @Test
+    public void testQueryUsesThePlanCache() throws IOException {
+        // Repeated queries would otherwise be answered from the result cache
+        System.setProperty("mpdb.query.resultCacheSize", "0");
+        try (Shop shop = new Shop(tempDir, "users")) {
+            shop.collection("users").put("u1", DOC);
+
+            JSONObject query = Shop.request("QUERY", "users").put("query", new JSONObject().put("address.city", "Paris"));
+            for (int i = 0; i < 3; i++) {
+                assertEquals(1, shop.send(query).getInt("totalMatches"));
+            }
+            assertEquals(1, shop.handler.getPlanCache().misses());
+            assertEquals(2, shop.handler.getPlanCache().hits());
+        } finally {
+            System.clearProperty("mpdb.query.resultCacheSize");
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package com.mpdbd;
+
+import com.server.RequestHandler;
+import com.server.storage.Document;
+import com.server.storage.DocumentCollection;
+import com.server.storage.FieldIndex;
+import com.server.storage.HashIndex;
+import com.server.storage.OrderedIndex;
+import com.server.storage.StorageEngine;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IndexTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Shop shop;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        shop = new Shop(tempDir, "users");
+    }
+
+    @AfterEach
+    public void cleanup() {
+        System.clearProperty("mpdb.query.resultCacheSize");
+        shop.close();
+    }
+
+    private JSONObject send(RequestHandler target, JSONObject request) {
+        request.put("dbName", Shop.DB).put("collectionName", "users");
+        return new JSONObject(target.handle(request.toString()));
+    }
+
+    private JSONObject send(JSONObject request) {
+        return send(shop.handler, request);
+    }
+
+    private void insert(String id, JSONObject document) {
+        assertEquals("success", send(new JSONObject().put("action", "CREATE_DOCUMENT").put("documentId", id).put("document", document)).getString("status"));
+    }
+
+    private Set<String> query(JSONObject query) {
+        return send(new JSONObject().put("action", "QUERY").put("query", query)).getJSONObject("documents").keySet();
+    }
+
+    // Ids on the requested page followed by the total number of matches
+    private List<Object> sortedQuery(JSONObject query, String sortBy, boolean ascending, int skip, int limit) {
+        JSONObject response = send(new JSONObject().put("action", "QUERY").put("query", query)
+                .put("sortBy", sortBy).put("ascending", ascending).put("skip", skip).put("limit", limit));
+        return List.of(response.getJSONObject("documents").keySet(), response.getInt("totalMatches"));
+    }
+
+    private JSONArray listIndexes(RequestHandler target) {
+        return send(target, new JSONObject().put("action", "LIST_INDEXES")).getJSONArray("indexes");
+    }
+
+    private DocumentCollection users() {
+        return shop.collection("users");
+    }
+
+    @Test
+    public void testIndexIsMaintainedOnWrites() {
+        insert("u1", new JSONObject().put("email", "a@x.io").put("address", new JSONObject().put("city", "Pretoria")));
+        assertEquals("success", send(new JSONObject().put("action", "CREATE_INDEX").put("field", "email")).getString("status"));
+        assertEquals("success", send(new JSONObject().put("action", "CREATE_INDEX").put("field", "address.city")).getString("status"));
+        insert("u2", new JSONObject().put("email", "b@x.io").put("address", new JSONObject().put("city", "Durban")));
+        insert("u3", new JSONObject().put("email", "c@x.io"));
+
+        assertEquals(Set.of("u1"), users().getIndex("email").lookup("a@x.io"));
+        assertEquals(Set.of("u2"), users().getIndex("address.city").lookup("Durban"));
+        assertEquals(Set.of("u2"), query(new JSONObject().put("email", "b@x.io")));
+        assertEquals(Set.of("u1", "u3"), query(new JSONObject().put("email", new JSONObject().put("$in", new JSONArray().put("a@x.io").put("c@x.io")))));
+        assertEquals(Set.of("u1"), query(new JSONObject().put("address.city", "Pretoria")));
+
+        send(new JSONObject().put("action", "UPDATE_DOCUMENT").put("documentId", "u1").put("updates", new JSONObject().put("email", "z@x.io")));
+        assertTrue(query(new JSONObject().put("email", "a@x.io")).isEmpty());
+        assertEquals(Set.of("u1"), query(new JSONObject().put("email", "z@x.io")));
+
+        send(new JSONObject().put("action", "DELETE_DOCUMENT").put("documentId", "u2"));
+        assertTrue(users().getIndex("address.city").lookup("Durban").isEmpty());
+
+        send(new JSONObject().put("action", "BULK_WRITE").put("operations", new JSONArray()
+                .put(new JSONObject().put("op", "insert").put("documentId", "u4").put("document", new JSONObject().put("email", "d@x.io")))
+                .put(new JSONObject().put("op", "delete").put("documentId", "u3"))));
+        assertEquals(Set.of("u4"), query(new JSONObject().put("$and", new JSONArray().put(new JSONObject().put("email", "d@x.io")))));
+        assertEquals(2, users().getIndex("email").distinctValues());
+    }
+
+    @Test
+    public void testIndexedQueryMatchesScan() {
+        Object[] values = {5, 5.0, "5", 7, true, "true", "x", JSONObject.NULL};
+        for (int i = 0; i < values.length; i++) {
+            insert("d" + i, new JSONObject().put("v", values[i]).put("n", i));
+        }
+        insert("missing", new JSONObject().put("n", 99));
+
+        List<JSONObject> queries = List.of(
+                new JSONObject().put("v", 5),
+                new JSONObject().put("v", "5"),
+                new JSONObject().put("v", true),
+                new JSONObject().put("v", "x").put("n", 6),
+                new JSONObject().put("v", new JSONObject().put("$eq", 7)),
+                new JSONObject().put("v", new JSONObject().put("$in", new JSONArray().put(5).put("x"))),
+                new JSONObject().put("v", new JSONObject().put("$in", new JSONArray())),
+                new JSONObject().put("v", new JSONObject().put("$ne", 5)));
+
+        List<Set<String>> scanned = new ArrayList<>();
+        for (JSONObject query : queries) {
+            scanned.add(query(query));
+        }
+        send(new JSONObject().put("action", "CREATE_INDEX").put("field", "v"));
+        for (int i = 0; i < queries.size(); i++) {
+            assertEquals(scanned.get(i), query(queries.get(i)), queries.get(i).toString());
+        }
+    }
+
+    @Test
+    public void testNumbersWithinToleranceMatchWithAndWithoutIndex() {
+        // The result cache would answer the indexed queries with the scanned results
+        System.setProperty("mpdb.query.resultCacheSize", "0");
+        RequestHandler uncached = new RequestHandler(shop.storage);
+        Object[] values = {1, 1.000001, 0.0, -0.000004, 2.5, 1e20, "1"};
+        for (int i = 0; i < values.length; i++) {
+            insert("d" + i, new JSONObject().put("n", values[i]));
+        }
+
+        List<JSONObject> queries = List.of(
+                new JSONObject().put("n", 1.000001),
+                new JSONObject().put("n", 0.999995),
+                new JSONObject().put("n", 1.00002),
+                new JSONObject().put("n", 0),
+                new JSONObject().put("n", -0.0000099),
+                new JSONObject().put("n", 1e20),
+                new JSONObject().put("n", "1"),
+                new JSONObject().put("n", new JSONObject().put("$in", new JSONArray().put(0.999999).put(2.500009))));
+
+        List<JSONObject> scanned = new ArrayList<>();
+        for (JSONObject query : queries) {
+            scanned.add(matches(uncached, query));
+        }
+        assertEquals(2, scanned.get(0).getInt("count"));
+        send(new JSONObject().put("action", "CREATE_INDEX").put("field", "n"));
+        for (int i = 0; i < queries.size(); i++) {
+            assertEquals(scanned.get(i).toString(), matches(uncached, queries.get(i)).toString(), queries.get(i).toString());
+        }
+    }
+
+    // What QUERY, COUNT and EXISTS say about a filter
+    private JSONObject matches(RequestHandler target, JSONObject query) {
+        return new JSONObject()
+                .put("ids", new TreeSet<>(send(target, new JSONObject().put("action", "QUERY").put("query", query))
+                        .getJSONObject("documents").keySet()))
+                .put("count", send(target, new JSONObject().put("action", "COUNT").put("query", query)).getInt("count"))
+                .put("exists", send(target, new JSONObject().put("action", "EXISTS").put("query", query)).getBoolean("exists"));
+    }
+
+    @Test
+    public void testRangeQueriesMatchScan() {
+        Object[] values = {-3, 0, 2.5, 5, 5.000001, 10, 42, "10", "9", "abc", "Zed", true, JSONObject.NULL};
+        for (int i = 0; i < values.length; i++) {
+            insert("d" + i, new JSONObject().put("v", values[i]).put("nested", new JSONObject().put("v", values[i])));
+        }
+        insert("missing", new JSONObject().put("n", 1));
+
+        List<JSONObject> queries = new ArrayList<>();
+        for (String field : new String[]{"v", "nested.v"}) {
+            queries.add(new JSONObject().put(field, new JSONObject().put("$gt", 5)));
+            queries.add(new JSONObject().put(field, new JSONObject().put("$gte", 5)));
+            queries.add(new JSONObject().put(field, new JSONObject().put("$lte", 5).put("$gt", 0)));
+            queries.add(new JSONObject().put(field, new JSONObject().put("$lt", 10)));
+            queries.add(new JSONObject().put(field, new JSONObject().put("$gt", "9")));
+            queries.add(new JSONObject().put(field, new JSONObject().put("$gte", "a").put("$lt", "b")));
+            queries.add(new JSONObject().put(field, new JSONObject().put("$gt", 100).put("$lt", 0)));
+            queries.add(new JSONObject().put(field, 5));
+            queries.add(new JSONObject().put(field, "10"));
+            queries.add(new JSONObject().put(field, new JSONObject().put("$in", new JSONArray().put(42).put("abc"))));
+        }
+
+        List<Set<String>> scanned = new ArrayList<>();
+        for (JSONObject query : queries) {
+            scanned.add(query(query));
+        }
+        send(new JSONObject().put("action", "CREATE_INDEX").put("field", "v").put("type", OrderedIndex.TYPE));
+        send(new JSONObject().put("action", "CREATE_INDEX").put("field", "nested.v").put("type", OrderedIndex.TYPE));
+        assertNotNull(users().getIndex("v").candidates(new JSONObject().put("$gt", 5)));
+        for (int i = 0; i < queries.size(); i++) {
+            assertEquals(scanned.get(i), query(queries.get(i)), queries.get(i).toString());
+        }
+    }
+
+    @Test
+    public void testSortIsServedFromOrderedIndex() {
+        for (int i = 0; i < 100; i++) {
+            JSONObject order = new JSONObject().put("status", i % 3 == 0 ? "open" : "closed");
+            if (i % 10 != 0) {
+                order.put("createdAt", 1_700_000_000L + i * 37 % 100);
+            }
+            insert("o" + i, order);
+        }
+
+        JSONObject open = new JSONObject().put("status", "open");
+        JSONObject recent = new JSONObject().put("createdAt", new JSONObject().put("$gte", 1_700_000_050L));
+        List<List<Object>> expected = new ArrayList<>();
+        for (boolean ascending : new boolean[]{true, false}) {
+            expected.add(sortedQuery(new JSONObject(), "createdAt", ascending, 0, 20));
+            expected.add(sortedQuery(new JSONObject(), "createdAt", ascending, 15, 10));
+            expected.add(sortedQuery(open, "createdAt", ascending, 4, 5));
+            expected.add(sortedQuery(recent, "createdAt", ascending, 0, 7));
+        }
+
+        send(new JSONObject().put("action", "CREATE_INDEX").put("field", "createdAt").put("type", OrderedIndex.TYPE));
+        OrderedIndex index = (OrderedIndex) users().getIndex("createdAt");
+        assertTrue(index.isSortable());
+        List<String> walked = new ArrayList<>();
+        index.walk(null, false).forEachRemaining(walked::add);
+        assertEquals(100, walked.size());
+        assertTrue(walked.subList(90, 100).stream().allMatch(id -> Integer.parseInt(id.substring(1)) % 10 == 0));
+
+        List<List<Object>> served = new ArrayList<>();
+        for (boolean ascending : new boolean[]{true, false}) {
+            served.add(sortedQuery(new JSONObject(), "createdAt", ascending, 0, 20));
+            served.add(sortedQuery(new JSONObject(), "createdAt", ascending, 15, 10));
+            served.add(sortedQuery(open, "createdAt", ascending, 4, 5));
+            served.add(sortedQuery(recent, "createdAt", ascending, 0, 7));
+        }
+        assertEquals(expected, served);
+
+        // Mixing numbers and strings leaves the order to the sort
+        insert("text", new JSONObject().put("createdAt", "yesterday"));
+        assertFalse(index.isSortable());
+        assertEquals(101, sortedQuery(new JSONObject(), "createdAt", true, 0, 5).get(1));
+    }
+
+    @Test
+    public void testCreateDropAndList() {
+        assertEquals("error", send(new JSONObject().put("action", "CREATE_INDEX").put("field", "a..b")).getString("status"));
+        assertEquals("error", send(new JSONObject().put("action", "CREATE_INDEX").put("field", "email").put("type", "btree")).getString("status"));
+        assertEquals("success", send(new JSONObject().put("action", "CREATE_INDEX").put("field", "email")).getString("status"));
+        assertEquals("error", send(new JSONObject().put("action", "CREATE_INDEX").put("field", "email")).getString("status"));
+
+        JSONArray indexes = listIndexes(shop.handler);
+        assertEquals(1, indexes.length());
+        assertEquals("email", indexes.getJSONObject(0).getString("field"));
+        assertEquals(HashIndex.TYPE, indexes.getJSONObject(0).getString("type"));
+
+        assertEquals("success", send(new JSONObject().put("action", "DROP_INDEX").put("field", "email")).getString("status"));
+        assertEquals("error", send(new JSONObject().put("action", "DROP_INDEX").put("field", "email")).getString("status"));
+        assertTrue(listIndexes(shop.handler).isEmpty());
+    }
+
+    @Test
+    public void testIndexesSurviveRestart() throws IOException {
+        insert("u1", new JSONObject().put("email", "a@x.io"));
+        send(new JSONObject().put("action", "CREATE_INDEX").put("field", "email"));
+        send(new JSONObject().put("action", "CREATE_INDEX").put("field", "name"));
+        send(new JSONObject().put("action", "DROP_INDEX").put("field", "name"));
+        send(new JSONObject().put("action", "CREATE_INDEX").put("field", "age").put("type", OrderedIndex.TYPE));
+
+        // From the write-ahead log alone
+        StorageEngine replayed = StorageEngine.open(tempDir);
+        JSONArray indexes = listIndexes(new RequestHandler(replayed));
+        assertEquals(2, indexes.length());
+        assertEquals(OrderedIndex.TYPE, indexes.getJSONObject(1).getString("type"));
+        assertEquals(Set.of("u1"), replayed.getDatabases().get("shop").get("users").getIndex("email").lookup("a@x.io"));
+        replayed.close();
+
+        // From the definitions saved with the snapshot
+        shop.storage.checkpoint();
+        StorageEngine restored = StorageEngine.open(tempDir);
+        assertEquals(2, listIndexes(new RequestHandler(restored)).length());
+        assertTrue(restored.getDatabases().get("shop").get("users").getIndex("age") instanceof OrderedIndex);
+        assertEquals(Set.of("u1"), restored.getDatabases().get("shop").get("users").getIndex("email").lookup("a@x.io"));
+        restored.close();
+    }
+
+    @Test
+    public void testConcurrentWritesKeepIndexConsistent() throws Exception {
+        DocumentCollection collection = new DocumentCollection();
+        collection.createIndex("v", HashIndex.TYPE);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < 20_000; i++) {
+                    String id = "doc-" + (i % 50);
+                    if ((i + thread) % 7 == 0) {
+                        collection.remove(id);
+                    } else {
+                        collection.put(id, Document.fromJson(new JSONObject().put("v", (i * 31 + thread) % 3)));
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        pool.shutdown();
+
+        FieldIndex index = collection.getIndex("v");
+        int indexed = 0;
+        for (int v = 0; v < 3; v++) {
+            for (String id : index.lookup(v)) {
+                assertEquals((long) v, collection.get(id).get("v"));
+                indexed++;
+            }
+        }
+        assertEquals(collection.size(), indexed);
+    }
+}
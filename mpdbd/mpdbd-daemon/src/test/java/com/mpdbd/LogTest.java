@@ -0,0 +1,136 @@
+package com.mpdbd;
+
+import com.server.RequestHandler;
+import com.server.log.Log;
+import com.server.storage.StorageEngine;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LogTest {
+
+    @TempDir
+    Path tempDir;
+
+    private StorageEngine storage;
+    private PrintStream originalOut;
+    private ByteArrayOutputStream captured;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        storage = StorageEngine.open(tempDir);
+        originalOut = System.out;
+        captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+    }
+
+    @AfterEach
+    public void cleanup() {
+        Log.flush();
+        System.setOut(originalOut);
+        Log.setLevel(Log.Level.INFO);
+        System.clearProperty("mpdb.log.maxLineChars");
+        System.clearProperty("mpdb.log.sample.READ_DB");
+        storage.close();
+    }
+
+    private List<String> capturedLines() {
+        Log.flush();
+        List<String> lines = new ArrayList<>();
+        for (String line : captured.toString(StandardCharsets.UTF_8).split("\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void testConcurrentLinesAreWrittenInOrderOrCountedAsDropped() throws Exception {
+        int threads = 4;
+        int linesPerThread = 5000;
+        long droppedBefore = Log.dropped();
+
+        List<Thread> producers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int producer = t;
+            producers.add(new Thread(() -> {
+                for (int i = 0; i < linesPerThread; i++) {
+                    Log.info("line " + producer + " " + i);
+                }
+            }));
+        }
+        producers.forEach(Thread::start);
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        int[] last = new int[threads];
+        Arrays.fill(last, -1);
+        int written = 0;
+        for (String line : capturedLines()) {
+            String[] parts = line.split(" ");
+            if (parts.length != 3 || !parts[0].equals("line")) {
+                continue;
+            }
+            int producer = Integer.parseInt(parts[1]);
+            int i = Integer.parseInt(parts[2]);
+            // A producer's lines may be dropped, but never reordered
+            assertTrue(i > last[producer], "line " + i + " of producer " + producer + " after " + last[producer]);
+            last[producer] = i;
+            written++;
+        }
+        assertEquals(threads * linesPerThread, written + (Log.dropped() - droppedBefore));
+    }
+
+    @Test
+    public void testRequestLinesAreSampledPerActionAndTruncated() {
+        System.setProperty("mpdb.log.maxLineChars", "40");
+        System.setProperty("mpdb.log.sample.READ_DB", "0");
+        RequestHandler handler = new RequestHandler(storage);
+
+        handler.handle("{\"action\":\"CREATE_DB\",\"dbName\":\"shop\"}");
+        handler.handle("{\"action\":\"READ_DB\",\"dbName\":\"shop\"}");
+        String longName = "x".repeat(100);
+        handler.handle(new JSONObject().put("action", "CREATE_DB").put("dbName", longName).toString());
+
+        List<String> lines = new ArrayList<>(capturedLines());
+        lines.removeIf(line -> !line.contains("Received from client") && !line.contains("Sent response"));
+        assertEquals(4, lines.size(), String.join("\n", lines));
+        assertTrue(lines.get(0).endsWith("{\"action\":\"CREATE_DB\",\"dbName\":\"shop\"}"));
+        assertFalse(lines.stream().anyMatch(line -> line.contains("READ_DB")));
+        // The long request line is cut, with its full length noted
+        String request = new JSONObject().put("action", "CREATE_DB").put("dbName", longName).toString();
+        assertTrue(lines.get(2).endsWith(request.substring(0, 40) + "... (" + request.length() + " chars)"), lines.get(2));
+    }
+
+    @Test
+    public void testNothingIsLoggedWhenLoggingIsOff() {
+        RequestHandler handler = new RequestHandler(storage);
+        Log.setLevel(Log.Level.OFF);
+
+        handler.handle("{\"action\":\"CREATE_DB\",\"dbName\":\"shop\"}");
+        handler.handle("not json");
+        Log.info("info");
+        Log.error("error", new IllegalStateException());
+
+        assertTrue(capturedLines().isEmpty());
+        assertFalse(Log.isEnabled(Log.Level.ERROR));
+        Log.setLevel(Log.Level.WARN);
+        assertTrue(Log.isEnabled(Log.Level.ERROR));
+        assertFalse(Log.isEnabled(Log.Level.INFO));
+    }
+}
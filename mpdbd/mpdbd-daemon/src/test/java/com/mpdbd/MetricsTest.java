@@ -0,0 +1,156 @@
+package com.mpdbd;
+
+import com.server.RequestHandler;
+import com.server.metrics.Histogram;
+import com.server.metrics.MetricsServer;
+import com.server.storage.StorageEngine;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MetricsTest {
+
+    @TempDir
+    Path tempDir;
+
+    private StorageEngine storage;
+    private RequestHandler handler;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        storage = StorageEngine.open(tempDir);
+        handler = new RequestHandler(storage);
+    }
+
+    @AfterEach
+    public void cleanup() {
+        storage.close();
+    }
+
+    @Test
+    public void testHistogramPercentilesAreWithinItsPrecision() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value);
+        }
+
+        Histogram.Summary summary = histogram.summary();
+        assertEquals(100_000, summary.count());
+        assertEquals(100_000L * 100_001 / 2, summary.sum());
+        assertEquals(100_000, summary.max());
+        assertEquals(50_000.5, summary.mean(), 1e-9);
+        for (double quantile : new double[] {0.5, 0.99, 0.999}) {
+            long exact = (long) Math.ceil(quantile * 100_000);
+            long value = summary.valueAt(quantile);
+            assertTrue(value >= exact && value <= exact + exact / 16, quantile + ": " + value);
+        }
+        assertEquals(100_000, summary.valueAt(1.0));
+        assertEquals(0, new Histogram().summary().valueAt(0.99));
+
+        // Small values are recorded exactly, and huge ones do not overflow
+        Histogram edges = new Histogram(1);
+        edges.record(-5);
+        edges.record(7);
+        edges.record(Long.MAX_VALUE);
+        assertEquals(0, edges.summary().valueAt(0.3));
+        assertEquals(7, edges.summary().valueAt(0.6));
+        assertEquals(Long.MAX_VALUE, edges.summary().valueAt(1.0));
+    }
+
+    @Test
+    public void testConcurrentRecordingLosesNothing() throws Exception {
+        Histogram histogram = new Histogram(2);
+        int threads = 8;
+        int values = 50_000;
+        List<Thread> recorders = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            recorders.add(new Thread(() -> {
+                for (int i = 1; i <= values; i++) {
+                    histogram.record(i);
+                }
+            }));
+        }
+        recorders.forEach(Thread::start);
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+
+        Histogram.Summary summary = histogram.summary();
+        assertEquals((long) threads * values, summary.count());
+        assertEquals((long) threads * values * (values + 1) / 2, summary.sum());
+        assertEquals(values, summary.max());
+    }
+
+    @Test
+    public void testMetricsActionReportsEachAction() {
+        String create = "{\"action\":\"CREATE_DB\",\"dbName\":\"shop\"}";
+        handler.handle(create);
+        handler.handle(create);
+        handler.handle("{\"action\":\"CREATE_COLLECTION\",\"dbName\":\"shop\",\"collectionName\":\"items\"}");
+        handler.handle("{\"action\":\"CREATE_DOCUMENT\",\"dbName\":\"shop\",\"collectionName\":\"items\",\"documentId\":\"a\",\"document\":{}}");
+        handler.handle("not json");
+
+        JSONObject metrics = new JSONObject(handler.handle("{\"action\":\"METRICS\"}"));
+        assertEquals("success", metrics.getString("status"));
+        JSONObject createDb = metrics.getJSONObject("actions").getJSONObject("CREATE_DB");
+        assertEquals(2, createDb.getLong("requests"));
+        // The second CREATE_DB finds the database already there
+        assertEquals(1, createDb.getLong("errors"));
+        assertEquals(2L * create.length(), createDb.getLong("bytesIn"));
+        JSONObject latency = createDb.getJSONObject("latencyNs");
+        assertEquals(2, latency.getLong("count"));
+        assertTrue(latency.getLong("p50") > 0);
+        assertTrue(latency.getLong("p50") <= latency.getLong("p999"));
+        assertTrue(latency.getLong("p999") <= latency.getLong("max"));
+
+        assertEquals(1, metrics.getJSONObject("actions").getJSONObject("OTHER").getLong("errors"));
+        assertFalse(metrics.getJSONObject("actions").has("METRICS"));
+        assertEquals(3, metrics.getJSONObject("storage").getJSONObject("walAppendLatencyNs").getLong("count"), metrics.toString());
+        assertTrue(metrics.getJSONObject("caches").has("resultHits"));
+
+        // The METRICS request itself is counted once it has been answered
+        metrics = new JSONObject(handler.handle("{\"action\":\"METRICS\"}"));
+        assertEquals(1, metrics.getJSONObject("actions").getJSONObject("METRICS").getLong("requests"));
+    }
+
+    @Test
+    public void testPrometheusTextIsServedOnTheMetricsPort() throws Exception {
+        handler.handle("{\"action\":\"CREATE_DB\",\"dbName\":\"shop\"}");
+        handler.handle("{\"action\":\"NO_SUCH_ACTION\"}");
+
+        try (MetricsServer server = new MetricsServer(0, handler::prometheusMetrics)) {
+            server.start();
+            HttpClient client = HttpClient.newHttpClient();
+            URI uri = URI.create("http://localhost:" + server.getPort() + "/metrics");
+
+            HttpResponse<String> response = client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, response.statusCode());
+            assertTrue(response.headers().firstValue("Content-Type").orElse("").startsWith("text/plain; version=0.0.4"));
+            String text = response.body();
+            assertTrue(text.contains("# TYPE mpdb_requests_total counter\n"), text);
+            assertTrue(text.contains("mpdb_requests_total{action=\"CREATE_DB\"} 1\n"), text);
+            assertTrue(text.contains("mpdb_request_errors_total{action=\"NO_SUCH_ACTION\"} 1\n"), text);
+            assertTrue(text.contains("# TYPE mpdb_request_duration_seconds summary\n"), text);
+            assertTrue(text.contains("mpdb_request_duration_seconds{action=\"CREATE_DB\",quantile=\"0.99\"} "), text);
+            assertTrue(text.contains("mpdb_request_duration_seconds_count{action=\"CREATE_DB\"} 1\n"), text);
+            assertTrue(text.contains("mpdb_wal_append_duration_seconds_count 1\n"), text);
+
+            HttpResponse<String> post = client.send(HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.noBody()).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(405, post.statusCode());
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.mpdbd;
+
+import com.server.NioServer;
+import com.server.RequestHandler;
+import com.server.Session;
+import com.server.storage.StorageEngine;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NioServerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private StorageEngine storage;
+    private NioServer server;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        storage = StorageEngine.open(tempDir);
+        server = new NioServer(new RequestHandler(storage), new InetSocketAddress("127.0.0.1", 0), 128, 2, 4, 1024 * 1024);
+        server.start();
+    }
+
+    @AfterEach
+    public void cleanup() {
+        server.close();
+        storage.close();
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("127.0.0.1", server.getPort());
+        socket.setSoTimeout(10_000);
+        return socket;
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static void write(Socket socket, String text) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    @Test
+    public void testPipelinedAndSplitRequestsAnsweredInOrder() throws Exception {
+        try (Socket socket = connect()) {
+            BufferedReader in = reader(socket);
+
+            // Several requests in one packet, one of them split across writes and CRLF-terminated
+            write(socket, "{\"action\":\"CREATE_DB\",\"dbName\":\"nio\"}\n"
+                    + "{\"action\":\"CREATE_COLLECTION\",\"dbName\":\"nio\",\"collectionName\":\"c\"}\n"
+                    + "{\"action\":\"CREATE_DOCUMENT\",\"dbName\":\"nio\",");
+            Thread.sleep(50);
+            write(socket, "\"collectionName\":\"c\",\"documentId\":\"d1\",\"document\":{\"name\":\"Zoë\"}}\r\n"
+                    + "not json\n"
+                    + "{\"action\":\"READ_DOCUMENT\",\"dbName\":\"nio\",\"collectionName\":\"c\",\"documentId\":\"d1\"}\n");
+
+            assertEquals("success", new JSONObject(in.readLine()).getString("status"));
+            assertEquals("success", new JSONObject(in.readLine()).getString("status"));
+            assertEquals("success", new JSONObject(in.readLine()).getString("status"));
+            assertEquals("Invalid JSON format", new JSONObject(in.readLine()).getString("message"));
+            JSONObject read = new JSONObject(in.readLine());
+            assertEquals("Zoë", read.getJSONObject("document").getString("name"));
+        }
+    }
+
+    @Test
+    public void testAnswersEverythingBeforeClosingHalfClosedConnection() throws IOException {
+        try (Socket socket = connect()) {
+            StringBuilder requests = new StringBuilder();
+            for (int i = 0; i < 200; i++) {
+                requests.append("{\"action\":\"LIST_DB\"}\n");
+            }
+            write(socket, requests.toString());
+            socket.shutdownOutput();
+
+            BufferedReader in = reader(socket);
+            int responses = 0;
+            while (in.readLine() != null) {
+                responses++;
+            }
+            assertEquals(200, responses);
+        }
+    }
+
+    @Test
+    public void testManyConcurrentConnections() throws Exception {
+        write(connect(), "{\"action\":\"CREATE_DB\",\"dbName\":\"load\"}\n"
+                + "{\"action\":\"CREATE_COLLECTION\",\"dbName\":\"load\",\"collectionName\":\"c\"}\n");
+        Thread.sleep(200);
+
+        int clients = 200;
+        List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            sockets.add(connect());
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Socket socket = sockets.get(i);
+            String id = "doc-" + i;
+            results.add(pool.submit(() -> {
+                write(socket, "{\"action\":\"CREATE_DOCUMENT\",\"dbName\":\"load\",\"collectionName\":\"c\",\"documentId\":\"" + id + "\",\"document\":{\"n\":1}}\n"
+                        + "{\"action\":\"READ_DOCUMENT\",\"dbName\":\"load\",\"collectionName\":\"c\",\"documentId\":\"" + id + "\"}\n");
+                BufferedReader in = reader(socket);
+                assertEquals("success", new JSONObject(in.readLine()).getString("status"));
+                return new JSONObject(in.readLine()).getString("documentId").equals(id) ? 1 : 0;
+            }));
+        }
+
+        int ok = 0;
+        for (Future<Integer> result : results) {
+            ok += result.get(30, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+
+        assertEquals(clients, ok);
+        assertEquals(clients, storage.getDatabases().get("load").get("c").size());
+    }
+
+    @Test
+    public void testUnreadResponsesHoldBackRequests() throws Exception {
+        AtomicInteger handled = new AtomicInteger();
+        RequestHandler counting = new RequestHandler(storage) {
+            @Override
+            public String handle(String inputLine, Session session) {
+                handled.incrementAndGet();
+                return super.handle(inputLine, session);
+            }
+        };
+        counting.handle("{\"action\":\"CREATE_DB\",\"dbName\":\"nio\"}");
+        counting.handle("{\"action\":\"CREATE_COLLECTION\",\"dbName\":\"nio\",\"collectionName\":\"c\"}");
+        counting.handle(new JSONObject().put("action", "CREATE_DOCUMENT").put("dbName", "nio").put("collectionName", "c")
+                .put("documentId", "big").put("document", new JSONObject().put("filler", "x".repeat(100_000))).toString());
+        handled.set(0);
+
+        NioServer unread = new NioServer(counting, new InetSocketAddress("127.0.0.1", 0), 128, 1, 2, 1024 * 1024);
+        unread.start();
+        int requests = 400;
+        try (Socket socket = new Socket("127.0.0.1", unread.getPort())) {
+            socket.setSoTimeout(10_000);
+            StringBuilder reads = new StringBuilder();
+            for (int i = 0; i < requests; i++) {
+                reads.append("{\"action\":\"READ_DOCUMENT\",\"dbName\":\"nio\",\"collectionName\":\"c\",\"documentId\":\"big\"}\n");
+            }
+            write(socket, reads.toString());
+
+            // 40 MB of responses: only a few MB are queued while none are read
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            int before;
+            do {
+                before = handled.get();
+                Thread.sleep(300);
+            } while (handled.get() != before && System.nanoTime() < deadline);
+            assertTrue(handled.get() < requests / 2, handled.get() + " requests handled");
+
+            BufferedReader in = reader(socket);
+            for (int i = 0; i < requests; i++) {
+                assertEquals("success", new JSONObject(in.readLine()).getString("status"));
+            }
+            assertEquals(requests, handled.get());
+        } finally {
+            unread.close();
+        }
+    }
+
+    @Test
+    public void testOversizedRequestClosesConnection() throws IOException {
+        try (Socket socket = connect()) {
+            StringBuilder huge = new StringBuilder("{\"action\":\"LIST_DB\",\"pad\":\"");
+            while (huge.length() < 2 * 1024 * 1024) {
+                huge.append("xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx");
+            }
+            try {
+                write(socket, huge.toString());
+            } catch (IOException e) {
+                // The server may close before everything was sent
+            }
+
+            BufferedReader in = reader(socket);
+            assertEquals("Request too large", new JSONObject(in.readLine()).getString("message"));
+            assertNull(in.readLine());
+        }
+    }
+
+    @Test
+    public void testOversizedCompleteLineIsNotExecuted() throws IOException {
+        NioServer small = new NioServer(new RequestHandler(storage), new InetSocketAddress("127.0.0.1", 0), 128, 1, 1, 256);
+        small.start();
+        try (Socket socket = new Socket("127.0.0.1", small.getPort())) {
+            socket.setSoTimeout(10_000);
+            // Arrives with its newline in a single read, so it is never held as a partial line
+            String request = new JSONObject().put("action", "CREATE_DB").put("dbName", "big").put("pad", "x".repeat(512)).toString();
+            write(socket, request + "\n");
+
+            BufferedReader in = reader(socket);
+            assertEquals("Request too large", new JSONObject(in.readLine()).getString("message"));
+            assertNull(in.readLine());
+        } finally {
+            small.close();
+        }
+        assertFalse(storage.getDatabases().containsKey("big"));
+    }
+}
@@ -0,0 +1,102 @@
+package com.mpdbd;
+
+import com.server.query.ParallelScan;
+import com.server.query.TopK;
+import com.server.storage.Document;
+import com.server.storage.DocumentCollection;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ParallelScanTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static DocumentCollection orders(int total) {
+        DocumentCollection orders = new DocumentCollection();
+        for (int i = 0; i < total; i++) {
+            orders.put("order-" + i, Document.fromJson(new JSONObject().put("total", i).put("status", i % 3 == 0 ? "open" : "closed")));
+        }
+        return orders;
+    }
+
+    private static TopK scan(ParallelScan scans, DocumentCollection orders, String sortBy, boolean ascending, int end) {
+        return scans.scan(orders.entrySet(), () -> new TopK(sortBy, ascending, end), (entry, collector) -> {
+            if ("open".equals(entry.getValue().get("status"))) {
+                collector.offer(entry.getKey(), entry.getValue());
+            }
+        });
+    }
+
+    private static List<String> ids(List<Map.Entry<String, Document>> page) {
+        return page.stream().map(Map.Entry::getKey).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testParallelScanMatchesSequentialScan() {
+        DocumentCollection orders = orders(100_000);
+        ParallelScan sequential = new ParallelScan(1, 1000);
+        ParallelScan parallel = new ParallelScan(4, 1000);
+
+        for (boolean ascending : new boolean[] {true, false}) {
+            for (int[] page : new int[][] {{0, 25}, {1000, 50}, {0, Integer.MAX_VALUE}}) {
+                int end = (int) Math.min((long) page[0] + page[1], Integer.MAX_VALUE);
+                TopK expected = scan(sequential, orders, "total", ascending, end);
+                TopK actual = scan(parallel, orders, "total", ascending, end);
+                assertEquals(expected.offered(), actual.offered());
+                assertEquals(ids(expected.page(page[0])), ids(actual.page(page[0])));
+            }
+        }
+
+        // Without a sort any matches may fill the page, but never more than requested
+        TopK unsorted = scan(parallel, orders, "", true, 40);
+        assertEquals(33_334, unsorted.offered());
+        List<String> page = ids(unsorted.page(15));
+        assertEquals(25, page.size());
+        assertEquals(25, Set.copyOf(page).size());
+        for (String id : page) {
+            assertEquals("open", orders.get(id).get("status"));
+        }
+    }
+
+    @Test
+    public void testSmallScansStaySequential() {
+        DocumentCollection orders = orders(500);
+        ParallelScan scans = new ParallelScan(4, 1000);
+        Set<String> threads = new ConcurrentSkipListSet<>();
+        scans.scan(orders.entrySet(), () -> new TopK("", true, 10), (entry, collector) -> threads.add(Thread.currentThread().getName()));
+        assertEquals(Set.of(Thread.currentThread().getName()), threads);
+
+        threads.clear();
+        scans.scan(orders(5000).entrySet(), () -> new TopK("", true, 10), (entry, collector) -> threads.add(Thread.currentThread().getName()));
+        assertTrue(threads.stream().allMatch(name -> name.startsWith("mpdb-scan-")), threads.toString());
+    }
+
+    @Test
+    public void testQueryAboveThresholdScansInParallel() throws IOException {
+        System.setProperty("mpdb.query.parallelThreshold", "1000");
+        System.setProperty("mpdb.query.parallelism", "4");
+        try (Shop shop = new Shop(tempDir, "orders")) {
+            shop.collection("orders").putAll(orders(20_000));
+
+            JSONObject response = new JSONObject(shop.handler.handle("{\"action\":\"QUERY\",\"dbName\":\"shop\",\"collectionName\":\"orders\","
+                    + "\"query\":{\"status\":\"open\",\"total\":{\"$lt\":100}},\"sortBy\":\"total\",\"ascending\":false,\"limit\":3}"));
+            assertEquals(34, response.getInt("totalMatches"));
+            assertEquals(Set.of("order-99", "order-96", "order-93"), response.getJSONObject("documents").keySet());
+        } finally {
+            System.clearProperty("mpdb.query.parallelThreshold");
+            System.clearProperty("mpdb.query.parallelism");
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.mpdbd;
+
+import com.server.RequestExecutors;
+import com.server.RequestExecutors.Mode;
+import com.server.RequestHandler;
+import com.server.Server;
+import com.server.Session;
+import com.server.storage.StorageEngine;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PipeliningTest {
+
+    @TempDir
+    Path tempDir;
+
+    private StorageEngine storage;
+    private RequestHandler handler;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        storage = StorageEngine.open(tempDir);
+        // Stands in for a heavy QUERY: any request marked "slow" takes a while
+        handler = new RequestHandler(storage) {
+            @Override
+            public String handle(String inputLine, Session session) {
+                if (inputLine.contains("\"slow\"")) {
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.handle(inputLine, session);
+            }
+        };
+    }
+
+    @AfterEach
+    public void cleanup() {
+        storage.close();
+    }
+
+    private List<String> exchange(Server server, boolean pipelining, int expected) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+            socket.setSoTimeout(10_000);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            List<String> ids = new ArrayList<>();
+
+            if (pipelining) {
+                out.println("{\"action\":\"SET_CONNECTION_OPTIONS\",\"pipelining\":true,\"requestId\":\"opts\"}");
+                JSONObject options = new JSONObject(in.readLine());
+                assertTrue(options.getBoolean("pipelining"));
+                assertEquals("opts", options.getString("requestId"));
+            }
+
+            out.println("{\"action\":\"LIST_DB\",\"slow\":true,\"requestId\":\"slow\"}");
+            out.println("{\"action\":\"LIST_DB\",\"requestId\":\"fast-1\"}");
+            out.println("{\"action\":\"LIST_DB\",\"requestId\":\"fast-2\"}");
+            for (int i = 0; i < expected; i++) {
+                ids.add(new JSONObject(in.readLine()).getString("requestId"));
+            }
+            return ids;
+        }
+    }
+
+    @Test
+    public void testRequestIdIsEchoed() {
+        JSONObject response = new JSONObject(handler.handle("{\"action\":\"LIST_DB\",\"requestId\":\"4f1c\"}"));
+        assertEquals("4f1c", response.getString("requestId"));
+
+        response = new JSONObject(handler.handle("{\"action\":\"NOPE\",\"requestId\":42}"));
+        assertEquals("error", response.getString("status"));
+        assertEquals(42, response.getInt("requestId"));
+
+        assertFalse(new JSONObject(handler.handle("{\"action\":\"LIST_DB\"}")).has("requestId"));
+        assertEquals("r1", new JSONObject(RequestHandler.busyResponse("{\"requestId\":\"r1\"}")).getString("requestId"));
+    }
+
+    @Test
+    public void testPipeliningNeedsSupportingConnection() {
+        JSONObject response = new JSONObject(handler.handle("{\"action\":\"SET_CONNECTION_OPTIONS\",\"pipelining\":true}"));
+        assertEquals("error", response.getString("status"));
+    }
+
+    @Test
+    public void testResponsesStayInOrderByDefault() throws IOException {
+        for (Mode mode : new Mode[]{Mode.POOL, Mode.LEGACY}) {
+            Server server = RequestExecutors.startServer(mode, handler, new InetSocketAddress("127.0.0.1", 0), 50, 1, 4, 64, 1024 * 1024);
+            try {
+                assertEquals(List.of("slow", "fast-1", "fast-2"), exchange(server, false, 3), mode.name());
+            } finally {
+                server.close();
+            }
+        }
+    }
+
+    @Test
+    public void testPipelinedResponsesDoNotWaitForSlowRequest() throws IOException {
+        for (Mode mode : new Mode[]{Mode.POOL, Mode.LEGACY}) {
+            Server server = RequestExecutors.startServer(mode, handler, new InetSocketAddress("127.0.0.1", 0), 50, 1, 4, 64, 1024 * 1024);
+            try {
+                List<String> ids = exchange(server, true, 3);
+                assertEquals("slow", ids.get(2), mode.name());
+                assertTrue(ids.containsAll(List.of("fast-1", "fast-2")), mode.name());
+            } finally {
+                server.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.mpdbd;
+
+import com.server.Session;
+import com.server.query.Projection;
+import com.server.storage.Document;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProjectionTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Shop shop;
+
+    private static final JSONObject ORDER = new JSONObject(
+            "{\"status\":\"open\",\"total\":42,"
+            + "\"customer\":{\"name\":\"Ada\",\"email\":\"ada@example.com\",\"address\":{\"city\":\"London\",\"zip\":\"N1\"}},"
+            + "\"items\":[{\"sku\":\"A1\",\"qty\":2},{\"sku\":\"B2\",\"qty\":1},\"gift\"]}");
+
+    @BeforeEach
+    public void setup() throws IOException {
+        shop = new Shop(tempDir, "orders");
+        for (int i = 0; i < 3; i++) {
+            shop.insert("orders", "order" + i, new JSONObject(ORDER.toString()).put("total", i));
+        }
+    }
+
+    @AfterEach
+    public void cleanup() {
+        System.clearProperty("mpdb.query.resultCacheSize");
+        shop.close();
+    }
+
+    private static JSONObject project(Object spec) {
+        return Projection.of(spec).apply(Document.fromJson(ORDER));
+    }
+
+    @Test
+    public void testIncludeFields() {
+        JSONObject projected = project(new JSONArray().put("status").put("customer.address.city").put("missing"));
+        assertEquals(Set.of("status", "customer"), projected.keySet());
+        assertEquals("open", projected.getString("status"));
+        assertEquals("{\"address\":{\"city\":\"London\"}}", projected.getJSONObject("customer").toString());
+
+        // A field takes in the nested paths below it, whichever comes first
+        JSONObject whole = project(new JSONObject().put("customer.name", 1).put("customer", true));
+        assertTrue(ORDER.getJSONObject("customer").similar(whole.getJSONObject("customer")));
+    }
+
+    @Test
+    public void testExcludeFields() {
+        JSONObject projected = project(new JSONObject().put("total", 0).put("customer.email", false).put("customer.address.zip", 0));
+        assertEquals(Set.of("status", "customer", "items"), projected.keySet());
+        assertEquals(Set.of("name", "address"), projected.getJSONObject("customer").keySet());
+        assertEquals(Set.of("city"), projected.getJSONObject("customer").getJSONObject("address").keySet());
+        assertTrue(ORDER.getJSONArray("items").similar(projected.getJSONArray("items")));
+    }
+
+    @Test
+    public void testPathsThroughArrays() {
+        JSONArray included = project(new JSONArray().put("items.sku")).getJSONArray("items");
+        assertEquals("[{\"sku\":\"A1\"},{\"sku\":\"B2\"}]", included.toString());
+
+        JSONArray excluded = project(new JSONObject().put("items.qty", 0)).getJSONArray("items");
+        assertEquals("[{\"sku\":\"A1\"},{\"sku\":\"B2\"},\"gift\"]", excluded.toString());
+    }
+
+    @Test
+    public void testInvalidProjections() {
+        assertNull(Projection.of(null));
+        assertNull(Projection.of(new JSONArray()));
+        for (Object spec : new Object[] {"status", new JSONArray().put(1), new JSONArray().put("customer..name"),
+                new JSONObject().put("status", 1).put("total", 0), new JSONObject().put("status", 2)}) {
+            assertFalse(Projection.isValid(spec), spec.toString());
+            assertThrows(IllegalArgumentException.class, () -> Projection.of(spec));
+        }
+
+        JSONObject response = shop.send(Shop.request("QUERY", "orders")
+                .put("query", new JSONObject()).put("projection", new JSONObject().put("status", 1).put("total", 0)));
+        assertEquals("error", response.getString("status"));
+        assertTrue(response.getString("message").startsWith("projection must be"));
+    }
+
+    @Test
+    public void testReadsReturnProjectedDocuments() {
+        JSONArray fields = new JSONArray().put("total").put("customer.name");
+        JSONObject expected = new JSONObject("{\"total\":1,\"customer\":{\"name\":\"Ada\"}}");
+
+        JSONObject one = shop.send(Shop.request("READ_DOCUMENT", "orders")
+                .put("documentId", "order1").put("projection", fields));
+        assertTrue(expected.similar(one.getJSONObject("document")), one.toString());
+
+        JSONObject all = shop.send(Shop.request("READ_DOCUMENTS", "orders")
+                .put("projection", fields));
+        assertTrue(expected.similar(all.getJSONObject("documents").getJSONObject("order1")), all.toString());
+
+        JSONObject query = shop.send(Shop.request("QUERY", "orders")
+                .put("query", new JSONObject().put("total", 1)).put("projection", fields));
+        assertTrue(expected.similar(query.getJSONObject("documents").getJSONObject("order1")), query.toString());
+
+        // Batches that come from a cursor are projected as well
+        Session session = new Session(false);
+        JSONObject first = new JSONObject(shop.handler.handle(Shop.request("QUERY", "orders").put("query", new JSONObject())
+                .put("sortBy", "total").put("batchSize", 1).put("projection", new JSONObject().put("customer", 0).put("items", 0)).toString(), session));
+        JSONObject more = new JSONObject(shop.handler.handle(new JSONObject().put("action", "GET_MORE")
+                .put("cursorId", first.getLong("cursorId")).toString(), session));
+        assertEquals(Set.of("status", "total"), more.getJSONObject("documents").getJSONObject("order1").keySet());
+    }
+}
@@ -0,0 +1,143 @@
+package com.mpdbd;
+
+import com.server.RequestHandler;
+import com.server.query.ResultCache;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResultCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Shop shop;
+    private RequestHandler handler;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        shop = new Shop(tempDir, "orders");
+        handler = shop.handler;
+        for (int i = 0; i < 10; i++) {
+            write("CREATE_DOCUMENT", "order" + i, new JSONObject().put("status", i % 2 == 0 ? "open" : "closed").put("total", i));
+        }
+    }
+
+    @AfterEach
+    public void cleanup() {
+        System.clearProperty("mpdb.query.resultCacheSize");
+        System.clearProperty("mpdb.query.resultCacheMaxDocuments");
+        shop.close();
+    }
+
+    private JSONObject write(String action, String id, JSONObject document) {
+        JSONObject request = Shop.request(action, "orders").put("documentId", id);
+        if (document != null) {
+            request.put(action.equals("UPDATE_DOCUMENT") ? "updates" : "document", document);
+        }
+        return new JSONObject(handler.handle(request.toString()));
+    }
+
+    private JSONObject query(JSONObject query, JSONObject options) {
+        JSONObject request = new JSONObject(options.toString()).put("action", "QUERY").put("dbName", Shop.DB)
+                .put("collectionName", "orders").put("query", query);
+        return new JSONObject(handler.handle(request.toString()));
+    }
+
+    private JSONObject openOrders() {
+        return query(new JSONObject().put("status", "open"), new JSONObject().put("sortBy", "total").put("limit", 3));
+    }
+
+    @Test
+    public void testRepeatedQueryIsAnsweredFromTheCache() {
+        ResultCache cache = handler.getResultCache();
+        JSONObject first = openOrders();
+        JSONObject second = openOrders();
+        assertTrue(first.similar(second));
+        assertEquals(Set.of("order0", "order2", "order4"), second.getJSONObject("documents").keySet());
+        assertEquals(5, second.getInt("totalMatches"));
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.hits());
+
+        // The same query with its keys in another order shares the entry
+        query(new JSONObject("{\"total\":{\"$lt\":9,\"$gte\":1}}"), new JSONObject());
+        query(new JSONObject("{\"total\":{\"$gte\":1,\"$lt\":9}}"), new JSONObject());
+        assertEquals(2, cache.hits());
+
+        // Another page is another entry, and a projection is applied to the cached page
+        query(new JSONObject().put("status", "open"), new JSONObject().put("sortBy", "total").put("limit", 3).put("skip", 1));
+        assertEquals(3, cache.misses());
+        JSONObject projected = query(new JSONObject().put("status", "open"), new JSONObject().put("sortBy", "total").put("limit", 3)
+                .put("projection", new JSONArray().put("total")));
+        assertEquals(3, cache.hits());
+        assertEquals(Set.of("total"), projected.getJSONObject("documents").getJSONObject("order2").keySet());
+    }
+
+    @Test
+    public void testWritesInvalidateTheCollectionsResults() {
+        openOrders();
+
+        write("CREATE_DOCUMENT", "order10", new JSONObject().put("status", "open").put("total", -1));
+        assertEquals(Set.of("order10", "order0", "order2"), openOrders().getJSONObject("documents").keySet());
+
+        write("UPDATE_DOCUMENT", "order0", new JSONObject().put("status", "closed"));
+        assertEquals(Set.of("order10", "order2", "order4"), openOrders().getJSONObject("documents").keySet());
+
+        write("DELETE_DOCUMENT", "order10", null);
+        JSONObject response = openOrders();
+        assertEquals(Set.of("order2", "order4", "order6"), response.getJSONObject("documents").keySet());
+        assertEquals(4, response.getInt("totalMatches"));
+        assertEquals(0, handler.getResultCache().hits());
+
+        // A write to another collection leaves the results alone
+        handler.handle("{\"action\":\"CREATE_COLLECTION\",\"dbName\":\"shop\",\"collectionName\":\"users\"}");
+        handler.handle("{\"action\":\"CREATE_DOCUMENT\",\"dbName\":\"shop\",\"collectionName\":\"users\",\"documentId\":\"u1\",\"document\":{}}");
+        openOrders();
+        assertEquals(1, handler.getResultCache().hits());
+
+        // Nor does a collection created again under the same name get the old one's results
+        handler.handle("{\"action\":\"DELETE_COLLECTION\",\"dbName\":\"shop\",\"collectionName\":\"orders\"}");
+        handler.handle("{\"action\":\"CREATE_COLLECTION\",\"dbName\":\"shop\",\"collectionName\":\"orders\"}");
+        assertEquals(0, openOrders().getInt("totalMatches"));
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        System.setProperty("mpdb.query.resultCacheSize", "2");
+        System.setProperty("mpdb.query.resultCacheMaxDocuments", "5");
+        handler = new RequestHandler(shop.storage);
+        ResultCache cache = handler.getResultCache();
+
+        for (int total = 0; total < 3; total++) {
+            query(new JSONObject().put("total", total), new JSONObject());
+        }
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.evictions());
+        query(new JSONObject().put("total", 0), new JSONObject());
+        assertEquals(0, cache.hits());
+
+        // Pages larger than the limit are not kept
+        query(new JSONObject(), new JSONObject());
+        query(new JSONObject(), new JSONObject());
+        assertEquals(0, cache.hits());
+        query(new JSONObject(), new JSONObject().put("limit", 5));
+        query(new JSONObject(), new JSONObject().put("limit", 5));
+        assertEquals(1, cache.hits());
+
+        System.setProperty("mpdb.query.resultCacheSize", "0");
+        handler = new RequestHandler(shop.storage);
+        openOrders();
+        openOrders();
+        assertEquals(0, handler.getResultCache().size());
+        assertEquals(0, handler.getResultCache().hits());
+    }
+}
@@ -0,0 +1,255 @@
+package com.mpdbd;
+
+import com.server.RequestHandler;
+import com.server.storage.CollectionUnloader;
+import com.server.storage.Document;
+import com.server.storage.DocumentCollection;
+import com.server.storage.SegmentStore;
+import com.server.storage.StorageEngine;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SegmentStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static String request(String action, String db, String coll) {
+        return new JSONObject().put("action", action).put("dbName", db).put("collectionName", coll).toString();
+    }
+
+    private static JSONObject create(RequestHandler handler, String db, String coll, String id, int value) {
+        return new JSONObject(handler.handle(new JSONObject(request("CREATE_DOCUMENT", db, coll))
+                .put("documentId", id).put("document", new JSONObject().put("value", value)).toString()));
+    }
+
+    private static DocumentCollection collection(String... documents) {
+        DocumentCollection collection = new DocumentCollection();
+        for (String id : documents) {
+            collection.put(id, Document.fromJson(new JSONObject().put("id", id)));
+        }
+        return collection;
+    }
+
+    @Test
+    public void testCollectionsLoadWhenFirstUsed() throws IOException {
+        StorageEngine storage = StorageEngine.open(tempDir);
+        RequestHandler handler = new RequestHandler(storage);
+        handler.handle(new JSONObject().put("action", "CREATE_DB").put("dbName", "shop").toString());
+        handler.handle(request("CREATE_COLLECTION", "shop", "orders"));
+        handler.handle(request("CREATE_COLLECTION", "shop", "users"));
+        handler.handle(new JSONObject(request("CREATE_INDEX", "shop", "orders")).put("field", "value").put("type", "ordered").toString());
+        for (int i = 0; i < 10; i++) {
+            create(handler, "shop", "orders", "o" + i, i);
+        }
+        create(handler, "shop", "users", "alice", 1);
+        storage.close();
+
+        assertTrue(Files.exists(tempDir.resolve(SegmentStore.MANIFEST_FILE)));
+        assertTrue(Files.exists(tempDir.resolve("shop").resolve("orders.json")));
+        assertFalse(Files.exists(tempDir.resolve("mpdb_data.json")));
+
+        StorageEngine reopened = StorageEngine.open(tempDir);
+        DocumentCollection orders = reopened.getDatabases().get("shop").get("orders");
+        DocumentCollection users = reopened.getDatabases().get("shop").get("users");
+        assertFalse(orders.isLoaded());
+        assertFalse(users.isLoaded());
+        // Known from the manifest alone
+        assertEquals(10, orders.size());
+        assertEquals("ordered", orders.indexTypes().get("value"));
+        assertFalse(orders.isLoaded());
+
+        assertEquals(4L, orders.get("o4").get("value"));
+        assertTrue(orders.isLoaded());
+        assertEquals(1, orders.getIndex("value").lookup(4L).size());
+        assertFalse(users.isLoaded());
+        reopened.close();
+    }
+
+    @Test
+    public void testOnlyChangedCollectionsAreRewritten() throws IOException {
+        ConcurrentHashMap<String, ConcurrentHashMap<String, DocumentCollection>> databases = new ConcurrentHashMap<>();
+        DocumentCollection hot = collection("a");
+        databases.computeIfAbsent("db", k -> new ConcurrentHashMap<>()).put("hot", hot);
+        databases.get("db").put("cold", collection("x", "y"));
+        databases.computeIfAbsent("archive", k -> new ConcurrentHashMap<>()).put("old", collection("z"));
+
+        SegmentStore segments = new SegmentStore(tempDir, 1);
+        assertEquals(3, segments.write(databases));
+        assertEquals(0, segments.write(databases));
+
+        Path cold = tempDir.resolve("db").resolve("cold.json");
+        FileTime coldWritten = FileTime.fromMillis(0);
+        Files.setLastModifiedTime(cold, coldWritten);
+
+        hot.put("b", Document.fromJson(new JSONObject().put("id", "b")));
+        assertEquals(1, segments.write(databases));
+        assertEquals(coldWritten, Files.getLastModifiedTime(cold));
+
+        // Creating an index changes the definitions saved with the collection
+        hot.createIndex("id", "hash");
+        assertEquals(1, segments.write(databases));
+
+        ConcurrentHashMap<String, ConcurrentHashMap<String, DocumentCollection>> reopened = new ConcurrentHashMap<>();
+        assertEquals(5, new SegmentStore(tempDir, 1).open(reopened));
+        assertEquals(databases, reopened);
+        assertEquals("hash", reopened.get("db").get("hot").getIndex("id").getType());
+    }
+
+    @Test
+    public void testDroppedCollectionsAndDatabasesAreDeleted() throws IOException {
+        ConcurrentHashMap<String, ConcurrentHashMap<String, DocumentCollection>> databases = new ConcurrentHashMap<>();
+        databases.computeIfAbsent("db", k -> new ConcurrentHashMap<>()).put("keep", collection("a"));
+        databases.get("db").put("drop", collection("b"));
+        databases.computeIfAbsent("gone", k -> new ConcurrentHashMap<>()).put("c", collection("c"));
+        SegmentStore segments = new SegmentStore(tempDir, 1);
+        segments.write(databases);
+        assertTrue(Files.exists(tempDir.resolve("db").resolve("drop.json")));
+        assertTrue(Files.exists(tempDir.resolve("gone")));
+
+        databases.get("db").remove("drop");
+        databases.remove("gone");
+        assertEquals(0, segments.write(databases));
+
+        assertTrue(Files.exists(tempDir.resolve("db").resolve("keep.json")));
+        assertFalse(Files.exists(tempDir.resolve("db").resolve("drop.json")));
+        assertFalse(Files.exists(tempDir.resolve("gone")));
+
+        // Dropped and created again under the same name, it starts out empty
+        databases.get("db").put("keep", new DocumentCollection());
+        assertEquals(1, segments.write(databases));
+        ConcurrentHashMap<String, ConcurrentHashMap<String, DocumentCollection>> reopened = new ConcurrentHashMap<>();
+        new SegmentStore(tempDir, 1).open(reopened);
+        assertTrue(reopened.get("db").get("keep").isEmpty());
+    }
+
+    @Test
+    public void testNamesThatAreNotFileNames() throws IOException {
+        ConcurrentHashMap<String, ConcurrentHashMap<String, DocumentCollection>> databases = new ConcurrentHashMap<>();
+        ConcurrentHashMap<String, DocumentCollection> db = new ConcurrentHashMap<>();
+        databases.put("../etc é", db);
+        db.put("Users", collection("1"));
+        db.put("users", collection("2"));
+        db.put("a/b.json", collection("3"));
+        db.put("mpdb_manifest", collection("4"));
+        databases.put("mpdb_wal.log", new ConcurrentHashMap<>());
+
+        new SegmentStore(tempDir, 1).write(databases);
+        ConcurrentHashMap<String, ConcurrentHashMap<String, DocumentCollection>> reopened = new ConcurrentHashMap<>();
+        new SegmentStore(tempDir, 1).open(reopened);
+
+        assertEquals(databases, reopened);
+        assertTrue(Files.isDirectory(tempDir.resolve("%2E%2E%2Fetc%20%C3%A9")));
+        assertTrue(Files.exists(tempDir.resolve(SegmentStore.MANIFEST_FILE)));
+    }
+
+    @Test
+    public void testIdleCollectionsAreUnloadedAndReloaded() throws IOException {
+        ConcurrentHashMap<String, ConcurrentHashMap<String, DocumentCollection>> databases = new ConcurrentHashMap<>();
+        DocumentCollection collection = collection("a", "b");
+        collection.createIndex("id", "hash");
+        databases.computeIfAbsent("db", k -> new ConcurrentHashMap<>()).put("coll", collection);
+        DocumentCollection unsaved = collection("c");
+
+        SegmentStore segments = new SegmentStore(tempDir, 1);
+        segments.write(databases);
+        databases.get("db").put("unsaved", unsaved);
+        CollectionUnloader unloader = new CollectionUnloader(segments, databases, 0);
+
+        // The first pass only notices the collections were used since the last one
+        assertEquals(0, unloader.unloadIdle());
+        assertEquals(1, unloader.unloadIdle());
+        assertFalse(collection.isLoaded());
+        assertTrue(unsaved.isLoaded());
+        assertEquals(2, collection.size());
+        assertEquals(1, collection.indexTypes().size());
+
+        assertEquals("a", collection.get("a").get("id"));
+        assertTrue(collection.isLoaded());
+        assertEquals(1, collection.getIndex("id").lookup("b").size());
+
+        // A changed collection stays until it is saved again
+        collection.put("c", Document.fromJson(new JSONObject().put("id", "c")));
+        unloader.unloadIdle();
+        assertEquals(0, unloader.unloadIdle());
+        segments.write(databases);
+        unloader.unloadIdle();
+        assertTrue(unloader.unloadIdle() > 0);
+        assertFalse(collection.isLoaded());
+        assertEquals(3, collection.size());
+        assertEquals("c", collection.get("c").get("id"));
+        // The other collection was saved for the first time along with it
+        assertEquals(3, unloader.getUnloaded());
+    }
+
+    @Test
+    public void testWritesRacingUnloadsAreKept() throws Exception {
+        ConcurrentHashMap<String, ConcurrentHashMap<String, DocumentCollection>> databases = new ConcurrentHashMap<>();
+        DocumentCollection collection = new DocumentCollection();
+        databases.computeIfAbsent("db", k -> new ConcurrentHashMap<>()).put("coll", collection);
+        SegmentStore segments = new SegmentStore(tempDir, 1);
+        CollectionUnloader unloader = new CollectionUnloader(segments, databases, 0);
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger written = new AtomicInteger();
+        // Writes in short bursts, so the collection is often idle and saved between them
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 2000; i++) {
+                collection.put("doc" + i, Document.fromJson(new JSONObject().put("n", i)));
+                written.incrementAndGet();
+                if (i % 100 == 99) {
+                    LockSupport.parkNanos(20_000_000);
+                }
+            }
+            done.set(true);
+        });
+        writer.start();
+        while (!done.get()) {
+            segments.write(databases);
+            unloader.unloadIdle();
+            unloader.unloadIdle();
+        }
+        writer.join();
+
+        assertTrue(unloader.getUnloaded() > 0);
+        assertEquals(written.get(), collection.size());
+        for (int i = 0; i < 2000; i++) {
+            assertNotNull(collection.get("doc" + i), "doc" + i);
+        }
+    }
+
+    @Test
+    public void testSingleSnapshotFileIsMovedIntoSegments() throws IOException {
+        Files.write(tempDir.resolve("mpdb_data.json"),
+                "{\"db\":{\"coll\":{\"a\":{\"x\":1}},\"empty\":{}}}".getBytes(StandardCharsets.UTF_8));
+        Files.write(tempDir.resolve("mpdb_indexes.json"),
+                "{\"db\":{\"coll\":[{\"field\":\"x\",\"type\":\"ordered\"}]}}".getBytes(StandardCharsets.UTF_8));
+
+        StorageEngine storage = StorageEngine.open(tempDir);
+        assertFalse(Files.exists(tempDir.resolve("mpdb_data.json")));
+        assertFalse(Files.exists(tempDir.resolve("mpdb_indexes.json")));
+        assertTrue(Files.exists(tempDir.resolve("mpdb_data.json.migrated")));
+        assertTrue(Files.exists(tempDir.resolve("mpdb_indexes.json.migrated")));
+        storage.close();
+
+        StorageEngine reopened = StorageEngine.open(tempDir);
+        DocumentCollection coll = reopened.getDatabases().get("db").get("coll");
+        assertEquals(1L, coll.get("a").get("x"));
+        assertEquals("ordered", coll.getIndex("x").getType());
+        assertTrue(reopened.getDatabases().get("db").get("empty").isEmpty());
+        reopened.close();
+    }
+}
@@ -0,0 +1,52 @@
+package com.mpdbd;
+
+import com.server.RequestHandler;
+import com.server.storage.DocumentCollection;
+import com.server.storage.StorageEngine;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * The fixture the request tests share: a storage opened in the test's temporary directory,
+ * a handler in front of it and a "shop" database with the collections the test needs.
+ */
+final class Shop implements AutoCloseable {
+
+    static final String DB = "shop";
+
+    final StorageEngine storage;
+    final RequestHandler handler;
+
+    Shop(Path dir, String... collections) throws IOException {
+        storage = StorageEngine.open(dir);
+        handler = new RequestHandler(storage);
+        handler.handle(new JSONObject().put("action", "CREATE_DB").put("dbName", DB).toString());
+        for (String collection : collections) {
+            handler.handle(request("CREATE_COLLECTION", collection).toString());
+        }
+    }
+
+    /** A request for {@code action} on a collection of the shop database, to add the other fields to. */
+    static JSONObject request(String action, String collection) {
+        return new JSONObject().put("action", action).put("dbName", DB).put("collectionName", collection);
+    }
+
+    JSONObject send(JSONObject request) {
+        return new JSONObject(handler.handle(request.toString()));
+    }
+
+    JSONObject insert(String collection, String id, JSONObject document) {
+        return send(request("CREATE_DOCUMENT", collection).put("documentId", id).put("document", document));
+    }
+
+    DocumentCollection collection(String name) {
+        return storage.getDatabases().get(DB).get(name);
+    }
+
+    @Override
+    public void close() {
+        storage.close();
+    }
+}
@@ -0,0 +1,201 @@
+package com.mpdbd;
+
+import com.server.Session;
+import com.server.storage.Document;
+import com.server.storage.DocumentCollection;
+import com.server.storage.Snapshot;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotIsolationTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Shop shop;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        // Versions are collected by the tests themselves
+        System.setProperty("mpdb.mvcc.collectIntervalMs", "3600000");
+        shop = new Shop(tempDir, "stock");
+    }
+
+    @AfterEach
+    public void cleanup() {
+        System.clearProperty("mpdb.mvcc.collectIntervalMs");
+        shop.close();
+    }
+
+    private static Document doc(int qty) {
+        return Document.fromJson(new JSONObject().put("qty", qty));
+    }
+
+    private static Map<String, Object> quantities(Iterable<Map.Entry<String, Document>> entries) {
+        Map<String, Object> quantities = new HashMap<>();
+        for (Map.Entry<String, Document> entry : entries) {
+            quantities.put(entry.getKey(), entry.getValue().get("qty"));
+        }
+        return quantities;
+    }
+
+    @Test
+    public void testSnapshotSeesTheCollectionAsItWas() {
+        DocumentCollection stock = new DocumentCollection();
+        stock.put("apple", doc(1));
+        stock.put("pear", doc(2));
+
+        try (Snapshot snapshot = Snapshot.open()) {
+            stock.put("apple", doc(10));
+            stock.remove("pear");
+            stock.put("plum", doc(3));
+            // Deleted and created again while the snapshot is open
+            stock.put("fig", doc(4));
+            stock.remove("fig");
+            stock.put("fig", doc(5));
+
+            assertEquals(Map.of("apple", 1L, "pear", 2L), quantities(stock.entrySet(snapshot)));
+            assertEquals(1L, stock.get("apple", snapshot).get("qty"));
+            assertNull(stock.get("plum", snapshot));
+
+            // The map itself has the latest documents and no trace of the delete
+            assertEquals(Map.of("apple", 10L, "plum", 3L, "fig", 5L), quantities(stock.entrySet()));
+            assertEquals(3, stock.size());
+            assertNull(stock.get("pear"));
+            assertFalse(stock.containsKey("pear"));
+            assertEquals(Set.of("apple", "plum", "fig"), stock.keySet());
+
+            try (Snapshot later = Snapshot.open()) {
+                assertEquals(Map.of("apple", 10L, "plum", 3L, "fig", 5L), quantities(stock.entrySet(later)));
+            }
+        }
+
+        // Nothing is left to drop once every snapshot that could read the old versions is closed
+        assertTrue(stock.collectVersions(Snapshot.horizon()) >= 4);
+        assertEquals(0, stock.collectVersions(Snapshot.horizon()));
+        assertEquals(3, stock.size());
+        assertEquals(Map.of("apple", 10L, "plum", 3L, "fig", 5L), quantities(stock.entrySet()));
+    }
+
+    @Test
+    public void testLongScanIsNotTornByConcurrentWrites() throws Exception {
+        DocumentCollection stock = new DocumentCollection();
+        int documents = 2000;
+        for (int i = 0; i < documents; i++) {
+            stock.put("item" + i, doc(0));
+        }
+
+        // Each round sets every document to the round number, in id order, so any point
+        // in time has a prefix of the documents at one round and the rest at the one before
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread writer = new Thread(() -> {
+            for (int round = 1; running.get(); round++) {
+                for (int i = 0; i < documents; i++) {
+                    stock.put("item" + i, doc(round));
+                }
+            }
+        });
+        writer.start();
+        try {
+            for (int scan = 0; scan < 50; scan++) {
+                try (Snapshot snapshot = Snapshot.open()) {
+                    Map<String, Object> seen = quantities(stock.entrySet(snapshot));
+                    assertEquals(documents, seen.size());
+                    long first = (Long) seen.get("item0");
+                    boolean older = false;
+                    for (int i = 0; i < documents; i++) {
+                        long qty = (Long) seen.get("item" + i);
+                        older |= qty == first - 1;
+                        assertEquals(older ? first - 1 : first, qty, "item" + i + " in scan " + scan);
+                    }
+                }
+            }
+        } finally {
+            running.set(false);
+            writer.join();
+        }
+    }
+
+    @Test
+    public void testCursorReadsTheDocumentsAsOfItsFirstBatch() {
+        Session session = new Session(false);
+        for (int i = 0; i < 5; i++) {
+            shop.insert("stock", "item" + i, new JSONObject().put("qty", i));
+        }
+        int open = Snapshot.openCount();
+
+        JSONObject response = new JSONObject(shop.handler.handle(
+                Shop.request("READ_DOCUMENTS", "stock").put("batchSize", 2).toString(), session));
+        assertEquals(open + 1, Snapshot.openCount());
+        Map<String, Object> seen = new HashMap<>();
+        for (String id : response.getJSONObject("documents").keySet()) {
+            seen.put(id, response.getJSONObject("documents").getJSONObject(id).get("qty"));
+        }
+
+        // Change every document, whether the cursor has returned it yet or not
+        for (int i = 0; i < 5; i++) {
+            shop.handler.handle(Shop.request("UPDATE_DOCUMENT", "stock")
+                    .put("documentId", "item" + i).put("updates", new JSONObject().put("qty", 100)).toString());
+        }
+        shop.send(Shop.request("DELETE_DOCUMENT", "stock").put("documentId", "item4"));
+        shop.insert("stock", "item5", new JSONObject());
+
+        while (response.getBoolean("hasMore")) {
+            response = new JSONObject(shop.handler.handle(new JSONObject().put("action", "GET_MORE")
+                    .put("cursorId", response.getLong("cursorId")).toString(), session));
+            for (String id : response.getJSONObject("documents").keySet()) {
+                seen.put(id, response.getJSONObject("documents").getJSONObject(id).get("qty"));
+            }
+        }
+        assertEquals(Map.of("item0", 0, "item1", 1, "item2", 2, "item3", 3, "item4", 4), seen);
+        assertEquals(open, Snapshot.openCount());
+
+        // Killing a cursor, or closing its connection, releases its snapshot as well
+        response = new JSONObject(shop.handler.handle(new JSONObject().put("action", "READ_DB").put("dbName", Shop.DB)
+                .put("batchSize", 1).toString(), session));
+        assertEquals(open + 1, Snapshot.openCount());
+        shop.handler.handle(new JSONObject().put("action", "KILL_CURSOR").put("cursorId", response.getLong("cursorId")).toString(), session);
+        assertEquals(open, Snapshot.openCount());
+        shop.handler.handle(new JSONObject().put("action", "READ_DB").put("dbName", Shop.DB).put("batchSize", 1).toString(), session);
+        session.close();
+        assertEquals(open, Snapshot.openCount());
+    }
+
+    @Test
+    public void testOldVersionsAreKeptOnlyWhileSnapshotsNeedThem() {
+        DocumentCollection stock = shop.collection("stock");
+        stock.put("apple", doc(1));
+        shop.storage.getVersionCollector().collect();
+
+        Snapshot snapshot = Snapshot.open();
+        stock.put("apple", doc(2));
+        stock.put("apple", doc(3));
+        stock.remove("apple");
+        assertEquals(0, shop.storage.getVersionCollector().collect());
+        assertEquals(1L, stock.get("apple", snapshot).get("qty"));
+
+        snapshot.close();
+        snapshot.close();
+        // The three replaced versions and the tombstone
+        assertEquals(4, shop.storage.getVersionCollector().collect());
+        assertTrue(stock.isEmpty());
+
+        // Without open snapshots, writes keep nothing to collect
+        stock.put("apple", doc(4));
+        stock.put("apple", doc(5));
+        stock.remove("apple");
+        assertEquals(0, shop.storage.getVersionCollector().collect());
+    }
+}
@@ -0,0 +1,133 @@
+package com.mpdbd;
+
+import com.server.ClientHandler;
+import com.server.RequestHandler;
+import com.server.storage.Document;
+import com.server.storage.DocumentCollection;
+import com.server.storage.SnapshotFile;
+import com.server.storage.StorageEngine;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class StorageEngineTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testReopenRestoresLoggedMutations() throws IOException {
+        StorageEngine storage = StorageEngine.open(tempDir);
+        DocumentCollection collection = new DocumentCollection();
+        storage.getDatabases().computeIfAbsent("db", k -> new ConcurrentHashMap<>()).put("coll", collection);
+        storage.log(StorageEngine.logRecord("CREATE_DB", "db"));
+        storage.log(StorageEngine.logRecord("CREATE_COLLECTION", "db", "coll"));
+
+        JSONObject doc = new JSONObject().put("name", "Alice");
+        collection.put("alice", Document.fromJson(doc));
+        storage.log(StorageEngine.logRecord("CREATE_DOCUMENT", "db", "coll").put("id", "alice").put("doc", doc));
+
+        // Reopen without a checkpoint: everything comes from the log
+        StorageEngine replayed = StorageEngine.open(tempDir);
+        assertEquals("Alice", replayed.getDatabases().get("db").get("coll").get("alice").get("name"));
+
+        // Reopen after close: everything comes from the snapshot
+        storage.close();
+        assertEquals(0, Files.size(tempDir.resolve("mpdb_wal.log")));
+        StorageEngine restored = StorageEngine.open(tempDir);
+        assertEquals(1, restored.getDatabases().get("db").get("coll").size());
+    }
+
+    @Test
+    public void testWriteThatCannotBeLoggedIsNotAcknowledged() throws IOException {
+        StorageEngine storage = StorageEngine.open(tempDir);
+        RequestHandler handler = new RequestHandler(storage);
+        handler.handle("{\"action\":\"CREATE_DB\",\"dbName\":\"db\"}");
+        // Closing the log makes every later append fail
+        storage.close();
+
+        JSONObject response = new JSONObject(handler.handle("{\"action\":\"CREATE_DB\",\"dbName\":\"lost\"}"));
+        assertEquals("error", response.getString("status"));
+        assertTrue(response.getString("message").startsWith("Write could not be saved"), response.getString("message"));
+        assertThrows(UncheckedIOException.class, () -> storage.log(StorageEngine.logRecord("CREATE_DB", "lost")));
+    }
+
+    @Test
+    public void testHandlerCreationDoesNotReload() throws IOException {
+        StorageEngine storage = StorageEngine.open(tempDir);
+        storage.getDatabases().put("inMemoryOnly", new ConcurrentHashMap<>());
+
+        new ClientHandler(mock(Socket.class), storage);
+        new ClientHandler(mock(Socket.class), storage);
+
+        assertTrue(storage.getDatabases().containsKey("inMemoryOnly"));
+    }
+
+    @Test
+    public void testParallelLoadMatchesSequentialLoad() throws IOException {
+        ConcurrentHashMap<String, ConcurrentHashMap<String, DocumentCollection>> databases = new ConcurrentHashMap<>();
+        for (int d = 0; d < 3; d++) {
+            ConcurrentHashMap<String, DocumentCollection> db = new ConcurrentHashMap<>();
+            databases.put("db \"" + d + "\"", db);
+            for (int c = 0; c < 4; c++) {
+                DocumentCollection coll = new DocumentCollection();
+                db.put("coll\\" + c, coll);
+                for (int i = 0; i < 1500; i++) {
+                    coll.put("doc-" + i + "é", Document.fromJson(new JSONObject()
+                            .put("n", i)
+                            .put("text", "brace } and \"quote\" [")
+                            .put("nested", new JSONObject().put("list", new int[]{i, i + 1}))));
+                }
+            }
+        }
+        databases.put("emptyDb", new ConcurrentHashMap<>());
+
+        Path snapshot = tempDir.resolve("mpdb_data.json");
+        SnapshotFile.write(snapshot, databases);
+
+        List<Long> progress = new ArrayList<>();
+        ConcurrentHashMap<String, ConcurrentHashMap<String, DocumentCollection>> parallel = new ConcurrentHashMap<>();
+        long count = SnapshotFile.read(snapshot, parallel, 4, (read, total) -> progress.add(read));
+
+        ConcurrentHashMap<String, ConcurrentHashMap<String, DocumentCollection>> sequential = new ConcurrentHashMap<>();
+        SnapshotFile.read(snapshot, sequential, 1, null);
+
+        assertEquals(3 * 4 * 1500, count);
+        assertEquals(databases, parallel);
+        assertEquals(databases, sequential);
+        assertFalse(progress.isEmpty());
+    }
+
+    @Test
+    public void testLoadsPrettyPrintedSnapshot() throws IOException {
+        JSONObject data = new JSONObject().put("db", new JSONObject().put("coll",
+                new JSONObject().put("a", new JSONObject().put("x", 1))));
+        Path snapshot = tempDir.resolve("mpdb_data.json");
+        Files.write(snapshot, data.toString(2).getBytes(StandardCharsets.UTF_8));
+
+        StorageEngine storage = StorageEngine.open(tempDir);
+        assertEquals(1L, storage.getDatabases().get("db").get("coll").get("a").get("x"));
+    }
+
+    @Test
+    public void testCorruptSnapshotFailsToOpen() throws IOException {
+        Files.write(tempDir.resolve("mpdb_data.json"), "{\"db\":{\"coll\":{\"a\":{\"x\":}}}}".getBytes(StandardCharsets.UTF_8));
+        assertThrows(IOException.class, () -> StorageEngine.open(tempDir));
+
+        Files.write(tempDir.resolve("mpdb_data.json"), "{\"db\":{\"coll\":{\"a\":".getBytes(StandardCharsets.UTF_8));
+        assertThrows(IOException.class, () -> StorageEngine.open(tempDir));
+    }
+}
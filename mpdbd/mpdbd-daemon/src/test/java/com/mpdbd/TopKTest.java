@@ -0,0 +1,87 @@
+package com.mpdbd;
+
+import com.server.query.TopK;
+import com.server.storage.Document;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TopKTest {
+
+    private static List<Map.Entry<String, Document>> documents(long seed, boolean numbers) {
+        Random random = new Random(seed);
+        List<Map.Entry<String, Document>> documents = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            JSONObject json = new JSONObject().put("n", i);
+            int kind = random.nextInt(10);
+            if (kind == 0) {
+                // No sort field
+            } else if (numbers) {
+                json.put("date", kind < 5 ? (Object) (long) random.nextInt(50) : (Object) (random.nextInt(500) / 10.0));
+            } else {
+                json.put("date", "2024-01-" + random.nextInt(30));
+            }
+            documents.add(Map.entry("doc-" + i, Document.fromJson(json)));
+        }
+        return documents;
+    }
+
+    // QUERY's sort before it was bounded: a stable sort of every match
+    private static List<String> fullSort(List<Map.Entry<String, Document>> documents, boolean ascending, int skip, int limit) {
+        Comparator<Map.Entry<String, Document>> order = (a, b) -> {
+            Object valA = a.getValue().get("date");
+            Object valB = b.getValue().get("date");
+            if (valA == null && valB == null) return 0;
+            if (valA == null) return ascending ? -1 : 1;
+            if (valB == null) return ascending ? 1 : -1;
+            if (valA instanceof Number && valB instanceof Number) {
+                double numA = ((Number) valA).doubleValue();
+                double numB = ((Number) valB).doubleValue();
+                return ascending ? Double.compare(numA, numB) : Double.compare(numB, numA);
+            }
+            return ascending ? valA.toString().compareTo(valB.toString()) : valB.toString().compareTo(valA.toString());
+        };
+        return documents.stream().sorted(order).skip(skip).limit(limit).map(Map.Entry::getKey).collect(Collectors.toList());
+    }
+
+    private static List<String> topK(List<Map.Entry<String, Document>> documents, String sortField, boolean ascending, int skip, int limit) {
+        TopK top = new TopK(sortField, ascending, (int) Math.min((long) skip + limit, Integer.MAX_VALUE));
+        for (Map.Entry<String, Document> entry : documents) {
+            top.offer(entry.getKey(), entry.getValue());
+        }
+        assertEquals(documents.size(), top.offered());
+        return top.page(skip).stream().map(Map.Entry::getKey).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testPagesMatchAFullSort() {
+        int[][] pages = {{0, 25}, {0, 1}, {10, 25}, {490, 25}, {0, 500}, {600, 10}, {0, 0}, {5, Integer.MAX_VALUE}, {0, Integer.MAX_VALUE}};
+        for (boolean numbers : new boolean[] {true, false}) {
+            List<Map.Entry<String, Document>> documents = documents(numbers ? 1 : 2, numbers);
+            for (boolean ascending : new boolean[] {true, false}) {
+                for (int[] page : pages) {
+                    assertEquals(fullSort(documents, ascending, page[0], page[1]), topK(documents, "date", ascending, page[0], page[1]),
+                            "numbers=" + numbers + " ascending=" + ascending + " skip=" + page[0] + " limit=" + page[1]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUnsortedKeepsTheFirstDocuments() {
+        List<Map.Entry<String, Document>> documents = documents(3, true);
+        List<String> ids = documents.stream().map(Map.Entry::getKey).collect(Collectors.toList());
+
+        assertEquals(ids.subList(10, 35), topK(documents, "", true, 10, 25));
+        assertEquals(ids, topK(documents, "", true, 0, Integer.MAX_VALUE));
+        assertEquals(List.of(), topK(documents, "", true, 500, 25));
+    }
+}
@@ -0,0 +1,135 @@
+package com.mpdbd;
+
+import com.server.storage.WriteAheadLog;
+import com.server.storage.WriteAheadLog.FsyncPolicy;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteAheadLogTest {
+
+    @TempDir
+    Path tempDir;
+
+    private JSONObject record(int i) {
+        JSONObject record = new JSONObject();
+        record.put("op", "CREATE_DOCUMENT");
+        record.put("id", "doc-" + i);
+        record.put("doc", new JSONObject().put("value", i));
+        return record;
+    }
+
+    @Test
+    public void testAppendAndReplay() throws IOException {
+        Path file = tempDir.resolve("wal.log");
+
+        for (FsyncPolicy policy : FsyncPolicy.values()) {
+            Files.deleteIfExists(file);
+            try (WriteAheadLog wal = new WriteAheadLog(file, policy, 10)) {
+                for (int i = 0; i < 5; i++) {
+                    wal.append(record(i));
+                }
+            }
+
+            List<JSONObject> replayed = new ArrayList<>();
+            assertEquals(5, WriteAheadLog.replay(file, replayed::add));
+            assertEquals("doc-0", replayed.get(0).getString("id"));
+            assertEquals(4, replayed.get(4).getJSONObject("doc").getInt("value"));
+        }
+    }
+
+    @Test
+    public void testAppendAllWritesEveryRecordAsItsOwnLine() throws IOException {
+        Path file = tempDir.resolve("wal.log");
+        try (WriteAheadLog wal = new WriteAheadLog(file, FsyncPolicy.ALWAYS, 0)) {
+            wal.append(record(0));
+            List<JSONObject> batch = new ArrayList<>();
+            for (int i = 1; i <= 100; i++) {
+                batch.add(record(i));
+            }
+            wal.appendAll(batch);
+            wal.appendAll(new ArrayList<>());
+        }
+
+        List<JSONObject> replayed = new ArrayList<>();
+        assertEquals(101, WriteAheadLog.replay(file, replayed::add));
+        assertEquals("doc-100", replayed.get(100).getString("id"));
+    }
+
+    @Test
+    public void testRecordsAreCompactSingleLines() throws IOException {
+        Path file = tempDir.resolve("wal.log");
+        try (WriteAheadLog wal = new WriteAheadLog(file, FsyncPolicy.OS, 0)) {
+            wal.append(record(1));
+            wal.append(record(2));
+        }
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertFalse(lines.get(0).contains(" "));
+    }
+
+    @Test
+    public void testTruncate() throws IOException {
+        Path file = tempDir.resolve("wal.log");
+        try (WriteAheadLog wal = new WriteAheadLog(file, FsyncPolicy.ALWAYS, 0)) {
+            wal.append(record(1));
+            assertTrue(wal.size() > 0);
+
+            wal.truncate();
+            assertEquals(0, wal.size());
+
+            wal.append(record(2));
+        }
+
+        List<JSONObject> replayed = new ArrayList<>();
+        WriteAheadLog.replay(file, replayed::add);
+        assertEquals(1, replayed.size());
+        assertEquals("doc-2", replayed.get(0).getString("id"));
+    }
+
+    @Test
+    public void testTornTailIsDiscarded() throws IOException {
+        Path file = tempDir.resolve("wal.log");
+        try (WriteAheadLog wal = new WriteAheadLog(file, FsyncPolicy.OS, 0)) {
+            wal.append(record(1));
+        }
+
+        // Simulate a crash in the middle of an append
+        Files.write(file, "{\"op\":\"CREATE_DOC".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        List<JSONObject> replayed = new ArrayList<>();
+        assertEquals(1, WriteAheadLog.replay(file, replayed::add));
+
+        // Reopening repairs the tail so later appends are readable again
+        try (WriteAheadLog wal = new WriteAheadLog(file, FsyncPolicy.OS, 0)) {
+            wal.append(record(2));
+        }
+
+        replayed.clear();
+        assertEquals(2, WriteAheadLog.replay(file, replayed::add));
+        assertEquals("doc-2", replayed.get(1).getString("id"));
+    }
+
+    @Test
+    public void testReplayMissingFile() throws IOException {
+        assertEquals(0, WriteAheadLog.replay(tempDir.resolve("missing.log"), r -> fail()));
+    }
+
+    @Test
+    public void testParsePolicy() {
+        assertEquals(FsyncPolicy.ALWAYS, FsyncPolicy.parse("always"));
+        assertEquals(FsyncPolicy.OS, FsyncPolicy.parse(" OS "));
+        assertEquals(FsyncPolicy.INTERVAL, FsyncPolicy.parse("bogus"));
+    }
+}